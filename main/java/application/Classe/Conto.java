@@ -2,34 +2,53 @@ package application.Classe;
 
 import java.math.BigDecimal;
 import java.time.LocalDateTime;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
 
+/**
+ * Conto di un utente. Lo storico dei movimenti non è tenuto in memoria: è un registro
+ * append-only nel database, consultabile a pagine tramite ContoDAO.getStoricoMovimenti.
+ */
 public class Conto {
     private int id;
     private int utenteId;
     private BigDecimal saldo;
-    private final List<Movimento> movimenti;
+    private long ultimaSequenza;
 
     public enum TipoMovimento {
         ACCREDITO, ADDEBITO, ACQUISTO, RICARICA
     }
 
     public static class Movimento {
+        private final long sequenza;
         private final BigDecimal importo;
         private final LocalDateTime data;
         private final TipoMovimento tipo;
         private final String descrizione;
 
         public Movimento(BigDecimal importo, TipoMovimento tipo, String descrizione) {
+            this(0, importo, tipo, descrizione, LocalDateTime.now());
+        }
+
+        /**
+         * Movimento letto dal registro
+         * @param sequenza numero progressivo del movimento nel conto (1, 2, 3...)
+         */
+        public Movimento(long sequenza, BigDecimal importo, TipoMovimento tipo, String descrizione, LocalDateTime data) {
+            this.sequenza = sequenza;
             this.importo = importo;
             this.tipo = tipo;
             this.descrizione = descrizione;
-            this.data = LocalDateTime.now();
+            this.data = data;
+        }
+
+        /**
+         * Importo con segno: positivo per le entrate, negativo per le uscite
+         */
+        public BigDecimal getImportoConSegno() {
+            return tipo == TipoMovimento.ACQUISTO || tipo == TipoMovimento.ADDEBITO ? importo.negate() : importo;
         }
 
         // Getter
+        public long getSequenza() { return sequenza; }
         public BigDecimal getImporto() { return importo; }
         public LocalDateTime getData() { return data; }
         public TipoMovimento getTipo() { return tipo; }
@@ -44,13 +63,11 @@ public class Conto {
 
     public Conto() {
         this.saldo = BigDecimal.ZERO;
-        this.movimenti = new ArrayList<>();
     }
 
     public Conto(int utenteId) {
         this.utenteId = utenteId;
         this.saldo = BigDecimal.ZERO;
-        this.movimenti = new ArrayList<>();
     }
 
     // Getter e Setter
@@ -64,13 +81,25 @@ public class Conto {
         return saldo;
     }
 
+    /**
+     * Imposta il saldo letto dal database
+     */
+    public void setSaldo(BigDecimal saldo) {
+        this.saldo = saldo != null ? saldo : BigDecimal.ZERO;
+    }
+
+    /**
+     * Sequenza dell'ultimo movimento registrato, cioè il numero di movimenti del conto
+     */
+    public long getUltimaSequenza() { return ultimaSequenza; }
+    public void setUltimaSequenza(long ultimaSequenza) { this.ultimaSequenza = ultimaSequenza; }
+
     /**
      * Accredita un importo positivo sul conto
      */
     public void accredita(BigDecimal importo, String descrizione) {
         if (importo.compareTo(BigDecimal.ZERO) > 0) {
             saldo = saldo.add(importo);
-            movimenti.add(new Movimento(importo, TipoMovimento.ACCREDITO, descrizione));
         }
     }
 
@@ -81,7 +110,6 @@ public class Conto {
     public boolean addebita(BigDecimal importo, String descrizione) {
         if (importo.compareTo(BigDecimal.ZERO) > 0 && saldo.compareTo(importo) >= 0) {
             saldo = saldo.subtract(importo);
-            movimenti.add(new Movimento(importo, TipoMovimento.ADDEBITO, descrizione));
             return true;
         }
         return false;
@@ -94,7 +122,6 @@ public class Conto {
     public boolean effettuaAcquisto(BigDecimal importo, String descrizione) {
         if (importo.compareTo(BigDecimal.ZERO) > 0 && saldo.compareTo(importo) >= 0) {
             saldo = saldo.subtract(importo);
-            movimenti.add(new Movimento(importo, TipoMovimento.ACQUISTO, descrizione));
             return true;
         }
         return false;
@@ -106,27 +133,9 @@ public class Conto {
     public void ricarica(BigDecimal importo, String metodoPagamento) {
         if (importo.compareTo(BigDecimal.ZERO) > 0) {
             saldo = saldo.add(importo);
-            movimenti.add(new Movimento(importo, TipoMovimento.RICARICA, 
-                "Ricarica tramite " + metodoPagamento));
         }
     }
 
-    /**
-     * Restituisce una lista immodificabile dei movimenti per prevenire modifiche esterne
-     */
-    public List<Movimento> getMovimenti() {
-        return Collections.unmodifiableList(movimenti);
-    }
-
-    /**
-     * Filtra i movimenti per tipo utilizzando stream
-     */
-    public List<Movimento> getMovimentiPerTipo(TipoMovimento tipo) {
-        return movimenti.stream()
-                .filter(m -> m.getTipo() == tipo)
-                .toList();
-    }
-    
     /**
      * Verifica se il saldo è sufficiente per un dato importo
      */
@@ -137,6 +146,6 @@ public class Conto {
     @Override
     public String toString() {
         return String.format("Conto [Utente: %d, Saldo: €%.2f, Movimenti: %d]", 
-            utenteId, saldo, movimenti.size());
+            utenteId, saldo, ultimaSequenza);
     }
 }
\ No newline at end of file
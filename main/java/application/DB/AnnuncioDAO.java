@@ -12,14 +12,30 @@ import java.io.File;
 import java.sql.*;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class AnnuncioDAO {
     private static final String TABLE_NAME = "annuncio";
     private static final String CARATTERISTICHE_TABLE = "annuncio_caratteristica";
 
+    // Letture per ID raccolte in lotti: una query per gli annunci e una per le caratteristiche
+    private static final CaricatoreBatch<Integer, Annuncio> CARICATORE_ANNUNCI =
+        new CaricatoreBatch<>("annunci", AnnuncioDAO::leggiAnnunciPerId);
+
+    // Ricerca per somiglianza: al più questi annunci, anche se il chiamante ne chiede di più
+    private static final int LIMITE_MAX_SIMILI = 200;
+    private static volatile boolean indiceTrigrammiVerificato = false;
+    private static volatile boolean trigrammiDisponibili = false;
+
     // Inserisce un annuncio completo con oggetto associato
     public int inserisciAnnuncioComplessivo(Annuncio annuncio, int venditoreId) {
+        if (!RateLimiter.consenti(RateLimiter.Operazione.INSERIMENTO_ANNUNCIO, venditoreId)) {
+            System.err.println("Inserimento annuncio rifiutato: troppe richieste dall'utente " + venditoreId);
+            return -1;
+        }
         annuncio.setVenditoreId(venditoreId);
 
         // Assicurati che l'oggetto abbia l'origine impostata
@@ -161,6 +177,25 @@ public class AnnuncioDAO {
 
     // Recupera un annuncio dal database tramite ID
     public Annuncio getAnnuncioById(int id) {
+        return CARICATORE_ANNUNCI.caricaEAttendi(id);
+    }
+
+    // Recupera più annunci con una sola query: mappa ID -> annuncio nell'ordine degli ID, senza quelli non trovati
+    public Map<Integer, Annuncio> getAnnunciByIds(Collection<Integer> ids) {
+        return CARICATORE_ANNUNCI.caricaTutti(ids);
+    }
+
+    // Statistiche del caricamento a lotti degli annunci
+    public static String getReportCaricatore() {
+        return CARICATORE_ANNUNCI.getReportStatistiche();
+    }
+
+    // Annunci degli ID indicati, nello stesso ordine (gli ID non trovati vengono saltati)
+    private List<Annuncio> getAnnunciInOrdine(List<Integer> ids) {
+        return new ArrayList<>(getAnnunciByIds(ids).values());
+    }
+
+    private static Map<Integer, Annuncio> leggiAnnunciPerId(List<Integer> ids) throws SQLException {
         String sql = "SELECT " +
                    "a.id AS annuncio_id, a.titolo, a.prezzo, a.in_evidenza, a.tipologia, " +
                    "a.modalita_consegna, a.stato, a.venditore_id, a.data_pubblicazione, " +
@@ -171,47 +206,56 @@ public class AnnuncioDAO {
                    "FROM annuncio a " +
                    "JOIN oggetto o ON a.oggetto_id = o.id " +
                    "JOIN utente u ON a.venditore_id = u.id " +
-                   "WHERE a.id = ?";
+                   "WHERE a.id = ANY(?)";
+        Map<Integer, Annuncio> annunci = new HashMap<>();
 
         try (Connection conn = ConnessioneDB.getConnessione();
              PreparedStatement stmt = conn.prepareStatement(sql)) {
 
-            stmt.setInt(1, id);
+            Array arrayIds = conn.createArrayOf("integer", ids.toArray());
+            stmt.setArray(1, arrayIds);
 
             try (ResultSet rs = stmt.executeQuery()) {
-                if (rs.next()) {
-                    Annuncio annuncio = mapResultSetToAnnuncio(rs);
-                    return annuncio;
+                while (rs.next()) {
+                    annunci.put(rs.getInt("annuncio_id"), mapResultSetToAnnuncio(rs, new ArrayList<>()));
                 }
             }
-        } catch (SQLException e) {
-            System.err.println("Errore nel recupero dell'annuncio con ID " + id + ": " + e.getMessage());
+
+            // Un errore sulle caratteristiche lascia solo le loro liste vuote, non fa fallire l'intero lotto
+            try {
+                getCaratteristiche(conn, arrayIds).forEach((idAnnuncio, caratteristiche) -> {
+                    Annuncio annuncio = annunci.get(idAnnuncio);
+                    if (annuncio != null) {
+                        annuncio.aggiungiCaratteristiche(caratteristiche);
+                    }
+                });
+            } catch (SQLException e) {
+                System.err.println("Errore nel recupero delle caratteristiche degli annunci: " + e.getMessage());
+            }
         }
-        return null;
+        return annunci;
     }
 
-    // Recupera le caratteristiche speciali di un annuncio
-    private List<String> getCaratteristiche(int annuncioId) {
-        List<String> caratteristiche = new ArrayList<>();
-        String sql = "SELECT caratteristica FROM " + CARATTERISTICHE_TABLE + " WHERE annuncio_id = ?";
+    // Recupera le caratteristiche speciali di più annunci in una query, raggruppate per annuncio
+    private static Map<Integer, List<String>> getCaratteristiche(Connection conn, Array arrayIds) throws SQLException {
+        Map<Integer, List<String>> caratteristiche = new HashMap<>();
+        String sql = "SELECT annuncio_id, caratteristica FROM " + CARATTERISTICHE_TABLE + " WHERE annuncio_id = ANY(?)";
 
-        try (Connection conn = ConnessioneDB.getConnessione();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setInt(1, annuncioId);
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setArray(1, arrayIds);
             try (ResultSet rs = stmt.executeQuery()) {
                 while (rs.next()) {
-                    caratteristiche.add(rs.getString("caratteristica"));
+                    caratteristiche.computeIfAbsent(rs.getInt("annuncio_id"), k -> new ArrayList<>())
+                                   .add(rs.getString("caratteristica"));
                 }
             }
-        } catch (SQLException e) {
-            System.err.println("Errore nel recupero delle caratteristiche per annuncio " + annuncioId + ": " + e.getMessage());
         }
         return caratteristiche;
     }
 
     // Recupera gli annunci attivi
 public List<Annuncio> getAnnunciAttivi() {
-    List<Annuncio> annunci = new ArrayList<>();
+    List<Integer> ids = new ArrayList<>();
     
     String sql = "SELECT a.id AS annuncio_id, a.titolo, u.nome AS nome_venditore " +
                  "FROM annuncio a " +
@@ -223,16 +267,12 @@ public List<Annuncio> getAnnunciAttivi() {
          ResultSet rs = stmt.executeQuery()) {
 
         while (rs.next()) {
-            int annuncioId = rs.getInt("annuncio_id");
-            Annuncio annuncio = getAnnuncioById(annuncioId);
-            if (annuncio != null) {
-                annunci.add(annuncio);
-            }
+            ids.add(rs.getInt("annuncio_id"));
         }
     } catch (SQLException e) {
         System.err.println("Errore nel recupero degli annunci attivi: " + e.getMessage());
     }
-    return annunci;
+    return getAnnunciInOrdine(ids);
 }
 
     // Aggiorna lo stato di un annuncio
@@ -298,7 +338,7 @@ public List<Annuncio> getAnnunciAttivi() {
     
     // CORREZIONE COMPLETA: Metodo helper per mappare ResultSet ad Annuncio
     //nel caso venga cambiato il nome di una colonna nel db, basta cambiarlo qui
-    private Annuncio mapResultSetToAnnuncio(ResultSet rs) throws SQLException {
+    private static Annuncio mapResultSetToAnnuncio(ResultSet rs, List<String> caratteristiche) throws SQLException {
         try {
             // Recupera i dati base dell'annuncio
             int idAnnuncio = rs.getInt("annuncio_id");
@@ -381,8 +421,7 @@ public List<Annuncio> getAnnunciAttivi() {
             // CORREZIONE: Non chiamare setImageUrl() perché non esiste nella classe Annuncio
             // L'immagine è gestita attraverso l'oggetto
             
-            // Carica le caratteristiche speciali
-            List<String> caratteristiche = getCaratteristiche(idAnnuncio);
+            // Caratteristiche speciali lette insieme al lotto di annunci
             annuncio.setCaratteristicheSpeciali(caratteristiche);
             
             return annuncio;
@@ -395,7 +434,7 @@ public List<Annuncio> getAnnunciAttivi() {
     }
 
     // Metodo per convertire ID categoria in enum (per compatibilità)
-   private Categoria fromIntCategoria(int id) {
+   private static Categoria fromIntCategoria(int id) {
     switch (id) {
         case 1: return Categoria.LIBRI;
         case 2: return Categoria.INFORMATICA;
@@ -411,25 +450,22 @@ public List<Annuncio> getAnnunciAttivi() {
 }
 
     
-    // Aggiorna un annuncio completo
+    // Aggiorna un annuncio completo: oggetto, annuncio e caratteristiche in un'unica unità di lavoro
     public boolean aggiornaAnnuncioCompleto(Annuncio annuncio) {
-        try (Connection conn = ConnessioneDB.getConnessione()) {
-            conn.setAutoCommit(false);
-            try {
-                // 1. Aggiorna prima l'oggetto associato
+        String sql = "UPDATE annuncio SET titolo = ?, prezzo = ?, in_evidenza = ?, tipologia = ?, " +
+                     "modalita_consegna = ?, stato = ?, image_url = ?, descrizione = ? WHERE id = ?";
+        try {
+            return UnitaDiLavoro.esegui(() -> {
+                // 1. Aggiorna prima l'oggetto associato (usa la stessa connessione dell'unità)
                 OggettoDAO oggettoDAO = new OggettoDAO();
-                boolean oggettoAggiornato = oggettoDAO.aggiornaOggetto(annuncio.getOggetto());
-                
-                if (!oggettoAggiornato) {
-                    conn.rollback();
+                if (!oggettoDAO.aggiornaOggetto(annuncio.getOggetto())) {
+                    UnitaDiLavoro.segnaPerRollback();
                     return false;
                 }
 
-                // Aggiorna l'annuncio
-                String sql = "UPDATE annuncio SET titolo = ?, prezzo = ?, in_evidenza = ?, tipologia = ?, " +
-                             "modalita_consegna = ?, stato = ?, image_url = ?, descrizione = ? WHERE id = ?";
-                
-                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                // 2. Aggiorna l'annuncio
+                try (Connection conn = ConnessioneDB.getConnessione();
+                     PreparedStatement stmt = conn.prepareStatement(sql)) {
                     stmt.setString(1, annuncio.getTitolo());
                     stmt.setDouble(2, annuncio.getPrezzo());
                     stmt.setBoolean(3, annuncio.isInEvidenza());
@@ -448,27 +484,20 @@ public List<Annuncio> getAnnunciAttivi() {
                     stmt.setString(8, annuncio.getDescrizione());
                     stmt.setInt(9, annuncio.getId());
                     
-                    int rowsAffected = stmt.executeUpdate();
-                    
-                    if (rowsAffected > 0) {
-                        // 3. Aggiorna le caratteristiche
-                        aggiornaCaratteristiche(conn, annuncio.getId(), annuncio.getCaratteristicheSpeciali());
-                        conn.commit();
-                        return true;
+                    if (stmt.executeUpdate() == 0) {
+                        UnitaDiLavoro.segnaPerRollback();
+                        return false;
                     }
+
+                    // 3. Aggiorna le caratteristiche
+                    aggiornaCaratteristiche(conn, annuncio.getId(), annuncio.getCaratteristicheSpeciali());
+                    return true;
                 }
-            } catch (SQLException e) {
-                conn.rollback();
-                System.err.println("Errore nell'aggiornamento dell'annuncio: " + e.getMessage());
-                return false;
-            } finally {
-                conn.setAutoCommit(true);
-            }
+            });
         } catch (SQLException e) {
-            System.err.println("Errore di connessione durante l'aggiornamento dell'annuncio: " + e.getMessage());
+            System.err.println("Errore nell'aggiornamento dell'annuncio: " + e.getMessage());
             return false;
         }
-        return false;
     }
 
     private void aggiornaCaratteristiche(Connection conn, int annuncioId, List<String> caratteristiche) throws SQLException {
@@ -485,7 +514,7 @@ public List<Annuncio> getAnnunciAttivi() {
 
     // Metodo per ottenere annunci per venditore
     public List<Annuncio> getAnnunciPerVenditore(int venditoreId) {
-        List<Annuncio> annunci = new ArrayList<>();
+        List<Integer> ids = new ArrayList<>();
         
         String sql = "SELECT a.id AS annuncio_id, a.titolo " +
                      "FROM annuncio a " +
@@ -497,22 +526,32 @@ public List<Annuncio> getAnnunciAttivi() {
             stmt.setInt(1, venditoreId);
             try (ResultSet rs = stmt.executeQuery()) {
                 while (rs.next()) {
-                    int annuncioId = rs.getInt("annuncio_id");
-                    Annuncio annuncio = getAnnuncioById(annuncioId);
-                    if (annuncio != null) {
-                        annunci.add(annuncio);
-                    }
+                    ids.add(rs.getInt("annuncio_id"));
                 }
             }
         } catch (SQLException e) {
             System.err.println("Errore nel recupero degli annunci per venditore " + venditoreId + ": " + e.getMessage());
         }
-        return annunci;
+        return getAnnunciInOrdine(ids);
     }
 
-    // Metodo per cercare annunci per titolo
+    // Metodo per cercare annunci per titolo (con i più simili se nessun titolo contiene il testo)
     public List<Annuncio> cercaAnnunciPerTitolo(String query) {
-        List<Annuncio> annunci = new ArrayList<>();
+        if (query == null || query.isBlank()) {
+            return new ArrayList<>();
+        }
+        // L'indice GIN a trigrammi serve anche al LIKE '%...%' su LOWER(titolo)
+        verificaIndiceTrigrammi();
+        List<Annuncio> trovati = cercaPerSottostringa(query);
+        if (trovati.isEmpty() && trigrammiDisponibili) {
+            // Nessun titolo contiene il testo: probabile errore di battitura, si propongono i più simili
+            trovati = cercaAnnunciSimili(query, IndiceTrigrammi.SOGLIA_PREDEFINITA, LIMITE_MAX_SIMILI);
+        }
+        return trovati;
+    }
+
+    private List<Annuncio> cercaPerSottostringa(String query) {
+        List<Integer> ids = new ArrayList<>();
         
         String sql = "SELECT a.id AS annuncio_id, a.titolo " +
                      "FROM annuncio a " +
@@ -524,22 +563,105 @@ public List<Annuncio> getAnnunciAttivi() {
             stmt.setString(1, "%" + query + "%");
             try (ResultSet rs = stmt.executeQuery()) {
                 while (rs.next()) {
-                    int annuncioId = rs.getInt("annuncio_id");
-                    Annuncio annuncio = getAnnuncioById(annuncioId);
-                    if (annuncio != null) {
-                        annunci.add(annuncio);
-                    }
+                    ids.add(rs.getInt("annuncio_id"));
                 }
             }
         } catch (SQLException e) {
             System.err.println("Errore nella ricerca annunci per titolo '" + query + "': " + e.getMessage());
         }
-        return annunci;
+        return getAnnunciInOrdine(ids);
+    }
+
+    /**
+     * Cerca gli annunci attivi con il titolo più simile alla query, tollerando errori di battitura
+     * ("calcolatrce", "iphnoe"). Usa l'operatore {@code %} di {@code pg_trgm} sull'indice GIN
+     * dei titoli; i risultati sono ordinati per {@code similarity()} decrescente. Se l'estensione
+     * non è disponibile ricade sulla ricerca per sottostringa.
+     *
+     * @param soglia somiglianza minima (0-1] tra la query e il titolo
+     * @param limite numero massimo di annunci, al più {@value #LIMITE_MAX_SIMILI}
+     */
+    public List<Annuncio> cercaAnnunciSimili(String query, double soglia, int limite) {
+        if (query == null || query.isBlank() || limite <= 0) {
+            return new ArrayList<>();
+        }
+        verificaIndiceTrigrammi();
+        if (!trigrammiDisponibili) {
+            return cercaPerSottostringa(query);
+        }
+
+        List<Integer> ids = new ArrayList<>();
+        String testo = query.trim().toLowerCase();
+        String sql = "SELECT a.id AS annuncio_id " +
+                     "FROM annuncio a " +
+                     "WHERE LOWER(a.titolo) % ? AND a.stato = 'ATTIVO' " +
+                     "ORDER BY similarity(LOWER(a.titolo), ?) DESC, a.id " +
+                     "LIMIT ?";
+
+        try (Connection conn = ConnessioneDB.getConnessione()) {
+            // La soglia vale solo per la transazione: se la connessione non ne ha già una, la apre qui
+            boolean autoCommit = conn.getAutoCommit();
+            if (autoCommit) {
+                conn.setAutoCommit(false);
+            }
+            try {
+                try (PreparedStatement stmt = conn.prepareStatement(
+                        "SELECT set_config('pg_trgm.similarity_threshold', ?, true)")) {
+                    stmt.setString(1, String.valueOf(Math.max(0.0, Math.min(soglia, 1.0))));
+                    stmt.execute();
+                }
+                try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                    stmt.setString(1, testo);
+                    stmt.setString(2, testo);
+                    stmt.setInt(3, Math.min(limite, LIMITE_MAX_SIMILI));
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        while (rs.next()) {
+                            ids.add(rs.getInt("annuncio_id"));
+                        }
+                    }
+                }
+                if (autoCommit) {
+                    conn.commit();
+                }
+            } catch (SQLException e) {
+                if (autoCommit) {
+                    conn.rollback();
+                }
+                throw e;
+            } finally {
+                if (autoCommit) {
+                    conn.setAutoCommit(true);
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println("Errore nella ricerca annunci simili a '" + query + "': " + e.getMessage());
+        }
+        return getAnnunciInOrdine(ids);
+    }
+
+    /**
+     * Abilita {@code pg_trgm} e crea l'indice GIN a trigrammi sui titoli (una volta per esecuzione)
+     */
+    private static synchronized void verificaIndiceTrigrammi() {
+        if (indiceTrigrammiVerificato) {
+            return;
+        }
+        try (Connection conn = ConnessioneDB.getConnessione();
+             Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE EXTENSION IF NOT EXISTS pg_trgm");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_annuncio_titolo_trgm ON " + TABLE_NAME +
+                    " USING GIN (LOWER(titolo) gin_trgm_ops)");
+            trigrammiDisponibili = true;
+        } catch (SQLException e) {
+            System.err.println("Estensione pg_trgm non disponibile, ricerca simili per sottostringa: " + e.getMessage());
+            trigrammiDisponibili = false;
+        }
+        indiceTrigrammiVerificato = true;
     }
 
     // Metodo per cercare annunci per categoria
     public List<Annuncio> cercaAnnunciPerCategoria(String categoria) {
-        List<Annuncio> annunci = new ArrayList<>();
+        List<Integer> ids = new ArrayList<>();
         
         String sql = "SELECT a.id AS annuncio_id, a.titolo " +
                      "FROM annuncio a " +
@@ -555,22 +677,18 @@ public List<Annuncio> getAnnunciAttivi() {
             
             try (ResultSet rs = stmt.executeQuery()) {
                 while (rs.next()) {
-                    int annuncioId = rs.getInt("annuncio_id");
-                    Annuncio annuncio = getAnnuncioById(annuncioId);
-                    if (annuncio != null) {
-                        annunci.add(annuncio);
-                    }
+                    ids.add(rs.getInt("annuncio_id"));
                 }
             }
         } catch (SQLException e) {
             System.err.println("Errore nella ricerca annunci per categoria '" + categoria + "': " + e.getMessage());
         }
-        return annunci;
+        return getAnnunciInOrdine(ids);
     }
 
     // Metodo per ottenere annunci in evidenza
     public List<Annuncio> getAnnunciInEvidenza() {
-        List<Annuncio> annunci = new ArrayList<>();
+        List<Integer> ids = new ArrayList<>();
         
         String sql = "SELECT a.id AS annuncio_id, a.titolo " +
                      "FROM annuncio a " +
@@ -581,16 +699,12 @@ public List<Annuncio> getAnnunciAttivi() {
              ResultSet rs = stmt.executeQuery()) {
 
             while (rs.next()) {
-                int annuncioId = rs.getInt("annuncio_id");
-                Annuncio annuncio = getAnnuncioById(annuncioId);
-                if (annuncio != null) {
-                    annunci.add(annuncio);
-                }
+                ids.add(rs.getInt("annuncio_id"));
             }
         } catch (SQLException e) {
             System.err.println("Errore nel recupero degli annunci in evidenza: " + e.getMessage());
         }
-        return annunci;
+        return getAnnunciInOrdine(ids);
     }
 
     // Metodo helper per convertire nome categoria in ID
@@ -1,7 +1,11 @@
 package application.DB;
 
 import application.Classe.Annuncio;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
@@ -68,6 +72,11 @@ public class AnnuncioTrigger {
         private final AtomicInteger contatoreTotaleProcessati = new AtomicInteger(0);
         private final AtomicInteger dimensioneBatchCorrente = new AtomicInteger(0);
         
+        @Override
+        public FilterManager.TipoTrigger getTipo() {
+            return FilterManager.TipoTrigger.OSSERVATORE;
+        }
+        
         /**
          * Metodo eseguito prima dell'operazione di filtraggio
          * 
@@ -247,6 +256,22 @@ public class AnnuncioTrigger {
         private long timestampInizio;
         private int conteggioIniziale;
         
+        /** Prezzi del catalogo e loro somma, aggiornati solo per gli annunci cambiati */
+        private final DeltaCatalogo delta = new DeltaCatalogo();
+        private final Map<Integer, Double> prezzoPerAnnuncio = new HashMap<>();
+        private double sommaPrezzi = 0;
+        private volatile boolean resetRichiesto = false;
+        
+        @Override
+        public FilterManager.TipoTrigger getTipo() {
+            return FilterManager.TipoTrigger.OSSERVATORE;
+        }
+        
+        @Override
+        public void resetta() {
+            resetRichiesto = true;
+        }
+        
         /**
          * Inizio raccolta metriche pre-filtro
          */
@@ -264,8 +289,16 @@ public class AnnuncioTrigger {
          */
         @Override
         public void afterFilter(List<Annuncio> annunciFiltrati) {
-            long timestampFine = System.nanoTime();
-            long durataMs = (timestampFine - timestampInizio) / 1_000_000;
+            afterFilter(annunciFiltrati, System.nanoTime() - timestampInizio);
+        }
+        
+        /**
+         * Analisi metriche post-filtro con la durata misurata dal FilterManager
+         * (eseguita in differita, quando il tempo trascorso da beforeFilter non è più significativo)
+         */
+        @Override
+        public void afterFilter(List<Annuncio> annunciFiltrati, long durataFiltroNanos) {
+            long durataMs = durataFiltroNanos / 1_000_000;
             
             // Calcolo metriche di performance
             double annunciPerMillisecondo = conteggioIniziale > 0 ? 
@@ -288,25 +321,42 @@ public class AnnuncioTrigger {
         }
         
         /**
-         * Raccolta statistiche campionate dalla lista pre-filtro
+         * Raccolta statistiche pre-filtro: la somma dei prezzi viene corretta solo
+         * per gli annunci aggiunti, modificati o rimossi, quindi la media copre
+         * tutto il catalogo invece di un campione dei primi 1000
          */
         private void raccogliStatistichePreFiltro(List<Annuncio> annunci) {
-            if (annunci.isEmpty()) return;
-            
-            // Campionamento statistico per ottimizzare le performance
-            int dimensioneCampione = Math.min(annunci.size(), 1000);
-            double sommaPrezzi = 0;
+            if (resetRichiesto) {
+                resetRichiesto = false;
+                delta.resetta();
+                prezzoPerAnnuncio.clear();
+                sommaPrezzi = 0;
+            }
             
-            for (int i = 0; i < dimensioneCampione; i++) {
-                Annuncio annuncio = annunci.get(i);
-                sommaPrezzi += annuncio.getPrezzo();
+            DeltaCatalogo.Delta differenze = delta.calcola(annunci);
+            for (Integer id : differenze.getRimossi()) {
+                Double prezzo = prezzoPerAnnuncio.remove(id);
+                if (prezzo != null) {
+                    sommaPrezzi -= prezzo;
+                }
             }
+            aggiornaPrezzi(differenze.getAggiunti());
+            aggiornaPrezzi(differenze.getModificati());
+            
+            if (prezzoPerAnnuncio.isEmpty()) return;
             
             // Aggiornamento statistiche globali
-            double prezzoMedio = sommaPrezzi / dimensioneCampione;
+            double prezzoMedio = sommaPrezzi / prezzoPerAnnuncio.size();
             aggiornaStatisticaGlobale("prezzo_medio_campionato", (int)(prezzoMedio * 100));
         }
         
+        private void aggiornaPrezzi(List<Annuncio> cambiati) {
+            for (Annuncio annuncio : cambiati) {
+                Double precedente = prezzoPerAnnuncio.put(annuncio.getId(), annuncio.getPrezzo());
+                sommaPrezzi += annuncio.getPrezzo() - (precedente != null ? precedente : 0);
+            }
+        }
+        
         /**
          * Raccolta statistiche dalla lista post-filtro
          */
@@ -333,6 +383,17 @@ public class AnnuncioTrigger {
     public static class TriggerOfferteSpeciali implements FilterManager.FilterTrigger {
         private final ConcurrentHashMap<Integer, Boolean> cacheAnnunciProcessati = new ConcurrentHashMap<>();
         
+        public TriggerOfferteSpeciali() {
+            // Un annuncio modificato (anche da un altro client) va rivalutato al prossimo filtro
+            BusInvalidazioni.registra(BusInvalidazioni.Entita.ANNUNCIO, (entita, id) -> {
+                if (id == BusInvalidazioni.TUTTI) {
+                    cacheAnnunciProcessati.clear();
+                } else {
+                    cacheAnnunciProcessati.remove(id);
+                }
+            });
+        }
+        
         /**
          * Analisi offerte speciali pre-filtro
          */
@@ -437,18 +498,56 @@ public class AnnuncioTrigger {
     public static class TriggerSicurezza implements FilterManager.FilterTrigger {
         private final AtomicInteger contatoreSospetti = new AtomicInteger(0);
         
+        /** Stato persistente, aggiornato solo per gli annunci cambiati dall'ultima esecuzione */
+        private final DeltaCatalogo delta = new DeltaCatalogo();
+        private final Map<Integer, String> titoloPerAnnuncio = new HashMap<>();
+        private final Map<String, Integer> conteggioTitoli = new HashMap<>();
+        private final Set<Integer> annunciSospetti = new HashSet<>();
+        private volatile boolean resetRichiesto = false;
+        
+        @Override
+        public FilterManager.TipoTrigger getTipo() {
+            return FilterManager.TipoTrigger.OSSERVATORE;
+        }
+        
+        /**
+         * Il riesame completo avviene alla prossima esecuzione, sul thread del trigger
+         */
+        @Override
+        public void resetta() {
+            resetRichiesto = true;
+        }
+        
         /**
-         * Controlli sicurezza pre-filtro
+         * Controlli sicurezza pre-filtro, solo sugli annunci aggiunti, modificati o rimossi
          */
         @Override
         public void beforeFilter(List<Annuncio> annunci) {
-            int sospettiIniziali = contatoreSospetti.get();
+            if (resetRichiesto) {
+                resetRichiesto = false;
+                delta.resetta();
+                titoloPerAnnuncio.clear();
+                conteggioTitoli.clear();
+                annunciSospetti.clear();
+            }
+            
+            DeltaCatalogo.Delta differenze = delta.calcola(annunci);
+            if (differenze.isVuoto()) {
+                return;
+            }
             
-            // Esecuzione controlli di sicurezza
-            annunci.forEach(this::controllaPrezziSospetti);
-            rilevaDuplicati(annunci);
+            for (Integer id : differenze.getRimossi()) {
+                rimuoviTitolo(id);
+                annunciSospetti.remove(id);
+            }
+            for (Annuncio annuncio : differenze.getModificati()) {
+                rimuoviTitolo(annuncio.getId());
+            }
+            
+            int nuoviSospetti = 0;
+            nuoviSospetti += esaminaCambiati(differenze.getAggiunti());
+            nuoviSospetti += esaminaCambiati(differenze.getModificati());
             
-            int nuoviSospetti = contatoreSospetti.get() - sospettiIniziali;
             if (nuoviSospetti > 0) {
                 LOGGER.log(Level.WARNING,
                     "🚨 Rilevati {0} annunci sospetti durante i controlli di sicurezza",
@@ -458,23 +557,46 @@ public class AnnuncioTrigger {
         }
         
         /**
-         * Verifica qualità finale post-filtro
+         * La qualità dipende dall'annuncio e non dal filtro: è già verificata in beforeFilter
+         * per gli annunci cambiati, qui non si riesamina la lista filtrata
          */
         @Override
         public void afterFilter(List<Annuncio> annunciFiltrati) {
-            // Validazione qualità dati finale
-            annunciFiltrati.forEach(this::validaQualitaFinale);
+            // Nessuna azione dopo il filtraggio
+        }
+        
+        /**
+         * @return numero di annunci diventati sospetti in questa esecuzione
+         */
+        private int esaminaCambiati(List<Annuncio> cambiati) {
+            int nuoviSospetti = 0;
+            for (Annuncio annuncio : cambiati) {
+                aggiungiTitolo(annuncio);
+                if (controllaPrezziSospetti(annuncio)) {
+                    if (annunciSospetti.add(annuncio.getId())) {
+                        nuoviSospetti++;
+                    }
+                } else {
+                    annunciSospetti.remove(annuncio.getId());
+                }
+                validaQualitaFinale(annuncio);
+            }
+            return nuoviSospetti;
         }
         
         /**
          * Controlla prezzi anomali o sospetti
+         * 
+         * @return true se il prezzo dell'annuncio è sospetto
          */
-        private void controllaPrezziSospetti(Annuncio annuncio) {
+        private boolean controllaPrezziSospetti(Annuncio annuncio) {
             double prezzo = annuncio.getPrezzo();
+            boolean sospetto = false;
             
             // Controllo 1: Prezzo anormalmente alto
             if (prezzo > PREZZO_SOSPETTO) {
                 contatoreSospetti.incrementAndGet();
+                sospetto = true;
                 LOGGER.log(Level.WARNING,
                     "💎 Prezzo sospettosamente alto - Annuncio: {0}, Prezzo: €{1}",
                     new Object[]{annuncio.getId(), prezzo}
@@ -484,6 +606,7 @@ public class AnnuncioTrigger {
             // Controllo 2: Prezzo zero per annunci non regalo
             if (prezzo == 0 && !annuncio.isRegalo()) {
                 contatoreSospetti.incrementAndGet();
+                sospetto = true;
                 LOGGER.log(Level.WARNING,
                     "❓ Prezzo zero sospetto - Annuncio: {0}, Tipologia: {1}",
                     new Object[]{annuncio.getId(), annuncio.getTipologia()}
@@ -493,33 +616,50 @@ public class AnnuncioTrigger {
             // Controllo 3: Prezzo negativo (dovrebbe essere già gestito dalla validazione)
             if (prezzo < 0) {
                 contatoreSospetti.incrementAndGet();
+                sospetto = true;
                 LOGGER.log(Level.SEVERE,
                     "💀 Prezzo negativo rilevato - Annuncio: {0}, Prezzo: €{1}",
                     new Object[]{annuncio.getId(), prezzo}
                 );
             }
+            
+            return sospetto;
         }
         
         /**
-         * Rileva possibili annunci duplicati
+         * Aggiorna l'indice dei titoli e segnala un possibile duplicato quando il titolo è già presente
          */
-        private void rilevaDuplicati(List<Annuncio> annunci) {
-            ConcurrentHashMap<String, Integer> conteggioTitoli = new ConcurrentHashMap<>();
+        private void aggiungiTitolo(Annuncio annuncio) {
+            if (annuncio.getTitolo() == null) {
+                return;
+            }
+            String titoloNormalizzato = annuncio.getTitolo().toLowerCase().trim();
+            titoloPerAnnuncio.put(annuncio.getId(), titoloNormalizzato);
+            int occorrenze = conteggioTitoli.merge(titoloNormalizzato, 1, Integer::sum);
             
-            for (Annuncio annuncio : annunci) {
-                String titoloNormalizzato = annuncio.getTitolo().toLowerCase().trim();
-                int occorrenze = conteggioTitoli.merge(titoloNormalizzato, 1, Integer::sum);
-                
-                // Segnalazione duplicati potenziali
-                if (occorrenze > 1) {
-                    LOGGER.log(Level.INFO,
-                        "🔍 Possibile duplicato rilevato - Titolo: '{0}', Occorrenze: {1}",
-                        new Object[]{annuncio.getTitolo(), occorrenze}
-                    );
-                }
+            // Segnalazione duplicati potenziali
+            if (occorrenze > 1) {
+                LOGGER.log(Level.INFO,
+                    "🔍 Possibile duplicato rilevato - Titolo: '{0}', Occorrenze: {1}",
+                    new Object[]{annuncio.getTitolo(), occorrenze}
+                );
+            }
+        }
+        
+        private void rimuoviTitolo(int annuncioId) {
+            String titolo = titoloPerAnnuncio.remove(annuncioId);
+            if (titolo != null) {
+                conteggioTitoli.computeIfPresent(titolo, (t, n) -> n > 1 ? n - 1 : null);
             }
         }
         
+        /**
+         * Numero di annunci del catalogo con prezzo sospetto
+         */
+        public int getNumeroSospetti() {
+            return annunciSospetti.size();
+        }
+        
         /**
          * Validazione qualità finale degli annunci
          */
@@ -570,6 +710,21 @@ public class AnnuncioTrigger {
     public static class TriggerPerformance implements FilterManager.FilterTrigger {
         private final ConcurrentHashMap<Integer, Annuncio> cacheAnnunci = new ConcurrentHashMap<>();
         
+        @Override
+        public FilterManager.TipoTrigger getTipo() {
+            return FilterManager.TipoTrigger.OSSERVATORE;
+        }
+        
+        public TriggerPerformance() {
+            BusInvalidazioni.registra(BusInvalidazioni.Entita.ANNUNCIO, (entita, id) -> {
+                if (id == BusInvalidazioni.TUTTI) {
+                    cacheAnnunci.clear();
+                } else {
+                    cacheAnnunci.remove(id);
+                }
+            });
+        }
+        
         /**
          * Pre-caricamento cache pre-filtro
          */
@@ -637,6 +792,7 @@ public class AnnuncioTrigger {
      */
     public static void resettaStatistiche() {
         STATISTICHE_GLOBALI.clear();
+        FilterManager.resettaTrigger();
         LOGGER.info("📊 Statistiche globali resettate");
     }
     
@@ -0,0 +1,300 @@
+package application.DB;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bus di invalidazione delle cache tra client che condividono lo stesso database
+ *
+ * <p>Le cache dei DAO sono locali al processo: senza coordinamento un client continuerebbe a servire
+ * dati modificati da un altro. Qui:
+ * <ul>
+ *   <li>trigger sul database pubblicano {@code tipo:id} sul canale {@value #CANALE} per ogni riga scritta;
+ *       NOTIFY è transazionale, quindi l'avviso parte solo al commit e mai per scritture annullate,
+ *       qualunque DAO (o client) abbia fatto la modifica</li>
+ *   <li>un thread in ascolto su una connessione dedicata inoltra gli avvisi agli {@link Ascoltatore}
+ *       registrati per quel tipo di entità</li>
+ *   <li>se la connessione cade gli avvisi intermedi sono persi: alla riconnessione ogni ascoltatore riceve
+ *       {@link #TUTTI} e svuota la propria cache</li>
+ * </ul>
+ * Con le invalidazioni esatte le cache possono usare TTL lunghi senza servire dati vecchi.
+ * </p>
+ */
+public final class BusInvalidazioni {
+
+    /**
+     * Tipi di entità invalidabili, con la tabella che li identifica negli avvisi
+     */
+    public enum Entita {
+        UTENTE("utente"), ANNUNCIO("annuncio");
+
+        private final String nome;
+
+        Entita(String nome) {
+            this.nome = nome;
+        }
+
+        static Entita daNome(String nome) {
+            for (Entita entita : values()) {
+                if (entita.nome.equals(nome)) {
+                    return entita;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Riceve le invalidazioni di un tipo di entità; viene chiamato dal thread del bus
+     */
+    @FunctionalInterface
+    public interface Ascoltatore {
+        /**
+         * @param id id dell'entità modificata, o {@link #TUTTI} se vanno scartati tutti i dati di quel tipo
+         */
+        void invalida(Entita entita, int id);
+    }
+
+    /** Id speciale: invalidare tutte le entità del tipo */
+    public static final int TUTTI = 0;
+
+    static final String CANALE = "swapunina_invalidazioni";
+
+    private static final long ATTESA_AVVISI_MS = 5_000;
+    private static final long ATTESA_RICONNESSIONE_MIN_MS = 2_000;
+    private static final long ATTESA_RICONNESSIONE_MAX_MS = 60_000;
+
+    /** Tabelle osservate: tabella, tipo pubblicato, colonna con l'id */
+    private static final String[][] TABELLE_OSSERVATE = {
+        { "utente", "utente", "id" },
+        { "annuncio", "annuncio", "id" },
+        { "annuncio_caratteristica", "annuncio", "annuncio_id" },
+    };
+
+    private static final Map<Entita, List<Ascoltatore>> ASCOLTATORI = new EnumMap<>(Entita.class);
+
+    private static final AtomicLong RICEVUTE = new AtomicLong();
+    private static final AtomicLong IGNORATE = new AtomicLong();
+    private static final AtomicLong RICONNESSIONI = new AtomicLong();
+
+    private static volatile boolean schemaVerificato = false;
+    private static volatile boolean inAscolto = false;
+    private static Thread ascolto;
+
+    static {
+        for (Entita entita : Entita.values()) {
+            ASCOLTATORI.put(entita, new CopyOnWriteArrayList<>());
+        }
+    }
+
+    private BusInvalidazioni() {
+    }
+
+    // ========== REGISTRAZIONE ==========
+
+    /**
+     * Registra un ascoltatore per le invalidazioni di un tipo di entità.
+     * Va chiamato per cache che vivono quanto l'applicazione (l'ascoltatore non viene mai rimosso).
+     */
+    public static void registra(Entita entita, Ascoltatore ascoltatore) {
+        ASCOLTATORI.get(entita).add(ascoltatore);
+    }
+
+    /**
+     * Avvia il thread di ascolto (una sola volta per processo)
+     */
+    public static synchronized void avvia() {
+        if (ascolto != null) {
+            return;
+        }
+        inAscolto = true;
+        ascolto = new Thread(BusInvalidazioni::cicloAscolto, "bus-invalidazioni");
+        ascolto.setDaemon(true);
+        ascolto.start();
+    }
+
+    /**
+     * Ferma il thread di ascolto
+     */
+    public static synchronized void ferma() {
+        inAscolto = false;
+        if (ascolto != null) {
+            ascolto.interrupt();
+            ascolto = null;
+        }
+    }
+
+    // ========== ASCOLTO ==========
+
+    private static void cicloAscolto() {
+        long attesa = ATTESA_RICONNESSIONE_MIN_MS;
+        boolean primaConnessione = true;
+
+        while (inAscolto) {
+            try (Connection conn = ConnessioneDB.getConnessione()) {
+                assicuraTrigger(conn);
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.execute("LISTEN " + CANALE);
+                }
+                if (!primaConnessione) {
+                    // Gli avvisi arrivati mentre eravamo disconnessi sono persi
+                    RICONNESSIONI.incrementAndGet();
+                    for (Entita entita : Entita.values()) {
+                        inoltra(entita, TUTTI);
+                    }
+                }
+                primaConnessione = false;
+                attesa = ATTESA_RICONNESSIONE_MIN_MS;
+
+                LettoreAvvisi lettore = new LettoreAvvisi(conn);
+                while (inAscolto) {
+                    for (String avviso : lettore.attendi(ATTESA_AVVISI_MS)) {
+                        applica(avviso);
+                    }
+                }
+            } catch (SQLException | ReflectiveOperationException e) {
+                if (!inAscolto) {
+                    return;
+                }
+                System.err.println("⚠️ Bus invalidazioni disconnesso, nuovo tentativo tra " + attesa / 1000 + "s: " +
+                                   e.getMessage());
+            }
+
+            try {
+                Thread.sleep(attesa);
+            } catch (InterruptedException e) {
+                return;
+            }
+            attesa = Math.min(attesa * 2, ATTESA_RICONNESSIONE_MAX_MS);
+        }
+    }
+
+    /**
+     * Interpreta un avviso {@code tipo:id} e lo inoltra agli ascoltatori
+     */
+    static void applica(String avviso) {
+        RICEVUTE.incrementAndGet();
+        int separatore = avviso == null ? -1 : avviso.indexOf(':');
+        Entita entita = separatore > 0 ? Entita.daNome(avviso.substring(0, separatore)) : null;
+        if (entita == null) {
+            IGNORATE.incrementAndGet();
+            return;
+        }
+        try {
+            inoltra(entita, Integer.parseInt(avviso.substring(separatore + 1)));
+        } catch (NumberFormatException e) {
+            IGNORATE.incrementAndGet();
+        }
+    }
+
+    private static void inoltra(Entita entita, int id) {
+        for (Ascoltatore ascoltatore : ASCOLTATORI.get(entita)) {
+            try {
+                ascoltatore.invalida(entita, id);
+            } catch (RuntimeException e) {
+                System.err.println("⚠️ Errore in un ascoltatore di invalidazione " + entita + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Lettura degli avvisi tramite {@code PGConnection.getNotifications(int)} del driver PostgreSQL.
+     * Il driver è caricato per nome da {@link ConnessioneDB}, quindi anche qui vi si accede per riflessione.
+     */
+    private static final class LettoreAvvisi {
+        private final Object connessionePg;
+        private final Method getNotifications;
+        private final Method getParameter;
+
+        LettoreAvvisi(Connection conn) throws SQLException, ReflectiveOperationException {
+            Class<?> classePg = Class.forName("org.postgresql.PGConnection");
+            this.connessionePg = conn.unwrap(classePg);
+            this.getNotifications = classePg.getMethod("getNotifications", int.class);
+            this.getParameter = Class.forName("org.postgresql.PGNotification").getMethod("getParameter");
+        }
+
+        /**
+         * Attende al più {@code timeoutMs} e restituisce i payload arrivati (eventualmente nessuno)
+         */
+        String[] attendi(long timeoutMs) throws SQLException, ReflectiveOperationException {
+            Object[] avvisi;
+            try {
+                avvisi = (Object[]) getNotifications.invoke(connessionePg, (int) timeoutMs);
+            } catch (InvocationTargetException e) {
+                if (e.getCause() instanceof SQLException) {
+                    throw (SQLException) e.getCause();
+                }
+                throw e;
+            }
+            if (avvisi == null) {
+                return new String[0];
+            }
+            String[] payload = new String[avvisi.length];
+            for (int i = 0; i < avvisi.length; i++) {
+                payload[i] = (String) getParameter.invoke(avvisi[i]);
+            }
+            return payload;
+        }
+    }
+
+    // ========== SCHEMA ==========
+
+    /**
+     * Crea (una volta per processo) la funzione e i trigger AFTER che pubblicano le invalidazioni
+     */
+    private static void assicuraTrigger(Connection conn) throws SQLException {
+        if (schemaVerificato) {
+            return;
+        }
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE OR REPLACE FUNCTION swapunina_notifica_invalidazione() RETURNS trigger AS $$ " +
+                    "DECLARE riga jsonb; " +
+                    "BEGIN " +
+                    "  IF TG_OP = 'DELETE' THEN riga := to_jsonb(OLD); ELSE riga := to_jsonb(NEW); END IF; " +
+                    "  PERFORM pg_notify('" + CANALE + "', TG_ARGV[0] || ':' || (riga ->> TG_ARGV[1])); " +
+                    "  RETURN NULL; " +
+                    "END; $$ LANGUAGE plpgsql");
+
+            for (String[] tabella : TABELLE_OSSERVATE) {
+                String nomeTrigger = "trg_invalidazione_" + tabella[0];
+                if (triggerEsiste(conn, nomeTrigger)) {
+                    continue;
+                }
+                stmt.execute("CREATE TRIGGER " + nomeTrigger + " AFTER INSERT OR UPDATE OR DELETE ON " + tabella[0] +
+                        " FOR EACH ROW EXECUTE PROCEDURE swapunina_notifica_invalidazione('" +
+                        tabella[1] + "', '" + tabella[2] + "')");
+            }
+        }
+        schemaVerificato = true;
+    }
+
+    private static boolean triggerEsiste(Connection conn, String nome) throws SQLException {
+        try (PreparedStatement verifica = conn.prepareStatement("SELECT 1 FROM pg_trigger WHERE tgname = ?")) {
+            verifica.setString(1, nome);
+            try (ResultSet rs = verifica.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    // ========== METRICHE ==========
+
+    /**
+     * Ottiene un report delle statistiche correnti
+     */
+    public static String getReportStatistiche() {
+        return String.format(
+            "📣 Bus Invalidazioni - In ascolto: %s, Avvisi ricevuti: %d, Ignorati: %d, Riconnessioni: %d",
+            inAscolto ? "sì" : "no", RICEVUTE.get(), IGNORATE.get(), RICONNESSIONI.get());
+    }
+}
@@ -0,0 +1,260 @@
+package application.DB;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache limitata dei profili utente (id, email, nome, foto) con indice secondario per email
+ *
+ * <p>Sostituisce le mappe separate id→nome, id→email, email→id: un profilo è un'unica voce,
+ * quindi le viste per id e per email non possono divergere.
+ * <ul>
+ *   <li>eviction LRU segmentata: le voci nuove entrano in un segmento di prova, passano nel
+ *       segmento protetto (80% della capacità) al secondo accesso; un'ondata di utenti visti una volta
+ *       sola (per esempio scorrendo gli annunci) non scaccia i profili usati spesso</li>
+ *   <li>ogni voce scade dopo un TTL, così modifiche fatte da altri client vengono viste comunque</li>
+ *   <li>invalidazione esatta per id o per email, senza svuotare tutta la cache</li>
+ *   <li>hit, miss, eviction, scadenze e invalidazioni per il monitoring</li>
+ * </ul>
+ * Tutte le operazioni sono O(1) sotto un unico lock: le sezioni critiche non fanno I/O.
+ * </p>
+ */
+final class CacheProfiliUtente {
+
+    /**
+     * Profilo immutabile; {@code fotoProfilo} è il valore del database (null se assente)
+     */
+    static final class Profilo {
+        final int id;
+        final String email;
+        final String nome;
+        final String fotoProfilo;
+        private final long scadenzaNanos;
+
+        Profilo(int id, String email, String nome, String fotoProfilo, long scadenzaNanos) {
+            this.id = id;
+            this.email = email;
+            this.nome = nome;
+            this.fotoProfilo = fotoProfilo;
+            this.scadenzaNanos = scadenzaNanos;
+        }
+    }
+
+    private final int capacita;
+    private final int capacitaProtetta;
+    private final long ttlNanos;
+
+    /** Segmenti in ordine di accesso: il primo elemento è il meno usato di recente */
+    private final LinkedHashMap<Integer, Profilo> prova = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Integer, Profilo> protetto = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Integer> indiceEmail = new HashMap<>();
+
+    private long hit;
+    private long miss;
+    private long eviction;
+    private long scadute;
+    private long invalidazioni;
+
+    CacheProfiliUtente(int capacita, long ttl, TimeUnit unita) {
+        if (capacita < 2) {
+            throw new IllegalArgumentException("Capacità della cache troppo piccola: " + capacita);
+        }
+        this.capacita = capacita;
+        this.capacitaProtetta = Math.max(1, capacita * 4 / 5);
+        this.ttlNanos = unita.toNanos(ttl);
+    }
+
+    // ========== LETTURA ==========
+
+    /**
+     * @return il profilo, o null se assente o scaduto (conteggiato come miss)
+     */
+    synchronized Profilo perId(int id) {
+        return leggi(id);
+    }
+
+    /**
+     * @param email email già normalizzata (minuscolo, senza spazi)
+     * @return il profilo, o null se assente o scaduto (conteggiato come miss)
+     */
+    synchronized Profilo perEmail(String email) {
+        Integer id = indiceEmail.get(email);
+        if (id == null) {
+            miss++;
+            return null;
+        }
+        return leggi(id);
+    }
+
+    /**
+     * Indica se l'email appartiene a un profilo valido in cache, senza toccare le statistiche
+     */
+    synchronized boolean contieneEmail(String email) {
+        Integer id = indiceEmail.get(email);
+        if (id == null) {
+            return false;
+        }
+        Profilo profilo = protetto.get(id);
+        if (profilo == null) {
+            profilo = prova.get(id);
+        }
+        return profilo != null && !scaduto(profilo, System.nanoTime());
+    }
+
+    private Profilo leggi(int id) {
+        Profilo profilo = protetto.get(id);
+        boolean inProva = false;
+        if (profilo == null) {
+            profilo = prova.get(id);
+            inProva = profilo != null;
+        }
+        if (profilo == null) {
+            miss++;
+            return null;
+        }
+        if (scaduto(profilo, System.nanoTime())) {
+            rimuovi(id);
+            scadute++;
+            miss++;
+            return null;
+        }
+        if (inProva) {
+            promuovi(profilo);
+        }
+        hit++;
+        return profilo;
+    }
+
+    // ========== SCRITTURA ==========
+
+    /**
+     * Inserisce o sostituisce il profilo; se l'email dell'utente è cambiata, il vecchio indice viene rimosso
+     *
+     * @return il profilo inserito, o null se id o email non sono validi
+     */
+    synchronized Profilo metti(int id, String email, String nome, String fotoProfilo) {
+        if (id <= 0 || email == null) {
+            return null;
+        }
+        Profilo nuovo = new Profilo(id, email, nome, fotoProfilo, System.nanoTime() + ttlNanos);
+
+        Profilo precedente = protetto.get(id);
+        if (precedente != null) {
+            protetto.put(id, nuovo);
+        } else {
+            precedente = prova.put(id, nuovo);
+        }
+        if (precedente != null && !precedente.email.equals(email)) {
+            indiceEmail.remove(precedente.email, id);
+        }
+        Integer altro = indiceEmail.put(email, id);
+        if (altro != null && altro != id) {
+            // L'email è passata a un altro utente: il vecchio profilo non è più attendibile
+            rimuovi(altro);
+            indiceEmail.put(email, id);
+        }
+        contieniDimensione();
+        return nuovo;
+    }
+
+    /**
+     * Rimuove il profilo dell'utente, se presente
+     */
+    synchronized void invalidaId(int id) {
+        if (rimuovi(id) != null) {
+            invalidazioni++;
+        }
+    }
+
+    /**
+     * Rimuove il profilo a cui appartiene l'email, se presente
+     */
+    synchronized void invalidaEmail(String email) {
+        Integer id = indiceEmail.get(email);
+        if (id != null && rimuovi(id) != null) {
+            invalidazioni++;
+        }
+    }
+
+    synchronized void svuota() {
+        prova.clear();
+        protetto.clear();
+        indiceEmail.clear();
+    }
+
+    private void promuovi(Profilo profilo) {
+        prova.remove(profilo.id);
+        protetto.put(profilo.id, profilo);
+        if (protetto.size() > capacitaProtetta) {
+            // Il meno recente del segmento protetto torna in prova con una seconda possibilità
+            Iterator<Map.Entry<Integer, Profilo>> it = protetto.entrySet().iterator();
+            Map.Entry<Integer, Profilo> retrocesso = it.next();
+            it.remove();
+            prova.put(retrocesso.getKey(), retrocesso.getValue());
+        }
+    }
+
+    private void contieniDimensione() {
+        long adesso = System.nanoTime();
+        while (prova.size() + protetto.size() > capacita) {
+            LinkedHashMap<Integer, Profilo> segmento = prova.isEmpty() ? protetto : prova;
+            Iterator<Map.Entry<Integer, Profilo>> it = segmento.entrySet().iterator();
+            Profilo vittima = it.next().getValue();
+            it.remove();
+            indiceEmail.remove(vittima.email, vittima.id);
+            if (scaduto(vittima, adesso)) {
+                scadute++;
+            } else {
+                eviction++;
+            }
+        }
+    }
+
+    private Profilo rimuovi(int id) {
+        Profilo rimosso = prova.remove(id);
+        if (rimosso == null) {
+            rimosso = protetto.remove(id);
+        }
+        if (rimosso != null) {
+            indiceEmail.remove(rimosso.email, id);
+        }
+        return rimosso;
+    }
+
+    private static boolean scaduto(Profilo profilo, long adesso) {
+        return adesso - profilo.scadenzaNanos >= 0;
+    }
+
+    // ========== METRICHE ==========
+
+    synchronized int getDimensione() {
+        return prova.size() + protetto.size();
+    }
+
+    synchronized double getPercentualeHit() {
+        long totale = hit + miss;
+        return totale > 0 ? hit * 100.0 / totale : 0.0;
+    }
+
+    synchronized void resettaStatistiche() {
+        hit = 0;
+        miss = 0;
+        eviction = 0;
+        scadute = 0;
+        invalidazioni = 0;
+    }
+
+    /**
+     * Ottiene un report delle statistiche correnti
+     */
+    synchronized String getReportStatistiche() {
+        return String.format(
+            "📊 Statistiche Cache Profili - Hit: %d, Miss: %d, Percentuale Hit: %.1f%%, " +
+            "Eviction: %d, Scadute: %d, Invalidazioni: %d, Dimensione: %d/%d (protette: %d)",
+            hit, miss, getPercentualeHit(), eviction, scadute, invalidazioni,
+            getDimensione(), capacita, protetto.size());
+    }
+}
@@ -0,0 +1,141 @@
+package application.DB;
+
+import application.Enum.Categoria;
+import application.Enum.Tipologia;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Cache LRU dei risultati di filtraggio, per chiave normalizzata (categoria, tipologia, testo, ordinamento)
+ *
+ * <p>Tornare su una categoria o una ricerca già vista non rivaluta i predicati:
+ * <ul>
+ *   <li>ogni voce conserva gli id degli annunci nell'ordine del risultato (un {@code int[]}), il totale
+ *       e i conteggi per facet; gli annunci si ricostruiscono dagli id in O(risultato)</li>
+ *   <li>ogni voce è marcata con la versione del catalogo in cui è stata calcolata: qualunque modifica
+ *       al catalogo incrementa la versione e rende le voci precedenti non valide</li>
+ *   <li>il testo è normalizzato in minuscolo perché la ricerca non distingue le maiuscole; gli spazi
+ *       restano, perché fanno parte della sottostringa cercata</li>
+ *   <li>una voce calcolata con un limite più basso non serve una pagina più lunga</li>
+ * </ul>
+ * Non è thread-safe: viene usata sotto il lock di {@link IndiceAttributi}.
+ * </p>
+ */
+final class CacheRisultatiFiltri {
+
+    /**
+     * Chiave normalizzata di un filtraggio
+     */
+    static final class Chiave {
+        private final Categoria categoria;
+        private final Tipologia tipologia;
+        private final String testo;
+        private final OrdinatoreAnnunci.Ordinamento ordinamento;
+
+        Chiave(Categoria categoria, Tipologia tipologia, String queryRicerca, OrdinatoreAnnunci.Ordinamento ordinamento) {
+            this.categoria = categoria;
+            this.tipologia = tipologia;
+            this.testo = queryRicerca == null || queryRicerca.isBlank() ? "" : queryRicerca.toLowerCase(Locale.ROOT);
+            this.ordinamento = ordinamento;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Chiave)) {
+                return false;
+            }
+            Chiave altra = (Chiave) o;
+            return categoria == altra.categoria && tipologia == altra.tipologia &&
+                   ordinamento == altra.ordinamento && testo.equals(altra.testo);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(categoria, tipologia, testo, ordinamento);
+        }
+    }
+
+    /**
+     * Risultato memorizzato: id nell'ordine del risultato (al più il limite richiesto), conteggi e
+     * se si tratta degli annunci simili proposti in mancanza di corrispondenze esatte
+     */
+    static final class Voce {
+        final long versione;
+        final int[] id;
+        final int totale;
+        final int[] perCategoria;
+        final int[] perTipologia;
+        final boolean approssimato;
+
+        Voce(long versione, int[] id, int totale, int[] perCategoria, int[] perTipologia, boolean approssimato) {
+            this.versione = versione;
+            this.id = id;
+            this.totale = totale;
+            this.perCategoria = perCategoria;
+            this.perTipologia = perTipologia;
+            this.approssimato = approssimato;
+        }
+    }
+
+    private final LinkedHashMap<Chiave, Voce> voci;
+
+    private long hit;
+    private long miss;
+    private long obsolete;
+
+    CacheRisultatiFiltri(int capacita) {
+        this.voci = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Chiave, Voce> eldest) {
+                return size() > capacita;
+            }
+        };
+    }
+
+    /**
+     * @return la voce se calcolata nella versione corrente e con almeno {@code limite} annunci
+     *         (o tutti quelli del risultato), altrimenti null
+     */
+    Voce leggi(Chiave chiave, long versioneCorrente, int limite) {
+        Voce voce = voci.get(chiave);
+        if (voce == null) {
+            miss++;
+            return null;
+        }
+        if (voce.versione != versioneCorrente) {
+            voci.remove(chiave);
+            obsolete++;
+            miss++;
+            return null;
+        }
+        if (voce.id.length < Math.min(limite, voce.totale)) {
+            miss++;
+            return null;
+        }
+        hit++;
+        return voce;
+    }
+
+    void metti(Chiave chiave, Voce voce) {
+        voci.put(chiave, voce);
+    }
+
+    void svuota() {
+        voci.clear();
+    }
+
+    /**
+     * Ottiene un report delle statistiche correnti
+     */
+    String getReportStatistiche() {
+        long totale = hit + miss;
+        return String.format("Cache risultati - Hit: %d, Miss: %d (obsolete: %d), Percentuale Hit: %.1f%%, Voci: %d",
+            hit, miss, obsolete, totale > 0 ? hit * 100.0 / totale : 0.0, voci.size());
+    }
+}
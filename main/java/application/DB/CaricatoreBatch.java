@@ -0,0 +1,223 @@
+package application.DB;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caricatore a lotti per le letture per id (stile DataLoader)
+ *
+ * <p>Le richieste di singoli id arrivate entro una breve finestra vengono raccolte, deduplicate
+ * e servite con una sola query {@code WHERE id = ANY(?)}: N letture puntuali diventano una.
+ * <ul>
+ *   <li>{@link #carica} restituisce un future completato alla spedizione del lotto; richieste
+ *       dello stesso id nella stessa finestra condividono il future</li>
+ *   <li>{@link #caricaEAttendi} è la variante bloccante per le API sincrone dei DAO: una lettura isolata
+ *       (nessun'altra in attesa né lotto in formazione, tipicamente dal thread FX) interroga subito sul
+ *       thread corrente, senza pagare finestra e passaggio al thread di spedizione; solo le letture
+ *       concorrenti vengono raccolte nel lotto. Dentro una {@link UnitaDiLavoro} la lettura avviene
+ *       sempre sul thread corrente, per restare nella transazione</li>
+ *   <li>{@link #caricaTutti} serve subito un insieme di id già noto (un passaggio dell'interfaccia)</li>
+ *   <li>un lotto viene spedito prima della fine della finestra se raggiunge la dimensione massima</li>
+ * </ul>
+ * La funzione di caricamento gira sul thread di spedizione e non deve a sua volta attendere un caricatore.
+ * </p>
+ *
+ * @param <K> tipo dell'id
+ * @param <V> tipo dell'entità
+ */
+public final class CaricatoreBatch<K, V> {
+
+    /**
+     * Legge in una sola query le entità con gli id indicati; gli id non trovati restano fuori dalla mappa
+     */
+    @FunctionalInterface
+    public interface FunzioneBatch<K, V> {
+        Map<K, V> carica(List<K> chiavi) throws Exception;
+    }
+
+    /** Attesa massima (ms) prima di spedire un lotto incompleto */
+    private static final long FINESTRA_MS = Long.getLong("swapunina.batch.finestraMs", 2L);
+    private static final int DIMENSIONE_MASSIMA_LOTTO = 500;
+
+    private static final ScheduledExecutorService SPEDITORE = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "caricatore-batch");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final String nome;
+    private final FunzioneBatch<K, V> funzione;
+
+    /** Richieste del lotto in formazione, nell'ordine di arrivo */
+    private Map<K, CompletableFuture<V>> inAttesa = new LinkedHashMap<>();
+    private boolean spedizioneProgrammata = false;
+    /** Letture sincrone in corso: se ce n'è un'altra, conviene accorparsi invece di leggere subito */
+    private final AtomicInteger attesaSincrone = new AtomicInteger();
+
+    private final AtomicLong richieste = new AtomicLong();
+    private final AtomicLong deduplicate = new AtomicLong();
+    private final AtomicLong dirette = new AtomicLong();
+    private final AtomicLong lotti = new AtomicLong();
+    private final AtomicLong chiaviLette = new AtomicLong();
+    private final AtomicLong errori = new AtomicLong();
+
+    /**
+     * @param nome nome del tipo di entità, per log e statistiche
+     * @param funzione lettura a lotti
+     */
+    public CaricatoreBatch(String nome, FunzioneBatch<K, V> funzione) {
+        this.nome = nome;
+        this.funzione = funzione;
+    }
+
+    // ========== API PRINCIPALE ==========
+
+    /**
+     * Accoda la lettura dell'id nel lotto corrente
+     *
+     * @return future con l'entità, o null se l'id non esiste
+     */
+    public CompletableFuture<V> carica(K chiave) {
+        richieste.incrementAndGet();
+        CompletableFuture<V> risultato;
+        boolean pieno = false;
+        boolean programma = false;
+
+        synchronized (this) {
+            risultato = inAttesa.get(chiave);
+            if (risultato != null) {
+                deduplicate.incrementAndGet();
+                return risultato;
+            }
+            risultato = new CompletableFuture<>();
+            inAttesa.put(chiave, risultato);
+            if (inAttesa.size() >= DIMENSIONE_MASSIMA_LOTTO) {
+                pieno = true;
+            } else if (!spedizioneProgrammata) {
+                spedizioneProgrammata = true;
+                programma = true;
+            }
+        }
+
+        if (pieno) {
+            SPEDITORE.execute(this::spedisci);
+        } else if (programma) {
+            SPEDITORE.schedule(this::spedisci, FINESTRA_MS, TimeUnit.MILLISECONDS);
+        }
+        return risultato;
+    }
+
+    /**
+     * Legge l'id attendendo il lotto in cui viene raccolto
+     *
+     * @return l'entità, o null se l'id non esiste o la lettura fallisce
+     */
+    public V caricaEAttendi(K chiave) {
+        if (UnitaDiLavoro.isAttiva()) {
+            return caricaTutti(Collections.singletonList(chiave)).get(chiave);
+        }
+        int inCorso = attesaSincrone.getAndIncrement();
+        try {
+            if (inCorso == 0 && !lottoInFormazione()) {
+                // Nessuno con cui accorparsi: la finestra di raccolta sarebbe solo attesa
+                dirette.incrementAndGet();
+                return caricaTutti(Collections.singletonList(chiave)).get(chiave);
+            }
+            return carica(chiave).join();
+        } catch (CompletionException e) {
+            System.err.println("❌ Errore nel caricamento " + nome + " " + chiave + ": " + e.getCause());
+            return null;
+        } finally {
+            attesaSincrone.decrementAndGet();
+        }
+    }
+
+    private synchronized boolean lottoInFormazione() {
+        return !inAttesa.isEmpty();
+    }
+
+    /**
+     * Legge subito, con una sola query, tutte le entità degli id indicati (deduplicati)
+     *
+     * @return mappa id → entità nell'ordine degli id; vuota se la lettura fallisce
+     */
+    public Map<K, V> caricaTutti(Collection<K> chiavi) {
+        List<K> distinte = new ArrayList<>(new LinkedHashSet<>(chiavi));
+        richieste.addAndGet(chiavi.size());
+        deduplicate.addAndGet(chiavi.size() - distinte.size());
+        if (distinte.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        try {
+            Map<K, V> letti = leggi(distinte);
+            Map<K, V> ordinati = new LinkedHashMap<>();
+            for (K chiave : distinte) {
+                V valore = letti.get(chiave);
+                if (valore != null) {
+                    ordinati.put(chiave, valore);
+                }
+            }
+            return ordinati;
+        } catch (Exception e) {
+            errori.incrementAndGet();
+            System.err.println("❌ Errore nel caricamento a lotti di " + nome + ": " + e.getMessage());
+            return Collections.emptyMap();
+        }
+    }
+
+    private Map<K, V> leggi(List<K> chiavi) throws Exception {
+        lotti.incrementAndGet();
+        chiaviLette.addAndGet(chiavi.size());
+        return funzione.carica(chiavi);
+    }
+
+    /**
+     * Spedisce il lotto in formazione e completa i future delle richieste raccolte
+     */
+    private void spedisci() {
+        Map<K, CompletableFuture<V>> lotto;
+        synchronized (this) {
+            if (inAttesa.isEmpty()) {
+                spedizioneProgrammata = false;
+                return;
+            }
+            lotto = inAttesa;
+            inAttesa = new LinkedHashMap<>();
+            spedizioneProgrammata = false;
+        }
+
+        try {
+            Map<K, V> letti = leggi(new ArrayList<>(lotto.keySet()));
+            lotto.forEach((chiave, future) -> future.complete(letti.get(chiave)));
+        } catch (Exception e) {
+            errori.incrementAndGet();
+            lotto.values().forEach(future -> future.completeExceptionally(e));
+        }
+    }
+
+    // ========== METRICHE ==========
+
+    /**
+     * Ottiene un report delle statistiche correnti
+     */
+    public String getReportStatistiche() {
+        long numeroLotti = lotti.get();
+        return String.format(
+            "📦 Caricatore %s - Richieste: %d, Deduplicate: %d, Lette subito: %d, Query: %d, Id per query: %.1f, Errori: %d",
+            nome, richieste.get(), deduplicate.get(), dirette.get(), numeroLotti,
+            numeroLotti > 0 ? (double) chiaviLette.get() / numeroLotti : 0.0, errori.get());
+    }
+}
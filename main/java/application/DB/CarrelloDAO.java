@@ -40,6 +40,11 @@ public class CarrelloDAO {
      * Aggiunge un annuncio al carrello con upsert per incrementare la quantità
      */
     public boolean aggiungiAlCarrello(int utenteId, int annuncioId) {
+        if (!RateLimiter.consenti(RateLimiter.Operazione.AGGIUNTA_CARRELLO, utenteId)) {
+            System.err.println("Aggiunta al carrello rifiutata: troppe richieste dall'utente " + utenteId);
+            return false;
+        }
+
         String sql = "INSERT INTO " + TABLE_NAME + " (utente_id, annuncio_id, quantita) " +
                     "VALUES (?, ?, 1) " +
                     "ON CONFLICT (utente_id, annuncio_id) " +
@@ -83,6 +88,20 @@ public class CarrelloDAO {
         }
     }
 
+    /**
+     * Rimuove più annunci dal carrello con una sola istruzione sulla connessione indicata
+     * (usato dal checkout, che gestisce la transazione)
+     */
+    int rimuoviDalCarrello(Connection conn, int utenteId, Integer[] annunci) throws SQLException {
+        String sql = "DELETE FROM " + TABLE_NAME + " WHERE utente_id = ? AND annuncio_id = ANY(?)";
+        
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setInt(1, utenteId);
+            stmt.setArray(2, conn.createArrayOf("integer", annunci));
+            return stmt.executeUpdate();
+        }
+    }
+
     /**
      * Recupera tutti gli elementi nel carrello di un utente con informazioni complete
      */
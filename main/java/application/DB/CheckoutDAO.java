@@ -0,0 +1,423 @@
+package application.DB;
+
+import application.Classe.Conto;
+import java.math.BigDecimal;
+import java.sql.*;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Motore di checkout transazionale del carrello
+ *
+ * <p>Tutti gli articoli selezionati vengono acquistati in un'unica transazione con un numero
+ * costante di round trip, indipendente dal numero di articoli:
+ * <ul>
+ *   <li>prenotazione atomica degli annunci ({@link PrenotazioneDAO}): chi perde la corsa su un annuncio
+ *       conteso viene rifiutato subito, prima di qualunque addebito</li>
+ *   <li>registrazione della chiave di idempotenza (un retry con la stessa chiave restituisce l'esito già confermato)</li>
+ *   <li>lettura e lock delle righe del carrello con prezzi e venditori autorevoli dal database</li>
+ *   <li>lock dei conti di acquirente e venditori in ordine di utente, poi un solo addebito per il totale</li>
+ *   <li>accrediti ai venditori, movimenti, codici di conferma e rimozione dal carrello in blocco</li>
+ * </ul>
+ * O vengono acquistati tutti gli articoli o nessuno.
+ * </p>
+ */
+public class CheckoutDAO {
+    private static final String TABLE_NAME = "checkout_eseguito";
+
+    /** Lo schema viene verificato una sola volta per processo, non a ogni istanza del DAO */
+    private static volatile boolean schemaVerificato = false;
+
+    private final CodiceDAO codiceDAO = new CodiceDAO();
+    private final CarrelloDAO carrelloDAO = new CarrelloDAO();
+    private final PrenotazioneDAO prenotazioneDAO = new PrenotazioneDAO();
+    private final ContoDAO contoDAO = new ContoDAO();
+
+    /**
+     * Esito di un checkout
+     */
+    public static class EsitoCheckout {
+        private final boolean successo;
+        private final boolean ripetuto;
+        private final boolean erroreTecnico;
+        private final String messaggio;
+        private final BigDecimal totale;
+        private final Map<Integer, String> codiciPerAnnuncio;
+        private final Map<Integer, String> titoliPerAnnuncio;
+
+        private EsitoCheckout(boolean successo, boolean ripetuto, boolean erroreTecnico, String messaggio,
+                              BigDecimal totale, Map<Integer, String> codiciPerAnnuncio,
+                              Map<Integer, String> titoliPerAnnuncio) {
+            this.successo = successo;
+            this.ripetuto = ripetuto;
+            this.erroreTecnico = erroreTecnico;
+            this.messaggio = messaggio;
+            this.totale = totale;
+            this.codiciPerAnnuncio = codiciPerAnnuncio;
+            this.titoliPerAnnuncio = titoliPerAnnuncio;
+        }
+
+        static EsitoCheckout riuscito(BigDecimal totale, Map<Integer, String> codici, Map<Integer, String> titoli,
+                                      boolean ripetuto) {
+            return new EsitoCheckout(true, ripetuto, false, null, totale, codici, titoli);
+        }
+
+        static EsitoCheckout rifiutato(String messaggio) {
+            return new EsitoCheckout(false, false, false, messaggio, BigDecimal.ZERO, new LinkedHashMap<>(), new LinkedHashMap<>());
+        }
+
+        static EsitoCheckout errore(String messaggio) {
+            return new EsitoCheckout(false, false, true, messaggio, BigDecimal.ZERO, new LinkedHashMap<>(), new LinkedHashMap<>());
+        }
+
+        public boolean isSuccesso() { return successo; }
+
+        /** true se l'esito è quello di un checkout già confermato con la stessa chiave */
+        public boolean isRipetuto() { return ripetuto; }
+
+        /** true se il checkout è fallito per un errore di database: può essere ritentato con la stessa chiave */
+        public boolean isErroreTecnico() { return erroreTecnico; }
+
+        public String getMessaggio() { return messaggio; }
+        public BigDecimal getTotale() { return totale; }
+
+        /** Codici di conferma generati, per id dell'annuncio (in ordine di id) */
+        public Map<Integer, String> getCodiciPerAnnuncio() { return codiciPerAnnuncio; }
+
+        /** Titoli degli annunci acquistati, per id dell'annuncio */
+        public Map<Integer, String> getTitoliPerAnnuncio() { return titoliPerAnnuncio; }
+    }
+
+    /** Riga del carrello letta dal database all'interno della transazione */
+    private static final class RigaCheckout {
+        final int annuncioId;
+        final int venditoreId;
+        final String titolo;
+        final BigDecimal importo;
+        final int quantita;
+
+        RigaCheckout(int annuncioId, int venditoreId, String titolo, BigDecimal prezzo, int quantita) {
+            this.annuncioId = annuncioId;
+            this.venditoreId = venditoreId;
+            this.titolo = titolo;
+            this.quantita = quantita;
+            this.importo = prezzo.multiply(BigDecimal.valueOf(quantita));
+        }
+    }
+
+    public CheckoutDAO() {
+        if (!schemaVerificato) {
+            creaTabellaSeMancante();
+        }
+    }
+
+    private static synchronized void creaTabellaSeMancante() {
+        if (schemaVerificato) {
+            return;
+        }
+        String sql = "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
+                "chiave VARCHAR(64) PRIMARY KEY, " +
+                "acquirente_id INTEGER NOT NULL REFERENCES utente(id) ON DELETE CASCADE, " +
+                "annunci INTEGER[] NOT NULL, " +
+                "totale DECIMAL(10,2), " +
+                "data_creazione TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP)";
+        try (Connection conn = ConnessioneDB.getConnessione();
+             Statement stmt = conn.createStatement()) {
+            stmt.execute(sql);
+            schemaVerificato = true;
+        } catch (SQLException e) {
+            System.err.println("Errore nella creazione della tabella " + TABLE_NAME + ": " + e.getMessage());
+        }
+    }
+
+    // ========== CHECKOUT ==========
+
+    /**
+     * Acquista gli annunci indicati dal carrello dell'acquirente in un'unica transazione
+     *
+     * @param acquirenteId utente che effettua l'acquisto
+     * @param annunci annunci selezionati nel carrello
+     * @param chiaveIdempotenza chiave univoca del tentativo di checkout; riusarla in un retry
+     *                          restituisce l'esito già confermato senza addebitare di nuovo
+     * @return esito del checkout, mai null
+     */
+    public EsitoCheckout eseguiCheckout(int acquirenteId, List<Integer> annunci, String chiaveIdempotenza) {
+        if (acquirenteId <= 0 || annunci == null || annunci.isEmpty()
+                || chiaveIdempotenza == null || chiaveIdempotenza.isEmpty()) {
+            return EsitoCheckout.rifiutato("Parametri di checkout non validi");
+        }
+
+        Integer[] ids = annunci.stream().distinct().toArray(Integer[]::new);
+
+        try {
+            // Un retry con una chiave già confermata non deve pagare l'hashing dei codici
+            EsitoCheckout precedente = UnitaDiLavoro.esegui(() ->
+                    leggiCheckoutEsistente(ConnessioneDB.getConnessione(), acquirenteId, chiaveIdempotenza));
+            if (precedente != null) {
+                return precedente;
+            }
+
+            // Claim degli annunci prima di qualunque lavoro costoso: l'acquirente concorrente fallisce subito
+            Set<Integer> prenotati = prenotazioneDAO.prenota(acquirenteId, ids);
+            if (prenotati.size() != ids.length) {
+                prenotazioneDAO.rilascia(acquirenteId, prenotati.toArray(new Integer[0]));
+                return EsitoCheckout.rifiutato("Alcuni articoli sono già stati acquistati o sono in corso di acquisto da un altro utente");
+            }
+        } catch (SQLException e) {
+            System.err.println("Errore durante il checkout: " + e.getMessage());
+            return EsitoCheckout.errore("Errore di database durante il checkout, riprova");
+        }
+
+        // Da qui in poi le prenotazioni vanno rilasciate su ogni percorso che non conferma il checkout:
+        // rifiuto, errore SQL o eccezione (ad esempio segreto dei codici non disponibile)
+        boolean confermato = false;
+        try {
+            // Codici preparati prima della transazione, così i lock restano aperti il meno possibile
+            String[][] codici = new String[ids.length][];
+            for (int i = 0; i < ids.length; i++) {
+                codici[i] = codiceDAO.preparaCodice(ids[i]);
+            }
+
+            EsitoCheckout esito = UnitaDiLavoro.esegui(() -> {
+                EsitoCheckout risultato = eseguiInTransazione(ConnessioneDB.getConnessione(),
+                        acquirenteId, ids, codici, chiaveIdempotenza);
+                if (!risultato.isSuccesso()) {
+                    UnitaDiLavoro.segnaPerRollback();
+                }
+                return risultato;
+            });
+            confermato = esito.isSuccesso();
+            return esito;
+        } catch (SQLException | RuntimeException e) {
+            System.err.println("Errore durante il checkout: " + e.getMessage());
+            return EsitoCheckout.errore("Errore di database durante il checkout, riprova");
+        } finally {
+            if (!confermato) {
+                prenotazioneDAO.rilascia(acquirenteId, ids);
+            }
+        }
+    }
+
+    /**
+     * Corpo transazionale del checkout; ogni rifiuto viene restituito come esito
+     * e l'unità di lavoro chiamante annulla tutte le scritture
+     */
+    private EsitoCheckout eseguiInTransazione(Connection conn, int acquirenteId, Integer[] ids,
+                                              String[][] codici, String chiave) throws SQLException {
+        // 1. Registra la chiave: un retry concorrente attende qui il commit del primo
+        if (!registraChiave(conn, acquirenteId, ids, chiave)) {
+            EsitoCheckout precedente = leggiCheckoutEsistente(conn, acquirenteId, chiave);
+            return precedente != null ? precedente : EsitoCheckout.rifiutato("Chiave di checkout non valida");
+        }
+
+        // 2. Righe del carrello con prezzo e venditore correnti, bloccate contro checkout paralleli
+        List<RigaCheckout> righe = leggiRigheCarrello(conn, acquirenteId, ids);
+        if (righe.size() != ids.length) {
+            return EsitoCheckout.rifiutato("Alcuni articoli non sono più disponibili nel carrello");
+        }
+
+        // Le prenotazioni diventano definitive solo se nessuna è scaduta nel frattempo
+        if (prenotazioneDAO.conferma(conn, acquirenteId, ids) != ids.length) {
+            return EsitoCheckout.rifiutato("La prenotazione degli articoli è scaduta, riprova");
+        }
+
+        BigDecimal totale = BigDecimal.ZERO;
+        Map<Integer, BigDecimal> accreditiPerVenditore = new TreeMap<>();
+        Map<Integer, Integer> movimentiPerVenditore = new TreeMap<>();
+        for (RigaCheckout riga : righe) {
+            if (riga.venditoreId == acquirenteId) {
+                return EsitoCheckout.rifiutato("Non puoi acquistare un tuo annuncio: " + riga.titolo);
+            }
+            totale = totale.add(riga.importo);
+            accreditiPerVenditore.merge(riga.venditoreId, riga.importo, BigDecimal::add);
+            movimentiPerVenditore.merge(riga.venditoreId, 1, Integer::sum);
+        }
+
+        // 3. Lock di tutti i conti coinvolti in ordine di utente (come i trasferimenti: niente deadlock
+        //    tra checkout con venditori in comune o con acquirente e venditore invertiti), poi addebito
+        Integer[] contiToccati = movimentiPerVenditore.keySet().toArray(new Integer[movimentiPerVenditore.size() + 1]);
+        contiToccati[contiToccati.length - 1] = acquirenteId;
+        contoDAO.bloccaConti(conn, contiToccati);
+        if (!addebitaTotale(conn, acquirenteId, totale, righe.size())) {
+            return EsitoCheckout.rifiutato("Saldo insufficiente per completare l'acquisto");
+        }
+
+        // 4. Accrediti e movimenti
+        accreditaVenditori(conn, accreditiPerVenditore, movimentiPerVenditore);
+        registraMovimenti(conn, acquirenteId, righe);
+        contoDAO.registraSnapshotDovuti(conn, contiToccati);
+
+        // 5. Codici di conferma e rimozione dal carrello in blocco
+        codiceDAO.sostituisciCodici(conn, acquirenteId, ids, codici);
+        carrelloDAO.rimuoviDalCarrello(conn, acquirenteId, ids);
+
+        aggiornaTotale(conn, chiave, totale);
+
+        Map<Integer, String> codiciPerAnnuncio = new TreeMap<>();
+        Map<Integer, String> titoli = new TreeMap<>();
+        for (int i = 0; i < ids.length; i++) {
+            codiciPerAnnuncio.put(ids[i], codici[i][0]);
+        }
+        for (RigaCheckout riga : righe) {
+            titoli.put(riga.annuncioId, riga.titolo);
+        }
+        return EsitoCheckout.riuscito(totale, codiciPerAnnuncio, titoli, false);
+    }
+
+    private boolean registraChiave(Connection conn, int acquirenteId, Integer[] ids, String chiave) throws SQLException {
+        String sql = "INSERT INTO " + TABLE_NAME + " (chiave, acquirente_id, annunci) VALUES (?, ?, ?) " +
+                     "ON CONFLICT (chiave) DO NOTHING";
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, chiave);
+            stmt.setInt(2, acquirenteId);
+            stmt.setArray(3, conn.createArrayOf("integer", ids));
+            return stmt.executeUpdate() > 0;
+        }
+    }
+
+    /**
+     * Ricostruisce l'esito di un checkout già confermato con questa chiave, o null se non esiste
+     */
+    private EsitoCheckout leggiCheckoutEsistente(Connection conn, int acquirenteId, String chiave) throws SQLException {
+        String sqlCheckout = "SELECT acquirente_id, annunci, totale FROM " + TABLE_NAME + " WHERE chiave = ?";
+        String sqlCodici = "SELECT a.id, a.titolo, cc.codice_plain FROM codice_conferma cc " +
+                           "JOIN annuncio a ON a.id = cc.annuncio_id " +
+                           "WHERE cc.utente_id = ? AND cc.annuncio_id = ANY(?) ORDER BY a.id";
+
+        Array annunci;
+        BigDecimal totale;
+        try (PreparedStatement stmt = conn.prepareStatement(sqlCheckout)) {
+            stmt.setString(1, chiave);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+                if (rs.getInt("acquirente_id") != acquirenteId) {
+                    return EsitoCheckout.rifiutato("Chiave di checkout non valida");
+                }
+                annunci = rs.getArray("annunci");
+                totale = rs.getBigDecimal("totale");
+            }
+        }
+
+        Map<Integer, String> codici = new TreeMap<>();
+        Map<Integer, String> titoli = new TreeMap<>();
+        try (PreparedStatement stmt = conn.prepareStatement(sqlCodici)) {
+            stmt.setInt(1, acquirenteId);
+            stmt.setArray(2, annunci);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    codici.put(rs.getInt("id"), rs.getString("codice_plain"));
+                    titoli.put(rs.getInt("id"), rs.getString("titolo"));
+                }
+            }
+        }
+        return EsitoCheckout.riuscito(totale != null ? totale : BigDecimal.ZERO, codici, titoli, true);
+    }
+
+    private List<RigaCheckout> leggiRigheCarrello(Connection conn, int acquirenteId, Integer[] ids) throws SQLException {
+        String sql = "SELECT c.annuncio_id, c.quantita, a.prezzo, a.venditore_id, a.titolo " +
+                     "FROM carrello c JOIN annuncio a ON a.id = c.annuncio_id " +
+                     "WHERE c.utente_id = ? AND c.annuncio_id = ANY(?) AND a.stato = 'ATTIVO' " +
+                     "ORDER BY c.annuncio_id FOR UPDATE OF c";
+        List<RigaCheckout> righe = new ArrayList<>();
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setInt(1, acquirenteId);
+            stmt.setArray(2, conn.createArrayOf("integer", ids));
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    righe.add(new RigaCheckout(rs.getInt("annuncio_id"), rs.getInt("venditore_id"),
+                            rs.getString("titolo"), rs.getBigDecimal("prezzo"), rs.getInt("quantita")));
+                }
+            }
+        }
+        return righe;
+    }
+
+    /**
+     * Addebito condizionale del totale (la riga del conto è già bloccata da {@link ContoDAO#bloccaConti}).
+     * Riserva anche una sequenza del registro per ciascuno dei {@code movimenti} di acquisto.
+     */
+    private boolean addebitaTotale(Connection conn, int acquirenteId, BigDecimal totale, int movimenti) throws SQLException {
+        String sql = "UPDATE conto SET saldo = saldo - ?, ultima_sequenza = ultima_sequenza + ? " +
+                     "WHERE utente_id = ? AND saldo >= ?";
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setBigDecimal(1, totale);
+            stmt.setInt(2, movimenti);
+            stmt.setInt(3, acquirenteId);
+            stmt.setBigDecimal(4, totale);
+            return stmt.executeUpdate() > 0;
+        }
+    }
+
+    private void accreditaVenditori(Connection conn, Map<Integer, BigDecimal> accrediti,
+                                    Map<Integer, Integer> movimenti) throws SQLException {
+        String sql = "INSERT INTO conto (utente_id, saldo, ultima_sequenza) " +
+                     "SELECT * FROM unnest(?::int[], ?::numeric[], ?::bigint[]) " +
+                     "ON CONFLICT (utente_id) DO UPDATE SET saldo = conto.saldo + EXCLUDED.saldo, " +
+                     "ultima_sequenza = conto.ultima_sequenza + EXCLUDED.ultima_sequenza";
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setArray(1, conn.createArrayOf("integer", accrediti.keySet().toArray()));
+            stmt.setArray(2, conn.createArrayOf("numeric", accrediti.values().toArray()));
+            stmt.setArray(3, conn.createArrayOf("bigint", movimenti.values().toArray()));
+            stmt.executeUpdate();
+        }
+    }
+
+    /**
+     * Un movimento di acquisto e uno di accredito per ogni articolo, con una sola INSERT.
+     * I conti hanno già riservato le sequenze (addebito e accrediti le hanno incrementate del numero
+     * di movimenti), che qui vengono assegnate in ordine: le ultime n di ogni conto.
+     */
+    private void registraMovimenti(Connection conn, int acquirenteId, List<RigaCheckout> righe) throws SQLException {
+        String sql = "INSERT INTO movimento_conto (conto_id, sequenza, importo, tipo, descrizione, data_operazione) " +
+                     "SELECT c.id, c.ultima_sequenza - count(*) OVER (PARTITION BY c.id) " +
+                     "       + row_number() OVER (PARTITION BY c.id ORDER BY r.ordine), " +
+                     "       r.importo, r.tipo, r.descrizione, ? " +
+                     "FROM unnest(?::int[], ?::numeric[], ?::text[], ?::text[]) " +
+                     "     WITH ORDINALITY AS r(utente_id, importo, tipo, descrizione, ordine) " +
+                     "JOIN conto c ON c.utente_id = r.utente_id";
+
+        int n = righe.size() * 2;
+        Integer[] utenti = new Integer[n];
+        BigDecimal[] importi = new BigDecimal[n];
+        String[] tipi = new String[n];
+        String[] descrizioni = new String[n];
+        for (int i = 0; i < righe.size(); i++) {
+            RigaCheckout riga = righe.get(i);
+            String descrizione = "Acquisto: " + riga.titolo + " (x" + riga.quantita + ")";
+
+            utenti[2 * i] = acquirenteId;
+            importi[2 * i] = riga.importo;
+            tipi[2 * i] = Conto.TipoMovimento.ACQUISTO.name();
+            descrizioni[2 * i] = descrizione;
+
+            utenti[2 * i + 1] = riga.venditoreId;
+            importi[2 * i + 1] = riga.importo;
+            tipi[2 * i + 1] = Conto.TipoMovimento.ACCREDITO.name();
+            descrizioni[2 * i + 1] = "Vendita: " + descrizione;
+        }
+
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setTimestamp(1, Timestamp.valueOf(LocalDateTime.now()));
+            stmt.setArray(2, conn.createArrayOf("integer", utenti));
+            stmt.setArray(3, conn.createArrayOf("numeric", importi));
+            stmt.setArray(4, conn.createArrayOf("text", tipi));
+            stmt.setArray(5, conn.createArrayOf("text", descrizioni));
+            stmt.executeUpdate();
+        }
+    }
+
+    private void aggiornaTotale(Connection conn, String chiave, BigDecimal totale) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("UPDATE " + TABLE_NAME + " SET totale = ? WHERE chiave = ?")) {
+            stmt.setBigDecimal(1, totale);
+            stmt.setString(2, chiave);
+            stmt.executeUpdate();
+        }
+    }
+}
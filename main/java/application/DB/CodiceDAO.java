@@ -3,22 +3,229 @@ package application.DB;
 import application.Classe.Codice;
 import org.mindrot.jbcrypt.BCrypt;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.sql.*;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 
 /**
  * DAO per la gestione dei codici di conferma criptati
+ *
+ * <p>I codici sono protetti con HMAC-SHA256 e un segreto lato server invece che con BCrypt:
+ * un codice vive al più 14 giorni e ammette {@value #MAX_TENTATIVI} tentativi, quindi la difesa
+ * contro la forza bruta è il limite di tentativi, non il costo dell'hash.
+ * <ul>
+ *   <li>l'HMAC lega il codice all'annuncio ({@code annuncioId:codice}) e si confronta in tempo costante</li>
+ *   <li>ogni tentativo viene consumato atomicamente prima del confronto, anche con verifiche concorrenti</li>
+ *   <li>la ricerca per annuncio usa l'indice su {@code annuncio_id}</li>
+ *   <li>gli hash BCrypt esistenti vengono convertiti una volta al primo avvio; quelli non convertibili
+ *       restano verificabili con BCrypt</li>
+ * </ul>
+ * Il segreto si configura con la proprietà di sistema {@code swapunina.codici.segreto} (Base64);
+ * in sua assenza viene generato una volta e conservato nel database.
+ * </p>
  */
 public class CodiceDAO {
     private static final Logger logger = Logger.getLogger(CodiceDAO.class.getName());
 
+    private static final String ALGORITMO_HMAC = "HmacSHA256";
+    private static final String PREFISSO_HMAC = "h1$";
+    private static final String PREFISSO_BCRYPT = "$2";
+    private static final String PROPRIETA_SEGRETO = "swapunina.codici.segreto";
+    private static final String NOME_SEGRETO = "codici_conferma";
+    private static final String CARATTERI_CODICE = "ABCDEFGHIJKLMNOPQRSTUVWXYZ123456789";
+
+    /** Tentativi errati dopo i quali il codice viene bloccato */
+    static final int MAX_TENTATIVI = 3;
+
+    /** Validità di un codice di conferma (e della prenotazione confermata dell'annuncio) */
+    static final int GIORNI_VALIDITA = 14;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /** Lo schema viene verificato una sola volta per processo, non a ogni istanza del DAO */
+    private static volatile boolean schemaVerificato = false;
+
+    private static volatile SecretKeySpec segreto;
+
+    /** Mac non è thread-safe: un'istanza per thread, inizializzata una volta con il segreto */
+    private static final ThreadLocal<Mac> MAC = ThreadLocal.withInitial(() -> nuovoMac(caricaSegreto()));
+
+    /** Creato con il DAO, fuori da ogni transazione: la verifica dello schema non finisce in una UnitaDiLavoro */
+    private final PrenotazioneDAO prenotazioneDAO = new PrenotazioneDAO();
+
+    public CodiceDAO() {
+        if (!schemaVerificato) {
+            preparaSchema();
+        }
+    }
+
+    // ========== SCHEMA E MIGRAZIONE ==========
+
+    /**
+     * Crea l'indice per annuncio, la tabella del segreto e converte gli hash BCrypt esistenti
+     */
+    private static synchronized void preparaSchema() {
+        if (schemaVerificato) {
+            return;
+        }
+        try (Connection conn = ConnessioneDB.getConnessione();
+             Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_codice_conferma_annuncio ON codice_conferma (annuncio_id)");
+            stmt.execute("CREATE TABLE IF NOT EXISTS segreto_applicazione (" +
+                    "nome VARCHAR(50) PRIMARY KEY, " +
+                    "valore TEXT NOT NULL)");
+            schemaVerificato = true;
+        } catch (SQLException e) {
+            System.err.println("Errore nella preparazione dello schema dei codici: " + e.getMessage());
+            return;
+        }
+        // Segreto caricato subito, non alla prima generazione di un codice che potrebbe avvenire
+        // dentro una transazione poi annullata
+        try {
+            caricaSegreto();
+        } catch (IllegalStateException e) {
+            System.err.println("Errore nella preparazione dello schema dei codici: " + e.getMessage());
+            return;
+        }
+        int convertiti = migraHashBCrypt();
+        if (convertiti > 0) {
+            System.out.println("🔄 Convertiti " + convertiti + " codici di conferma da BCrypt a HMAC");
+        }
+    }
+
+    /**
+     * Ricalcola come HMAC gli hash BCrypt dei codici di cui è disponibile il testo in chiaro,
+     * con un solo UPDATE in blocco
+     *
+     * @return numero di codici convertiti
+     */
+    static int migraHashBCrypt() {
+        String sqlSelect = "SELECT id, annuncio_id, codice_plain FROM codice_conferma " +
+                           "WHERE codice_hash LIKE '" + PREFISSO_BCRYPT + "%' AND codice_plain IS NOT NULL";
+        String sqlUpdate = "UPDATE codice_conferma c SET codice_hash = r.codice_hash " +
+                           "FROM unnest(?::int[], ?::text[]) AS r(id, codice_hash) " +
+                           "WHERE c.id = r.id AND c.codice_hash LIKE '" + PREFISSO_BCRYPT + "%'";
+
+        try (Connection conn = ConnessioneDB.getConnessione()) {
+            List<Integer> ids = new ArrayList<>();
+            List<String> hash = new ArrayList<>();
+            try (PreparedStatement stmt = conn.prepareStatement(sqlSelect);
+                 ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    ids.add(rs.getInt("id"));
+                    hash.add(calcolaHash(rs.getInt("annuncio_id"), rs.getString("codice_plain")));
+                }
+            }
+            if (ids.isEmpty()) {
+                return 0;
+            }
+            try (PreparedStatement stmt = conn.prepareStatement(sqlUpdate)) {
+                stmt.setArray(1, conn.createArrayOf("integer", ids.toArray()));
+                stmt.setArray(2, conn.createArrayOf("text", hash.toArray()));
+                return stmt.executeUpdate();
+            }
+        } catch (SQLException | IllegalStateException e) {
+            System.err.println("Errore nella migrazione degli hash dei codici: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    // ========== HMAC ==========
+
+    /**
+     * Legge il segreto dalla proprietà di sistema o dal database, generandolo al primo avvio.
+     * L'INSERT ... ON CONFLICT DO NOTHING seguito dalla lettura fa sì che processi concorrenti
+     * finiscano tutti con lo stesso segreto. Usa una connessione propria in autocommit: se il segreto
+     * venisse inserito nella {@link UnitaDiLavoro} del chiamante, un rollback lo cancellerebbe
+     * lasciandolo in memoria, e i codici generati dopo non sarebbero più verificabili.
+     */
+    private static synchronized SecretKeySpec caricaSegreto() {
+        if (segreto != null) {
+            return segreto;
+        }
+        String configurato = System.getProperty(PROPRIETA_SEGRETO);
+        if (configurato != null && !configurato.trim().isEmpty()) {
+            segreto = new SecretKeySpec(Base64.getDecoder().decode(configurato.trim()), ALGORITMO_HMAC);
+            return segreto;
+        }
+
+        byte[] generato = new byte[32];
+        RANDOM.nextBytes(generato);
+        String sqlInsert = "INSERT INTO segreto_applicazione (nome, valore) VALUES (?, ?) ON CONFLICT (nome) DO NOTHING";
+        String sqlSelect = "SELECT valore FROM segreto_applicazione WHERE nome = ?";
+
+        try (Connection conn = ConnessioneDB.getConnessioneIndipendente();
+             PreparedStatement insert = conn.prepareStatement(sqlInsert);
+             PreparedStatement select = conn.prepareStatement(sqlSelect)) {
+            insert.setString(1, NOME_SEGRETO);
+            insert.setString(2, Base64.getEncoder().encodeToString(generato));
+            insert.executeUpdate();
+
+            select.setString(1, NOME_SEGRETO);
+            try (ResultSet rs = select.executeQuery()) {
+                if (rs.next()) {
+                    segreto = new SecretKeySpec(Base64.getDecoder().decode(rs.getString("valore")), ALGORITMO_HMAC);
+                    return segreto;
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println("Errore nel caricamento del segreto dei codici: " + e.getMessage());
+        }
+        throw new IllegalStateException("Segreto per i codici di conferma non disponibile");
+    }
+
+    private static Mac nuovoMac(SecretKeySpec chiave) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITMO_HMAC);
+            mac.init(chiave);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC-SHA256 non disponibile", e);
+        }
+    }
+
+    /**
+     * HMAC del codice legato all'annuncio, nel formato memorizzato in {@code codice_hash}
+     */
+    private static String calcolaHash(int annuncioId, String codice) {
+        return calcolaHash(MAC.get(), annuncioId, codice);
+    }
+
+    private static String calcolaHash(Mac mac, int annuncioId, String codice) {
+        byte[] digest = mac.doFinal((annuncioId + ":" + codice).getBytes(StandardCharsets.UTF_8));
+        return PREFISSO_HMAC + Base64.getEncoder().withoutPadding().encodeToString(digest);
+    }
+
+    /**
+     * Confronta il codice inserito con l'hash memorizzato: HMAC in tempo costante,
+     * BCrypt solo per gli hash non ancora convertiti
+     */
+    private static boolean corrisponde(int annuncioId, String codiceInserito, String codiceHash) {
+        if (codiceInserito == null || codiceHash == null) {
+            return false;
+        }
+        if (codiceHash.startsWith(PREFISSO_BCRYPT)) {
+            return BCrypt.checkpw(codiceInserito, codiceHash);
+        }
+        byte[] atteso = codiceHash.getBytes(StandardCharsets.UTF_8);
+        byte[] calcolato = calcolaHash(annuncioId, codiceInserito).getBytes(StandardCharsets.UTF_8);
+        return MessageDigest.isEqual(atteso, calcolato);
+    }
+
+    // ========== GENERAZIONE ==========
+
     /**
      * Genera un nuovo codice di conferma criptato per un utente e annuncio
      * Restituisce il codice in chiaro per mostrarlo al venditore
@@ -30,8 +237,7 @@ public class CodiceDAO {
         // Genera codice casuale a 6 caratteri alfanumerici
         String codicePlain = generaCodiceAlfanumerico();
         
-        // Cripta il codice usando jBCrypt
-        String codiceHash = BCrypt.hashpw(codicePlain, BCrypt.gensalt());
+        String codiceHash = calcolaHash(annuncioId, codicePlain);
 
         String sql = "INSERT INTO codice_conferma (utente_id, annuncio_id, codice_hash, codice_plain, data_creazione, tentativi_errati) VALUES (?, ?, ?, ?, ?, ?)";
         //try-with-resources per gestire automaticamente la chiusura delle risorse
@@ -57,6 +263,48 @@ public class CodiceDAO {
         return null;
     }
 
+    /**
+     * Prepara un codice per l'inserimento in blocco: [0] in chiaro, [1] hash.
+     */
+    String[] preparaCodice(int annuncioId) {
+        String codicePlain = generaCodiceAlfanumerico();
+        return new String[] { codicePlain, calcolaHash(annuncioId, codicePlain) };
+    }
+
+    /**
+     * Sostituisce in blocco i codici di un utente per più annunci sulla connessione indicata:
+     * una DELETE e una INSERT in tutto, indipendentemente dal numero di annunci
+     *
+     * @param codici per ogni annuncio, il risultato di {@link #preparaCodice(int)}
+     */
+    void sostituisciCodici(Connection conn, int utenteId, Integer[] annunci, String[][] codici) throws SQLException {
+        String sqlDelete = "DELETE FROM codice_conferma WHERE utente_id = ? AND annuncio_id = ANY(?)";
+        String sqlInsert = "INSERT INTO codice_conferma (utente_id, annuncio_id, codice_hash, codice_plain, data_creazione, tentativi_errati) " +
+                           "SELECT ?, r.annuncio_id, r.codice_hash, r.codice_plain, ?, 0 " +
+                           "FROM unnest(?::int[], ?::text[], ?::text[]) AS r(annuncio_id, codice_hash, codice_plain)";
+
+        String[] hash = new String[codici.length];
+        String[] plain = new String[codici.length];
+        for (int i = 0; i < codici.length; i++) {
+            plain[i] = codici[i][0];
+            hash[i] = codici[i][1];
+        }
+
+        try (PreparedStatement delete = conn.prepareStatement(sqlDelete);
+             PreparedStatement insert = conn.prepareStatement(sqlInsert)) {
+            delete.setInt(1, utenteId);
+            delete.setArray(2, conn.createArrayOf("integer", annunci));
+            delete.executeUpdate();
+
+            insert.setInt(1, utenteId);
+            insert.setTimestamp(2, Timestamp.valueOf(LocalDateTime.now()));
+            insert.setArray(3, conn.createArrayOf("integer", annunci));
+            insert.setArray(4, conn.createArrayOf("text", hash));
+            insert.setArray(5, conn.createArrayOf("text", plain));
+            insert.executeUpdate();
+        }
+    }
+
     /**
      * Elimina i codici esistenti per una combinazione utente-annuncio
      */
@@ -79,7 +327,7 @@ public class CodiceDAO {
     /**
      * Elimina un codice specifico dal database
      */
-    private void eliminaCodice(int codiceId) {
+    private void eliminaCodice(int codiceId) throws SQLException {
         String sql = "DELETE FROM codice_conferma WHERE id = ?";
 
         try (Connection conn = ConnessioneDB.getConnessione();
@@ -87,28 +335,31 @@ public class CodiceDAO {
 
             stmt.setInt(1, codiceId);
             stmt.executeUpdate();
-
-        } catch (SQLException e) {
-            System.err.println("Errore nell'eliminazione del codice: " + e.getMessage());
-            e.printStackTrace();
         }
     }
 
     /**
-     * Incrementa il contatore dei tentativi errati
+     * Consuma un tentativo sul codice attivo più recente dell'annuncio, se non è già bloccato.
+     * Il contatore viene incrementato prima del confronto e nella stessa istruzione che lo legge:
+     * verifiche concorrenti non possono superare {@value #MAX_TENTATIVI} tentativi.
+     *
+     * @return {id, codice_hash} del codice, o null se non ci sono codici attivi o è bloccato
      */
-    private void incrementaTentativiErrati(int codiceId) {
-        String sql = "UPDATE codice_conferma SET tentativi_errati = tentativi_errati + 1 WHERE id = ?";
+    private Object[] consumaTentativo(int annuncioId) throws SQLException {
+        String sql = "UPDATE codice_conferma SET tentativi_errati = tentativi_errati + 1 " +
+                     "WHERE id = (SELECT id FROM codice_conferma " +
+                     "            WHERE annuncio_id = ? AND data_creazione > CURRENT_TIMESTAMP - INTERVAL '14 days' " +
+                     "            AND tentativi_errati < ? ORDER BY data_creazione DESC LIMIT 1 FOR UPDATE) " +
+                     "RETURNING id, codice_hash";
 
         try (Connection conn = ConnessioneDB.getConnessione();
              PreparedStatement stmt = conn.prepareStatement(sql)) {
 
-            stmt.setInt(1, codiceId);
-            stmt.executeUpdate();
-
-        } catch (SQLException e) {
-            System.err.println("Errore nell'incremento dei tentativi errati: " + e.getMessage());
-            e.printStackTrace();
+            stmt.setInt(1, annuncioId);
+            stmt.setInt(2, MAX_TENTATIVI);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? new Object[] { rs.getInt("id"), rs.getString("codice_hash") } : null;
+            }
         }
     }
 
@@ -123,10 +374,13 @@ public class CodiceDAO {
              PreparedStatement stmt = conn.prepareStatement(sql)) {
             
             // MODIFICA: Cambiato da 24 ore a 2 settimane (14 giorni)
-            LocalDateTime scadenza = LocalDateTime.now().minusDays(14);
+            LocalDateTime scadenza = LocalDateTime.now().minusDays(GIORNI_VALIDITA);
             stmt.setTimestamp(1, Timestamp.valueOf(scadenza));
             
-            return stmt.executeUpdate();
+            int rimossi = stmt.executeUpdate();
+            // Le prenotazioni confermate scadono con i codici: l'annuncio torna acquistabile
+            prenotazioneDAO.rimuoviPrenotazioniScadute();
+            return rimossi;
             
         } catch (SQLException e) {
             System.err.println("Errore nella pulizia dei codici scaduti: " + e.getMessage());
@@ -138,13 +392,11 @@ public class CodiceDAO {
     /**
      * Genera un codice casuale a 6 caratteri alfanumerici
      */
-    private String generaCodiceAlfanumerico() {
-        String caratteri = "ABCDEFGHIJKLMNOPQRSTUVWXYZ123456789";
-        Random random = new Random();
+    private static String generaCodiceAlfanumerico() {
         StringBuilder codice = new StringBuilder();
         
         for (int i = 0; i < 6; i++) {
-            codice.append(caratteri.charAt(random.nextInt(caratteri.length())));
+            codice.append(CARATTERI_CODICE.charAt(RANDOM.nextInt(CARATTERI_CODICE.length())));
         }
         
         return codice.toString();
@@ -198,41 +450,38 @@ public boolean verificaCodicePerAnnuncio(int annuncioId, String codiceInserito,
         return false;
     }
 
-    // 2. RECUPERO DATI (Selezioniamo solo quello che serve)
-    String sql = "SELECT id, codice_hash, tentativi_errati FROM codice_conferma " +
-                 "WHERE annuncio_id = ? AND data_creazione > CURRENT_TIMESTAMP - INTERVAL '14 days'";
-
-    try (Connection conn = ConnessioneDB.getConnessione();
-         PreparedStatement stmt = conn.prepareStatement(sql)) {
-
-        stmt.setInt(1, annuncioId);
-        ResultSet rs = stmt.executeQuery();
-
-        if (rs.next()) {
-            String codiceHash = rs.getString("codice_hash");
-            int tentativi = rs.getInt("tentativi_errati");
-            int codiceId = rs.getInt("id");
+    if (!RateLimiter.consenti(RateLimiter.Operazione.VERIFICA_CODICE, venditoreId)) {
+        logger.warning("Troppe verifiche di codici dall'utente " + venditoreId);
+        return false;
+    }
 
-            if (tentativi >= 3) {
-                logger.warning("Tentativo fallito: Codice bloccato per troppi errori (ID: " + codiceId + ")");
+    // 2. CONSUMO DEL TENTATIVO E CONFRONTO IN UNA SOLA TRANSAZIONE
+    try {
+        return UnitaDiLavoro.esegui(() -> {
+            Object[] codice = consumaTentativo(annuncioId);
+            if (codice == null) {
+                logger.info("Nessun codice attivo (o codice bloccato per troppi errori) per l'annuncio " + annuncioId);
                 return false;
             }
+            int codiceId = (Integer) codice[0];
 
-            // 3. CONFRONTO CRITTOGRAFICO
-            if (BCrypt.checkpw(codiceInserito, codiceHash)) {
-                AnnuncioDAO annuncioDAO = new AnnuncioDAO();
-                if (annuncioDAO.aggiornaStatoAnnuncio(annuncioId, "VENDUTO")) {
-                    eliminaCodice(codiceId);
-                    logger.info("SUCCESSO: Annuncio " + annuncioId + " aggiornato a VENDUTO.");
-                    return true;
-                }
-            } else {
-                incrementaTentativiErrati(codiceId);
+            // 3. CONFRONTO IN TEMPO COSTANTE
+            if (!corrisponde(annuncioId, codiceInserito, (String) codice[1])) {
                 logger.info("Codice errato inserito per l'annuncio " + annuncioId);
+                return false;
             }
-        } else {
-            logger.info("Nessun codice attivo trovato per l'annuncio " + annuncioId);
-        }
+
+            AnnuncioDAO annuncioDAO = new AnnuncioDAO();
+            if (!annuncioDAO.aggiornaStatoAnnuncio(annuncioId, "VENDUTO")) {
+                // Il tentativo non viene conteggiato: il codice era corretto
+                UnitaDiLavoro.segnaPerRollback();
+                return false;
+            }
+            eliminaCodice(codiceId);
+            prenotazioneDAO.elimina(annuncioId);
+            logger.info("SUCCESSO: Annuncio " + annuncioId + " aggiornato a VENDUTO.");
+            return true;
+        });
     } catch (SQLException e) {
         logger.log(Level.SEVERE, "Errore SQL durante la verifica", e);
     }
@@ -279,4 +528,50 @@ private boolean isVenditoreAnnuncio(int annuncioId, int venditoreId) {
     }
     return false;
 }
+
+    // ========== BENCHMARK ==========
+
+    /**
+     * Confronta il throughput di generazione e verifica dei codici con HMAC e con BCrypt
+     * (gensalt predefinito). Usa un segreto temporaneo, quindi non richiede il database.
+     *
+     * @param codiciHmac numero di codici da generare e verificare con HMAC
+     * @param codiciBCrypt numero di codici per BCrypt (tipicamente molto minore: ogni hash costa decine di ms)
+     * @return report con codici al secondo per i due schemi e rapporto di velocità
+     */
+    public static String testPrestazioni(int codiciHmac, int codiciBCrypt) {
+        byte[] chiave = new byte[32];
+        RANDOM.nextBytes(chiave);
+        Mac mac = nuovoMac(new SecretKeySpec(chiave, ALGORITMO_HMAC));
+        int verificati = 0;
+
+        long inizio = System.nanoTime();
+        for (int i = 0; i < codiciHmac; i++) {
+            String codice = generaCodiceAlfanumerico();
+            String hash = calcolaHash(mac, i, codice);
+            if (MessageDigest.isEqual(hash.getBytes(StandardCharsets.UTF_8),
+                    calcolaHash(mac, i, codice).getBytes(StandardCharsets.UTF_8))) {
+                verificati++;
+            }
+        }
+        long durataHmac = System.nanoTime() - inizio;
+
+        inizio = System.nanoTime();
+        for (int i = 0; i < codiciBCrypt; i++) {
+            String codice = generaCodiceAlfanumerico();
+            if (BCrypt.checkpw(codice, BCrypt.hashpw(codice, BCrypt.gensalt()))) {
+                verificati++;
+            }
+        }
+        long durataBCrypt = System.nanoTime() - inizio;
+
+        double alSecondoHmac = codiciHmac * 1_000_000_000.0 / durataHmac;
+        double alSecondoBCrypt = codiciBCrypt * 1_000_000_000.0 / durataBCrypt;
+        return String.format(
+            "🔑 Codici di conferma (generazione + verifica): HMAC %.0f codici/s (%.1f µs/codice), " +
+            "BCrypt %.1f codici/s (%.1f ms/codice) - HMAC %.0fx più veloce (verificati %d/%d)",
+            alSecondoHmac, durataHmac / 1000.0 / codiciHmac,
+            alSecondoBCrypt, durataBCrypt / 1_000_000.0 / codiciBCrypt,
+            alSecondoHmac / alSecondoBCrypt, verificati, codiciHmac + codiciBCrypt);
+    }
 }
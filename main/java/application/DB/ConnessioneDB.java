@@ -39,6 +39,7 @@ public class ConnessioneDB {
     private static final AtomicInteger CONTATORE_CONNESSIONI_APERTE = new AtomicInteger(0);
     private static final AtomicInteger CONTATORE_CONNESSIONI_TOTALI = new AtomicInteger(0);
     private static final AtomicInteger CONTATORE_ERRORI_CONNESSIONE = new AtomicInteger(0);
+    private static final AtomicInteger CONTATORE_CONNESSIONI_RIUSATE = new AtomicInteger(0);
     
     /** Flag di inizializzazione */
     private static volatile boolean INIZIALIZZATO = false;
@@ -78,7 +79,8 @@ public class ConnessioneDB {
     // ========== METODI GESTIONE CONNESSIONE ==========
     
     /**
-     * Crea e restituisce una connessione al database con proprietà ottimizzate
+     * Crea e restituisce una connessione al database con proprietà ottimizzate.
+     * Se il thread sta eseguendo una {@link UnitaDiLavoro}, restituisce la sua connessione condivisa.
      * 
      * @return Connection oggetto connessione al database
      * @throws SQLException se la connessione fallisce per qualsiasi motivo
@@ -88,6 +90,30 @@ public class ConnessioneDB {
             throw new SQLException("Driver database non inizializzato");
         }
         
+        Connection condivisa = UnitaDiLavoro.connessioneCorrente();
+        if (condivisa != null) {
+            CONTATORE_CONNESSIONI_RIUSATE.incrementAndGet();
+            return condivisa;
+        }
+        return apriConnessione();
+    }
+    
+    /**
+     * Apre sempre una nuova connessione fisica in autocommit, anche se il thread sta eseguendo una
+     * {@link UnitaDiLavoro}: per le scritture che devono restare valide indipendentemente dall'esito
+     * della transazione in corso
+     * 
+     * @return Connection nuova connessione, da chiudere a cura del chiamante
+     * @throws SQLException se la connessione fallisce per qualsiasi motivo
+     */
+    static Connection getConnessioneIndipendente() throws SQLException {
+        if (!INIZIALIZZATO) {
+            throw new SQLException("Driver database non inizializzato");
+        }
+        return apriConnessione();
+    }
+    
+    private static Connection apriConnessione() throws SQLException {
         String url = String.format("jdbc:postgresql://%s:%d/%s", HOST_DB, PORTA_DB, NOME_DB);
         Properties proprieta = new Properties();
         
@@ -133,7 +159,7 @@ public class ConnessioneDB {
      * @param connessione La connessione da chiudere (può essere null)
      */
     public static void chiudiConnessione(Connection connessione) {
-        if (connessione != null) {
+        if (connessione != null && !UnitaDiLavoro.isConnessioneCondivisa(connessione)) {
             try {
                 if (!connessione.isClosed()) {
                     connessione.close();
@@ -295,6 +321,16 @@ public class ConnessioneDB {
         return CONTATORE_ERRORI_CONNESSIONE.get();
     }
     
+    /**
+     * Restituisce il numero di richieste servite con la connessione di un'unità di lavoro
+     * invece di aprirne una nuova
+     * 
+     * @return Numero di connessioni riusate
+     */
+    public static int getConnessioniRiusate() {
+        return CONTATORE_CONNESSIONI_RIUSATE.get();
+    }
+    
     /**
      * Verifica se il driver è stato inizializzato correttamente
      * 
@@ -312,6 +348,7 @@ public class ConnessioneDB {
         CONTATORE_CONNESSIONI_APERTE.set(0);
         CONTATORE_CONNESSIONI_TOTALI.set(0);
         CONTATORE_ERRORI_CONNESSIONE.set(0);
+        CONTATORE_CONNESSIONI_RIUSATE.set(0);
         System.out.println("📊 Metriche connessioni resettate");
     }
     
@@ -322,9 +359,10 @@ public class ConnessioneDB {
      */
     public static String getReportStatistiche() {
         return String.format(
-            "📈 Statistiche Connessioni DB - Attive: %d, Totali: %d, Errori: %d, Inizializzato: %s",
+            "📈 Statistiche Connessioni DB - Attive: %d, Totali: %d, Riusate: %d, Errori: %d, Inizializzato: %s",
             CONTATORE_CONNESSIONI_APERTE.get(),
             CONTATORE_CONNESSIONI_TOTALI.get(),
+            CONTATORE_CONNESSIONI_RIUSATE.get(),
             CONTATORE_ERRORI_CONNESSIONE.get(),
             INIZIALIZZATO ? "✅" : "❌"
         );
@@ -6,6 +6,7 @@ import java.sql.*;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Gestisce le operazioni di conto e movimenti finanziari nel database
@@ -14,41 +15,203 @@ import java.util.List;
 public class ContoDAO {
     private static final String TABLE_NAME = "conto";
     private static final String MOVIMENTI_TABLE = "movimento_conto";
+    private static final String SNAPSHOT_TABLE = "saldo_snapshot";
+
+    /** Ogni quanti movimenti di un conto viene registrato uno snapshot del saldo */
+    static final int INTERVALLO_SNAPSHOT = 100;
+
+    /** Importo con segno di un movimento (alias m): entrate positive, uscite negative */
+    private static final String IMPORTO_CON_SEGNO =
+            "CASE WHEN m.tipo IN ('ACQUISTO', 'ADDEBITO') THEN -m.importo ELSE m.importo END";
+
+    /** Tentativi di un trasferimento annullato da un deadlock o da un errore di serializzazione */
+    private static final int TENTATIVI_CONFLITTO = 3;
+
+    /** Lo schema viene verificato una sola volta per processo, non a ogni istanza del DAO */
+    private static volatile boolean schemaVerificato = false;
 
     public ContoDAO() {
-        creaTabelleSeMancanti();
+        if (!schemaVerificato) {
+            creaTabelleSeMancanti();
+        }
     }
 
+    // ========== SCHEMA E REGISTRO ==========
+
     /**
-     * Crea le tabelle conto e movimenti se non esistono
+     * Crea le tabelle conto, movimenti e snapshot se non esistono.
+     *
+     * <p>{@code movimento_conto} è un registro append-only: ogni movimento ha una sequenza
+     * progressiva per conto (senza buchi, assegnata incrementando {@code conto.ultima_sequenza}
+     * nella stessa istruzione che modifica il saldo) e un trigger rifiuta UPDATE e DELETE dirette.
+     * Ogni {@value #INTERVALLO_SNAPSHOT} movimenti viene salvato uno snapshot del saldo, da cui
+     * il saldo si verifica sommando al più {@value #INTERVALLO_SNAPSHOT} movimenti.</p>
      */
-    private void creaTabelleSeMancanti() {
-        try (Connection conn = ConnessioneDB.getConnessione()) {
-            String sqlConto = "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
-                    "id SERIAL PRIMARY KEY, " +
-                    "utente_id INTEGER UNIQUE NOT NULL REFERENCES utente(id) ON DELETE CASCADE, " +
-                    "saldo DECIMAL(10,2) NOT NULL DEFAULT 0.0)";
-            
-            String sqlMovimenti = "CREATE TABLE IF NOT EXISTS " + MOVIMENTI_TABLE + " (" +
-                    "id SERIAL PRIMARY KEY, " +
-                    "conto_id INTEGER NOT NULL REFERENCES conto(id) ON DELETE CASCADE, " +
-                    "importo DECIMAL(10,2) NOT NULL, " +
-                    "tipo VARCHAR(50) NOT NULL, " +
-                    "descrizione TEXT, " +
-                    "data_operazione TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP)";
-
-            try (PreparedStatement stmt1 = conn.prepareStatement(sqlConto);
-                 PreparedStatement stmt2 = conn.prepareStatement(sqlMovimenti)) {
-                stmt1.execute();
-                stmt2.execute();
-            }
+    private static synchronized void creaTabelleSeMancanti() {
+        if (schemaVerificato) {
+            return;
+        }
+        String sqlConto = "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
+                "id SERIAL PRIMARY KEY, " +
+                "utente_id INTEGER UNIQUE NOT NULL REFERENCES utente(id) ON DELETE CASCADE, " +
+                "saldo DECIMAL(10,2) NOT NULL DEFAULT 0.0, " +
+                "ultima_sequenza BIGINT NOT NULL DEFAULT 0)";
+        
+        String sqlMovimenti = "CREATE TABLE IF NOT EXISTS " + MOVIMENTI_TABLE + " (" +
+                "id SERIAL PRIMARY KEY, " +
+                "conto_id INTEGER NOT NULL REFERENCES conto(id) ON DELETE CASCADE, " +
+                "sequenza BIGINT NOT NULL, " +
+                "importo DECIMAL(10,2) NOT NULL, " +
+                "tipo VARCHAR(50) NOT NULL, " +
+                "descrizione TEXT, " +
+                "data_operazione TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP)";
+
+        String sqlSnapshot = "CREATE TABLE IF NOT EXISTS " + SNAPSHOT_TABLE + " (" +
+                "conto_id INTEGER NOT NULL REFERENCES conto(id) ON DELETE CASCADE, " +
+                "sequenza BIGINT NOT NULL, " +
+                "saldo DECIMAL(10,2) NOT NULL, " +
+                "data_snapshot TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP, " +
+                "PRIMARY KEY (conto_id, sequenza))";
+
+        try {
+            UnitaDiLavoro.esegui(() -> {
+                try (Connection conn = ConnessioneDB.getConnessione();
+                     Statement stmt = conn.createStatement()) {
+                    stmt.execute(sqlConto);
+                    boolean tabellaEsistente = colonnaEsiste(conn, MOVIMENTI_TABLE, "id");
+                    boolean migrazione = tabellaEsistente && !colonnaEsiste(conn, MOVIMENTI_TABLE, "sequenza");
+                    stmt.execute(sqlMovimenti);
+                    stmt.execute(sqlSnapshot);
+                    stmt.execute("ALTER TABLE " + TABLE_NAME + " ADD COLUMN IF NOT EXISTS ultima_sequenza BIGINT NOT NULL DEFAULT 0");
+
+                    if (migrazione) {
+                        migraARegistro(stmt);
+                    }
+
+                    stmt.execute("CREATE UNIQUE INDEX IF NOT EXISTS idx_movimento_conto_sequenza ON " +
+                            MOVIMENTI_TABLE + " (conto_id, sequenza)");
+                    creaTriggerSoloAggiunta(conn, stmt);
+                }
+                return null;
+            });
+            schemaVerificato = true;
         } catch (SQLException e) {
             System.err.println("Errore nella creazione delle tabelle per Conto: " + e.getMessage());
         }
     }
 
+    private static boolean colonnaEsiste(Connection conn, String tabella, String colonna) throws SQLException {
+        String sql = "SELECT 1 FROM information_schema.columns " +
+                     "WHERE table_schema = current_schema() AND table_name = ? AND column_name = ?";
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, tabella);
+            stmt.setString(2, colonna);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    /**
+     * Migrazione una tantum dei movimenti esistenti: numera i movimenti di ogni conto in ordine
+     * cronologico, allinea {@code ultima_sequenza} e registra uno snapshot di partenza col saldo attuale
+     * (lo storico precedente non era riconciliabile, la verifica parte da qui)
+     */
+    private static void migraARegistro(Statement stmt) throws SQLException {
+        System.out.println("🔄 Migrazione di " + MOVIMENTI_TABLE + " a registro con sequenze...");
+        stmt.execute("ALTER TABLE " + MOVIMENTI_TABLE + " ADD COLUMN IF NOT EXISTS sequenza BIGINT");
+        stmt.execute("UPDATE " + MOVIMENTI_TABLE + " m SET sequenza = r.n FROM (" +
+                "  SELECT id, row_number() OVER (PARTITION BY conto_id ORDER BY data_operazione, id) AS n " +
+                "  FROM " + MOVIMENTI_TABLE + ") r " +
+                "WHERE m.id = r.id AND m.sequenza IS NULL");
+        stmt.execute("ALTER TABLE " + MOVIMENTI_TABLE + " ALTER COLUMN sequenza SET NOT NULL");
+        stmt.execute("UPDATE " + TABLE_NAME + " c SET ultima_sequenza = m.ultima FROM (" +
+                "  SELECT conto_id, max(sequenza) AS ultima FROM " + MOVIMENTI_TABLE + " GROUP BY conto_id) m " +
+                "WHERE c.id = m.conto_id");
+        stmt.execute("INSERT INTO " + SNAPSHOT_TABLE + " (conto_id, sequenza, saldo) " +
+                "SELECT id, ultima_sequenza, saldo FROM " + TABLE_NAME + " ON CONFLICT DO NOTHING");
+    }
+
+    /**
+     * Trigger che rende il registro append-only. Le cancellazioni sono ammesse solo a cascata
+     * dalla cancellazione del conto (eseguite dal trigger della foreign key, quindi a profondità > 1).
+     */
+    private static void creaTriggerSoloAggiunta(Connection conn, Statement stmt) throws SQLException {
+        try (PreparedStatement verifica = conn.prepareStatement("SELECT 1 FROM pg_trigger WHERE tgname = ?")) {
+            verifica.setString(1, "trg_movimento_conto_solo_aggiunta");
+            try (ResultSet rs = verifica.executeQuery()) {
+                if (rs.next()) {
+                    return;
+                }
+            }
+        }
+        stmt.execute("CREATE OR REPLACE FUNCTION movimento_conto_solo_aggiunta() RETURNS trigger AS $$ " +
+                "BEGIN " +
+                "  IF TG_OP = 'DELETE' AND pg_trigger_depth() > 1 THEN RETURN OLD; END IF; " +
+                "  RAISE EXCEPTION '" + MOVIMENTI_TABLE + " è append-only: % non consentito', TG_OP; " +
+                "END; $$ LANGUAGE plpgsql");
+        stmt.execute("CREATE TRIGGER trg_movimento_conto_solo_aggiunta BEFORE UPDATE OR DELETE ON " +
+                MOVIMENTI_TABLE + " FOR EACH ROW EXECUTE PROCEDURE movimento_conto_solo_aggiunta()");
+    }
+
+    /**
+     * CTE che registra uno snapshot per le righe di conto restituite da {@code cte}
+     * (colonne id, saldo, ultima_sequenza) quando l'ultimo movimento chiude un intervallo
+     */
+    private static String cteSnapshot(String nome, String cte) {
+        return nome + " AS (" +
+               "  INSERT INTO " + SNAPSHOT_TABLE + " (conto_id, sequenza, saldo) " +
+               "  SELECT id, ultima_sequenza, saldo FROM " + cte +
+               "  WHERE ultima_sequenza % " + INTERVALLO_SNAPSHOT + " = 0 ON CONFLICT DO NOTHING" +
+               ")";
+    }
+
+    /**
+     * Registra uno snapshot per i conti degli utenti indicati che hanno accumulato almeno
+     * {@value #INTERVALLO_SNAPSHOT} movimenti dall'ultimo (usato dopo scritture di più movimenti insieme)
+     */
+    void registraSnapshotDovuti(Connection conn, Integer[] utenti) throws SQLException {
+        String sql = "INSERT INTO " + SNAPSHOT_TABLE + " (conto_id, sequenza, saldo) " +
+                     "SELECT c.id, c.ultima_sequenza, c.saldo FROM " + TABLE_NAME + " c " +
+                     "WHERE c.utente_id = ANY(?) AND c.ultima_sequenza >= ? + COALESCE(" +
+                     "  (SELECT max(s.sequenza) FROM " + SNAPSHOT_TABLE + " s WHERE s.conto_id = c.id), 0) " +
+                     "ON CONFLICT DO NOTHING";
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setArray(1, conn.createArrayOf("integer", utenti));
+            stmt.setInt(2, INTERVALLO_SNAPSHOT);
+            stmt.executeUpdate();
+        }
+    }
+
+    /**
+     * Blocca i conti esistenti degli utenti indicati in ordine di utente_id, nella transazione di {@code conn}.
+     * Chi sposta fondi tra più conti li blocca tutti prima di modificarli, sempre nello stesso ordine:
+     * trasferimenti opposti (A→B e B→A) o checkout con venditori in comune si mettono in coda
+     * invece di andare in deadlock.
+     */
+    void bloccaConti(Connection conn, Integer[] utenti) throws SQLException {
+        String sql = "SELECT id FROM " + TABLE_NAME + " WHERE utente_id = ANY(?) ORDER BY utente_id FOR UPDATE";
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setArray(1, conn.createArrayOf("integer", utenti));
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    // Le righe vengono bloccate man mano che sono lette
+                }
+            }
+        }
+    }
+
+    /**
+     * True se la transazione è stata annullata da un deadlock (40P01) o da un errore di
+     * serializzazione (40001): l'operazione può essere ritentata
+     */
+    static boolean isConflittoConcorrenza(SQLException e) {
+        return "40P01".equals(e.getSQLState()) || "40001".equals(e.getSQLState());
+    }
+
     /**
      * Crea un conto per un utente se non esiste già
+     * Verifica, lettura e creazione condividono una sola connessione tramite {@link UnitaDiLavoro}
      */
     public Conto creaContoSeMancante(int utenteId) {
         if (utenteId <= 0) {
@@ -56,13 +219,20 @@ public class ContoDAO {
             return null;
         }
         
-        if (!utenteEsiste(utenteId)) {
-            System.err.println("Utente non trovato nel database: " + utenteId);
+        try {
+            return UnitaDiLavoro.esegui(() -> {
+                if (!utenteEsiste(utenteId)) {
+                    System.err.println("Utente non trovato nel database: " + utenteId);
+                    return null;
+                }
+                
+                Conto conto = getContoByUtenteId(utenteId);
+                return conto != null ? conto : creaConto(utenteId);
+            });
+        } catch (SQLException e) {
+            System.err.println("Errore nella creazione del conto: " + e.getMessage());
             return null;
         }
-        
-        Conto conto = getContoByUtenteId(utenteId);
-        return conto != null ? conto : creaConto(utenteId);
     }
 
     /**
@@ -114,10 +284,11 @@ public class ContoDAO {
     }
 
     /**
-     * Recupera il conto di un utente con i relativi movimenti
+     * Recupera il conto di un utente (saldo e ultima sequenza; lo storico si legge a pagine
+     * con {@link #getStoricoMovimenti(int, long, int)})
      */
     public Conto getContoByUtenteId(int utenteId) {
-        String sql = "SELECT * FROM " + TABLE_NAME + " WHERE utente_id = ?";
+        String sql = "SELECT id, saldo, ultima_sequenza FROM " + TABLE_NAME + " WHERE utente_id = ?";
         
         try (Connection conn = ConnessioneDB.getConnessione();
              PreparedStatement stmt = conn.prepareStatement(sql)) {
@@ -128,9 +299,8 @@ public class ContoDAO {
                 if (rs.next()) {
                     Conto conto = new Conto(utenteId);
                     conto.setId(rs.getInt("id"));
-                    conto.accredita(rs.getBigDecimal("saldo"), "Saldo iniziale");
-                    
-                    caricaMovimenti(conto);
+                    conto.setSaldo(rs.getBigDecimal("saldo"));
+                    conto.setUltimaSequenza(rs.getLong("ultima_sequenza"));
                     return conto;
                 }
             }
@@ -141,18 +311,48 @@ public class ContoDAO {
     }
 
     /**
-     * Aggiorna il saldo del conto nel database
+     * Porta il saldo del conto al valore dell'oggetto registrando un movimento di rettifica
+     * per la differenza: il registro è append-only e il saldo non viene mai sovrascritto senza traccia
      */
     public boolean aggiornaSaldo(Conto conto) {
-        String sql = "UPDATE " + TABLE_NAME + " SET saldo = ? WHERE id = ?";
+        if (conto == null || conto.getSaldo() == null || conto.getSaldo().signum() < 0) {
+            return false;
+        }
+        
+        String sql = "WITH attuale AS (" +
+                     "  SELECT id, saldo AS precedente FROM " + TABLE_NAME + " WHERE id = ? FOR UPDATE" +
+                     "), rettifica AS (" +
+                     "  UPDATE " + TABLE_NAME + " c SET saldo = ?, ultima_sequenza = c.ultima_sequenza + 1 " +
+                     "  FROM attuale a WHERE c.id = a.id AND a.precedente <> ? " +
+                     "  RETURNING c.id, c.saldo, c.ultima_sequenza, a.precedente" +
+                     "), movimento AS (" +
+                     "  INSERT INTO " + MOVIMENTI_TABLE + " (conto_id, sequenza, importo, tipo, descrizione, data_operazione) " +
+                     "  SELECT id, ultima_sequenza, abs(saldo - precedente), " +
+                     "         CASE WHEN saldo > precedente THEN ? ELSE ? END, ?, ? FROM rettifica" +
+                     "), " + cteSnapshot("snapshot", "rettifica") +
+                     " SELECT (SELECT count(*) FROM attuale) AS trovato, (SELECT ultima_sequenza FROM rettifica) AS sequenza";
         
         try (Connection conn = ConnessioneDB.getConnessione();
              PreparedStatement stmt = conn.prepareStatement(sql)) {
             
-            stmt.setBigDecimal(1, conto.getSaldo());
-            stmt.setInt(2, conto.getId());
+            stmt.setInt(1, conto.getId());
+            stmt.setBigDecimal(2, conto.getSaldo());
+            stmt.setBigDecimal(3, conto.getSaldo());
+            stmt.setString(4, Conto.TipoMovimento.ACCREDITO.name());
+            stmt.setString(5, Conto.TipoMovimento.ADDEBITO.name());
+            stmt.setString(6, "Rettifica saldo");
+            stmt.setTimestamp(7, Timestamp.valueOf(LocalDateTime.now()));
             
-            return stmt.executeUpdate() > 0;
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next() || rs.getInt("trovato") == 0) {
+                    return false;
+                }
+                long sequenza = rs.getLong("sequenza");
+                if (!rs.wasNull()) {
+                    conto.setUltimaSequenza(sequenza);
+                }
+                return true;
+            }
             
         } catch (SQLException e) {
             System.err.println("Errore nell'aggiornamento del saldo per conto: " + conto.getId());
@@ -161,21 +361,44 @@ public class ContoDAO {
     }
 
     /**
-     * Registra un movimento nel conto con transazione
+     * Aggiunge un movimento al registro del conto applicandone l'importo al saldo nella stessa istruzione.
+     * Le uscite (acquisto, addebito) sono rifiutate se porterebbero il saldo in negativo.
      */
     public boolean registraMovimento(Conto conto, Conto.Movimento movimento) {
-        String sql = "INSERT INTO " + MOVIMENTI_TABLE + " (conto_id, importo, tipo, descrizione, data_operazione) VALUES (?, ?, ?, ?, ?)";
+        if (conto == null || movimento == null || movimento.getImporto() == null
+                || movimento.getImporto().signum() <= 0) {
+            return false;
+        }
+        
+        String sql = "WITH aggiornato AS (" +
+                     "  UPDATE " + TABLE_NAME + " SET saldo = saldo + ?, ultima_sequenza = ultima_sequenza + 1 " +
+                     "  WHERE id = ? AND saldo + ? >= 0 RETURNING id, saldo, ultima_sequenza" +
+                     "), movimento AS (" +
+                     "  INSERT INTO " + MOVIMENTI_TABLE + " (conto_id, sequenza, importo, tipo, descrizione, data_operazione) " +
+                     "  SELECT id, ultima_sequenza, ?, ?, ?, ? FROM aggiornato" +
+                     "), " + cteSnapshot("snapshot", "aggiornato") +
+                     " SELECT saldo, ultima_sequenza FROM aggiornato";
         
         try (Connection conn = ConnessioneDB.getConnessione();
              PreparedStatement stmt = conn.prepareStatement(sql)) {
             
-            stmt.setInt(1, conto.getId());
-            stmt.setBigDecimal(2, movimento.getImporto());
-            stmt.setString(3, movimento.getTipo().name());
-            stmt.setString(4, movimento.getDescrizione());
-            stmt.setTimestamp(5, Timestamp.valueOf(movimento.getData()));
+            BigDecimal conSegno = movimento.getImportoConSegno();
+            stmt.setBigDecimal(1, conSegno);
+            stmt.setInt(2, conto.getId());
+            stmt.setBigDecimal(3, conSegno);
+            stmt.setBigDecimal(4, movimento.getImporto());
+            stmt.setString(5, movimento.getTipo().name());
+            stmt.setString(6, movimento.getDescrizione());
+            stmt.setTimestamp(7, Timestamp.valueOf(movimento.getData()));
             
-            return stmt.executeUpdate() > 0;
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (rs.next()) {
+                    conto.setSaldo(rs.getBigDecimal("saldo"));
+                    conto.setUltimaSequenza(rs.getLong("ultima_sequenza"));
+                    return true;
+                }
+                return false;
+            }
             
         } catch (SQLException e) {
             System.err.println("Errore nella registrazione del movimento per conto: " + conto.getId());
@@ -184,29 +407,39 @@ public class ContoDAO {
     }
 
     /**
-     * Carica i movimenti del conto dalla base dati
-     */
-    private void caricaMovimenti(Conto conto) {
-        // Questo metodo è mantenuto per compatibilità ma non fa più nulla
-        // poiché i movimenti vengono gestiti internamente dalla classe Conto
-    }
-
-    /**
-     * Ricarica il conto di un utente con un importo specifico
+     * Ricarica il conto di un utente con un importo specifico.
+     * L'incremento è calcolato dal database (nessuna lettura-modifica-scrittura che potrebbe
+     * sovrascrivere un accredito concorrente) e il conto viene creato se manca.
      */
     public boolean ricaricaConto(int utenteId, BigDecimal importo, String metodoPagamento) {
-        Conto conto = creaContoSeMancante(utenteId);
-        if (conto != null) {
-            conto.ricarica(importo, metodoPagamento);
-            List<Conto.Movimento> movimenti = conto.getMovimenti();
+        if (utenteId <= 0 || importo == null || importo.compareTo(BigDecimal.ZERO) <= 0) {
+            return false;
+        }
+        
+        String sql = "WITH ricarica AS (" +
+                     "  INSERT INTO " + TABLE_NAME + " (utente_id, saldo, ultima_sequenza) VALUES (?, ?, 1) " +
+                     "  ON CONFLICT (utente_id) DO UPDATE SET saldo = " + TABLE_NAME + ".saldo + EXCLUDED.saldo, " +
+                     "  ultima_sequenza = " + TABLE_NAME + ".ultima_sequenza + 1 RETURNING id, saldo, ultima_sequenza" +
+                     "), " + cteSnapshot("snapshot", "ricarica") +
+                     " INSERT INTO " + MOVIMENTI_TABLE + " (conto_id, sequenza, importo, tipo, descrizione, data_operazione) " +
+                     "SELECT id, ultima_sequenza, ?, ?, ?, ? FROM ricarica";
+        
+        try (Connection conn = ConnessioneDB.getConnessione();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
             
-            if (!movimenti.isEmpty()) {
-                boolean success = aggiornaSaldo(conto) && 
-                                registraMovimento(conto, movimenti.get(movimenti.size() - 1));
-                return success;
-            }
+            stmt.setInt(1, utenteId);
+            stmt.setBigDecimal(2, importo);
+            stmt.setBigDecimal(3, importo);
+            stmt.setString(4, Conto.TipoMovimento.RICARICA.name());
+            stmt.setString(5, "Ricarica tramite " + metodoPagamento);
+            stmt.setTimestamp(6, Timestamp.valueOf(LocalDateTime.now()));
+            
+            return stmt.executeUpdate() > 0;
+            
+        } catch (SQLException e) {
+            System.err.println("Errore nella ricarica del conto per utente: " + utenteId);
+            return false;
         }
-        return false;
     }
 
     /**
@@ -218,43 +451,33 @@ public class ContoDAO {
     }
 
     /**
-     * Effettua un acquisto scalando il saldo con transazione
+     * Effettua un acquisto scalando il saldo con un addebito condizionato e registrando
+     * il movimento nello stesso statement
      */
     public boolean effettuaAcquisto(int utenteId, BigDecimal importo, String descrizione) {
-        try (Connection conn = ConnessioneDB.getConnessione()) {
-            conn.setAutoCommit(false);
+        if (importo == null || importo.compareTo(BigDecimal.ZERO) <= 0) {
+            return false;
+        }
+        
+        String sql = "WITH addebito AS (" +
+                     "  UPDATE " + TABLE_NAME + " SET saldo = saldo - ?, ultima_sequenza = ultima_sequenza + 1 " +
+                     "  WHERE utente_id = ? AND saldo >= ? RETURNING id, saldo, ultima_sequenza" +
+                     "), " + cteSnapshot("snapshot", "addebito") +
+                     " INSERT INTO " + MOVIMENTI_TABLE + " (conto_id, sequenza, importo, tipo, descrizione, data_operazione) " +
+                     "SELECT id, ultima_sequenza, ?, ?, ?, ? FROM addebito";
+        
+        try (Connection conn = ConnessioneDB.getConnessione();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
             
-            try {
-                Conto conto = getContoByUtenteId(utenteId);
-                if (conto == null || !conto.saldoSufficiente(importo)) {
-                    conn.rollback();
-                    return false;
-                }
-                
-                boolean successAcquisto = conto.effettuaAcquisto(importo, descrizione);
-                if (!successAcquisto) {
-                    conn.rollback();
-                    return false;
-                }
-                
-                List<Conto.Movimento> movimenti = conto.getMovimenti();
-                boolean successUpdate = aggiornaSaldo(conto);
-                boolean successMovimento = registraMovimento(conto, movimenti.get(movimenti.size() - 1));
-                
-                if (successUpdate && successMovimento) {
-                    conn.commit();
-                    return true;
-                } else {
-                    conn.rollback();
-                    return false;
-                }
-                
-            } catch (SQLException e) {
-                conn.rollback();
-                throw e;
-            } finally {
-                conn.setAutoCommit(true);
-            }
+            stmt.setBigDecimal(1, importo);
+            stmt.setInt(2, utenteId);
+            stmt.setBigDecimal(3, importo);
+            stmt.setBigDecimal(4, importo);
+            stmt.setString(5, Conto.TipoMovimento.ACQUISTO.name());
+            stmt.setString(6, descrizione);
+            stmt.setTimestamp(7, Timestamp.valueOf(LocalDateTime.now()));
+            
+            return stmt.executeUpdate() > 0;
             
         } catch (SQLException e) {
             System.err.println("Errore durante l'acquisto per utente: " + utenteId);
@@ -263,106 +486,262 @@ public class ContoDAO {
     }
 
     /**
-     * Trasferisce fondi da acquirente a venditore con transazione atomica
+     * Trasferisce fondi da acquirente a venditore in un unico statement atomico.
+     * L'addebito è condizionato al saldo ({@code saldo >= importo}) e calcolato dal database,
+     * quindi acquisti concorrenti non possono perdere aggiornamenti né andare in negativo;
+     * accredito (con creazione del conto venditore se manca) e i due movimenti vengono
+     * scritti nella stessa istruzione, su una sola connessione e in un solo round trip.
+     * Prima dell'istruzione i due conti vengono bloccati in ordine di utente ({@link #bloccaConti}),
+     * quindi trasferimenti opposti concorrenti non vanno in deadlock; un conflitto residuo
+     * (40P01/40001) viene ritentato e, se persiste, registrato come tale e non come saldo insufficiente.
      */
     public boolean trasferisciFondi(int acquirenteId, int venditoreId, BigDecimal importo, String descrizione) {
-        if (acquirenteId <= 0 || venditoreId <= 0 || importo.compareTo(BigDecimal.ZERO) <= 0) {
+        if (acquirenteId <= 0 || venditoreId <= 0 || acquirenteId == venditoreId
+                || importo == null || importo.compareTo(BigDecimal.ZERO) <= 0) {
             System.err.println("Parametri non validi per trasferimento");
             return false;
         }
         
-        try (Connection conn = ConnessioneDB.getConnessione()) {
-            conn.setAutoCommit(false);
-            
+        String sql = "WITH addebito AS (" +
+                     "  UPDATE " + TABLE_NAME + " SET saldo = saldo - ?, ultima_sequenza = ultima_sequenza + 1 " +
+                     "  WHERE utente_id = ? AND saldo >= ? RETURNING id, saldo, ultima_sequenza" +
+                     "), accredito AS (" +
+                     "  INSERT INTO " + TABLE_NAME + " (utente_id, saldo, ultima_sequenza) SELECT ?, ?, 1 FROM addebito " +
+                     "  ON CONFLICT (utente_id) DO UPDATE SET saldo = " + TABLE_NAME + ".saldo + EXCLUDED.saldo, " +
+                     "  ultima_sequenza = " + TABLE_NAME + ".ultima_sequenza + 1 RETURNING id, saldo, ultima_sequenza" +
+                     "), movimento_acquirente AS (" +
+                     "  INSERT INTO " + MOVIMENTI_TABLE + " (conto_id, sequenza, importo, tipo, descrizione, data_operazione) " +
+                     "  SELECT id, ultima_sequenza, ?, ?, ?, ? FROM addebito" +
+                     "), movimento_venditore AS (" +
+                     "  INSERT INTO " + MOVIMENTI_TABLE + " (conto_id, sequenza, importo, tipo, descrizione, data_operazione) " +
+                     "  SELECT id, ultima_sequenza, ?, ?, ?, ? FROM accredito" +
+                     "), " + cteSnapshot("snapshot_acquirente", "addebito") +
+                     ", " + cteSnapshot("snapshot_venditore", "accredito") +
+                     " SELECT (SELECT id FROM addebito) AS conto_acquirente, (SELECT id FROM accredito) AS conto_venditore";
+        
+        Timestamp adesso = Timestamp.valueOf(LocalDateTime.now());
+        
+        for (int tentativo = 1; ; tentativo++) {
             try {
-                // Verifica saldo acquirente
-                Conto contoAcquirente = getContoByUtenteId(acquirenteId);
-                if (contoAcquirente == null || !contoAcquirente.saldoSufficiente(importo)) {
-                    conn.rollback();
-                    return false;
-                }
-                
-                // Assicura che il venditore abbia un conto
-                Conto contoVenditore = creaContoSeMancante(venditoreId);
-                if (contoVenditore == null) {
-                    conn.rollback();
-                    return false;
-                }
-                
-                // Esegue operazioni
-                boolean successAcquisto = contoAcquirente.effettuaAcquisto(importo, descrizione);
-                if (!successAcquisto) {
-                    conn.rollback();
-                    return false;
+                return UnitaDiLavoro.esegui(() -> {
+                    Connection conn = ConnessioneDB.getConnessione();
+                    bloccaConti(conn, new Integer[] { acquirenteId, venditoreId });
+                    return eseguiTrasferimento(conn, sql, acquirenteId, venditoreId, importo, descrizione, adesso);
+                });
+            } catch (SQLException e) {
+                // Dentro un'unità esterna la transazione è ormai annullata: il retry spetta al chiamante
+                if (isConflittoConcorrenza(e) && tentativo < TENTATIVI_CONFLITTO && !UnitaDiLavoro.isAttiva()) {
+                    continue;
                 }
-                
-                contoVenditore.accredita(importo, "Vendita: " + descrizione);
-                
-                // Aggiorna database
-                List<Conto.Movimento> movimentiAcquirente = contoAcquirente.getMovimenti();
-                List<Conto.Movimento> movimentiVenditore = contoVenditore.getMovimenti();
-                
-                boolean successUpdate1 = aggiornaSaldo(contoAcquirente);
-                boolean successUpdate2 = aggiornaSaldo(contoVenditore);
-                boolean successMovimento1 = registraMovimento(contoAcquirente, 
-                    movimentiAcquirente.get(movimentiAcquirente.size() - 1));
-                boolean successMovimento2 = registraMovimento(contoVenditore, 
-                    movimentiVenditore.get(movimentiVenditore.size() - 1));
-                
-                if (successUpdate1 && successUpdate2 && successMovimento1 && successMovimento2) {
-                    conn.commit();
-                    return true;
+                if (isConflittoConcorrenza(e)) {
+                    System.err.println("Trasferimento fondi annullato per conflitto concorrente (SQLSTATE " +
+                                       e.getSQLState() + ") dopo " + tentativo + " tentativi");
                 } else {
-                    conn.rollback();
-                    return false;
+                    System.err.println("Errore durante il trasferimento fondi: " + e.getMessage());
                 }
-                
-            } catch (SQLException e) {
-                conn.rollback();
-                throw e;
-            } finally {
-                conn.setAutoCommit(true);
+                return false;
             }
+        }
+    }
+
+    private boolean eseguiTrasferimento(Connection conn, String sql, int acquirenteId, int venditoreId,
+                                        BigDecimal importo, String descrizione, Timestamp adesso) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setBigDecimal(1, importo);
+            stmt.setInt(2, acquirenteId);
+            stmt.setBigDecimal(3, importo);
+            stmt.setInt(4, venditoreId);
+            stmt.setBigDecimal(5, importo);
+            stmt.setBigDecimal(6, importo);
+            stmt.setString(7, Conto.TipoMovimento.ACQUISTO.name());
+            stmt.setString(8, descrizione);
+            stmt.setTimestamp(9, adesso);
+            stmt.setBigDecimal(10, importo);
+            stmt.setString(11, Conto.TipoMovimento.ACCREDITO.name());
+            stmt.setString(12, "Vendita: " + descrizione);
+            stmt.setTimestamp(13, adesso);
             
-        } catch (SQLException e) {
-            System.err.println("Errore durante il trasferimento fondi: " + e.getMessage());
-            return false;
+            try (ResultSet rs = stmt.executeQuery()) {
+                // conto_acquirente NULL = conto inesistente o saldo insufficiente: nulla è stato scritto
+                return rs.next() && rs.getObject("conto_acquirente") != null && rs.getObject("conto_venditore") != null;
+            }
         }
     }
 
     /**
-     * Ottiene lo storico movimenti di un conto come semplice record
+     * Verifica la correttezza dei trasferimenti sotto concorrenza e ne misura il throughput.
+     * Esegue numeroThread x trasferimentiPerThread trasferimenti reali tra due conti di prova,
+     * poi controlla che la variazione dei saldi corrisponda esattamente ai trasferimenti riusciti
+     * (nessun aggiornamento perso), che il saldo dell'acquirente non sia mai negativo
+     * e che entrambi i saldi siano riconciliati con il registro dei movimenti.
+     *
+     * @return report con esito della verifica e trasferimenti al secondo
      */
-    public List<Object[]> getStoricoMovimenti(int utenteId, int limit) {
-        List<Object[]> movimenti = new ArrayList<>();
-        String sql = "SELECT m.importo, m.tipo, m.descrizione, m.data_operazione " +
+    public String testConcorrenzaTrasferimenti(int acquirenteId, int venditoreId, BigDecimal importo,
+                                               int numeroThread, int trasferimentiPerThread) {
+        BigDecimal saldoAcquirentePrima = getSaldoCorrente(acquirenteId);
+        BigDecimal saldoVenditorePrima = getSaldoCorrente(venditoreId);
+        AtomicInteger riusciti = new AtomicInteger();
+        
+        Thread[] thread = new Thread[numeroThread];
+        long inizio = System.nanoTime();
+        for (int t = 0; t < numeroThread; t++) {
+            thread[t] = new Thread(() -> {
+                for (int i = 0; i < trasferimentiPerThread; i++) {
+                    if (trasferisciFondi(acquirenteId, venditoreId, importo, "Test concorrenza")) {
+                        riusciti.incrementAndGet();
+                    }
+                }
+            });
+            thread[t].start();
+        }
+        for (Thread th : thread) {
+            try {
+                th.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return "Test interrotto";
+            }
+        }
+        long durataNanos = System.nanoTime() - inizio;
+        
+        BigDecimal spostato = importo.multiply(BigDecimal.valueOf(riusciti.get()));
+        BigDecimal saldoAcquirenteDopo = getSaldoCorrente(acquirenteId);
+        BigDecimal saldoVenditoreDopo = getSaldoCorrente(venditoreId);
+        boolean coerente = saldoAcquirentePrima.subtract(spostato).compareTo(saldoAcquirenteDopo) == 0
+                && saldoVenditorePrima.add(spostato).compareTo(saldoVenditoreDopo) == 0
+                && saldoAcquirenteDopo.signum() >= 0
+                && verificaSaldo(acquirenteId) && verificaSaldo(venditoreId);
+        
+        return String.format(
+            "%s Trasferimenti: %d/%d riusciti su %d thread in %.1f ms (%.0f trasferimenti/s) - " +
+            "acquirente %s -> %s, venditore %s -> %s",
+            coerente ? "✅ Nessun aggiornamento perso." : "❌ SALDI INCOERENTI!",
+            riusciti.get(), numeroThread * trasferimentiPerThread, numeroThread,
+            durataNanos / 1_000_000.0, riusciti.get() * 1_000_000_000.0 / durataNanos,
+            saldoAcquirentePrima, saldoAcquirenteDopo, saldoVenditorePrima, saldoVenditoreDopo);
+    }
+
+    // ========== STORICO E RICONCILIAZIONE ==========
+
+    /**
+     * Prima pagina dello storico movimenti, dal più recente
+     */
+    public List<Conto.Movimento> getStoricoMovimenti(int utenteId, int limite) {
+        return getStoricoMovimenti(utenteId, Long.MAX_VALUE, limite);
+    }
+
+    /**
+     * Pagina dello storico movimenti con paginazione per chiave: restituisce al più {@code limite}
+     * movimenti con sequenza minore di {@code primaDiSequenza}, dal più recente.
+     * Per la pagina successiva si passa la sequenza dell'ultimo movimento ricevuto; il costo
+     * non cresce con la profondità della pagina come accadrebbe con OFFSET.
+     */
+    public List<Conto.Movimento> getStoricoMovimenti(int utenteId, long primaDiSequenza, int limite) {
+        List<Conto.Movimento> movimenti = new ArrayList<>();
+        String sql = "SELECT m.sequenza, m.importo, m.tipo, m.descrizione, m.data_operazione " +
                     "FROM " + MOVIMENTI_TABLE + " m " +
                     "JOIN " + TABLE_NAME + " c ON m.conto_id = c.id " +
-                    "WHERE c.utente_id = ? ORDER BY m.data_operazione DESC LIMIT ?";
+                    "WHERE c.utente_id = ? AND m.sequenza < ? ORDER BY m.sequenza DESC LIMIT ?";
         
         try (Connection conn = ConnessioneDB.getConnessione();
              PreparedStatement stmt = conn.prepareStatement(sql)) {
             
             stmt.setInt(1, utenteId);
-            stmt.setInt(2, limit);
+            stmt.setLong(2, primaDiSequenza);
+            stmt.setInt(3, limite);
             
             try (ResultSet rs = stmt.executeQuery()) {
                 while (rs.next()) {
-                    Object[] movimento = new Object[] {
+                    movimenti.add(new Conto.Movimento(
+                        rs.getLong("sequenza"),
                         rs.getBigDecimal("importo"),
-                        rs.getString("tipo"),
+                        Conto.TipoMovimento.valueOf(rs.getString("tipo")),
                         rs.getString("descrizione"),
-                        rs.getTimestamp("data_operazione").toLocalDateTime()
-                    };
-                    movimenti.add(movimento);
+                        rs.getTimestamp("data_operazione").toLocalDateTime()));
                 }
             }
-        } catch (SQLException e) {
+        } catch (SQLException | IllegalArgumentException e) {
             System.err.println("Errore nel recupero storico movimenti: " + e.getMessage());
         }
         return movimenti;
     }
 
+    /**
+     * Verifica che il saldo del conto corrisponda al registro: ultimo snapshot più la somma
+     * con segno dei movimenti successivi (al più {@value #INTERVALLO_SNAPSHOT}), e che le sequenze
+     * successive allo snapshot siano complete
+     *
+     * @return true se saldo e registro concordano (o se l'utente non ha un conto)
+     */
+    public boolean verificaSaldo(int utenteId) {
+        String sql = "SELECT c.saldo, c.ultima_sequenza, " +
+                     "       COALESCE(s.saldo, 0) + COALESCE(sum(" + IMPORTO_CON_SEGNO + "), 0) AS saldo_registro, " +
+                     "       COALESCE(s.sequenza, 0) AS sequenza_snapshot, count(m.id) AS movimenti " +
+                     "FROM " + TABLE_NAME + " c " +
+                     "LEFT JOIN LATERAL (SELECT sequenza, saldo FROM " + SNAPSHOT_TABLE + " " +
+                     "  WHERE conto_id = c.id ORDER BY sequenza DESC LIMIT 1) s ON true " +
+                     "LEFT JOIN " + MOVIMENTI_TABLE + " m ON m.conto_id = c.id AND m.sequenza > COALESCE(s.sequenza, 0) " +
+                     "WHERE c.utente_id = ? " +
+                     "GROUP BY c.id, c.saldo, c.ultima_sequenza, s.sequenza, s.saldo";
+        
+        try (Connection conn = ConnessioneDB.getConnessione();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            
+            stmt.setInt(1, utenteId);
+            
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) {
+                    return true;
+                }
+                boolean saldoCoerente = rs.getBigDecimal("saldo").compareTo(rs.getBigDecimal("saldo_registro")) == 0;
+                boolean sequenzeComplete =
+                    rs.getLong("ultima_sequenza") - rs.getLong("sequenza_snapshot") == rs.getLong("movimenti");
+                if (!saldoCoerente || !sequenzeComplete) {
+                    System.err.println("⚠️ Saldo non riconciliato per utente " + utenteId +
+                        ": saldo " + rs.getBigDecimal("saldo") + ", registro " + rs.getBigDecimal("saldo_registro"));
+                }
+                return saldoCoerente && sequenzeComplete;
+            }
+        } catch (SQLException e) {
+            System.err.println("Errore nella verifica del saldo: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Riconcilia tutti i conti in una sola query insiemistica
+     *
+     * @return id degli utenti il cui saldo non corrisponde al registro (vuota se tutto è coerente)
+     */
+    public List<Integer> riconciliaConti() {
+        List<Integer> incoerenti = new ArrayList<>();
+        String sql = "WITH ultimo AS (" +
+                     "  SELECT DISTINCT ON (conto_id) conto_id, sequenza, saldo FROM " + SNAPSHOT_TABLE +
+                     "  ORDER BY conto_id, sequenza DESC" +
+                     "), registro AS (" +
+                     "  SELECT c.id, COALESCE(u.saldo, 0) + COALESCE(sum(" + IMPORTO_CON_SEGNO + "), 0) AS saldo, " +
+                     "         COALESCE(u.sequenza, 0) + count(m.id) AS sequenza " +
+                     "  FROM " + TABLE_NAME + " c " +
+                     "  LEFT JOIN ultimo u ON u.conto_id = c.id " +
+                     "  LEFT JOIN " + MOVIMENTI_TABLE + " m ON m.conto_id = c.id AND m.sequenza > COALESCE(u.sequenza, 0) " +
+                     "  GROUP BY c.id, u.saldo, u.sequenza" +
+                     ") SELECT c.utente_id FROM " + TABLE_NAME + " c JOIN registro r ON r.id = c.id " +
+                     "WHERE c.saldo <> r.saldo OR c.ultima_sequenza <> r.sequenza ORDER BY c.utente_id";
+        
+        try (Connection conn = ConnessioneDB.getConnessione();
+             PreparedStatement stmt = conn.prepareStatement(sql);
+             ResultSet rs = stmt.executeQuery()) {
+            
+            while (rs.next()) {
+                incoerenti.add(rs.getInt("utente_id"));
+            }
+        } catch (SQLException e) {
+            System.err.println("Errore nella riconciliazione dei conti: " + e.getMessage());
+        }
+        return incoerenti;
+    }
+
     /**
      * Ottiene il saldo corrente di un utente
      */
@@ -0,0 +1,123 @@
+package application.DB;
+
+import application.Classe.Annuncio;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Calcola le differenze del catalogo rispetto all'ultima esecuzione di un trigger
+ *
+ * <p>Per ogni annuncio conserva un'impronta dei campi che i trigger controllano (titolo, prezzo,
+ * stato, categoria, evidenza, scadenza...). A ogni chiamata restituisce solo gli annunci aggiunti, modificati
+ * o rimossi, così un trigger può aggiornare il proprio stato persistente invece di riesaminare
+ * tutto il catalogo a ogni tasto premuto nella ricerca. Dopo {@link #resetta()} la chiamata
+ * successiva considera nuovi tutti gli annunci (riesame completo).</p>
+ *
+ * <p>Non è thread-safe: ogni trigger usa la propria istanza dal thread che lo esegue.</p>
+ */
+public final class DeltaCatalogo {
+
+    /**
+     * Differenze tra due esecuzioni
+     */
+    public static final class Delta {
+        private final List<Annuncio> aggiunti;
+        private final List<Annuncio> modificati;
+        private final List<Integer> rimossi;
+
+        Delta(List<Annuncio> aggiunti, List<Annuncio> modificati, List<Integer> rimossi) {
+            this.aggiunti = Collections.unmodifiableList(aggiunti);
+            this.modificati = Collections.unmodifiableList(modificati);
+            this.rimossi = Collections.unmodifiableList(rimossi);
+        }
+
+        public List<Annuncio> getAggiunti() {
+            return aggiunti;
+        }
+
+        public List<Annuncio> getModificati() {
+            return modificati;
+        }
+
+        /** Id degli annunci non più presenti nel catalogo */
+        public List<Integer> getRimossi() {
+            return rimossi;
+        }
+
+        public boolean isVuoto() {
+            return aggiunti.isEmpty() && modificati.isEmpty() && rimossi.isEmpty();
+        }
+    }
+
+    private Map<Integer, Integer> impronte = new HashMap<>();
+
+    /**
+     * Confronta il catalogo con quello visto alla chiamata precedente.
+     * Gli annunci null o senza id (non ancora salvati) vengono ignorati.
+     */
+    public Delta calcola(Collection<Annuncio> catalogo) {
+        Map<Integer, Integer> nuove = new HashMap<>(Math.max(16, catalogo.size() * 4 / 3 + 1));
+        List<Annuncio> aggiunti = new ArrayList<>();
+        List<Annuncio> modificati = new ArrayList<>();
+
+        for (Annuncio annuncio : catalogo) {
+            if (annuncio == null || annuncio.getId() <= 0) {
+                continue;
+            }
+            int impronta = impronta(annuncio);
+            if (nuove.put(annuncio.getId(), impronta) != null) {
+                continue;
+            }
+            Integer precedente = impronte.remove(annuncio.getId());
+            if (precedente == null) {
+                aggiunti.add(annuncio);
+            } else if (precedente != impronta) {
+                modificati.add(annuncio);
+            }
+        }
+
+        // Le impronte rimaste sono di annunci spariti dal catalogo
+        List<Integer> rimossi = new ArrayList<>(impronte.keySet());
+        impronte = nuove;
+        return new Delta(aggiunti, modificati, rimossi);
+    }
+
+    /**
+     * Dimentica il catalogo visto: la prossima chiamata restituisce tutto come aggiunto
+     */
+    public void resetta() {
+        impronte = new HashMap<>();
+    }
+
+    /**
+     * Numero di annunci nel catalogo visto all'ultima chiamata
+     */
+    public int getDimensione() {
+        return impronte.size();
+    }
+
+    /**
+     * Impronta dei campi rilevanti per i trigger; la scadenza è inclusa perché cambia col tempo
+     * anche senza modifiche all'annuncio
+     */
+    private static int impronta(Annuncio annuncio) {
+        return Objects.hash(
+            annuncio.getTitolo(),
+            annuncio.getPrezzo(),
+            annuncio.getStato(),
+            annuncio.isInEvidenza(),
+            annuncio.getTipologia(),
+            annuncio.getOggetto() != null ? annuncio.getOggetto().getCategoria() : null,
+            annuncio.getOggetto() != null ? annuncio.getOggetto().getNome() : null,
+            annuncio.getModalitaConsegna(),
+            annuncio.getVenditoreId(),
+            annuncio.getDataPubblicazione(),
+            annuncio.getDataPubblicazione() != null && annuncio.isScaduto(),
+            annuncio.hasImmagine());
+    }
+}
@@ -5,29 +5,137 @@ import application.Enum.Categoria;
 import application.Enum.Tipologia;
 
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Collections;
 import java.util.List;
-import java.util.function.Predicate;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 /**
  * Gestisce il filtraggio degli annunci con sistema a trigger per estendibilità
+ * 
+ * <p><b>Pipeline dei trigger:</b>
+ * <ul>
+ *   <li>il registro è uno snapshot immutabile sostituito a ogni registrazione (copy-on-write):
+ *       un filtraggio in corso vede sempre lo stesso insieme di trigger</li>
+ *   <li>i trigger {@link TipoTrigger#MUTANTE} (che modificano liste o annunci) girano in modo sincrono
+ *       prima e dopo il filtraggio, come in precedenza</li>
+ *   <li>i trigger {@link TipoTrigger#OSSERVATORE} girano su un thread in background con copie immutabili
+ *       delle liste: non aggiungono latenza alla ricerca; se la coda è piena l'osservazione viene scartata</li>
+ *   <li>tempo di esecuzione misurato per ogni trigger</li>
+ * </ul>
+ * </p>
  */
 public class FilterManager {
     
+    /**
+     * Ruolo di un trigger nella pipeline
+     */
+    public enum TipoTrigger {
+        /** Modifica la lista o gli annunci: eseguito in modo sincrono durante il filtraggio */
+        MUTANTE,
+        /** Legge soltanto (log, statistiche, cache proprie): eseguito in background su liste immutabili */
+        OSSERVATORE
+    }
+    
     public interface FilterTrigger {
         void beforeFilter(List<Annuncio> annunci);
         void afterFilter(List<Annuncio> annunciFiltrati);
+        
+        /**
+         * Variante con la durata del filtraggio, usata per gli osservatori che la eseguono in differita
+         */
+        default void afterFilter(List<Annuncio> annunciFiltrati, long durataFiltroNanos) {
+            afterFilter(annunciFiltrati);
+        }
+        
+        /**
+         * I trigger che non dichiarano il proprio tipo sono trattati come mutanti (esecuzione sincrona)
+         */
+        default TipoTrigger getTipo() {
+            return TipoTrigger.MUTANTE;
+        }
+        
+        /**
+         * Scarta lo stato accumulato tra un'esecuzione e l'altra: alla prossima esecuzione
+         * il trigger riesamina tutto il catalogo
+         */
+        default void resetta() {
+        }
     }
     
-    private static final List<FilterTrigger> triggers = new ArrayList<>();
+    /**
+     * Snapshot immutabile dei trigger registrati, già separati per tipo
+     */
+    private static final class Registro {
+        final List<FilterTrigger> tutti;
+        final List<FilterTrigger> mutanti;
+        final List<FilterTrigger> osservatori;
+        
+        Registro(List<FilterTrigger> tutti) {
+            this.tutti = List.copyOf(tutti);
+            this.mutanti = tutti.stream().filter(t -> t.getTipo() == TipoTrigger.MUTANTE).collect(Collectors.toUnmodifiableList());
+            this.osservatori = tutti.stream().filter(t -> t.getTipo() == TipoTrigger.OSSERVATORE).collect(Collectors.toUnmodifiableList());
+        }
+    }
     
-    public static void registraTrigger(FilterTrigger trigger) {
-        triggers.add(trigger);
+    /**
+     * Tempi di esecuzione cumulativi di un trigger
+     */
+    private static final class TempiTrigger {
+        final AtomicLong esecuzioni = new AtomicLong();
+        final AtomicLong nanosTotali = new AtomicLong();
+        final AtomicLong nanosMassimi = new AtomicLong();
+        
+        void registra(long nanos) {
+            esecuzioni.incrementAndGet();
+            nanosTotali.addAndGet(nanos);
+            nanosMassimi.accumulateAndGet(nanos, Math::max);
+        }
     }
     
-    public static void rimuoviTrigger(FilterTrigger trigger) {
-        triggers.remove(trigger);
+    private static final int CAPACITA_CODA_OSSERVATORI = 64;
+    
+    private static volatile Registro registro = new Registro(List.of());
+    
+    private static final Map<String, TempiTrigger> TEMPI = new ConcurrentHashMap<>();
+    private static final AtomicLong OSSERVAZIONI_SCARTATE = new AtomicLong();
+    
+    /** Un solo thread: gli osservatori con stato tra before e after non vengono mai eseguiti in parallelo */
+    private static final ThreadPoolExecutor ESECUTORE_OSSERVATORI = new ThreadPoolExecutor(
+        1, 1, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(CAPACITA_CODA_OSSERVATORI),
+        r -> {
+            Thread t = new Thread(r, "filtri-osservatori");
+            t.setDaemon(true);
+            return t;
+        },
+        (lavoro, esecutore) -> OSSERVAZIONI_SCARTATE.incrementAndGet());
+    
+    public static synchronized void registraTrigger(FilterTrigger trigger) {
+        List<FilterTrigger> nuovi = new ArrayList<>(registro.tutti);
+        nuovi.add(trigger);
+        registro = new Registro(nuovi);
+    }
+    
+    public static synchronized void rimuoviTrigger(FilterTrigger trigger) {
+        List<FilterTrigger> nuovi = new ArrayList<>(registro.tutti);
+        if (nuovi.remove(trigger)) {
+            registro = new Registro(nuovi);
+        }
+    }
+    
+    /**
+     * Chiede a tutti i trigger registrati di riesaminare da zero il catalogo alla prossima esecuzione
+     */
+    public static void resettaTrigger() {
+        for (FilterTrigger trigger : registro.tutti) {
+            trigger.resetta();
+        }
     }
     
     /**
@@ -38,32 +146,158 @@ public class FilterManager {
                                               Tipologia tipologia, 
                                               String queryRicerca, 
                                               String ordinamento) {
+        return applicaFiltriConConteggi(annunci, categoria, tipologia, queryRicerca, ordinamento).getAnnunci();
+    }
+    
+    /**
+     * Applica i filtri e restituisce, dallo stesso passaggio, anche i conteggi per categoria e tipologia
+     * (evita una seconda scansione per mostrare il numero di risultati)
+     */
+    public static MotoreFiltri.Risultato applicaFiltriConConteggi(List<Annuncio> annunci, 
+                                                                 Categoria categoria, 
+                                                                 Tipologia tipologia, 
+                                                                 String queryRicerca, 
+                                                                 String ordinamento) {
+        return applicaFiltriConConteggi(annunci, null, categoria, tipologia, queryRicerca, ordinamento,
+                                        Integer.MAX_VALUE);
+    }
+    
+    /**
+     * Come {@link #applicaFiltriConConteggi(List, Categoria, Tipologia, String, String)}, ma senza ricerca
+     * testuale categoria e tipologia vengono risolte con l'indice a bitmap invece di scandire gli annunci.
+     * Con l'indice i risultati sono anche memorizzati: gli stessi filtri sulla stessa versione del catalogo
+     * vengono ricostruiti dagli id senza valutare filtri né eseguire i trigger (il catalogo non è cambiato
+     * dall'ultima esecuzione, che li ha già applicati). Se il testo cercato non compare in nessun annuncio,
+     * con l'indice si ottengono gli annunci più simili ({@link MotoreFiltri.Risultato#isApprossimato()}).
+     * 
+     * @param indice indice sincronizzato con {@code annunci}, o null per usare sempre la scansione
+     * @param limite numero massimo di annunci ordinati da restituire (una pagina); il totale li conta tutti
+     */
+    public static MotoreFiltri.Risultato applicaFiltriConConteggi(List<Annuncio> annunci, 
+                                                                 IndiceAttributi indice,
+                                                                 Categoria categoria, 
+                                                                 Tipologia tipologia, 
+                                                                 String queryRicerca, 
+                                                                 String ordinamento,
+                                                                 int limite) {
         
-        eseguiTriggerBefore(annunci);
+        OrdinatoreAnnunci.Ordinamento ordine = OrdinatoreAnnunci.Ordinamento.daCodice(ordinamento);
+        if (indice != null) {
+            MotoreFiltri.Risultato inCache = indice.risultatoInCache(categoria, tipologia, queryRicerca, ordine, limite);
+            if (inCache != null) {
+                return inCache;
+            }
+        }
         
-        List<Annuncio> annunciFiltrati = annunci.stream()
-                .filter(filtroPerCategoria(categoria))
-                .filter(filtroPerTipologia(tipologia))
-                .filter(filtroPerRicerca(queryRicerca))
-                .sorted(creaComparatore(ordinamento))
-                .collect(Collectors.toList());
+        Registro trigger = registro;
+        long inizio = System.nanoTime();
+        int dimensioneIniziale = annunci.size();
+        
+        eseguiTriggerBefore(trigger.mutanti, annunci);
+        
+        // I trigger mutanti possono scartare annunci: l'indice va riallineato solo in quel caso
+        if (indice != null && annunci.size() != dimensioneIniziale) {
+            indice.sincronizza(annunci);
+        }
+        long versioneCatalogo = indice != null ? indice.getVersione() : 0;
+        
+        MotoreFiltri.Risultato risultato;
+        if (indice != null && (queryRicerca == null || queryRicerca.isBlank())) {
+            risultato = indice.filtra(categoria, tipologia, ordine, limite);
+        } else {
+            risultato = MotoreFiltri.filtra(annunci,
+                    new MotoreFiltri.Criteri(categoria, tipologia, queryRicerca),
+                    ordine, limite);
+            // Nessun annuncio contiene il testo: probabile errore di battitura, si propongono i più simili
+            if (indice != null && risultato.getTotale() == 0
+                    && MotoreFiltri.conta(annunci, new MotoreFiltri.Criteri(null, null, queryRicerca)) == 0) {
+                risultato = indice.cercaSimili(categoria, tipologia, queryRicerca, limite);
+            }
+        }
+        List<Annuncio> annunciFiltrati = risultato.getAnnunci();
+        
+        eseguiTriggerAfter(trigger.mutanti, annunciFiltrati);
+        
+        if (indice != null) {
+            indice.memorizzaRisultato(versioneCatalogo, categoria, tipologia, queryRicerca, ordine, risultato);
+        }
         
-        eseguiTriggerAfter(annunciFiltrati);
+        if (!trigger.osservatori.isEmpty()) {
+            notificaOsservatori(trigger.osservatori,
+                                Collections.unmodifiableList(new ArrayList<>(annunci)),
+                                Collections.unmodifiableList(new ArrayList<>(annunciFiltrati)),
+                                System.nanoTime() - inizio);
+        }
         
-        return annunciFiltrati;
+        return risultato;
+    }
+    
+    private static void eseguiTriggerBefore(List<FilterTrigger> mutanti, List<Annuncio> annunci) {
+        for (FilterTrigger trigger : mutanti) {
+            long inizio = System.nanoTime();
+            trigger.beforeFilter(annunci);
+            registraTempo(trigger, System.nanoTime() - inizio);
+        }
+    }
+    
+    private static void eseguiTriggerAfter(List<FilterTrigger> mutanti, List<Annuncio> annunciFiltrati) {
+        for (FilterTrigger trigger : mutanti) {
+            long inizio = System.nanoTime();
+            trigger.afterFilter(annunciFiltrati);
+            registraTempo(trigger, System.nanoTime() - inizio);
+        }
+    }
+    
+    /**
+     * Accoda before e after di tutti gli osservatori in un unico lavoro in background.
+     * Un osservatore che lancia un'eccezione non interrompe gli altri.
+     */
+    private static void notificaOsservatori(List<FilterTrigger> osservatori, List<Annuncio> vistaIniziale,
+                                            List<Annuncio> vistaFiltrata, long durataFiltroNanos) {
+        ESECUTORE_OSSERVATORI.execute(() -> {
+            for (FilterTrigger trigger : osservatori) {
+                long inizio = System.nanoTime();
+                try {
+                    trigger.beforeFilter(vistaIniziale);
+                    trigger.afterFilter(vistaFiltrata, durataFiltroNanos);
+                } catch (RuntimeException e) {
+                    System.err.println("⚠️ Errore nel trigger " + trigger.getClass().getSimpleName() + ": " + e);
+                }
+                registraTempo(trigger, System.nanoTime() - inizio);
+            }
+        });
     }
     
-    private static void eseguiTriggerBefore(List<Annuncio> annunci) {
-        triggers.forEach(trigger -> trigger.beforeFilter(annunci));
+    private static void registraTempo(FilterTrigger trigger, long nanos) {
+        TEMPI.computeIfAbsent(trigger.getClass().getSimpleName(), k -> new TempiTrigger()).registra(nanos);
     }
     
-    private static void eseguiTriggerAfter(List<Annuncio> annunciFiltrati) {
-        triggers.forEach(trigger -> trigger.afterFilter(annunciFiltrati));
+    /**
+     * Report dei tempi per trigger (medio e massimo) e delle osservazioni scartate
+     */
+    public static String getReportTrigger() {
+        StringBuilder report = new StringBuilder("⚙️ Trigger filtri - Osservazioni scartate: ")
+            .append(OSSERVAZIONI_SCARTATE.get());
+        Registro trigger = registro;
+        for (FilterTrigger t : trigger.tutti) {
+            TempiTrigger tempi = TEMPI.get(t.getClass().getSimpleName());
+            long esecuzioni = tempi != null ? tempi.esecuzioni.get() : 0;
+            report.append(String.format("%n  %-26s %-11s esecuzioni: %d, medio: %.3f ms, max: %.3f ms",
+                t.getClass().getSimpleName(), t.getTipo(), esecuzioni,
+                esecuzioni > 0 ? tempi.nanosTotali.get() / 1_000_000.0 / esecuzioni : 0.0,
+                tempi != null ? tempi.nanosMassimi.get() / 1_000_000.0 : 0.0));
+        }
+        return report.toString();
     }
     
     // ========== TRIGGER PREDEFINITI ==========
     
     public static class LoggingTrigger implements FilterTrigger {
+        @Override
+        public TipoTrigger getTipo() {
+            return TipoTrigger.OSSERVATORE;
+        }
+        
         @Override
         public void beforeFilter(List<Annuncio> annunci) {
             System.out.println("[TRIGGER] Inizio filtraggio su " + annunci.size() + " annunci");
@@ -89,6 +323,11 @@ public class FilterManager {
     }
     
     public static class StatisticheTrigger implements FilterTrigger {
+        @Override
+        public TipoTrigger getTipo() {
+            return TipoTrigger.OSSERVATORE;
+        }
+        
         @Override
         public void beforeFilter(List<Annuncio> annunci) {
             // Nessuna azione prima del filtraggio
@@ -133,61 +372,6 @@ public class FilterManager {
     
     // ========== METODI DI FILTRAGGIO OTTIMIZZATI ==========
     
-    private static Predicate<Annuncio> filtroPerCategoria(Categoria categoria) {
-        return annuncio -> categoria == null || 
-               (annuncio.getOggetto() != null && annuncio.getOggetto().getCategoria() == categoria);
-    }
-    
-    private static Predicate<Annuncio> filtroPerTipologia(Tipologia tipologia) {
-        return annuncio -> tipologia == null || annuncio.getTipologia() == tipologia;
-    }
-    
-    private static Predicate<Annuncio> filtroPerRicerca(String queryRicerca) {
-        if (queryRicerca == null || queryRicerca.isBlank()) {
-            return annuncio -> true;
-        }
-        
-        final String searchLower = queryRicerca.toLowerCase();
-        return annuncio -> {
-            boolean titoloMatch = annuncio.getTitolo() != null && 
-                                annuncio.getTitolo().toLowerCase().contains(searchLower);
-            
-            if (titoloMatch) return true;
-            
-            if (annuncio.getOggetto() != null) {
-                boolean descrizioneMatch = annuncio.getOggetto().getDescrizione() != null &&
-                                         annuncio.getOggetto().getDescrizione().toLowerCase().contains(searchLower);
-                boolean nomeMatch = annuncio.getOggetto().getNome() != null &&
-                                  annuncio.getOggetto().getNome().toLowerCase().contains(searchLower);
-                
-                return descrizioneMatch || nomeMatch;
-            }
-            
-            return false;
-        };
-    }
-    
-    private static Comparator<Annuncio> creaComparatore(String ordinamento) {
-        if (ordinamento == null) {
-            ordinamento = "recent";
-        }
-        
-        switch (ordinamento) {
-            case "price_asc": 
-                return Comparator.comparingDouble(Annuncio::getPrezzo);
-            case "price_desc": 
-                return Comparator.comparingDouble(Annuncio::getPrezzo).reversed();
-            case "recent":
-            default: 
-                return (a, b) -> {
-                    if (a.getDataPubblicazione() == null && b.getDataPubblicazione() == null) return 0;
-                    if (a.getDataPubblicazione() == null) return 1;
-                    if (b.getDataPubblicazione() == null) return -1;
-                    return b.getDataPubblicazione().compareTo(a.getDataPubblicazione());
-                };
-        }
-    }
-    
     /**
      * Conta gli annunci che corrispondono ai filtri senza applicarli
      */
@@ -196,11 +380,7 @@ public class FilterManager {
                                           Tipologia tipologia, 
                                           String queryRicerca) {
         
-        return annunci.stream()
-                .filter(filtroPerCategoria(categoria))
-                .filter(filtroPerTipologia(tipologia))
-                .filter(filtroPerRicerca(queryRicerca))
-                .count();
+        return MotoreFiltri.conta(annunci, new MotoreFiltri.Criteri(categoria, tipologia, queryRicerca));
     }
     
     /**
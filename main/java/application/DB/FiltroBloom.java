@@ -0,0 +1,126 @@
+package application.DB;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Filtro di Bloom thread-safe su stringhe
+ *
+ * <p>Risponde "sicuramente assente" senza falsi negativi e "forse presente" con una probabilità
+ * di falso positivo scelta alla costruzione. Serve a evitare query di esistenza il cui esito
+ * è quasi sempre negativo (email e matricole durante la registrazione).
+ * <ul>
+ *   <li>bit in un {@link AtomicLongArray}: aggiunte e letture concorrenti senza lock</li>
+ *   <li>un solo hash a 64 bit per elemento, da cui si derivano le k posizioni con il
+ *       doppio hashing di Kirsch-Mitzenmacher</li>
+ *   <li>dimensione e numero di funzioni hash calcolati da elementi attesi e probabilità desiderata</li>
+ * </ul>
+ * </p>
+ */
+public final class FiltroBloom {
+    private final AtomicLongArray bit;
+    private final long numeroBit;
+    private final int numeroHash;
+    private final AtomicLong elementiAggiunti = new AtomicLong();
+
+    /**
+     * @param elementiAttesi numero di elementi previsto (oltre il quale i falsi positivi aumentano)
+     * @param probabilitaFalsiPositivi probabilità di falso positivo desiderata, tra 0 e 1 esclusi
+     */
+    public FiltroBloom(int elementiAttesi, double probabilitaFalsiPositivi) {
+        if (elementiAttesi <= 0 || probabilitaFalsiPositivi <= 0 || probabilitaFalsiPositivi >= 1) {
+            throw new IllegalArgumentException("Parametri del filtro di Bloom non validi");
+        }
+        double ln2 = Math.log(2);
+        long m = (long) Math.ceil(-elementiAttesi * Math.log(probabilitaFalsiPositivi) / (ln2 * ln2));
+        int parole = (int) Math.max(1, (m + 63) / 64);
+        this.bit = new AtomicLongArray(parole);
+        this.numeroBit = (long) parole * 64;
+        this.numeroHash = Math.max(1, (int) Math.round((double) numeroBit / elementiAttesi * ln2));
+    }
+
+    // ========== API PRINCIPALE ==========
+
+    /**
+     * Aggiunge un elemento al filtro
+     */
+    public void aggiungi(String valore) {
+        long hash = hash64(valore);
+        long h1 = hash;
+        long h2 = mescola(hash ^ 0x9E3779B97F4A7C15L) | 1L;
+        for (int i = 0; i < numeroHash; i++) {
+            impostaBit(Math.floorMod(h1 + i * h2, numeroBit));
+        }
+        elementiAggiunti.incrementAndGet();
+    }
+
+    /**
+     * @return false se l'elemento non è sicuramente mai stato aggiunto, true se potrebbe esserlo
+     */
+    public boolean potrebbeContenere(String valore) {
+        long hash = hash64(valore);
+        long h1 = hash;
+        long h2 = mescola(hash ^ 0x9E3779B97F4A7C15L) | 1L;
+        for (int i = 0; i < numeroHash; i++) {
+            long posizione = Math.floorMod(h1 + i * h2, numeroBit);
+            if ((bit.get((int) (posizione >>> 6)) & (1L << posizione)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void impostaBit(long posizione) {
+        int parola = (int) (posizione >>> 6);
+        long maschera = 1L << posizione;
+        while (true) {
+            long attuale = bit.get(parola);
+            if ((attuale & maschera) != 0 || bit.compareAndSet(parola, attuale, attuale | maschera)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * FNV-1a a 64 bit sui caratteri, seguito dal mescolamento finale di MurmurHash3
+     */
+    private static long hash64(String valore) {
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < valore.length(); i++) {
+            h ^= valore.charAt(i);
+            h *= 0x100000001B3L;
+        }
+        return mescola(h);
+    }
+
+    private static long mescola(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    // ========== METRICHE ==========
+
+    public long getElementiAggiunti() {
+        return elementiAggiunti.get();
+    }
+
+    public long getNumeroBit() {
+        return numeroBit;
+    }
+
+    public int getNumeroHash() {
+        return numeroHash;
+    }
+
+    /**
+     * Probabilità di falso positivo stimata con gli elementi aggiunti finora
+     */
+    public double getProbabilitaFalsiPositiviStimata() {
+        double n = elementiAggiunti.get();
+        return Math.pow(1 - Math.exp(-numeroHash * n / numeroBit), numeroHash);
+    }
+}
@@ -0,0 +1,474 @@
+package application.DB;
+
+import application.Classe.Annuncio;
+import application.Enum.Categoria;
+import application.Enum.ModalitaConsegna;
+import application.Enum.StatoAnnuncio;
+import application.Enum.Tipologia;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Indice a bitmap degli attributi enumerati degli annunci (categoria, tipologia, stato, modalità di consegna)
+ *
+ * <p>Ogni annuncio occupa una posizione; per ogni valore di ogni attributo c'è un bitmap con un bit
+ * per posizione. In questo modo:
+ * <ul>
+ *   <li>un filtro è un OR dei bitmap dei valori ammessi per attributo, e un AND tra attributi diversi:
+ *       operazioni su parole da 64 bit invece di una scansione degli oggetti</li>
+ *   <li>i conteggi per ogni voce dei menu (facet) sono popcount di un AND, senza una scansione per voce</li>
+ *   <li>l'indice si aggiorna per singolo annuncio; {@link #sincronizza} applica solo le differenze
+ *       calcolate da {@link DeltaCatalogo}</li>
+ *   <li>le posizioni liberate vengono riusate partendo dalla più bassa, così i bitmap restano densi:
+ *       con pochi valori per attributo un bitmap non compresso occupa n/8 byte ed è già la
+ *       rappresentazione più compatta</li>
+ *   <li>le chiavi di ordinamento di ogni posizione sono calcolate all'indicizzazione; per ogni ordinamento
+ *       la permutazione ordinata delle posizioni è conservata finché il catalogo non cambia, così una
+ *       pagina di risultati si ottiene scorrendola e fermandosi dopo K posizioni selezionate</li>
+ *   <li>ogni modifica incrementa la versione del catalogo, che marca i risultati memorizzati in
+ *       {@link CacheRisultatiFiltri}</li>
+ *   <li>i titoli sono indicizzati anche in un {@link IndiceTrigrammi}, aggiornato insieme ai bitmap, per
+ *       proporre gli annunci più simili quando il testo cercato non compare in nessun annuncio</li>
+ * </ul>
+ * Tutte le operazioni sono sincronizzate sull'istanza.
+ * </p>
+ */
+public final class IndiceAttributi {
+
+    private static final Categoria[] CATEGORIE = Categoria.values();
+    private static final Tipologia[] TIPOLOGIE = Tipologia.values();
+    private static final OrdinatoreAnnunci.Ordinamento[] ORDINAMENTI = OrdinatoreAnnunci.Ordinamento.values();
+    private static final int CAPACITA_CACHE_RISULTATI = 64;
+
+    private final Map<Categoria, BitSet> perCategoria = new EnumMap<>(Categoria.class);
+    private final Map<Tipologia, BitSet> perTipologia = new EnumMap<>(Tipologia.class);
+    private final Map<StatoAnnuncio, BitSet> perStato = new EnumMap<>(StatoAnnuncio.class);
+    private final Map<ModalitaConsegna, BitSet> perModalita = new EnumMap<>(ModalitaConsegna.class);
+
+    /** Posizioni occupate */
+    private final BitSet occupate = new BitSet();
+    private final List<Annuncio> posizioni = new ArrayList<>();
+    private final Map<Integer, Integer> posizionePerId = new HashMap<>();
+    private final DeltaCatalogo delta = new DeltaCatalogo();
+
+    /** Chiavi di ordinamento per posizione, una riga per ordinamento */
+    private final long[][] chiavi = new long[ORDINAMENTI.length][16];
+    /** Posizioni ordinate per ciascun ordinamento, ricalcolate solo dopo una modifica */
+    private final int[][] permutazioni = new int[ORDINAMENTI.length][];
+
+    /** Incrementata a ogni modifica del catalogo indicizzato */
+    private long versione = 0;
+    private final CacheRisultatiFiltri cacheRisultati = new CacheRisultatiFiltri(CAPACITA_CACHE_RISULTATI);
+    /** Anteprime della digitazione, separate: non sono passate dai trigger di {@link FilterManager} */
+    private final CacheRisultatiFiltri cacheAnteprime = new CacheRisultatiFiltri(CAPACITA_CACHE_RISULTATI);
+    private final IndiceTrigrammi trigrammi = new IndiceTrigrammi();
+
+    public IndiceAttributi() {
+        for (Categoria categoria : CATEGORIE) {
+            perCategoria.put(categoria, new BitSet());
+        }
+        for (Tipologia tipologia : TIPOLOGIE) {
+            perTipologia.put(tipologia, new BitSet());
+        }
+        for (StatoAnnuncio stato : StatoAnnuncio.values()) {
+            perStato.put(stato, new BitSet());
+        }
+        for (ModalitaConsegna modalita : ModalitaConsegna.values()) {
+            perModalita.put(modalita, new BitSet());
+        }
+    }
+
+    // ========== AGGIORNAMENTO ==========
+
+    /**
+     * Allinea l'indice al catalogo applicando solo gli annunci aggiunti, modificati o rimossi
+     * dall'ultima sincronizzazione. Gli annunci senza id vengono ignorati.
+     */
+    public synchronized void sincronizza(Collection<Annuncio> catalogo) {
+        DeltaCatalogo.Delta differenze = delta.calcola(catalogo);
+        for (Integer id : differenze.getRimossi()) {
+            rimuoviPosizione(id);
+        }
+        for (Annuncio annuncio : differenze.getAggiunti()) {
+            indicizza(annuncio);
+        }
+        for (Annuncio annuncio : differenze.getModificati()) {
+            indicizza(annuncio);
+        }
+
+        // Dopo un ricaricamento gli annunci invariati sono oggetti nuovi: l'indice deve restituire quelli
+        // del catalogo corrente, e i risultati in cache (che dipendono anche da campi fuori dall'impronta,
+        // come la descrizione) non sono più garantiti
+        boolean oggettiSostituiti = false;
+        for (Annuncio annuncio : catalogo) {
+            Integer posizione = annuncio != null ? posizionePerId.get(annuncio.getId()) : null;
+            if (posizione != null && posizioni.get(posizione) != annuncio) {
+                posizioni.set(posizione, annuncio);
+                oggettiSostituiti = true;
+            }
+        }
+        if (oggettiSostituiti) {
+            versione++;
+        }
+        trigrammi.sincronizza(catalogo);
+    }
+
+    /**
+     * Inserisce o reindicizza un singolo annuncio
+     */
+    public synchronized void aggiorna(Annuncio annuncio) {
+        if (annuncio != null && annuncio.getId() > 0) {
+            indicizza(annuncio);
+            trigrammi.aggiorna(annuncio);
+        }
+    }
+
+    /**
+     * Rimuove l'annuncio dall'indice, se presente
+     */
+    public synchronized void rimuovi(int annuncioId) {
+        rimuoviPosizione(annuncioId);
+        trigrammi.rimuovi(annuncioId);
+    }
+
+    public synchronized void svuota() {
+        clearTutti(perCategoria);
+        clearTutti(perTipologia);
+        clearTutti(perStato);
+        clearTutti(perModalita);
+        occupate.clear();
+        posizioni.clear();
+        posizionePerId.clear();
+        delta.resetta();
+        trigrammi.svuota();
+        cacheRisultati.svuota();
+        cacheAnteprime.svuota();
+        catalogoModificato();
+    }
+
+    private void indicizza(Annuncio annuncio) {
+        Integer posizione = posizionePerId.get(annuncio.getId());
+        if (posizione == null) {
+            posizione = occupate.nextClearBit(0);
+            posizionePerId.put(annuncio.getId(), posizione);
+            occupate.set(posizione);
+        } else {
+            cancellaBit(posizione);
+        }
+
+        if (posizione < posizioni.size()) {
+            posizioni.set(posizione, annuncio);
+        } else {
+            posizioni.add(annuncio);
+        }
+
+        if (annuncio.getOggetto() != null && annuncio.getOggetto().getCategoria() != null) {
+            perCategoria.get(annuncio.getOggetto().getCategoria()).set(posizione);
+        }
+        if (annuncio.getTipologia() != null) {
+            perTipologia.get(annuncio.getTipologia()).set(posizione);
+        }
+        perStato.get(StatoAnnuncio.parseStato(annuncio.getStato())).set(posizione);
+        perModalita.get(ModalitaConsegna.parseModalita(annuncio.getModalitaConsegna())).set(posizione);
+
+        for (OrdinatoreAnnunci.Ordinamento ordinamento : ORDINAMENTI) {
+            int riga = ordinamento.ordinal();
+            if (posizione >= chiavi[riga].length) {
+                chiavi[riga] = Arrays.copyOf(chiavi[riga], Math.max(posizione + 1, chiavi[riga].length * 2));
+            }
+            chiavi[riga][posizione] = OrdinatoreAnnunci.chiave(annuncio, ordinamento);
+        }
+        catalogoModificato();
+    }
+
+    private void rimuoviPosizione(int annuncioId) {
+        Integer posizione = posizionePerId.remove(annuncioId);
+        if (posizione == null) {
+            return;
+        }
+        cancellaBit(posizione);
+        occupate.clear(posizione);
+        posizioni.set(posizione, null);
+        catalogoModificato();
+    }
+
+    private void catalogoModificato() {
+        Arrays.fill(permutazioni, null);
+        versione++;
+    }
+
+    private void cancellaBit(int posizione) {
+        for (BitSet bitmap : perCategoria.values()) {
+            bitmap.clear(posizione);
+        }
+        for (BitSet bitmap : perTipologia.values()) {
+            bitmap.clear(posizione);
+        }
+        for (BitSet bitmap : perStato.values()) {
+            bitmap.clear(posizione);
+        }
+        for (BitSet bitmap : perModalita.values()) {
+            bitmap.clear(posizione);
+        }
+    }
+
+    private static void clearTutti(Map<?, BitSet> bitmap) {
+        bitmap.values().forEach(BitSet::clear);
+    }
+
+    // ========== INTERROGAZIONE ==========
+
+    /**
+     * Posizioni che soddisfano tutti i filtri; un insieme null o vuoto non filtra quell'attributo
+     */
+    public synchronized BitSet seleziona(Set<Categoria> categorie, Set<Tipologia> tipologie,
+                                         Set<StatoAnnuncio> stati, Set<ModalitaConsegna> modalita) {
+        BitSet risultato = (BitSet) occupate.clone();
+        intersecaUnione(risultato, perCategoria, categorie);
+        intersecaUnione(risultato, perTipologia, tipologie);
+        intersecaUnione(risultato, perStato, stati);
+        intersecaUnione(risultato, perModalita, modalita);
+        return risultato;
+    }
+
+    /**
+     * Numero di annunci che soddisfano tutti i filtri
+     */
+    public int conta(Set<Categoria> categorie, Set<Tipologia> tipologie,
+                     Set<StatoAnnuncio> stati, Set<ModalitaConsegna> modalita) {
+        return seleziona(categorie, tipologie, stati, modalita).cardinality();
+    }
+
+    /**
+     * Annunci nelle posizioni selezionate
+     */
+    public synchronized List<Annuncio> annunci(BitSet selezione) {
+        List<Annuncio> annunci = new ArrayList<>(selezione.cardinality());
+        for (int i = selezione.nextSetBit(0); i >= 0; i = selezione.nextSetBit(i + 1)) {
+            if (i < posizioni.size() && posizioni.get(i) != null) {
+                annunci.add(posizioni.get(i));
+            }
+        }
+        return annunci;
+    }
+
+    /**
+     * Filtra per categoria e tipologia (null = tutte) e calcola i conteggi per ogni voce dei menu:
+     * il conteggio di una categoria applica il filtro di tipologia e viceversa, come in {@link MotoreFiltri}
+     *
+     * @param ordinamento ordinamento dei risultati, o null per l'ordine dell'indice
+     * @param limite numero massimo di annunci da restituire (il totale li conta comunque tutti)
+     */
+    public synchronized MotoreFiltri.Risultato filtra(Categoria categoria, Tipologia tipologia,
+                                                      OrdinatoreAnnunci.Ordinamento ordinamento, int limite) {
+        BitSet conCategoria = (BitSet) occupate.clone();
+        if (categoria != null) {
+            conCategoria.and(perCategoria.get(categoria));
+        }
+        BitSet conTipologia = (BitSet) occupate.clone();
+        if (tipologia != null) {
+            conTipologia.and(perTipologia.get(tipologia));
+        }
+
+        int[] conteggiCategorie = new int[CATEGORIE.length];
+        for (Categoria c : CATEGORIE) {
+            conteggiCategorie[c.ordinal()] = cardinalitaIntersezione(perCategoria.get(c), conTipologia);
+        }
+        int[] conteggiTipologie = new int[TIPOLOGIE.length];
+        for (Tipologia t : TIPOLOGIE) {
+            conteggiTipologie[t.ordinal()] = cardinalitaIntersezione(perTipologia.get(t), conCategoria);
+        }
+
+        conCategoria.and(conTipologia);
+        int totale = conCategoria.cardinality();
+        List<Annuncio> trovati;
+        if (ordinamento == null) {
+            trovati = annunci(conCategoria);
+            if (trovati.size() > limite) {
+                trovati = new ArrayList<>(trovati.subList(0, Math.max(limite, 0)));
+            }
+        } else {
+            trovati = primiInOrdine(conCategoria, ordinamento, Math.min(limite, totale));
+        }
+        return new MotoreFiltri.Risultato(trovati, totale, conteggiCategorie, conteggiTipologie, false);
+    }
+
+    /**
+     * Scorre la permutazione dell'ordinamento e raccoglie le prime {@code limite} posizioni selezionate
+     */
+    private List<Annuncio> primiInOrdine(BitSet selezione, OrdinatoreAnnunci.Ordinamento ordinamento, int limite) {
+        int[] permutazione = permutazione(ordinamento);
+        List<Annuncio> trovati = new ArrayList<>(Math.max(limite, 0));
+        for (int i = 0; i < permutazione.length && trovati.size() < limite; i++) {
+            int posizione = permutazione[i];
+            if (selezione.get(posizione)) {
+                trovati.add(posizioni.get(posizione));
+            }
+        }
+        return trovati;
+    }
+
+    private int[] permutazione(OrdinatoreAnnunci.Ordinamento ordinamento) {
+        int riga = ordinamento.ordinal();
+        if (permutazioni[riga] == null) {
+            // Le posizioni libere restano nella permutazione ma non sono mai selezionate
+            permutazioni[riga] = OrdinatoreAnnunci.permutazione(Arrays.copyOf(chiavi[riga], posizioni.size()));
+        }
+        return permutazioni[riga];
+    }
+
+    // ========== RICERCA PER SOMIGLIANZA ==========
+
+    /**
+     * Annunci con il titolo più simile al testo cercato (tollerando errori di battitura), filtrati per
+     * categoria e tipologia e ordinati per somiglianza; da usare quando la ricerca per sottostringa
+     * non trova nulla
+     *
+     * @param limite numero massimo di annunci da restituire; i candidati sono comunque limitati
+     */
+    public synchronized MotoreFiltri.Risultato cercaSimili(Categoria categoria, Tipologia tipologia,
+                                                          String queryRicerca, int limite) {
+        List<Annuncio> simili = trigrammi.cerca(queryRicerca, IndiceTrigrammi.SOGLIA_PREDEFINITA,
+                                                IndiceTrigrammi.MASSIMO_CANDIDATI);
+        return MotoreFiltri.filtraSimili(simili, categoria, tipologia, limite);
+    }
+
+    // ========== CACHE DEI RISULTATI ==========
+
+    /**
+     * Versione corrente del catalogo; va letta prima di un filtraggio da memorizzare
+     */
+    public synchronized long getVersione() {
+        return versione;
+    }
+
+    /**
+     * Risultato già calcolato per gli stessi filtri nella versione corrente del catalogo,
+     * ricostruito dagli id senza valutare alcun filtro
+     *
+     * @return il risultato, o null se non è in cache
+     */
+    public synchronized MotoreFiltri.Risultato risultatoInCache(Categoria categoria, Tipologia tipologia,
+                                                                String queryRicerca,
+                                                                OrdinatoreAnnunci.Ordinamento ordinamento,
+                                                                int limite) {
+        return leggi(cacheRisultati, categoria, tipologia, queryRicerca, ordinamento, limite);
+    }
+
+    /**
+     * Come {@link #risultatoInCache}, ma tra le anteprime calcolate durante la digitazione
+     */
+    synchronized MotoreFiltri.Risultato anteprimaInCache(Categoria categoria, Tipologia tipologia, String queryRicerca,
+                                                         OrdinatoreAnnunci.Ordinamento ordinamento, int limite) {
+        return leggi(cacheAnteprime, categoria, tipologia, queryRicerca, ordinamento, limite);
+    }
+
+    private MotoreFiltri.Risultato leggi(CacheRisultatiFiltri cache, Categoria categoria, Tipologia tipologia,
+                                         String queryRicerca, OrdinatoreAnnunci.Ordinamento ordinamento, int limite) {
+        CacheRisultatiFiltri.Voce voce = cache.leggi(
+            new CacheRisultatiFiltri.Chiave(categoria, tipologia, queryRicerca, ordinamento), versione, limite);
+        if (voce == null) {
+            return null;
+        }
+        int quanti = Math.min(voce.id.length, Math.max(limite, 0));
+        List<Annuncio> annunci = new ArrayList<>(quanti);
+        for (int i = 0; i < quanti; i++) {
+            annunci.add(posizioni.get(posizionePerId.get(voce.id[i])));
+        }
+        return new MotoreFiltri.Risultato(annunci, voce.totale, voce.perCategoria, voce.perTipologia, false,
+                                          voce.approssimato);
+    }
+
+    /**
+     * Memorizza un risultato calcolato quando il catalogo era alla {@code versioneCalcolo};
+     * se nel frattempo è cambiato, la voce sarà scartata alla prima lettura
+     */
+    public synchronized void memorizzaRisultato(long versioneCalcolo, Categoria categoria, Tipologia tipologia,
+                                                String queryRicerca, OrdinatoreAnnunci.Ordinamento ordinamento,
+                                                MotoreFiltri.Risultato risultato) {
+        metti(cacheRisultati, versioneCalcolo, categoria, tipologia, queryRicerca, ordinamento, risultato);
+    }
+
+    /**
+     * Memorizza un'anteprima della digitazione, senza renderla visibile a {@link #risultatoInCache}:
+     * altrimenti {@link FilterManager} la considererebbe già filtrata e salterebbe i trigger
+     */
+    synchronized void memorizzaAnteprima(long versioneCalcolo, Categoria categoria, Tipologia tipologia,
+                                         String queryRicerca, OrdinatoreAnnunci.Ordinamento ordinamento,
+                                         MotoreFiltri.Risultato risultato) {
+        metti(cacheAnteprime, versioneCalcolo, categoria, tipologia, queryRicerca, ordinamento, risultato);
+    }
+
+    private void metti(CacheRisultatiFiltri cache, long versioneCalcolo, Categoria categoria, Tipologia tipologia,
+                       String queryRicerca, OrdinatoreAnnunci.Ordinamento ordinamento,
+                       MotoreFiltri.Risultato risultato) {
+        List<Annuncio> annunci = risultato.getAnnunci();
+        int[] id = new int[annunci.size()];
+        for (int i = 0; i < id.length; i++) {
+            id[i] = annunci.get(i).getId();
+            if (!posizionePerId.containsKey(id[i])) {
+                // Annuncio non indicizzato (senza id o non sincronizzato): il risultato non è ricostruibile
+                return;
+            }
+        }
+        int[] perCategoria = new int[CATEGORIE.length];
+        for (Categoria c : CATEGORIE) {
+            perCategoria[c.ordinal()] = risultato.getConteggiCategorie().get(c);
+        }
+        int[] perTipologia = new int[TIPOLOGIE.length];
+        for (Tipologia t : TIPOLOGIE) {
+            perTipologia[t.ordinal()] = risultato.getConteggiTipologie().get(t);
+        }
+        cache.metti(new CacheRisultatiFiltri.Chiave(categoria, tipologia, queryRicerca, ordinamento),
+            new CacheRisultatiFiltri.Voce(versioneCalcolo, id, risultato.getTotale(), perCategoria, perTipologia,
+                                          risultato.isApprossimato()));
+    }
+
+    private static <E extends Enum<E>> void intersecaUnione(BitSet risultato, Map<E, BitSet> bitmap, Set<E> valori) {
+        if (valori == null || valori.isEmpty()) {
+            return;
+        }
+        BitSet unione = new BitSet();
+        for (E valore : valori) {
+            unione.or(bitmap.get(valore));
+        }
+        risultato.and(unione);
+    }
+
+    private static int cardinalitaIntersezione(BitSet a, BitSet b) {
+        BitSet intersezione = (BitSet) a.clone();
+        intersezione.and(b);
+        return intersezione.cardinality();
+    }
+
+    // ========== METRICHE ==========
+
+    public synchronized int getDimensione() {
+        return posizionePerId.size();
+    }
+
+    /**
+     * Ottiene un report delle statistiche correnti
+     */
+    public synchronized String getReportStatistiche() {
+        long byteBitmap = 0;
+        for (Map<?, BitSet> dimensione : List.of(perCategoria, perTipologia, perStato, perModalita)) {
+            for (BitSet bitmap : dimensione.values()) {
+                byteBitmap += bitmap.size() / 8;
+            }
+        }
+        return String.format("🧮 Indice Attributi - Annunci: %d, Posizioni: %d, Memoria bitmap: %.1f KB, " +
+            "Versione catalogo: %d, %s%nAnteprime: %s%n%s",
+            posizionePerId.size(), posizioni.size(), byteBitmap / 1024.0, versione,
+            cacheRisultati.getReportStatistiche(), cacheAnteprime.getReportStatistiche(),
+            trigrammi.getReportStatistiche());
+    }
+}
@@ -0,0 +1,266 @@
+package application.DB;
+
+import application.Classe.Annuncio;
+import application.Enum.Categoria;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Suggerimenti di completamento per la ricerca, su un trie dei termini del catalogo
+ *
+ * <p>I termini sono i titoli degli annunci, i nomi degli oggetti, le singole parole dei titoli
+ * (per completare anche a metà titolo) e i nomi delle categorie. Il peso di un termine è il numero
+ * di annunci che lo contengono, quindi i primi suggerimenti portano ai risultati più numerosi.
+ * <ul>
+ *   <li>ogni nodo conserva i figli in array ordinati per carattere (ricerca binaria, niente mappe per nodo)</li>
+ *   <li>ogni nodo memorizza i migliori {@link #MASSIMO_SUGGERIMENTI} termini del proprio sottoalbero;
+ *       una modifica invalida solo i nodi sul percorso del termine, ricalcolati alla prima richiesta
+ *       combinando le liste già pronte dei figli</li>
+ *   <li>una richiesta costa O(lunghezza del prefisso) quando la lista del nodo è pronta: ben sotto il
+ *       tempo di un frame a ogni tasto</li>
+ *   <li>l'indice si aggiorna per annuncio; {@link #sincronizza} applica solo le differenze del catalogo</li>
+ * </ul>
+ * Tutte le operazioni sono sincronizzate sull'istanza.
+ * </p>
+ */
+public final class IndiceSuggerimenti {
+
+    /** Numero massimo di suggerimenti restituiti (e memorizzati per nodo) */
+    public static final int MASSIMO_SUGGERIMENTI = 8;
+
+    /** Lunghezza minima delle parole dei titoli indicizzate singolarmente */
+    private static final int LUNGHEZZA_MINIMA_PAROLA = 3;
+
+    private static final Nodo[] NESSUNO = new Nodo[0];
+
+    private static final Comparator<Nodo> PER_RILEVANZA = Comparator
+        .comparingInt((Nodo n) -> -n.peso)
+        .thenComparingInt(n -> n.chiave.length())
+        .thenComparing(n -> n.chiave);
+
+    private static final class Nodo {
+        char[] caratteri = new char[0];
+        Nodo[] figli = NESSUNO;
+
+        /** Valorizzati solo se il nodo termina un termine */
+        String chiave;
+        String testo;
+        int peso;
+
+        /** Migliori termini del sottoalbero; null se da ricalcolare */
+        Nodo[] migliori;
+
+        Nodo figlio(char c) {
+            int i = Arrays.binarySearch(caratteri, c);
+            return i >= 0 ? figli[i] : null;
+        }
+
+        Nodo figlioOCrea(char c) {
+            int i = Arrays.binarySearch(caratteri, c);
+            if (i >= 0) {
+                return figli[i];
+            }
+            int inserimento = -i - 1;
+            char[] nuoviCaratteri = new char[caratteri.length + 1];
+            Nodo[] nuoviFigli = new Nodo[figli.length + 1];
+            System.arraycopy(caratteri, 0, nuoviCaratteri, 0, inserimento);
+            System.arraycopy(figli, 0, nuoviFigli, 0, inserimento);
+            nuoviCaratteri[inserimento] = c;
+            Nodo nuovo = new Nodo();
+            nuoviFigli[inserimento] = nuovo;
+            System.arraycopy(caratteri, inserimento, nuoviCaratteri, inserimento + 1, caratteri.length - inserimento);
+            System.arraycopy(figli, inserimento, nuoviFigli, inserimento + 1, figli.length - inserimento);
+            caratteri = nuoviCaratteri;
+            figli = nuoviFigli;
+            return nuovo;
+        }
+    }
+
+    private final Nodo radice = new Nodo();
+    /** Termini con cui ogni annuncio è stato indicizzato, per poterlo rimuovere anche dopo una modifica */
+    private final Map<Integer, Set<String>> terminiPerAnnuncio = new HashMap<>();
+    private final DeltaCatalogo delta = new DeltaCatalogo();
+    private int terminiDistinti;
+
+    // ========== AGGIORNAMENTO ==========
+
+    /**
+     * Allinea l'indice al catalogo applicando solo gli annunci aggiunti, modificati o rimossi,
+     * e prepara i suggerimenti di ogni nodo
+     */
+    public synchronized void sincronizza(Collection<Annuncio> catalogo) {
+        DeltaCatalogo.Delta differenze = delta.calcola(catalogo);
+        for (Integer id : differenze.getRimossi()) {
+            rimuoviTermini(id);
+        }
+        for (Annuncio annuncio : differenze.getModificati()) {
+            rimuoviTermini(annuncio.getId());
+            aggiungiTermini(annuncio);
+        }
+        for (Annuncio annuncio : differenze.getAggiunti()) {
+            aggiungiTermini(annuncio);
+        }
+        // Ricalcola subito le liste invalidate: chi sincronizza è il thread di caricamento,
+        // così la prima richiesta dall'interfaccia non paga la visita dell'intero albero
+        migliori(radice);
+    }
+
+    /**
+     * Inserisce o reindicizza un singolo annuncio
+     */
+    public synchronized void aggiorna(Annuncio annuncio) {
+        if (annuncio != null && annuncio.getId() > 0) {
+            rimuoviTermini(annuncio.getId());
+            aggiungiTermini(annuncio);
+        }
+    }
+
+    /**
+     * Rimuove i termini dell'annuncio, se presente
+     */
+    public synchronized void rimuovi(int annuncioId) {
+        rimuoviTermini(annuncioId);
+    }
+
+    private void aggiungiTermini(Annuncio annuncio) {
+        Set<String> testi = new LinkedHashSet<>();
+        aggiungiFrase(testi, annuncio.getTitolo());
+        if (annuncio.getOggetto() != null) {
+            aggiungiFrase(testi, annuncio.getOggetto().getNome());
+            Categoria categoria = annuncio.getOggetto().getCategoria();
+            if (categoria != null) {
+                testi.add(categoria.getDisplayName());
+            }
+        }
+        if (annuncio.getTitolo() != null) {
+            for (String parola : annuncio.getTitolo().split("[^\\p{L}\\p{N}]+")) {
+                if (parola.length() >= LUNGHEZZA_MINIMA_PAROLA) {
+                    testi.add(parola.toLowerCase(Locale.ROOT));
+                }
+            }
+        }
+
+        // Un annuncio conta una volta per termine, anche se il termine compare più volte
+        Set<String> chiavi = new LinkedHashSet<>();
+        for (String testo : testi) {
+            String chiave = normalizza(testo);
+            if (!chiave.isEmpty() && chiavi.add(chiave)) {
+                modificaPeso(chiave, testo, 1);
+            }
+        }
+        terminiPerAnnuncio.put(annuncio.getId(), chiavi);
+    }
+
+    private void rimuoviTermini(int annuncioId) {
+        Set<String> chiavi = terminiPerAnnuncio.remove(annuncioId);
+        if (chiavi != null) {
+            for (String chiave : chiavi) {
+                modificaPeso(chiave, null, -1);
+            }
+        }
+    }
+
+    private static void aggiungiFrase(Set<String> testi, String frase) {
+        if (frase != null && !frase.isBlank()) {
+            testi.add(frase.trim().replaceAll("\\s+", " "));
+        }
+    }
+
+    /**
+     * Percorre (creando se serve) il ramo della chiave, aggiorna il peso del termine
+     * e invalida i migliori dei nodi attraversati
+     */
+    private void modificaPeso(String chiave, String testo, int variazione) {
+        Nodo nodo = radice;
+        nodo.migliori = null;
+        for (int i = 0; i < chiave.length(); i++) {
+            nodo = variazione > 0 ? nodo.figlioOCrea(chiave.charAt(i)) : nodo.figlio(chiave.charAt(i));
+            if (nodo == null) {
+                return;
+            }
+            nodo.migliori = null;
+        }
+        if (nodo.peso == 0 && variazione > 0) {
+            nodo.chiave = chiave;
+            nodo.testo = testo;
+            terminiDistinti++;
+        }
+        nodo.peso += variazione;
+        if (nodo.peso <= 0) {
+            nodo.peso = 0;
+            terminiDistinti--;
+        }
+    }
+
+    static String normalizza(String testo) {
+        return testo.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+
+    // ========== SUGGERIMENTI ==========
+
+    /**
+     * Completamenti del prefisso digitato, dal più frequente nel catalogo
+     *
+     * @param prefisso testo digitato (maiuscole e spazi ripetuti non contano)
+     * @param k numero massimo di suggerimenti, al più {@link #MASSIMO_SUGGERIMENTI}
+     */
+    public synchronized List<String> suggerisci(String prefisso, int k) {
+        if (prefisso == null || prefisso.isBlank() || k <= 0) {
+            return Collections.emptyList();
+        }
+        String chiave = prefisso.toLowerCase(Locale.ROOT).replaceAll("\\s+", " ").replaceAll("^ ", "");
+        Nodo nodo = radice;
+        for (int i = 0; i < chiave.length() && nodo != null; i++) {
+            nodo = nodo.figlio(chiave.charAt(i));
+        }
+        if (nodo == null) {
+            return Collections.emptyList();
+        }
+
+        Nodo[] migliori = migliori(nodo);
+        List<String> suggerimenti = new ArrayList<>(Math.min(k, migliori.length));
+        for (int i = 0; i < migliori.length && suggerimenti.size() < k; i++) {
+            suggerimenti.add(migliori[i].testo);
+        }
+        return suggerimenti;
+    }
+
+    /**
+     * Migliori termini del sottoalbero, ricalcolati dai figli solo se invalidati
+     */
+    private static Nodo[] migliori(Nodo nodo) {
+        if (nodo.migliori != null) {
+            return nodo.migliori;
+        }
+        List<Nodo> candidati = new ArrayList<>();
+        if (nodo.peso > 0) {
+            candidati.add(nodo);
+        }
+        for (Nodo figlio : nodo.figli) {
+            candidati.addAll(Arrays.asList(migliori(figlio)));
+        }
+        candidati.sort(PER_RILEVANZA);
+        nodo.migliori = candidati.subList(0, Math.min(MASSIMO_SUGGERIMENTI, candidati.size())).toArray(NESSUNO);
+        return nodo.migliori;
+    }
+
+    // ========== METRICHE ==========
+
+    /**
+     * Ottiene un report delle statistiche correnti
+     */
+    public synchronized String getReportStatistiche() {
+        return String.format("🔤 Indice Suggerimenti - Annunci: %d, Termini: %d",
+            terminiPerAnnuncio.size(), terminiDistinti);
+    }
+}
@@ -0,0 +1,402 @@
+package application.DB;
+
+import application.Classe.Annuncio;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Indice a trigrammi dei titoli per la ricerca tollerante agli errori di battitura
+ *
+ * <p>La ricerca per sottostringa non trova nulla per "calcolatrce" o "iphnoe"; qui titolo e nome
+ * dell'oggetto sono scomposti in trigrammi come fa {@code pg_trgm} (parole in minuscolo, due spazi
+ * prima e uno dopo ogni parola):
+ * <ul>
+ *   <li>per ogni trigramma una lista ordinata degli annunci che lo contengono (posting list)</li>
+ *   <li>la somiglianza è la quota dei trigrammi della query presenti nel titolo; a parità conta la
+ *       somiglianza sull'intero titolo (trigrammi comuni sull'unione), così vincono i titoli più corti</li>
+ *   <li>con soglia S e Q trigrammi un annuncio ne deve condividere almeno M = ⌈S·Q⌉: solo le Q−M+1
+ *       liste più rare possono introdurre candidati, le altre aggiornano i conteggi di quelli già trovati
+ *       (ricerca binaria se i candidati sono pochi), quindi le liste dei trigrammi comuni non vengono
+ *       scandite per intero</li>
+ *   <li>i candidati sono al più {@link #MASSIMO_CANDIDATI}, scelti dalle liste più rare</li>
+ *   <li>gli annunci rimossi lasciano posizioni vuote nelle liste; l'indice viene ricompattato quando
+ *       le posizioni vuote superano quelle occupate</li>
+ * </ul>
+ * Tutte le operazioni sono sincronizzate sull'istanza.
+ * </p>
+ */
+public final class IndiceTrigrammi {
+
+    /** Quota minima dei trigrammi della query che un titolo deve contenere */
+    public static final double SOGLIA_PREDEFINITA =
+        Double.parseDouble(System.getProperty("swapunina.ricerca.sogliaSimilarita", "0.4"));
+
+    /** Numero massimo di annunci valutati per una query */
+    static final int MASSIMO_CANDIDATI = Integer.getInteger("swapunina.ricerca.massimoCandidati", 5_000);
+
+    private static final int MINIMO_POSIZIONI_PER_COMPATTARE = 1_024;
+
+    /**
+     * Lista crescente di posizioni
+     */
+    private static final class ListaPosizioni {
+        int[] posizioni = new int[4];
+        int dimensione;
+
+        void aggiungi(int posizione) {
+            if (dimensione == posizioni.length) {
+                posizioni = Arrays.copyOf(posizioni, dimensione * 2);
+            }
+            posizioni[dimensione++] = posizione;
+        }
+
+        boolean contiene(int posizione) {
+            return Arrays.binarySearch(posizioni, 0, dimensione, posizione) >= 0;
+        }
+    }
+
+    private static final ListaPosizioni VUOTA = new ListaPosizioni();
+
+    /** Trigramma (tre char in un long) → posizioni degli annunci che lo contengono */
+    private final Map<Long, ListaPosizioni> liste = new HashMap<>();
+    /** Annuncio per posizione; null se rimosso. Le posizioni crescono sempre, così le liste restano ordinate */
+    private final List<Annuncio> annunci = new ArrayList<>();
+    private int[] trigrammiPerPosizione = new int[16];
+    private final Map<Integer, Integer> posizionePerId = new HashMap<>();
+    private final DeltaCatalogo delta = new DeltaCatalogo();
+
+    /**
+     * Area di lavoro di {@link #cerca}, riusata tra le ricerche (sono sincronizzate sull'istanza):
+     * trigrammi comuni per posizione, azzerati a fine ricerca solo nelle posizioni candidate
+     */
+    private int[] condivisi = new int[0];
+    private int[] candidati = new int[0];
+
+    private long ricerche;
+    private long candidatiValutati;
+    private long ricercheLimitate;
+
+    // ========== AGGIORNAMENTO ==========
+
+    /**
+     * Allinea l'indice al catalogo applicando solo gli annunci aggiunti, modificati o rimossi
+     */
+    public synchronized void sincronizza(Collection<Annuncio> catalogo) {
+        DeltaCatalogo.Delta differenze = delta.calcola(catalogo);
+        for (Integer id : differenze.getRimossi()) {
+            rimuoviPosizione(id);
+        }
+        for (Annuncio annuncio : differenze.getModificati()) {
+            indicizza(annuncio);
+        }
+        for (Annuncio annuncio : differenze.getAggiunti()) {
+            indicizza(annuncio);
+        }
+        // Dopo un ricaricamento gli annunci invariati sono oggetti nuovi
+        for (Annuncio annuncio : catalogo) {
+            Integer posizione = annuncio != null ? posizionePerId.get(annuncio.getId()) : null;
+            if (posizione != null) {
+                annunci.set(posizione, annuncio);
+            }
+        }
+        compattaSeNecessario();
+    }
+
+    /**
+     * Inserisce o reindicizza un singolo annuncio
+     */
+    public synchronized void aggiorna(Annuncio annuncio) {
+        if (annuncio != null && annuncio.getId() > 0) {
+            indicizza(annuncio);
+            compattaSeNecessario();
+        }
+    }
+
+    /**
+     * Rimuove l'annuncio dall'indice, se presente
+     */
+    public synchronized void rimuovi(int annuncioId) {
+        rimuoviPosizione(annuncioId);
+        compattaSeNecessario();
+    }
+
+    public synchronized void svuota() {
+        liste.clear();
+        annunci.clear();
+        posizionePerId.clear();
+        delta.resetta();
+        condivisi = new int[0];
+        candidati = new int[0];
+    }
+
+    private void indicizza(Annuncio annuncio) {
+        if (annuncio == null || annuncio.getId() <= 0) {
+            return;
+        }
+        // Un annuncio modificato prende una nuova posizione: quella vecchia resta vuota nelle liste
+        rimuoviPosizione(annuncio.getId());
+        long[] trigrammi = trigrammi(testoIndicizzato(annuncio));
+        int posizione = annunci.size();
+        annunci.add(annuncio);
+        if (posizione == trigrammiPerPosizione.length) {
+            trigrammiPerPosizione = Arrays.copyOf(trigrammiPerPosizione, posizione * 2);
+        }
+        trigrammiPerPosizione[posizione] = trigrammi.length;
+        posizionePerId.put(annuncio.getId(), posizione);
+        for (long trigramma : trigrammi) {
+            liste.computeIfAbsent(trigramma, t -> new ListaPosizioni()).aggiungi(posizione);
+        }
+    }
+
+    private void rimuoviPosizione(int annuncioId) {
+        Integer posizione = posizionePerId.remove(annuncioId);
+        if (posizione != null) {
+            annunci.set(posizione, null);
+        }
+    }
+
+    /**
+     * Ricostruisce le liste quando sono più le posizioni vuote di quelle occupate
+     */
+    private void compattaSeNecessario() {
+        int vuote = annunci.size() - posizionePerId.size();
+        if (vuote < MINIMO_POSIZIONI_PER_COMPATTARE || vuote <= posizionePerId.size()) {
+            return;
+        }
+        List<Annuncio> presenti = new ArrayList<>(posizionePerId.size());
+        for (Annuncio annuncio : annunci) {
+            if (annuncio != null) {
+                presenti.add(annuncio);
+            }
+        }
+        liste.clear();
+        annunci.clear();
+        posizionePerId.clear();
+        for (Annuncio annuncio : presenti) {
+            indicizza(annuncio);
+        }
+    }
+
+    private static String testoIndicizzato(Annuncio annuncio) {
+        String titolo = annuncio.getTitolo() != null ? annuncio.getTitolo() : "";
+        String nome = annuncio.getOggetto() != null ? annuncio.getOggetto().getNome() : null;
+        return nome != null && !nome.equalsIgnoreCase(titolo) ? titolo + " " + nome : titolo;
+    }
+
+    // ========== TRIGRAMMI ==========
+
+    /**
+     * Trigrammi distinti e ordinati del testo, come {@code pg_trgm}: parole alfanumeriche in minuscolo,
+     * precedute da due spazi e seguite da uno
+     */
+    static long[] trigrammi(String testo) {
+        if (testo == null || testo.isBlank()) {
+            return new long[0];
+        }
+        String minuscolo = testo.toLowerCase(Locale.ROOT);
+        long[] trigrammi = new long[minuscolo.length() * 2 + 2];
+        int quanti = 0;
+        int inizioParola = -1;
+        for (int i = 0; i <= minuscolo.length(); i++) {
+            boolean alfanumerico = i < minuscolo.length() && Character.isLetterOrDigit(minuscolo.charAt(i));
+            if (alfanumerico && inizioParola < 0) {
+                inizioParola = i;
+            } else if (!alfanumerico && inizioParola >= 0) {
+                String parola = "  " + minuscolo.substring(inizioParola, i) + " ";
+                for (int j = 0; j + 3 <= parola.length(); j++) {
+                    if (quanti == trigrammi.length) {
+                        trigrammi = Arrays.copyOf(trigrammi, quanti * 2);
+                    }
+                    trigrammi[quanti++] = ((long) parola.charAt(j) << 32) | ((long) parola.charAt(j + 1) << 16)
+                                          | parola.charAt(j + 2);
+                }
+                inizioParola = -1;
+            }
+        }
+        Arrays.sort(trigrammi, 0, quanti);
+        int distinti = 0;
+        for (int i = 0; i < quanti; i++) {
+            if (distinti == 0 || trigrammi[distinti - 1] != trigrammi[i]) {
+                trigrammi[distinti++] = trigrammi[i];
+            }
+        }
+        return Arrays.copyOf(trigrammi, distinti);
+    }
+
+    // ========== RICERCA ==========
+
+    /**
+     * Annunci simili alla query, dal più simile
+     *
+     * @param soglia quota minima (0-1] dei trigrammi della query presenti nel titolo
+     * @param limite numero massimo di annunci restituiti
+     */
+    public synchronized List<Annuncio> cerca(String query, double soglia, int limite) {
+        long[] cercati = trigrammi(query);
+        if (cercati.length == 0 || limite <= 0) {
+            return Collections.emptyList();
+        }
+        ricerche++;
+        int minimo = Math.max(1, (int) Math.ceil(Math.min(soglia, 1.0) * cercati.length - 1e-9));
+
+        ListaPosizioni[] daScorrere = new ListaPosizioni[cercati.length];
+        for (int i = 0; i < cercati.length; i++) {
+            daScorrere[i] = liste.getOrDefault(cercati[i], VUOTA);
+        }
+        Arrays.sort(daScorrere, Comparator.comparingInt((ListaPosizioni l) -> l.dimensione));
+
+        if (condivisi.length < annunci.size()) {
+            condivisi = new int[Math.max(annunci.size(), condivisi.length * 2)];
+        }
+        int capacitaCandidati = Math.min(MASSIMO_CANDIDATI, annunci.size());
+        if (candidati.length < capacitaCandidati) {
+            candidati = new int[Math.min(MASSIMO_CANDIDATI, Math.max(capacitaCandidati, candidati.length * 2))];
+        }
+        int[] condivisi = this.condivisi;
+        int[] candidati = this.candidati;
+        int quantiCandidati = 0;
+        boolean limitata = false;
+
+        // Un annuncio con almeno "minimo" trigrammi comuni compare in almeno una delle liste più rare
+        int generatrici = cercati.length - minimo + 1;
+        for (int i = 0; i < generatrici; i++) {
+            ListaPosizioni lista = daScorrere[i];
+            for (int j = 0; j < lista.dimensione; j++) {
+                int posizione = lista.posizioni[j];
+                if (condivisi[posizione] > 0) {
+                    condivisi[posizione]++;
+                } else if (annunci.get(posizione) != null) {
+                    if (quantiCandidati == capacitaCandidati) {
+                        limitata = true;
+                        continue;
+                    }
+                    condivisi[posizione] = 1;
+                    candidati[quantiCandidati++] = posizione;
+                }
+            }
+        }
+        for (int i = generatrici; i < daScorrere.length; i++) {
+            ListaPosizioni lista = daScorrere[i];
+            if (quantiCandidati * 20L < lista.dimensione) {
+                for (int c = 0; c < quantiCandidati; c++) {
+                    if (lista.contiene(candidati[c])) {
+                        condivisi[candidati[c]]++;
+                    }
+                }
+            } else {
+                for (int j = 0; j < lista.dimensione; j++) {
+                    if (condivisi[lista.posizioni[j]] > 0) {
+                        condivisi[lista.posizioni[j]]++;
+                    }
+                }
+            }
+        }
+        candidatiValutati += quantiCandidati;
+        if (limitata) {
+            ricercheLimitate++;
+        }
+
+        // Candidati sopra soglia, ordinati per copertura della query e poi per somiglianza sull'intero titolo
+        List<int[]> validi = new ArrayList<>();
+        for (int c = 0; c < quantiCandidati; c++) {
+            int posizione = candidati[c];
+            if (condivisi[posizione] >= minimo) {
+                validi.add(new int[] { posizione, condivisi[posizione] });
+            }
+            // Solo le posizioni candidate sono state incrementate: l'area è di nuovo pulita per la prossima ricerca
+            condivisi[posizione] = 0;
+        }
+        int totaleCercati = cercati.length;
+        validi.sort((a, b) -> {
+            if (a[1] != b[1]) {
+                return Integer.compare(b[1], a[1]);
+            }
+            double simA = (double) a[1] / (totaleCercati + trigrammiPerPosizione[a[0]] - a[1]);
+            double simB = (double) b[1] / (totaleCercati + trigrammiPerPosizione[b[0]] - b[1]);
+            return simA != simB ? Double.compare(simB, simA) : Integer.compare(a[0], b[0]);
+        });
+
+        List<Annuncio> trovati = new ArrayList<>(Math.min(limite, validi.size()));
+        for (int i = 0; i < validi.size() && trovati.size() < limite; i++) {
+            trovati.add(annunci.get(validi.get(i)[0]));
+        }
+        return trovati;
+    }
+
+    // ========== METRICHE ==========
+
+    public synchronized int getDimensione() {
+        return posizionePerId.size();
+    }
+
+    /**
+     * Ottiene un report delle statistiche correnti
+     */
+    public synchronized String getReportStatistiche() {
+        return String.format(
+            "🔡 Indice Trigrammi - Annunci: %d (posizioni: %d), Trigrammi: %d, Ricerche: %d, " +
+            "Candidati medi: %.1f, Ricerche al limite candidati: %d",
+            posizionePerId.size(), annunci.size(), liste.size(), ricerche,
+            ricerche > 0 ? (double) candidatiValutati / ricerche : 0.0, ricercheLimitate);
+    }
+
+    // ========== BENCHMARK ==========
+
+    /**
+     * Confronta la ricerca per trigrammi con la scansione per sottostringa su cataloghi sintetici
+     *
+     * @param ripetizioni misurazioni per dimensione, dopo altrettante di riscaldamento
+     * @param dimensioni numero di annunci dei cataloghi da provare (es. 10_000, 100_000)
+     * @return report con tempo di costruzione e tempo medio per query
+     */
+    public static String testPrestazioni(int ripetizioni, int... dimensioni) {
+        StringBuilder report = new StringBuilder(String.format(
+            "🔡 IndiceTrigrammi - soglia: %.2f, massimo candidati: %d", SOGLIA_PREDEFINITA, MASSIMO_CANDIDATI));
+        String[] conErrori = { "chitara", "smartpone", "lampda 12" };
+
+        for (int dimensione : dimensioni) {
+            List<Annuncio> catalogo = MotoreFiltri.catalogoSintetico(dimensione);
+            IndiceTrigrammi indice = new IndiceTrigrammi();
+            long inizio = System.nanoTime();
+            indice.sincronizza(catalogo);
+            long costruzione = System.nanoTime() - inizio;
+
+            MotoreFiltri.Criteri esatta = new MotoreFiltri.Criteri(null, null, conErrori[0]);
+            for (int i = 0; i < ripetizioni; i++) {
+                for (String query : conErrori) {
+                    indice.cerca(query, SOGLIA_PREDEFINITA, 60);
+                }
+                MotoreFiltri.conta(catalogo, esatta);
+            }
+
+            long fuzzy = 0;
+            long scansione = 0;
+            int trovati = 0;
+            for (int i = 0; i < ripetizioni; i++) {
+                for (String query : conErrori) {
+                    inizio = System.nanoTime();
+                    trovati = indice.cerca(query, SOGLIA_PREDEFINITA, 60).size();
+                    fuzzy += System.nanoTime() - inizio;
+                }
+                inizio = System.nanoTime();
+                MotoreFiltri.conta(catalogo, esatta);
+                scansione += System.nanoTime() - inizio;
+            }
+
+            report.append(String.format(
+                "%n  %,9d annunci: costruzione %.1f ms, query con errori %.3f ms (%d risultati), " +
+                "scansione per sottostringa %.3f ms",
+                dimensione, costruzione / 1_000_000.0, fuzzy / 1_000_000.0 / ripetizioni / conErrori.length,
+                trovati, scansione / 1_000_000.0 / ripetizioni));
+        }
+        return report.toString();
+    }
+}
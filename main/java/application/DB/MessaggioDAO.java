@@ -7,16 +7,59 @@ import java.security.SecureRandom;
 import java.sql.*;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class MessaggioDAO {
     private static final String TABLE_NAME = "messaggio";
+    private static final String LETTURA_TABLE = "conversazione_lettura";
+    private static final String NON_LETTI_TABLE = "messaggi_non_letti";
+
+    /** Configurazione full-text usata sia dall'indice GIN sia dalle query: devono coincidere */
+    private static final String CONFIG_FTS = "italian";
+    private static final int LIMITE_MAX_RICERCA = 50;
+
+    /**
+     * Risultato di una ricerca nei messaggi: il messaggio trovato con il contesto
+     * della conversazione (interlocutore, annuncio) e l'estratto con i termini evidenziati
+     */
+    public static class RisultatoRicerca {
+        private final Messaggio messaggio;
+        private final int interlocutoreId;
+        private final String nomeInterlocutore;
+        private final String titoloAnnuncio;
+        private final String estratto;
+
+        public RisultatoRicerca(Messaggio messaggio, int interlocutoreId, String nomeInterlocutore,
+                                String titoloAnnuncio, String estratto) {
+            this.messaggio = messaggio;
+            this.interlocutoreId = interlocutoreId;
+            this.nomeInterlocutore = nomeInterlocutore;
+            this.titoloAnnuncio = titoloAnnuncio;
+            this.estratto = estratto;
+        }
+
+        public Messaggio getMessaggio() { return messaggio; }
+        public int getInterlocutoreId() { return interlocutoreId; }
+        public String getNomeInterlocutore() { return nomeInterlocutore; }
+        public String getTitoloAnnuncio() { return titoloAnnuncio; }
+        public String getEstratto() { return estratto; }
+    }
+
+    /** Lo schema viene verificato una sola volta per processo, non a ogni istanza del DAO */
+    private static volatile boolean schemaVerificato = false;
 
     public MessaggioDAO() {
-        creaTabellaSeMancante();
+        if (!schemaVerificato) {
+            creaTabellaSeMancante();
+        }
     }
 
-    private void creaTabellaSeMancante() {
+    private static synchronized void creaTabellaSeMancante() {
+        if (schemaVerificato) {
+            return;
+        }
         String sql = "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
                 "id SERIAL PRIMARY KEY, " +
                 "mittente_id INTEGER NOT NULL REFERENCES utente(id) ON DELETE CASCADE, " +
@@ -32,15 +75,94 @@ public class MessaggioDAO {
         try (Connection conn = ConnessioneDB.getConnessione();
              Statement stmt = conn.createStatement()) {
             stmt.execute(sql);
+            creaIndiciRicerca(stmt);
+            creaTabelleLetturaSeMancanti(stmt);
+            schemaVerificato = true;
         } catch (SQLException e) {
             System.err.println("Errore creazione tabella messaggio");
             e.printStackTrace();
         }
     }
 
+    /**
+     * Crea l'indice GIN full-text sul testo e gli indici per limitare la ricerca
+     * alle conversazioni dell'utente (mittente o destinatario)
+     */
+    private static void creaIndiciRicerca(Statement stmt) throws SQLException {
+        stmt.execute("CREATE INDEX IF NOT EXISTS idx_messaggio_testo_fts ON " + TABLE_NAME +
+                " USING GIN (to_tsvector('" + CONFIG_FTS + "', testo_plaintext_backup))");
+        stmt.execute("CREATE INDEX IF NOT EXISTS idx_messaggio_mittente ON " + TABLE_NAME + " (mittente_id, id)");
+        stmt.execute("CREATE INDEX IF NOT EXISTS idx_messaggio_destinatario ON " + TABLE_NAME + " (destinatario_id, id)");
+    }
+
+    /**
+     * Crea le tabelle per conferme di lettura e contatori dei non letti.
+     * Una riga per (utente, interlocutore) con l'ultimo messaggio ricevuto e l'ultimo letto,
+     * più un totale per utente così che il badge costi una sola lookup per chiave primaria.
+     * Alla prima creazione i messaggi già esistenti vengono considerati letti.
+     */
+    private static void creaTabelleLetturaSeMancanti(Statement stmt) throws SQLException {
+        boolean esistente;
+        try (ResultSet rs = stmt.executeQuery("SELECT to_regclass('" + LETTURA_TABLE + "') IS NOT NULL")) {
+            esistente = rs.next() && rs.getBoolean(1);
+        }
+
+        stmt.execute("CREATE TABLE IF NOT EXISTS " + LETTURA_TABLE + " (" +
+                "utente_id INTEGER NOT NULL REFERENCES utente(id) ON DELETE CASCADE, " +
+                "interlocutore_id INTEGER NOT NULL REFERENCES utente(id) ON DELETE CASCADE, " +
+                "ultimo_ricevuto_id INTEGER NOT NULL DEFAULT 0, " +
+                "ultimo_letto_id INTEGER NOT NULL DEFAULT 0, " +
+                "non_letti INTEGER NOT NULL DEFAULT 0, " +
+                "PRIMARY KEY (utente_id, interlocutore_id))");
+        stmt.execute("CREATE TABLE IF NOT EXISTS " + NON_LETTI_TABLE + " (" +
+                "utente_id INTEGER PRIMARY KEY REFERENCES utente(id) ON DELETE CASCADE, " +
+                "totale INTEGER NOT NULL DEFAULT 0)");
+
+        if (!esistente) {
+            int righe = stmt.executeUpdate(
+                "INSERT INTO " + LETTURA_TABLE + " (utente_id, interlocutore_id, ultimo_ricevuto_id, ultimo_letto_id, non_letti) " +
+                "SELECT utente_id, interlocutore_id, MAX(ricevuto_id), MAX(ricevuto_id), 0 FROM (" +
+                "  SELECT destinatario_id AS utente_id, mittente_id AS interlocutore_id, id AS ricevuto_id FROM " + TABLE_NAME +
+                "  UNION ALL " +
+                "  SELECT mittente_id, destinatario_id, 0 FROM " + TABLE_NAME +
+                ") m GROUP BY utente_id, interlocutore_id " +
+                "ON CONFLICT (utente_id, interlocutore_id) DO NOTHING");
+            System.out.println("Conversazioni inizializzate per conferme di lettura: " + righe);
+        }
+    }
+
+    /**
+     * Inserisce il messaggio e aggiorna nello stesso statement i contatori dei non letti
+     * del destinatario, così invio e contatori restano coerenti in un solo round trip
+     */
     public boolean inviaMessaggio(Messaggio msg) {
-        String sql = "INSERT INTO " + TABLE_NAME + " (mittente_id, destinatario_id, testo_plaintext_backup, testo_encrypted, iv, data_invio, annuncio_id, algoritmo_encryption) " +
-                     "VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+        // Con mittente e destinatario uguali la CTE scriverebbe due volte la stessa riga di lettura
+        if (msg.getMittenteId() == msg.getDestinatarioId()) {
+            System.err.println("Invio messaggio rifiutato: mittente e destinatario coincidono (utente " + msg.getMittenteId() + ")");
+            return false;
+        }
+        if (!RateLimiter.consenti(RateLimiter.Operazione.INVIO_MESSAGGIO, msg.getMittenteId())) {
+            System.err.println("Invio messaggio rifiutato: troppe richieste dall'utente " + msg.getMittenteId());
+            return false;
+        }
+
+        String sql = "WITH nuovo AS (" +
+                     "  INSERT INTO " + TABLE_NAME + " (mittente_id, destinatario_id, testo_plaintext_backup, testo_encrypted, iv, data_invio, annuncio_id, algoritmo_encryption) " +
+                     "  VALUES (?, ?, ?, ?, ?, ?, ?, ?) RETURNING id, mittente_id, destinatario_id" +
+                     "), ricevuto AS (" +
+                     "  INSERT INTO " + LETTURA_TABLE + " (utente_id, interlocutore_id, ultimo_ricevuto_id, non_letti) " +
+                     "  SELECT destinatario_id, mittente_id, id, 1 FROM nuovo " +
+                     "  ON CONFLICT (utente_id, interlocutore_id) DO UPDATE SET " +
+                     "  ultimo_ricevuto_id = EXCLUDED.ultimo_ricevuto_id, non_letti = " + LETTURA_TABLE + ".non_letti + 1" +
+                     "), inviato AS (" +
+                     "  INSERT INTO " + LETTURA_TABLE + " (utente_id, interlocutore_id) " +
+                     "  SELECT mittente_id, destinatario_id FROM nuovo " +
+                     "  ON CONFLICT (utente_id, interlocutore_id) DO NOTHING" +
+                     "), totale AS (" +
+                     "  INSERT INTO " + NON_LETTI_TABLE + " (utente_id, totale) " +
+                     "  SELECT destinatario_id, 1 FROM nuovo " +
+                     "  ON CONFLICT (utente_id) DO UPDATE SET totale = " + NON_LETTI_TABLE + ".totale + 1" +
+                     ") SELECT id FROM nuovo";
         
         try (Connection conn = ConnessioneDB.getConnessione();
              PreparedStatement stmt = conn.prepareStatement(sql)) {
@@ -69,13 +191,135 @@ public class MessaggioDAO {
             
             stmt.setString(8, "UTF-8_ENCODING"); // Usiamo encoding semplice per ora
             
-            return stmt.executeUpdate() > 0;
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (rs.next()) {
+                    msg.setId(rs.getInt("id"));
+                    return true;
+                }
+                return false;
+            }
         } catch (SQLException e) {
             System.err.println("Errore durante l'invio del messaggio");
             e.printStackTrace();
             return false;
         }
     }
+
+    /**
+     * Segna come letta la conversazione con un interlocutore: sposta la conferma di lettura
+     * all'ultimo messaggio ricevuto, azzera il contatore e lo sottrae dal totale dell'utente
+     *
+     * @return numero di messaggi appena segnati come letti
+     */
+    public int segnaConversazioneLetta(int utenteId, int interlocutoreId) {
+        String sql = "WITH letti AS (" +
+                     "  UPDATE " + LETTURA_TABLE + " c SET ultimo_letto_id = c.ultimo_ricevuto_id, non_letti = 0 " +
+                     "  FROM (SELECT utente_id, interlocutore_id, non_letti FROM " + LETTURA_TABLE +
+                     "        WHERE utente_id = ? AND interlocutore_id = ? FOR UPDATE) p " +
+                     "  WHERE c.utente_id = p.utente_id AND c.interlocutore_id = p.interlocutore_id AND p.non_letti > 0 " +
+                     "  RETURNING p.non_letti" +
+                     "), totale AS (" +
+                     "  UPDATE " + NON_LETTI_TABLE + " t SET totale = GREATEST(t.totale - letti.non_letti, 0) " +
+                     "  FROM letti WHERE t.utente_id = ?" +
+                     ") SELECT COALESCE(SUM(non_letti), 0) FROM letti";
+
+        try (Connection conn = ConnessioneDB.getConnessione();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+
+            stmt.setInt(1, utenteId);
+            stmt.setInt(2, interlocutoreId);
+            stmt.setInt(3, utenteId);
+
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getInt(1) : 0;
+            }
+        } catch (SQLException e) {
+            System.err.println("Errore aggiornamento conferma di lettura: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Restituisce il numero totale di messaggi non letti dell'utente (lookup per chiave primaria)
+     */
+    public int getConteggioNonLetti(int utenteId) {
+        String sql = "SELECT totale FROM " + NON_LETTI_TABLE + " WHERE utente_id = ?";
+
+        try (Connection conn = ConnessioneDB.getConnessione();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+
+            stmt.setInt(1, utenteId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getInt("totale") : 0;
+            }
+        } catch (SQLException e) {
+            System.err.println("Errore conteggio messaggi non letti: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Restituisce i non letti per ciascun interlocutore con almeno un messaggio da leggere
+     */
+    public Map<Integer, Integer> getNonLettiPerInterlocutore(int utenteId) {
+        Map<Integer, Integer> nonLetti = new HashMap<>();
+        String sql = "SELECT interlocutore_id, non_letti FROM " + LETTURA_TABLE +
+                     " WHERE utente_id = ? AND non_letti > 0";
+
+        try (Connection conn = ConnessioneDB.getConnessione();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+
+            stmt.setInt(1, utenteId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    nonLetti.put(rs.getInt("interlocutore_id"), rs.getInt("non_letti"));
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println("Errore recupero non letti per conversazione: " + e.getMessage());
+        }
+        return nonLetti;
+    }
+
+    /**
+     * Restituisce l'ID dell'ultimo messaggio di mittenteId che lettoreId ha letto (0 se nessuno)
+     */
+    public int getUltimoMessaggioLetto(int lettoreId, int mittenteId) {
+        String sql = "SELECT ultimo_letto_id FROM " + LETTURA_TABLE +
+                     " WHERE utente_id = ? AND interlocutore_id = ?";
+
+        try (Connection conn = ConnessioneDB.getConnessione();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+
+            stmt.setInt(1, lettoreId);
+            stmt.setInt(2, mittenteId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getInt("ultimo_letto_id") : 0;
+            }
+        } catch (SQLException e) {
+            System.err.println("Errore recupero conferma di lettura: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Verifica se l'utente ha almeno una conversazione, senza contare i messaggi
+     */
+    public boolean haConversazioni(int utenteId) {
+        String sql = "SELECT 1 FROM " + LETTURA_TABLE + " WHERE utente_id = ? LIMIT 1";
+
+        try (Connection conn = ConnessioneDB.getConnessione();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+
+            stmt.setInt(1, utenteId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next();
+            }
+        } catch (SQLException e) {
+            System.err.println("Errore nel verificare le chat: " + e.getMessage());
+            return false;
+        }
+    }
     
     public List<Integer> getInterlocutori(int mioId) {
         List<Integer> interlocutori = new ArrayList<>();
@@ -207,6 +451,71 @@ public class MessaggioDAO {
         return utenti;
     }
 
+    /**
+     * Cerca nei messaggi delle conversazioni dell'utente usando l'indice full-text.
+     * La paginazione è a cursore: per la pagina successiva passare l'ID dell'ultimo
+     * risultato ricevuto come primaDiId (0 per la prima pagina).
+     *
+     * @param utenteId utente che effettua la ricerca (solo le sue conversazioni)
+     * @param testo testo da cercare
+     * @param primaDiId cursore della pagina, 0 per iniziare dai messaggi più recenti
+     * @param limite numero massimo di risultati della pagina
+     * @return risultati dal più recente al più vecchio
+     */
+    public List<RisultatoRicerca> cercaMessaggi(int utenteId, String testo, int primaDiId, int limite) {
+        List<RisultatoRicerca> risultati = new ArrayList<>();
+        if (testo == null || testo.isBlank() || utenteId <= 0) {
+            return risultati;
+        }
+
+        String sql = "SELECT m.id, m.mittente_id, m.destinatario_id, m.testo_plaintext_backup, m.data_invio, m.annuncio_id, " +
+                     "u.id AS interlocutore_id, u.nome, u.cognome, a.titolo AS titolo_annuncio, " +
+                     "ts_headline('" + CONFIG_FTS + "', m.testo_plaintext_backup, q, 'StartSel=«, StopSel=», MaxWords=20, MinWords=5') AS estratto " +
+                     "FROM " + TABLE_NAME + " m " +
+                     "CROSS JOIN plainto_tsquery('" + CONFIG_FTS + "', ?) q " +
+                     "JOIN utente u ON u.id = CASE WHEN m.mittente_id = ? THEN m.destinatario_id ELSE m.mittente_id END " +
+                     "LEFT JOIN annuncio a ON a.id = m.annuncio_id " +
+                     "WHERE to_tsvector('" + CONFIG_FTS + "', m.testo_plaintext_backup) @@ q " +
+                     "AND (m.mittente_id = ? OR m.destinatario_id = ?) " +
+                     "AND (? = 0 OR m.id < ?) " +
+                     "ORDER BY m.id DESC LIMIT ?";
+
+        try (Connection conn = ConnessioneDB.getConnessione();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+
+            stmt.setString(1, testo.trim());
+            stmt.setInt(2, utenteId);
+            stmt.setInt(3, utenteId);
+            stmt.setInt(4, utenteId);
+            stmt.setInt(5, primaDiId);
+            stmt.setInt(6, primaDiId);
+            stmt.setInt(7, Math.max(1, Math.min(limite, LIMITE_MAX_RICERCA)));
+
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    Messaggio m = new Messaggio(
+                        rs.getInt("id"),
+                        rs.getInt("mittente_id"),
+                        rs.getInt("destinatario_id"),
+                        rs.getString("testo_plaintext_backup"),
+                        rs.getTimestamp("data_invio").toLocalDateTime(),
+                        rs.getObject("annuncio_id") != null ? rs.getInt("annuncio_id") : null
+                    );
+                    risultati.add(new RisultatoRicerca(
+                        m,
+                        rs.getInt("interlocutore_id"),
+                        rs.getString("nome") + " " + rs.getString("cognome"),
+                        rs.getString("titolo_annuncio"),
+                        rs.getString("estratto")
+                    ));
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println("Errore nella ricerca dei messaggi: " + e.getMessage());
+        }
+        return risultati;
+    }
+
     // Metodo per migrare i messaggi esistenti
     public boolean migraMessaggiEsistenti() {
         String sql = "UPDATE " + TABLE_NAME + " SET " +
@@ -0,0 +1,403 @@
+package application.DB;
+
+import application.Classe.Annuncio;
+import application.Classe.Oggetto;
+import application.Enum.Categoria;
+import application.Enum.Tipologia;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Motore di filtraggio in memoria degli annunci
+ *
+ * <p>Sostituisce la catena di stream (tre predicati e un ordinamento) usata per filtrare e,
+ * separatamente, per contare:
+ * <ul>
+ *   <li>categoria, tipologia e testo sono valutati in un unico passaggio da {@link Criteri#corrisponde};
+ *       i confronti sugli enum vengono prima del testo, che è il controllo costoso</li>
+ *   <li>il testo della ricerca è confrontato senza convertire in minuscolo titolo, nome e descrizione
+ *       di ogni annuncio (nessuna allocazione per annuncio)</li>
+ *   <li>lo stesso passaggio produce i risultati e i conteggi per categoria e per tipologia (facet):
+ *       il conteggio di una categoria ignora il filtro di categoria e applica gli altri, così
+ *       l'interfaccia può mostrare quanti annunci troverebbe cambiando categoria</li>
+ *   <li>sopra {@link #SOGLIA_PARALLELO} annunci la lista è divisa in blocchi valutati con fork-join
+ *       sul pool comune; i blocchi vengono ricomposti nell'ordine originale, quindi il risultato è
+ *       identico a quello sequenziale</li>
+ *   <li>l'ordinamento usa le chiavi primitive di {@link OrdinatoreAnnunci} e, se è richiesta solo
+ *       una pagina, seleziona i primi K senza ordinare tutti i risultati</li>
+ * </ul>
+ * </p>
+ */
+public final class MotoreFiltri {
+
+    /** Numero di annunci oltre il quale il filtraggio viene eseguito in parallelo */
+    static final int SOGLIA_PARALLELO = Integer.getInteger("swapunina.filtri.sogliaParallelo", 20_000);
+
+    /** Dimensione minima di un blocco valutato da un singolo task fork-join */
+    private static final int DIMENSIONE_BLOCCO = 4_096;
+
+    private static final Categoria[] CATEGORIE = Categoria.values();
+    private static final Tipologia[] TIPOLOGIE = Tipologia.values();
+
+    private MotoreFiltri() {
+    }
+
+    // ========== CRITERI ==========
+
+    /**
+     * Criteri di filtraggio; null o testo vuoto significano "nessun filtro"
+     */
+    public static final class Criteri {
+        private final Categoria categoria;
+        private final Tipologia tipologia;
+        private final String testo;
+
+        public Criteri(Categoria categoria, Tipologia tipologia, String queryRicerca) {
+            this.categoria = categoria;
+            this.tipologia = tipologia;
+            this.testo = queryRicerca == null || queryRicerca.isBlank() ? null : queryRicerca;
+        }
+
+        /**
+         * Predicato fuso: tutti i filtri in una sola valutazione
+         */
+        public boolean corrisponde(Annuncio annuncio) {
+            return corrispondeCategoria(annuncio) && corrispondeTipologia(annuncio) && corrispondeTesto(annuncio);
+        }
+
+        boolean corrispondeCategoria(Annuncio annuncio) {
+            return categoria == null ||
+                   (annuncio.getOggetto() != null && annuncio.getOggetto().getCategoria() == categoria);
+        }
+
+        boolean corrispondeTipologia(Annuncio annuncio) {
+            return tipologia == null || annuncio.getTipologia() == tipologia;
+        }
+
+        boolean corrispondeTesto(Annuncio annuncio) {
+            if (testo == null) {
+                return true;
+            }
+            if (contiene(annuncio.getTitolo(), testo)) {
+                return true;
+            }
+            Oggetto oggetto = annuncio.getOggetto();
+            return oggetto != null && (contiene(oggetto.getDescrizione(), testo) || contiene(oggetto.getNome(), testo));
+        }
+    }
+
+    /**
+     * Ricerca di una sottostringa senza distinguere maiuscole e minuscole, senza allocare
+     */
+    static boolean contiene(String testo, String cercato) {
+        if (testo == null) {
+            return false;
+        }
+        int ultimoInizio = testo.length() - cercato.length();
+        for (int i = 0; i <= ultimoInizio; i++) {
+            if (testo.regionMatches(true, i, cercato, 0, cercato.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // ========== RISULTATO ==========
+
+    /**
+     * Annunci filtrati e ordinati, con i conteggi per categoria e tipologia calcolati nello stesso passaggio
+     */
+    public static final class Risultato {
+        private final List<Annuncio> annunci;
+        private final int totale;
+        private final Map<Categoria, Integer> conteggiCategorie;
+        private final Map<Tipologia, Integer> conteggiTipologie;
+        private final boolean parallelo;
+        private final boolean approssimato;
+
+        Risultato(List<Annuncio> annunci, int totale, int[] perCategoria, int[] perTipologia, boolean parallelo) {
+            this(annunci, totale, perCategoria, perTipologia, parallelo, false);
+        }
+
+        Risultato(List<Annuncio> annunci, int totale, int[] perCategoria, int[] perTipologia, boolean parallelo,
+                  boolean approssimato) {
+            this.annunci = annunci;
+            this.totale = totale;
+            this.conteggiCategorie = Collections.unmodifiableMap(inMappa(CATEGORIE, perCategoria, Categoria.class));
+            this.conteggiTipologie = Collections.unmodifiableMap(inMappa(TIPOLOGIE, perTipologia, Tipologia.class));
+            this.parallelo = parallelo;
+            this.approssimato = approssimato;
+        }
+
+        /**
+         * Annunci ordinati, al più quanti ne indica il limite richiesto
+         */
+        public List<Annuncio> getAnnunci() {
+            return annunci;
+        }
+
+        /**
+         * Numero totale di annunci che soddisfano i criteri, anche oltre il limite
+         */
+        public int getTotale() {
+            return totale;
+        }
+
+        /**
+         * Annunci che corrisponderebbero ai criteri scegliendo ciascuna categoria (filtro di categoria escluso)
+         */
+        public Map<Categoria, Integer> getConteggiCategorie() {
+            return conteggiCategorie;
+        }
+
+        /**
+         * Annunci che corrisponderebbero ai criteri scegliendo ciascuna tipologia (filtro di tipologia escluso)
+         */
+        public Map<Tipologia, Integer> getConteggiTipologie() {
+            return conteggiTipologie;
+        }
+
+        public boolean isParallelo() {
+            return parallelo;
+        }
+
+        /**
+         * True se nessun annuncio conteneva il testo cercato e il risultato contiene gli annunci più simili
+         * (ricerca tollerante agli errori di battitura), ordinati per somiglianza
+         */
+        public boolean isApprossimato() {
+            return approssimato;
+        }
+
+        private static <E extends Enum<E>> Map<E, Integer> inMappa(E[] valori, int[] conteggi, Class<E> tipo) {
+            Map<E, Integer> mappa = new EnumMap<>(tipo);
+            for (E valore : valori) {
+                mappa.put(valore, conteggi[valore.ordinal()]);
+            }
+            return mappa;
+        }
+    }
+
+    // ========== API PRINCIPALE ==========
+
+    /**
+     * Filtra, conta per facet e ordina; in parallelo se la lista supera la soglia
+     *
+     * @param ordinamento ordinamento dei risultati, o null per mantenere l'ordine originale
+     * @param limite numero massimo di annunci da restituire (il totale li conta comunque tutti)
+     */
+    public static Risultato filtra(List<Annuncio> annunci, Criteri criteri,
+                                   OrdinatoreAnnunci.Ordinamento ordinamento, int limite) {
+        return filtra(annunci, criteri, ordinamento, limite, annunci.size() >= SOGLIA_PARALLELO);
+    }
+
+    /**
+     * Come {@link #filtra(List, Criteri, OrdinatoreAnnunci.Ordinamento, int)} scegliendo esplicitamente
+     * il percorso (usato dal benchmark)
+     */
+    static Risultato filtra(List<Annuncio> annunci, Criteri criteri, OrdinatoreAnnunci.Ordinamento ordinamento,
+                            int limite, boolean parallelo) {
+        Annuncio[] sorgente = annunci.toArray(new Annuncio[0]);
+        Parziale parziale = parallelo
+            ? ForkJoinPool.commonPool().invoke(new TaskFiltro(sorgente, criteri, 0, sorgente.length))
+            : Parziale.valuta(sorgente, criteri, 0, sorgente.length);
+
+        List<Annuncio> trovati = parziale.trovati;
+        if (ordinamento != null) {
+            trovati = OrdinatoreAnnunci.primi(trovati, ordinamento, limite);
+        } else if (trovati.size() > limite) {
+            trovati = new ArrayList<>(trovati.subList(0, Math.max(limite, 0)));
+        }
+        return new Risultato(trovati, parziale.trovati.size(),
+                             parziale.perCategoria, parziale.perTipologia, parallelo);
+    }
+
+    /**
+     * Filtra per categoria e tipologia annunci già ordinati per somiglianza al testo cercato,
+     * mantenendo l'ordine; il risultato è marcato come approssimato
+     */
+    static Risultato filtraSimili(List<Annuncio> simili, Categoria categoria, Tipologia tipologia, int limite) {
+        Parziale parziale = Parziale.valuta(simili.toArray(new Annuncio[0]), new Criteri(categoria, tipologia, null),
+                                            0, simili.size());
+        List<Annuncio> trovati = parziale.trovati;
+        if (trovati.size() > limite) {
+            trovati = new ArrayList<>(trovati.subList(0, Math.max(limite, 0)));
+        }
+        return new Risultato(trovati, parziale.trovati.size(),
+                             parziale.perCategoria, parziale.perTipologia, false, true);
+    }
+
+    /**
+     * Conta gli annunci che corrispondono ai criteri, senza costruire liste né facet
+     */
+    public static long conta(List<Annuncio> annunci, Criteri criteri) {
+        if (annunci.size() >= SOGLIA_PARALLELO) {
+            return annunci.parallelStream().filter(criteri::corrisponde).count();
+        }
+        long totale = 0;
+        for (Annuncio annuncio : annunci) {
+            if (criteri.corrisponde(annuncio)) {
+                totale++;
+            }
+        }
+        return totale;
+    }
+
+    // ========== VALUTAZIONE ==========
+
+    /**
+     * Risultato di un blocco: annunci trovati nell'ordine originale e conteggi per ordinale dell'enum
+     */
+    private static final class Parziale {
+        final List<Annuncio> trovati;
+        final int[] perCategoria = new int[CATEGORIE.length];
+        final int[] perTipologia = new int[TIPOLOGIE.length];
+
+        Parziale(int capacita) {
+            this.trovati = new ArrayList<>(capacita);
+        }
+
+        static Parziale valuta(Annuncio[] annunci, Criteri criteri, int da, int a) {
+            Parziale parziale = new Parziale(Math.min(a - da, 256));
+            for (int i = da; i < a; i++) {
+                Annuncio annuncio = annunci[i];
+                if (annuncio == null) {
+                    continue;
+                }
+                boolean categoriaOk = criteri.corrispondeCategoria(annuncio);
+                boolean tipologiaOk = criteri.corrispondeTipologia(annuncio);
+                // Il testo serve solo se l'annuncio può contare almeno per un facet
+                if (!(categoriaOk || tipologiaOk) || !criteri.corrispondeTesto(annuncio)) {
+                    continue;
+                }
+                if (tipologiaOk && annuncio.getOggetto() != null && annuncio.getOggetto().getCategoria() != null) {
+                    parziale.perCategoria[annuncio.getOggetto().getCategoria().ordinal()]++;
+                }
+                if (categoriaOk && annuncio.getTipologia() != null) {
+                    parziale.perTipologia[annuncio.getTipologia().ordinal()]++;
+                }
+                if (categoriaOk && tipologiaOk) {
+                    parziale.trovati.add(annuncio);
+                }
+            }
+            return parziale;
+        }
+
+        /**
+         * Accoda il blocco successivo mantenendo l'ordine
+         */
+        Parziale unisci(Parziale successivo) {
+            trovati.addAll(successivo.trovati);
+            for (int i = 0; i < perCategoria.length; i++) {
+                perCategoria[i] += successivo.perCategoria[i];
+            }
+            for (int i = 0; i < perTipologia.length; i++) {
+                perTipologia[i] += successivo.perTipologia[i];
+            }
+            return this;
+        }
+    }
+
+    private static final class TaskFiltro extends RecursiveTask<Parziale> {
+        private static final long serialVersionUID = 1L;
+
+        private final Annuncio[] annunci;
+        private final Criteri criteri;
+        private final int da;
+        private final int a;
+
+        TaskFiltro(Annuncio[] annunci, Criteri criteri, int da, int a) {
+            this.annunci = annunci;
+            this.criteri = criteri;
+            this.da = da;
+            this.a = a;
+        }
+
+        @Override
+        protected Parziale compute() {
+            if (a - da <= DIMENSIONE_BLOCCO) {
+                return Parziale.valuta(annunci, criteri, da, a);
+            }
+            int meta = (da + a) >>> 1;
+            TaskFiltro sinistra = new TaskFiltro(annunci, criteri, da, meta);
+            sinistra.fork();
+            Parziale destra = new TaskFiltro(annunci, criteri, meta, a).compute();
+            return sinistra.join().unisci(destra);
+        }
+    }
+
+    // ========== BENCHMARK ==========
+
+    /**
+     * Confronta il percorso sequenziale e quello parallelo su cataloghi sintetici
+     * (ricerca testuale più filtro di tipologia, ordinamento per prezzo)
+     *
+     * @param ripetizioni misurazioni per dimensione, dopo altrettante di riscaldamento
+     * @param dimensioni numero di annunci dei cataloghi da provare (es. 10_000, 100_000, 1_000_000)
+     * @return report con tempo medio per percorso e speedup
+     */
+    public static String testPrestazioni(int ripetizioni, int... dimensioni) {
+        StringBuilder report = new StringBuilder(String.format(
+            "🔎 MotoreFiltri - %d thread nel pool comune, soglia parallelo: %d",
+            ForkJoinPool.commonPool().getParallelism(), SOGLIA_PARALLELO));
+        Criteri criteri = new Criteri(null, Tipologia.VENDITA, "libro");
+        OrdinatoreAnnunci.Ordinamento perPrezzo = OrdinatoreAnnunci.Ordinamento.PREZZO_CRESCENTE;
+
+        for (int dimensione : dimensioni) {
+            List<Annuncio> catalogo = catalogoSintetico(dimensione);
+            for (int i = 0; i < ripetizioni; i++) {
+                filtra(catalogo, criteri, perPrezzo, Integer.MAX_VALUE, false);
+                filtra(catalogo, criteri, perPrezzo, Integer.MAX_VALUE, true);
+            }
+
+            long sequenziale = 0;
+            long parallelo = 0;
+            int trovati = 0;
+            for (int i = 0; i < ripetizioni; i++) {
+                long inizio = System.nanoTime();
+                trovati = filtra(catalogo, criteri, perPrezzo, Integer.MAX_VALUE, false).getTotale();
+                sequenziale += System.nanoTime() - inizio;
+
+                inizio = System.nanoTime();
+                int trovatiParallelo = filtra(catalogo, criteri, perPrezzo, Integer.MAX_VALUE, true).getTotale();
+                parallelo += System.nanoTime() - inizio;
+                if (trovatiParallelo != trovati) {
+                    return "Benchmark non valido: risultati diversi tra sequenziale e parallelo";
+                }
+            }
+
+            report.append(String.format(
+                "%n  %,9d annunci (%,d trovati): sequenziale %.2f ms, parallelo %.2f ms, speedup %.2fx",
+                dimensione, trovati, sequenziale / 1_000_000.0 / ripetizioni, parallelo / 1_000_000.0 / ripetizioni,
+                parallelo > 0 ? (double) sequenziale / parallelo : 0.0));
+        }
+        return report.toString();
+    }
+
+    static List<Annuncio> catalogoSintetico(int dimensione) {
+        Random random = new Random(42);
+        String[] parole = { "Libro", "Laptop", "Giacca", "Smartphone", "Chitarra", "Lampada", "Pallone", "Puzzle" };
+        LocalDateTime adesso = LocalDateTime.now();
+        List<Annuncio> catalogo = new ArrayList<>(dimensione);
+        for (int i = 0; i < dimensione; i++) {
+            String parola = parole[random.nextInt(parole.length)];
+            Oggetto oggetto = new Oggetto(parola + " " + i, "Descrizione di prova " + parola.toLowerCase(),
+                                          CATEGORIE[random.nextInt(CATEGORIE.length)]);
+            Annuncio annuncio = new Annuncio(oggetto, 1 + random.nextInt(500),
+                                             TIPOLOGIE[random.nextInt(TIPOLOGIE.length)], "Ritiro in sede", 1);
+            annuncio.setId(i + 1);
+            annuncio.setTitolo(oggetto.getNome());
+            annuncio.setDataPubblicazione(adesso.minusMinutes(random.nextInt(100_000)));
+            catalogo.add(annuncio);
+        }
+        return catalogo;
+    }
+}
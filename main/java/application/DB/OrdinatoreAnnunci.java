@@ -0,0 +1,224 @@
+package application.DB;
+
+import application.Classe.Annuncio;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ordinamento degli annunci su chiavi primitive, con selezione dei primi K
+ *
+ * <p>Il comparatore "recenti" faceva controlli sui null e {@code LocalDateTime.compareTo} a ogni
+ * confronto, e ogni filtraggio ordinava l'intera lista anche se la griglia ne mostra una pagina:
+ * <ul>
+ *   <li>la chiave di ogni annuncio (millisecondi della pubblicazione, prezzo in centesimi) è calcolata
+ *       una volta come {@code long}, già orientata in modo che l'ordine sia sempre crescente</li>
+ *   <li>{@link #primi} con K piccolo usa un heap limitato a K elementi: O(N log K) invece di O(N log N)</li>
+ *   <li>{@link #permutazione} restituisce gli indici ordinati (merge sort stabile sugli indici), che
+ *       l'indice a bitmap conserva tra un filtraggio e l'altro</li>
+ * </ul>
+ * A parità di chiave vince la posizione originale, come nell'ordinamento stabile precedente.
+ * </p>
+ */
+public final class OrdinatoreAnnunci {
+
+    /**
+     * Ordinamenti disponibili, con il codice usato dall'interfaccia
+     */
+    public enum Ordinamento {
+        RECENTI("recent"), PREZZO_CRESCENTE("price_asc"), PREZZO_DECRESCENTE("price_desc");
+
+        private final String codice;
+
+        Ordinamento(String codice) {
+            this.codice = codice;
+        }
+
+        /**
+         * @return l'ordinamento con quel codice; RECENTI se null o sconosciuto
+         */
+        public static Ordinamento daCodice(String codice) {
+            for (Ordinamento ordinamento : values()) {
+                if (ordinamento.codice.equals(codice)) {
+                    return ordinamento;
+                }
+            }
+            return RECENTI;
+        }
+    }
+
+    private OrdinatoreAnnunci() {
+    }
+
+    // ========== CHIAVI ==========
+
+    /**
+     * Chiave primitiva dell'annuncio: ordinando le chiavi in modo crescente si ottiene l'ordinamento richiesto.
+     * Gli annunci senza data di pubblicazione vanno in fondo ai recenti.
+     */
+    public static long chiave(Annuncio annuncio, Ordinamento ordinamento) {
+        switch (ordinamento) {
+            case PREZZO_CRESCENTE:
+                return Math.round(annuncio.getPrezzo() * 100);
+            case PREZZO_DECRESCENTE:
+                return -Math.round(annuncio.getPrezzo() * 100);
+            case RECENTI:
+            default:
+                LocalDateTime data = annuncio.getDataPubblicazione();
+                if (data == null) {
+                    return Long.MAX_VALUE;
+                }
+                return -(data.toEpochSecond(ZoneOffset.UTC) * 1000 + data.getNano() / 1_000_000);
+        }
+    }
+
+    static long[] chiavi(List<Annuncio> annunci, Ordinamento ordinamento) {
+        long[] chiavi = new long[annunci.size()];
+        for (int i = 0; i < chiavi.length; i++) {
+            chiavi[i] = chiave(annunci.get(i), ordinamento);
+        }
+        return chiavi;
+    }
+
+    // ========== ORDINAMENTO ==========
+
+    /**
+     * Primi {@code k} annunci secondo l'ordinamento; con k maggiore o uguale alla dimensione è un ordinamento completo
+     */
+    public static List<Annuncio> primi(List<Annuncio> annunci, Ordinamento ordinamento, int k) {
+        int n = annunci.size();
+        int limite = Math.min(Math.max(k, 0), n);
+        long[] chiavi = chiavi(annunci, ordinamento);
+
+        int[] ordine;
+        if (limite < n / 4) {
+            ordine = selezionaPrimi(chiavi, limite);
+        } else {
+            ordine = permutazione(chiavi);
+        }
+
+        List<Annuncio> risultato = new ArrayList<>(limite);
+        for (int i = 0; i < limite; i++) {
+            risultato.add(annunci.get(ordine[i]));
+        }
+        return risultato;
+    }
+
+    /**
+     * Indici 0..n-1 ordinati per chiave crescente, a parità di chiave per indice crescente
+     */
+    static int[] permutazione(long[] chiavi) {
+        int[] indici = new int[chiavi.length];
+        for (int i = 0; i < indici.length; i++) {
+            indici[i] = i;
+        }
+        mergeSort(indici, new int[indici.length], chiavi, 0, indici.length);
+        return indici;
+    }
+
+    private static void mergeSort(int[] indici, int[] appoggio, long[] chiavi, int da, int a) {
+        if (a - da <= 16) {
+            // Insertion sort sui blocchi piccoli (stabile)
+            for (int i = da + 1; i < a; i++) {
+                int corrente = indici[i];
+                int j = i - 1;
+                while (j >= da && precede(corrente, indici[j], chiavi)) {
+                    indici[j + 1] = indici[j];
+                    j--;
+                }
+                indici[j + 1] = corrente;
+            }
+            return;
+        }
+        int meta = (da + a) >>> 1;
+        mergeSort(indici, appoggio, chiavi, da, meta);
+        mergeSort(indici, appoggio, chiavi, meta, a);
+        if (!precede(indici[meta], indici[meta - 1], chiavi)) {
+            return;
+        }
+        System.arraycopy(indici, da, appoggio, da, a - da);
+        int i = da, j = meta, k = da;
+        while (i < meta && j < a) {
+            indici[k++] = precede(appoggio[j], appoggio[i], chiavi) ? appoggio[j++] : appoggio[i++];
+        }
+        while (i < meta) {
+            indici[k++] = appoggio[i++];
+        }
+        while (j < a) {
+            indici[k++] = appoggio[j++];
+        }
+    }
+
+    /**
+     * Indici dei {@code k} elementi con chiave minore, già ordinati; heap massimo limitato a k elementi
+     */
+    static int[] selezionaPrimi(long[] chiavi, int k) {
+        if (k == 0) {
+            return new int[0];
+        }
+        int[] heap = new int[k];
+        int dimensione = 0;
+        for (int i = 0; i < chiavi.length; i++) {
+            if (dimensione < k) {
+                heap[dimensione] = i;
+                risali(heap, dimensione++, chiavi);
+            } else if (precede(i, heap[0], chiavi)) {
+                heap[0] = i;
+                scendi(heap, 0, k, chiavi);
+            }
+        }
+        // Estrazione dal massimo: l'array risulta ordinato in modo crescente
+        for (int fine = dimensione - 1; fine > 0; fine--) {
+            int massimo = heap[0];
+            heap[0] = heap[fine];
+            heap[fine] = massimo;
+            scendi(heap, 0, fine, chiavi);
+        }
+        return heap;
+    }
+
+    private static void risali(int[] heap, int posizione, long[] chiavi) {
+        while (posizione > 0) {
+            int padre = (posizione - 1) >>> 1;
+            if (!precede(heap[padre], heap[posizione], chiavi)) {
+                return;
+            }
+            scambia(heap, padre, posizione);
+            posizione = padre;
+        }
+    }
+
+    private static void scendi(int[] heap, int posizione, int dimensione, long[] chiavi) {
+        while (true) {
+            int maggiore = posizione;
+            int sinistro = 2 * posizione + 1;
+            int destro = sinistro + 1;
+            if (sinistro < dimensione && precede(heap[maggiore], heap[sinistro], chiavi)) {
+                maggiore = sinistro;
+            }
+            if (destro < dimensione && precede(heap[maggiore], heap[destro], chiavi)) {
+                maggiore = destro;
+            }
+            if (maggiore == posizione) {
+                return;
+            }
+            scambia(heap, posizione, maggiore);
+            posizione = maggiore;
+        }
+    }
+
+    private static void scambia(int[] array, int i, int j) {
+        int temporaneo = array[i];
+        array[i] = array[j];
+        array[j] = temporaneo;
+    }
+
+    /**
+     * Ordine totale: chiave, poi indice originale
+     */
+    private static boolean precede(int a, int b, long[] chiavi) {
+        return chiavi[a] < chiavi[b] || (chiavi[a] == chiavi[b] && a < b);
+    }
+}
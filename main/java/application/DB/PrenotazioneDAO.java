@@ -0,0 +1,310 @@
+package application.DB;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prenotazione atomica degli annunci durante l'acquisto
+ * Impedisce che due acquirenti concorrenti paghino lo stesso annuncio
+ *
+ * <p><b>Funzionamento:</b>
+ * <ul>
+ *   <li>La prenotazione è una riga di {@code prenotazione_annuncio} con scadenza; una prenotazione
+ *       scaduta equivale a un annuncio libero</li>
+ *   <li>Il claim è una sola istruzione: blocca la riga dell'annuncio con {@code FOR UPDATE SKIP LOCKED},
+ *       così chi perde la corsa riceve subito un rifiuto invece di restare in attesa</li>
+ *   <li>Al commit del checkout la prenotazione viene confermata e scade insieme al codice di conferma
+ *       ({@value CodiceDAO#GIORNI_VALIDITA} giorni): una vendita mai conclusa libera l'annuncio</li>
+ *   <li>Alla consegna (codice verificato) la prenotazione viene eliminata</li>
+ *   <li>Le prenotazioni scadute, confermate o no, vengono rimosse a lotti, al più una volta al minuto</li>
+ * </ul>
+ * </p>
+ */
+public class PrenotazioneDAO {
+    private static final String TABLE_NAME = "prenotazione_annuncio";
+
+    /** Durata della prenotazione mentre l'acquirente completa il checkout */
+    private static final int DURATA_PRENOTAZIONE_MINUTI = 10;
+
+    /** Righe rimosse per ogni istruzione di pulizia */
+    private static final int LOTTO_PULIZIA = 500;
+    private static final long INTERVALLO_PULIZIA_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final AtomicLong PROSSIMA_PULIZIA = new AtomicLong(System.nanoTime());
+
+    /** Lo schema viene verificato una sola volta per processo, non a ogni istanza del DAO */
+    private static volatile boolean schemaVerificato = false;
+
+    public PrenotazioneDAO() {
+        if (!schemaVerificato) {
+            creaTabellaSeMancante();
+        }
+    }
+
+    private static synchronized void creaTabellaSeMancante() {
+        if (schemaVerificato) {
+            return;
+        }
+        String sql = "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
+                "annuncio_id INTEGER PRIMARY KEY REFERENCES annuncio(id) ON DELETE CASCADE, " +
+                "acquirente_id INTEGER NOT NULL REFERENCES utente(id) ON DELETE CASCADE, " +
+                "scadenza TIMESTAMP NOT NULL, " +
+                "confermata BOOLEAN NOT NULL DEFAULT FALSE)";
+        // Anche le prenotazioni confermate scadono: l'indice parziale sulle sole non confermate non basta più
+        String sqlIndiceParziale = "DROP INDEX IF EXISTS idx_prenotazione_scadenza";
+        String sqlIndice = "CREATE INDEX IF NOT EXISTS idx_prenotazione_scadenza_tutte ON " + TABLE_NAME + " (scadenza)";
+        try (Connection conn = ConnessioneDB.getConnessione();
+             Statement stmt = conn.createStatement()) {
+            stmt.execute(sql);
+            stmt.execute(sqlIndiceParziale);
+            stmt.execute(sqlIndice);
+            schemaVerificato = true;
+        } catch (SQLException e) {
+            System.err.println("Errore nella creazione della tabella " + TABLE_NAME + ": " + e.getMessage());
+        }
+    }
+
+    // ========== PRENOTAZIONE ==========
+
+    /**
+     * Prenota atomicamente gli annunci per l'acquirente.
+     * Un annuncio è prenotabile se attivo, non suo, e libero (nessuna prenotazione o prenotazione scaduta,
+     * anche se confermata) o già prenotato senza conferma dallo stesso acquirente (così un retry rinnova
+     * la propria prenotazione). Se un altro acquirente sta prenotando
+     * lo stesso annuncio in questo istante, l'annuncio viene saltato senza attendere.
+     *
+     * @return gli id degli annunci effettivamente prenotati
+     */
+    public Set<Integer> prenota(int acquirenteId, Integer[] annunci) {
+        pulisciSeNecessario();
+
+        String sql = "WITH liberi AS (" +
+                     "  SELECT a.id FROM annuncio a " +
+                     "  LEFT JOIN " + TABLE_NAME + " p ON p.annuncio_id = a.id " +
+                     "  WHERE a.id = ANY(?) AND a.stato = 'ATTIVO' AND a.venditore_id <> ? " +
+                     "    AND (p.annuncio_id IS NULL OR p.scadenza < now() OR (NOT p.confermata AND p.acquirente_id = ?)) " +
+                     "  ORDER BY a.id FOR UPDATE OF a SKIP LOCKED" +
+                     ") INSERT INTO " + TABLE_NAME + " (annuncio_id, acquirente_id, scadenza) " +
+                     "SELECT id, ?, now() + make_interval(mins => ?) FROM liberi " +
+                     // Ricontrollo sulla versione più recente della riga: lo snapshot di 'liberi' può precedere
+                     // il commit di un altro acquirente
+                     "ON CONFLICT (annuncio_id) DO UPDATE SET acquirente_id = EXCLUDED.acquirente_id, " +
+                     "  scadenza = EXCLUDED.scadenza, confermata = FALSE " +
+                     "WHERE " + TABLE_NAME + ".scadenza < now() " +
+                     "  OR (NOT " + TABLE_NAME + ".confermata AND " + TABLE_NAME + ".acquirente_id = EXCLUDED.acquirente_id) " +
+                     "RETURNING annuncio_id";
+
+        Set<Integer> prenotati = new HashSet<>();
+        try (Connection conn = ConnessioneDB.getConnessione();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setArray(1, conn.createArrayOf("integer", annunci));
+            stmt.setInt(2, acquirenteId);
+            stmt.setInt(3, acquirenteId);
+            stmt.setInt(4, acquirenteId);
+            stmt.setInt(5, DURATA_PRENOTAZIONE_MINUTI);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    prenotati.add(rs.getInt("annuncio_id"));
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println("Errore nella prenotazione degli annunci: " + e.getMessage());
+        }
+        return prenotati;
+    }
+
+    /**
+     * Rilascia le prenotazioni non confermate dell'acquirente (checkout rifiutato o annullato)
+     */
+    public int rilascia(int acquirenteId, Integer[] annunci) {
+        String sql = "DELETE FROM " + TABLE_NAME + " WHERE acquirente_id = ? AND annuncio_id = ANY(?) AND NOT confermata";
+
+        try (Connection conn = ConnessioneDB.getConnessione();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setInt(1, acquirenteId);
+            stmt.setArray(2, conn.createArrayOf("integer", annunci));
+            return stmt.executeUpdate();
+        } catch (SQLException e) {
+            System.err.println("Errore nel rilascio delle prenotazioni: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Conferma le prenotazioni ancora valide dell'acquirente sulla connessione del checkout.
+     * Una prenotazione confermata dura quanto il codice di conferma: l'annuncio resta dell'acquirente fino
+     * alla consegna o, se la vendita non si conclude, fino alla scadenza del codice.
+     *
+     * @return numero di prenotazioni confermate; minore degli annunci richiesti se qualcuna è scaduta
+     *         ed è stata presa da un altro acquirente
+     */
+    int conferma(Connection conn, int acquirenteId, Integer[] annunci) throws SQLException {
+        String sql = "UPDATE " + TABLE_NAME + " SET confermata = TRUE, scadenza = now() + make_interval(days => ?) " +
+                     "WHERE acquirente_id = ? AND annuncio_id = ANY(?) AND NOT confermata AND scadenza > now()";
+
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setInt(1, CodiceDAO.GIORNI_VALIDITA);
+            stmt.setInt(2, acquirenteId);
+            stmt.setArray(3, conn.createArrayOf("integer", annunci));
+            return stmt.executeUpdate();
+        }
+    }
+
+    /**
+     * Elimina la prenotazione dell'annuncio a vendita conclusa; dentro una {@link UnitaDiLavoro}
+     * usa la sua connessione
+     */
+    void elimina(int annuncioId) throws SQLException {
+        String sql = "DELETE FROM " + TABLE_NAME + " WHERE annuncio_id = ?";
+
+        try (Connection conn = ConnessioneDB.getConnessione();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setInt(1, annuncioId);
+            stmt.executeUpdate();
+        }
+    }
+
+    // ========== PULIZIA ==========
+
+    /**
+     * Rimuove le prenotazioni scadute a lotti (anche quelle confermate il cui codice è scaduto),
+     * saltando le righe bloccate da un claim in corso
+     *
+     * @return numero di prenotazioni rimosse
+     */
+    public int rimuoviPrenotazioniScadute() {
+        String sql = "DELETE FROM " + TABLE_NAME + " WHERE annuncio_id IN (" +
+                     "  SELECT annuncio_id FROM " + TABLE_NAME + " WHERE scadenza < now() " +
+                     "  LIMIT ? FOR UPDATE SKIP LOCKED)";
+
+        int totale = 0;
+        try (Connection conn = ConnessioneDB.getConnessione();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            int rimosse;
+            do {
+                stmt.setInt(1, LOTTO_PULIZIA);
+                rimosse = stmt.executeUpdate();
+                totale += rimosse;
+            } while (rimosse == LOTTO_PULIZIA);
+        } catch (SQLException e) {
+            System.err.println("Errore nella pulizia delle prenotazioni scadute: " + e.getMessage());
+        }
+        return totale;
+    }
+
+    /**
+     * Pulizia eseguita al più una volta al minuto, dal thread che vince il CAS sulla scadenza
+     */
+    private void pulisciSeNecessario() {
+        long adesso = System.nanoTime();
+        long scadenza = PROSSIMA_PULIZIA.get();
+        if (adesso < scadenza || !PROSSIMA_PULIZIA.compareAndSet(scadenza, adesso + INTERVALLO_PULIZIA_NANOS)) {
+            return;
+        }
+        rimuoviPrenotazioniScadute();
+    }
+
+    // ========== BENCHMARK ==========
+
+    /**
+     * Simula una vendita lampo: molti acquirenti tentano di prenotare lo stesso annuncio nello stesso istante.
+     * Verifica che vinca esattamente un acquirente e misura la latenza dei tentativi; al termine
+     * la prenotazione di prova viene rilasciata.
+     *
+     * <p>Le connessioni concorrenti vanno tenute sotto {@code max_connections} di PostgreSQL
+     * (100 di default): gli acquirenti vengono distribuiti su quel numero di thread.</p>
+     *
+     * @param annuncioId annuncio attivo e non prenotato da usare per la prova
+     * @param acquirenti numero di acquirenti simulati (es. 200)
+     * @param connessioniConcorrenti thread e connessioni usati contemporaneamente
+     * @return report con vincitori, latenza p50/p99 e durata complessiva
+     */
+    public String testVenditaLampo(int annuncioId, int acquirenti, int connessioniConcorrenti) {
+        List<Integer> utenti = leggiAcquirentiDiProva(annuncioId, acquirenti);
+        if (utenti.isEmpty()) {
+            return "❌ Nessun utente disponibile per la prova";
+        }
+
+        Integer[] annuncio = { annuncioId };
+        Set<Integer> vincitori = ConcurrentHashMap.newKeySet();
+        long[] latenze = new long[acquirenti];
+        CountDownLatch partenza = new CountDownLatch(1);
+        ExecutorService esecutore = Executors.newFixedThreadPool(connessioniConcorrenti);
+
+        for (int i = 0; i < acquirenti; i++) {
+            final int indice = i;
+            final int acquirenteId = utenti.get(i % utenti.size());
+            esecutore.execute(() -> {
+                try {
+                    partenza.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                long inizio = System.nanoTime();
+                if (!prenota(acquirenteId, annuncio).isEmpty()) {
+                    vincitori.add(acquirenteId);
+                }
+                latenze[indice] = System.nanoTime() - inizio;
+            });
+        }
+
+        long inizio = System.nanoTime();
+        partenza.countDown();
+        esecutore.shutdown();
+        try {
+            esecutore.awaitTermination(5, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "Benchmark interrotto";
+        }
+        long durata = System.nanoTime() - inizio;
+
+        for (int vincitore : vincitori) {
+            rilascia(vincitore, annuncio);
+        }
+
+        Arrays.sort(latenze);
+        boolean corretto = vincitori.size() == 1;
+        return String.format(
+            "%s Vendita lampo annuncio %d: %d acquirenti (%d distinti) su %d connessioni, vincitori distinti: %d - " +
+            "latenza p50 %.2f ms, p99 %.2f ms, max %.2f ms - durata %.1f ms",
+            corretto ? "✅" : "❌", annuncioId, acquirenti, utenti.size(), connessioniConcorrenti, vincitori.size(),
+            latenze[latenze.length / 2] / 1_000_000.0,
+            latenze[(int) Math.min(latenze.length - 1, Math.ceil(latenze.length * 0.99) - 1)] / 1_000_000.0,
+            latenze[latenze.length - 1] / 1_000_000.0,
+            durata / 1_000_000.0);
+    }
+
+    /**
+     * Utenti reali diversi dal venditore da usare come acquirenti nella prova
+     */
+    private List<Integer> leggiAcquirentiDiProva(int annuncioId, int limite) {
+        String sql = "SELECT u.id FROM utente u WHERE u.id <> (SELECT venditore_id FROM annuncio WHERE id = ?) " +
+                     "ORDER BY u.id LIMIT ?";
+        List<Integer> utenti = new ArrayList<>();
+
+        try (Connection conn = ConnessioneDB.getConnessione();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setInt(1, annuncioId);
+            stmt.setInt(2, limite);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    utenti.add(rs.getInt("id"));
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println("Errore nel recupero degli utenti di prova: " + e.getMessage());
+        }
+        return utenti;
+    }
+}
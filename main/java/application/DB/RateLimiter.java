@@ -0,0 +1,392 @@
+package application.DB;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Limitatore di frequenza per utente applicato al confine dei DAO
+ * Impedisce a un singolo client di saturare il database con operazioni ripetute in loop
+ *
+ * <p><b>Funzionamento:</b>
+ * <ul>
+ *   <li>Token bucket per (operazione, utente) implementato come GCRA: lo stato è un solo
+ *       {@code long} (istante teorico di arrivo) aggiornato con CAS, senza lock; per gli id utente
+ *       è una cella di un array di {@code long}, quindi il controllo non alloca</li>
+ *   <li>Capacità e ricarica configurabili per operazione, anche via proprietà di sistema
+ *       {@code swapunina.limite.NOME_OPERAZIONE=capacita:richiesteAlMinuto}</li>
+ *   <li>I bucket inattivi delle chiavi testuali (completamente ricaricati) vengono rimossi periodicamente</li>
+ *   <li>Metriche di richieste consentite e rifiutate per operazione</li>
+ * </ul>
+ * </p>
+ */
+public final class RateLimiter {
+
+    /**
+     * Operazioni limitate con la configurazione predefinita
+     */
+    public enum Operazione {
+        INVIO_MESSAGGIO(20, 60),
+        INSERIMENTO_ANNUNCIO(5, 10),
+        AGGIUNTA_CARRELLO(30, 120),
+        VERIFICA_CODICE(10, 20),
+        TENTATIVO_LOGIN(5, 5);
+
+        private final int capacitaPredefinita;
+        private final int richiesteAlMinutoPredefinite;
+
+        Operazione(int capacita, int richiesteAlMinuto) {
+            this.capacitaPredefinita = capacita;
+            this.richiesteAlMinutoPredefinite = richiesteAlMinuto;
+        }
+    }
+
+    /** Configurazione immutabile di un bucket: intervallo tra token e tolleranza di burst */
+    private static final class Configurazione {
+        final long intervalloNanos;
+        final long tolleranzaNanos;
+
+        Configurazione(int capacita, int richiesteAlMinuto) {
+            if (capacita <= 0 || richiesteAlMinuto <= 0) {
+                throw new IllegalArgumentException("Capacità e frequenza devono essere positive");
+            }
+            this.intervalloNanos = TimeUnit.MINUTES.toNanos(1) / richiesteAlMinuto;
+            this.tolleranzaNanos = intervalloNanos * (capacita - 1);
+        }
+    }
+
+    /** Metriche per operazione */
+    private static final class Metriche {
+        final AtomicLong consentite = new AtomicLong();
+        final AtomicLong rifiutate = new AtomicLong();
+    }
+
+    /**
+     * Bucket e metriche di tutte le operazioni. Il limitatore usa un'istanza globale;
+     * il benchmark ne crea una privata per non toccare i bucket reali.
+     */
+    private static final class Registro {
+        /** Chiavi generiche (es. email) e id utente fuori dalle pagine */
+        final Map<Operazione, ConcurrentHashMap<Object, AtomicLong>> bucket = new EnumMap<>(Operazione.class);
+        /** Id utente in pagine di {@code long} allocate al primo uso: nessun boxing della chiave */
+        final Map<Operazione, AtomicReferenceArray<AtomicLongArray>> perId = new EnumMap<>(Operazione.class);
+        final Map<Operazione, Metriche> metriche = new EnumMap<>(Operazione.class);
+        final AtomicLong prossimaPulizia = new AtomicLong(System.nanoTime() + INTERVALLO_PULIZIA_NANOS);
+
+        Registro() {
+            for (Operazione op : Operazione.values()) {
+                bucket.put(op, new ConcurrentHashMap<>());
+                perId.put(op, new AtomicReferenceArray<>(NUMERO_PAGINE));
+                metriche.put(op, new Metriche());
+            }
+        }
+
+        boolean consenti(Operazione op, int utenteId) {
+            if (utenteId < 0 || utenteId >= NUMERO_PAGINE * DIMENSIONE_PAGINA) {
+                return consenti(op, (Object) utenteId);
+            }
+            long adesso = System.nanoTime();
+            Configurazione conf = CONFIGURAZIONI.get(op);
+            AtomicLongArray pagina = pagina(perId.get(op), utenteId / DIMENSIONE_PAGINA);
+            int cella = utenteId % DIMENSIONE_PAGINA;
+
+            boolean consentita;
+            while (true) {
+                long tat = pagina.get(cella);
+                long base = tat == VUOTO ? adesso : Math.max(tat, adesso);
+                if (base - adesso > conf.tolleranzaNanos) {
+                    consentita = false;
+                    break;
+                }
+                if (pagina.compareAndSet(cella, tat, base + conf.intervalloNanos)) {
+                    consentita = true;
+                    break;
+                }
+            }
+            registra(op, consentita);
+            return consentita;
+        }
+
+        boolean consenti(Operazione op, Object chiave) {
+            long adesso = System.nanoTime();
+            Configurazione conf = CONFIGURAZIONI.get(op);
+            ConcurrentHashMap<Object, AtomicLong> perChiave = bucket.get(op);
+
+            boolean consentita;
+            while (true) {
+                AtomicLong arrivoTeorico = perChiave.computeIfAbsent(chiave, id -> new AtomicLong(adesso));
+                long tat = arrivoTeorico.get();
+                if (tat == VUOTO) {
+                    // Bucket appena rimosso dalla pulizia: se ne crea uno nuovo
+                    perChiave.remove(chiave, arrivoTeorico);
+                    continue;
+                }
+                long base = Math.max(tat, adesso);
+                if (base - adesso > conf.tolleranzaNanos) {
+                    consentita = false;
+                    break;
+                }
+                if (arrivoTeorico.compareAndSet(tat, base + conf.intervalloNanos)) {
+                    consentita = true;
+                    break;
+                }
+            }
+            registra(op, consentita);
+            pulisciSeNecessario(adesso);
+            return consentita;
+        }
+
+        boolean isLimitato(Operazione op, Object chiave) {
+            AtomicLong arrivoTeorico = bucket.get(op).get(chiave);
+            if (arrivoTeorico == null) {
+                return false;
+            }
+            long tat = arrivoTeorico.get();
+            return tat != VUOTO && tat - System.nanoTime() > CONFIGURAZIONI.get(op).tolleranzaNanos;
+        }
+
+        private void registra(Operazione op, boolean consentita) {
+            Metriche m = metriche.get(op);
+            if (consentita) {
+                m.consentite.incrementAndGet();
+            } else {
+                m.rifiutate.incrementAndGet();
+            }
+        }
+
+        /**
+         * Rimuove i bucket ormai completamente ricaricati: per loro l'assenza equivale allo stato pieno.
+         * Eseguita al più una volta al minuto, dal thread che vince il CAS sulla scadenza.
+         * Un bucket viene marcato come vuoto con un CAS sul valore letto, quindi non si perde un
+         * aggiornamento concorrente: se {@code consenti} lo ha appena modificato, il CAS fallisce e resta.
+         */
+        private void pulisciSeNecessario(long adesso) {
+            long scadenza = prossimaPulizia.get();
+            if (adesso < scadenza || !prossimaPulizia.compareAndSet(scadenza, adesso + INTERVALLO_PULIZIA_NANOS)) {
+                return;
+            }
+            for (ConcurrentHashMap<Object, AtomicLong> perChiave : bucket.values()) {
+                for (Map.Entry<Object, AtomicLong> voce : perChiave.entrySet()) {
+                    AtomicLong arrivoTeorico = voce.getValue();
+                    long visto = arrivoTeorico.get();
+                    if (visto != VUOTO && visto <= adesso && arrivoTeorico.compareAndSet(visto, VUOTO)) {
+                        perChiave.remove(voce.getKey(), arrivoTeorico);
+                    }
+                }
+            }
+        }
+
+        private static AtomicLongArray pagina(AtomicReferenceArray<AtomicLongArray> pagine, int indice) {
+            AtomicLongArray pagina = pagine.get(indice);
+            if (pagina == null) {
+                AtomicLongArray nuova = new AtomicLongArray(DIMENSIONE_PAGINA);
+                for (int i = 0; i < DIMENSIONE_PAGINA; i++) {
+                    nuova.set(i, VUOTO);
+                }
+                pagina = pagine.compareAndSet(indice, null, nuova) ? nuova : pagine.get(indice);
+            }
+            return pagina;
+        }
+
+        int getBucketAttivi() {
+            int totale = 0;
+            for (ConcurrentHashMap<Object, AtomicLong> perChiave : bucket.values()) {
+                totale += perChiave.size();
+            }
+            long adesso = System.nanoTime();
+            for (AtomicReferenceArray<AtomicLongArray> pagine : perId.values()) {
+                for (int p = 0; p < pagine.length(); p++) {
+                    AtomicLongArray pagina = pagine.get(p);
+                    for (int i = 0; pagina != null && i < DIMENSIONE_PAGINA; i++) {
+                        long tat = pagina.get(i);
+                        if (tat != VUOTO && tat > adesso) {
+                            totale++;
+                        }
+                    }
+                }
+            }
+            return totale;
+        }
+    }
+
+    private static final String PREFISSO_PROPRIETA = "swapunina.limite.";
+    private static final long INTERVALLO_PULIZIA_NANOS = TimeUnit.MINUTES.toNanos(1);
+    /** Stato di un bucket assente o rimosso; nanoTime può essere negativo, quindi non si usa 0 */
+    private static final long VUOTO = Long.MIN_VALUE;
+    private static final int DIMENSIONE_PAGINA = 1_024;
+    /** Id utente da 0 a NUMERO_PAGINE * DIMENSIONE_PAGINA - 1 usano le pagine, gli altri la mappa */
+    private static final int NUMERO_PAGINE = 1_024;
+
+    private static final Map<Operazione, Configurazione> CONFIGURAZIONI = new ConcurrentHashMap<>();
+    private static final Registro GLOBALE;
+
+    private static volatile boolean ABILITATO = true;
+
+    static {
+        for (Operazione op : Operazione.values()) {
+            CONFIGURAZIONI.put(op, leggiConfigurazione(op));
+        }
+        GLOBALE = new Registro();
+    }
+
+    private RateLimiter() {
+    }
+
+    /**
+     * Legge la configurazione dalle proprietà di sistema, con fallback ai valori predefiniti
+     */
+    private static Configurazione leggiConfigurazione(Operazione op) {
+        String valore = System.getProperty(PREFISSO_PROPRIETA + op.name());
+        if (valore != null) {
+            try {
+                String[] parti = valore.split(":");
+                return new Configurazione(Integer.parseInt(parti[0].trim()), Integer.parseInt(parti[1].trim()));
+            } catch (RuntimeException e) {
+                System.err.println("⚠️ Configurazione limite non valida per " + op + ": " + valore);
+            }
+        }
+        return new Configurazione(op.capacitaPredefinita, op.richiesteAlMinutoPredefinite);
+    }
+
+    // ========== API PRINCIPALE ==========
+
+    /**
+     * Consuma un token per l'operazione dell'utente
+     *
+     * @param op operazione da eseguire
+     * @param utenteId utente che la richiede
+     * @return true se l'operazione è consentita, false se l'utente ha superato il limite
+     */
+    public static boolean consenti(Operazione op, int utenteId) {
+        return !ABILITATO || GLOBALE.consenti(op, utenteId);
+    }
+
+    /**
+     * Consuma un token per l'operazione su una chiave qualsiasi (es. l'email di un tentativo di login,
+     * quando l'utente non è ancora identificato)
+     *
+     * @return true se l'operazione è consentita, false se la chiave ha superato il limite
+     */
+    public static boolean consenti(Operazione op, String chiave) {
+        return !ABILITATO || GLOBALE.consenti(op, (Object) chiave);
+    }
+
+    /**
+     * Verifica senza consumare token se la chiave ha esaurito il limite dell'operazione
+     *
+     * @return true se la prossima richiesta sarebbe rifiutata
+     */
+    public static boolean isLimitato(Operazione op, String chiave) {
+        return ABILITATO && GLOBALE.isLimitato(op, chiave);
+    }
+
+    // ========== CONFIGURAZIONE ==========
+
+    /**
+     * Modifica a runtime il limite di un'operazione
+     *
+     * @param capacita numero massimo di richieste consecutive (burst)
+     * @param richiesteAlMinuto frequenza di ricarica sostenuta
+     */
+    public static void configura(Operazione op, int capacita, int richiesteAlMinuto) {
+        CONFIGURAZIONI.put(op, new Configurazione(capacita, richiesteAlMinuto));
+    }
+
+    /**
+     * Abilita o disabilita globalmente il limitatore
+     */
+    public static void setAbilitato(boolean abilitato) {
+        ABILITATO = abilitato;
+    }
+
+    // ========== METRICHE ==========
+
+    public static long getConsentite(Operazione op) {
+        return GLOBALE.metriche.get(op).consentite.get();
+    }
+
+    public static long getRifiutate(Operazione op) {
+        return GLOBALE.metriche.get(op).rifiutate.get();
+    }
+
+    /**
+     * Numero di bucket attualmente tenuti in memoria
+     */
+    public static int getBucketAttivi() {
+        return GLOBALE.getBucketAttivi();
+    }
+
+    /**
+     * Azzera bucket e metriche (utile per test)
+     */
+    public static void resetta() {
+        for (Operazione op : Operazione.values()) {
+            GLOBALE.bucket.get(op).clear();
+            GLOBALE.perId.put(op, new AtomicReferenceArray<>(NUMERO_PAGINE));
+            GLOBALE.metriche.get(op).consentite.set(0);
+            GLOBALE.metriche.get(op).rifiutate.set(0);
+        }
+    }
+
+    /**
+     * Ottiene un report delle statistiche correnti
+     */
+    public static String getReportStatistiche() {
+        StringBuilder report = new StringBuilder("🚦 Statistiche Rate Limiter - Bucket attivi: ")
+            .append(getBucketAttivi());
+        for (Operazione op : Operazione.values()) {
+            report.append(", ").append(op).append(": ")
+                  .append(getConsentite(op)).append(" ok / ")
+                  .append(getRifiutate(op)).append(" rifiutate");
+        }
+        return report.toString();
+    }
+
+    // ========== BENCHMARK ==========
+
+    /**
+     * Misura il costo di un controllo simulando più thread su molti utenti distinti.
+     * Usa bucket e metriche privati: i limiti e le statistiche degli utenti reali non vengono toccati.
+     *
+     * @param controlli numero totale di controlli da eseguire
+     * @param numeroThread thread concorrenti
+     * @param utentiDistinti numero di utenti simulati
+     * @return report con throughput e costo medio per controllo
+     */
+    public static String testPrestazioni(int controlli, int numeroThread, int utentiDistinti) {
+        Registro registro = new Registro();
+        Thread[] thread = new Thread[numeroThread];
+        int perThread = controlli / numeroThread;
+
+        long inizio = System.nanoTime();
+        for (int t = 0; t < numeroThread; t++) {
+            final int offset = t;
+            thread[t] = new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    registro.consenti(Operazione.AGGIUNTA_CARRELLO, (offset + i * numeroThread) % utentiDistinti + 1);
+                }
+            });
+            thread[t].start();
+        }
+        for (Thread th : thread) {
+            try {
+                th.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return "Benchmark interrotto";
+            }
+        }
+        long durata = System.nanoTime() - inizio;
+
+        long eseguiti = (long) perThread * numeroThread;
+        return String.format(
+            "⚡ RateLimiter: %d controlli su %d thread e %d utenti in %.1f ms - %.0f controlli/s, %.0f ns/controllo (rifiutati: %d)",
+            eseguiti, numeroThread, utentiDistinti, durata / 1_000_000.0,
+            eseguiti * 1_000_000_000.0 / durata, (double) durata * numeroThread / eseguiti,
+            registro.metriche.get(Operazione.AGGIUNTA_CARRELLO).rifiutate.get());
+    }
+}
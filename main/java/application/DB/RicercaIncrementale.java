@@ -0,0 +1,214 @@
+package application.DB;
+
+import application.Classe.Annuncio;
+import application.Enum.Categoria;
+import application.Enum.Tipologia;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Ricerca durante la digitazione (type-ahead) sul catalogo indicizzato
+ *
+ * <p>Digitando "cal", "calc", "calco"... ogni query più lunga trova un sottoinsieme della precedente:
+ * <ul>
+ *   <li>gli annunci il cui testo contiene la query vengono conservati; se la nuova query contiene la
+ *       precedente (stessa versione del catalogo) si filtrano solo quelli invece dell'intero catalogo</li>
+ *   <li>l'insieme conservato dipende solo dal testo, quindi resta valido anche cambiando categoria
+ *       o tipologia, e i conteggi per facet restano esatti</li>
+ *   <li>le richieste ravvicinate vengono accorpate: si calcola solo l'ultima dopo {@link #ATTESA_MS}
+ *       di pausa nella digitazione</li>
+ *   <li>una richiesta più recente annulla quella in corso: la scansione controlla la generazione
+ *       ogni {@link #BLOCCO_SCANSIONE} annunci e si interrompe se è stata superata</li>
+ *   <li>il risultato viene consegnato tramite l'esecutore indicato (il thread FX) e solo se nel
+ *       frattempo non è arrivata una query più recente</li>
+ * </ul>
+ * I risultati intermedi non passano dai trigger di {@link FilterManager}: sono un'anteprima, e il
+ * catalogo non viene modificato. Per questo sono memorizzati in una cache dell'indice separata da quella
+ * dei filtri confermati, che restano a carico di {@link FilterManager} (trigger e statistiche compresi).
+ * Se nessun annuncio contiene il testo vengono proposti i più simili ({@link IndiceAttributi#cercaSimili}).
+ * </p>
+ */
+public final class RicercaIncrementale {
+
+    /** Pausa nella digitazione (ms) dopo la quale la query viene calcolata */
+    static final long ATTESA_MS = Long.getLong("swapunina.ricerca.attesaMs", 150L);
+    private static final int BLOCCO_SCANSIONE = 4_096;
+
+    private final IndiceAttributi indice;
+    private final Executor consegna;
+    private final ScheduledExecutorService esecutore = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "ricerca-incrementale");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** Incrementata a ogni richiesta: un calcolo con generazione diversa è superato */
+    private final AtomicLong generazione = new AtomicLong();
+    private ScheduledFuture<?> programmata;
+
+    // Stato del raffinamento, usato solo dal thread di ricerca
+    private String ultimoTesto;
+    private List<Annuncio> corrispondenzeTesto;
+    private long versioneCorrispondenze = -1;
+
+    private final AtomicLong richieste = new AtomicLong();
+    private final AtomicLong calcolate = new AtomicLong();
+    private final AtomicLong raffinate = new AtomicLong();
+    private final AtomicLong daCache = new AtomicLong();
+    private final AtomicLong interrotte = new AtomicLong();
+    private final AtomicLong scartate = new AtomicLong();
+    private final AtomicLong simili = new AtomicLong();
+
+    /**
+     * @param indice indice del catalogo su cui cercare
+     * @param consegna esecutore su cui consegnare i risultati (per l'interfaccia, {@code Platform::runLater})
+     */
+    public RicercaIncrementale(IndiceAttributi indice, Executor consegna) {
+        this.indice = indice;
+        this.consegna = consegna;
+    }
+
+    // ========== API PRINCIPALE ==========
+
+    /**
+     * Programma la ricerca, sostituendo quella non ancora consegnata
+     *
+     * @param queryRicerca testo digitato (non vuoto)
+     * @param limite numero massimo di annunci ordinati da restituire
+     * @param destinatario riceve il risultato sull'esecutore di consegna, solo se è ancora il più recente
+     */
+    public synchronized void cerca(String queryRicerca, Categoria categoria, Tipologia tipologia,
+                                   String ordinamento, int limite, Consumer<MotoreFiltri.Risultato> destinatario) {
+        richieste.incrementAndGet();
+        long mia = generazione.incrementAndGet();
+        if (programmata != null) {
+            programmata.cancel(false);
+        }
+        programmata = esecutore.schedule(
+            () -> esegui(mia, queryRicerca, categoria, tipologia, OrdinatoreAnnunci.Ordinamento.daCodice(ordinamento),
+                         limite, destinatario),
+            ATTESA_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Annulla la ricerca programmata o in corso (ad esempio quando il campo viene svuotato)
+     */
+    public synchronized void annulla() {
+        generazione.incrementAndGet();
+        if (programmata != null) {
+            programmata.cancel(false);
+            programmata = null;
+        }
+    }
+
+    public void chiudi() {
+        annulla();
+        esecutore.shutdownNow();
+    }
+
+    // ========== CALCOLO ==========
+
+    private void esegui(long mia, String queryRicerca, Categoria categoria, Tipologia tipologia,
+                        OrdinatoreAnnunci.Ordinamento ordinamento, int limite,
+                        Consumer<MotoreFiltri.Risultato> destinatario) {
+        if (superata(mia)) {
+            return;
+        }
+        try {
+            MotoreFiltri.Risultato risultato = calcola(mia, queryRicerca, categoria, tipologia, ordinamento, limite);
+            if (risultato == null) {
+                interrotte.incrementAndGet();
+                return;
+            }
+            consegna.execute(() -> {
+                // Ricontrollo sul thread di consegna: nel frattempo può essere arrivata un'altra query
+                if (superata(mia)) {
+                    scartate.incrementAndGet();
+                    return;
+                }
+                destinatario.accept(risultato);
+            });
+        } catch (RuntimeException e) {
+            System.err.println("⚠️ Errore nella ricerca incrementale \"" + queryRicerca + "\": " + e);
+        }
+    }
+
+    /**
+     * @return il risultato, o null se la richiesta è stata superata durante il calcolo
+     */
+    private MotoreFiltri.Risultato calcola(long mia, String queryRicerca, Categoria categoria, Tipologia tipologia,
+                                           OrdinatoreAnnunci.Ordinamento ordinamento, int limite) {
+        long versione = indice.getVersione();
+        MotoreFiltri.Risultato inCache = indice.anteprimaInCache(categoria, tipologia, queryRicerca, ordinamento, limite);
+        if (inCache != null) {
+            daCache.incrementAndGet();
+            return inCache;
+        }
+
+        String testo = queryRicerca.toLowerCase(Locale.ROOT);
+        List<Annuncio> candidati;
+        if (corrispondenzeTesto != null && versioneCorrispondenze == versione && testo.contains(ultimoTesto)) {
+            candidati = corrispondenzeTesto;
+            raffinate.incrementAndGet();
+        } else {
+            candidati = indice.annunci(indice.seleziona(null, null, null, null));
+        }
+
+        MotoreFiltri.Criteri soloTesto = new MotoreFiltri.Criteri(null, null, queryRicerca);
+        List<Annuncio> trovati = new ArrayList<>();
+        for (int da = 0; da < candidati.size(); da += BLOCCO_SCANSIONE) {
+            if (superata(mia)) {
+                return null;
+            }
+            int a = Math.min(da + BLOCCO_SCANSIONE, candidati.size());
+            for (int i = da; i < a; i++) {
+                Annuncio annuncio = candidati.get(i);
+                if (soloTesto.corrispondeTesto(annuncio)) {
+                    trovati.add(annuncio);
+                }
+            }
+        }
+        ultimoTesto = testo;
+        corrispondenzeTesto = trovati;
+        versioneCorrispondenze = versione;
+        calcolate.incrementAndGet();
+
+        // Categoria, tipologia, facet e ordinamento solo sugli annunci che contengono il testo
+        MotoreFiltri.Risultato risultato = MotoreFiltri.filtra(trovati, new MotoreFiltri.Criteri(categoria, tipologia, null),
+                                                               ordinamento, limite, false);
+        if (trovati.isEmpty()) {
+            // Probabile errore di battitura: annunci più simili dall'indice a trigrammi
+            risultato = indice.cercaSimili(categoria, tipologia, queryRicerca, limite);
+            simili.incrementAndGet();
+        }
+        indice.memorizzaAnteprima(versione, categoria, tipologia, queryRicerca, ordinamento, risultato);
+        return risultato;
+    }
+
+    private boolean superata(long mia) {
+        return generazione.get() != mia;
+    }
+
+    // ========== METRICHE ==========
+
+    /**
+     * Ottiene un report delle statistiche correnti
+     */
+    public String getReportStatistiche() {
+        return String.format(
+            "⌨️ Ricerca incrementale - Richieste: %d, Calcolate: %d (raffinate: %d), Dalla cache: %d, " +
+            "Interrotte: %d, Scartate alla consegna: %d, Risolte per somiglianza: %d",
+            richieste.get(), calcolate.get(), raffinate.get(), daCache.get(), interrotte.get(), scartate.get(),
+            simili.get());
+    }
+}
@@ -0,0 +1,232 @@
+package application.DB;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import org.mindrot.jbcrypt.BCrypt;
+
+/**
+ * Servizio di hashing delle password con un pool di lavoratori limitato
+ *
+ * <p>BCrypt è volutamente costoso: un'ondata di login (per esempio all'inizio di una lezione in
+ * laboratorio) con un thread per tentativo satura tutti i core insieme. Qui invece:
+ * <ul>
+ *   <li>i lavori di autenticazione girano su un pool fisso grande quanto i core, con coda limitata;
+ *       oltre la coda le richieste vengono rifiutate subito invece di accumularsi</li>
+ *   <li>{@link #hash} e {@link #verifica} chiamati fuori dal pool vi vengono inoltrati,
+ *       chiamati da un lavoratore del pool vengono eseguiti direttamente</li>
+ *   <li>il costo BCrypt è configurabile ({@code swapunina.bcrypt.costo}); gli hash con un costo diverso
+ *       vengono segnalati da {@link #richiedeRehash} per essere ricalcolati al login successivo</li>
+ *   <li>latenze di login e registrazione (attesa in coda compresa) con p50/p99 sugli ultimi campioni</li>
+ * </ul>
+ * </p>
+ */
+public final class ServizioHash {
+
+    /**
+     * Operazioni di cui si misura la latenza
+     */
+    public enum Operazione {
+        LOGIN, REGISTRAZIONE
+    }
+
+    /** Costo BCrypt per i nuovi hash */
+    public static final int COSTO_BCRYPT = leggiCosto();
+
+    private static final int NUMERO_LAVORATORI = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private static final int CAPACITA_CODA = Integer.getInteger("swapunina.hash.coda", NUMERO_LAVORATORI * 8);
+
+    /** Lavoratore del pool, riconoscibile per eseguire direttamente i lavori annidati */
+    private static final class Lavoratore extends Thread {
+        Lavoratore(Runnable r, int numero) {
+            super(r, "hash-bcrypt-" + numero);
+            setDaemon(true);
+        }
+    }
+
+    /**
+     * Ultime latenze di un'operazione in un buffer circolare: la registrazione è lock-free,
+     * i percentili si calcolano su una copia ordinata solo quando vengono richiesti
+     */
+    private static final class Campioni {
+        private static final int DIMENSIONE = 1024;
+        private final long[] nanos = new long[DIMENSIONE];
+        private final AtomicLong registrati = new AtomicLong();
+
+        void registra(long durataNanos) {
+            nanos[(int) (registrati.getAndIncrement() % DIMENSIONE)] = durataNanos;
+        }
+
+        double percentileMs(double percentile) {
+            int n = (int) Math.min(registrati.get(), DIMENSIONE);
+            if (n == 0) {
+                return 0.0;
+            }
+            long[] ordinati = Arrays.copyOf(nanos, n);
+            Arrays.sort(ordinati);
+            int indice = (int) Math.ceil(percentile / 100.0 * n) - 1;
+            return ordinati[Math.max(0, Math.min(n - 1, indice))] / 1_000_000.0;
+        }
+    }
+
+    private static final AtomicInteger NUMERO_THREAD = new AtomicInteger();
+    private static final AtomicLong RIFIUTATE = new AtomicLong();
+    private static final AtomicLong REHASH = new AtomicLong();
+    private static final Map<Operazione, Campioni> LATENZE = new EnumMap<>(Operazione.class);
+
+    private static final ThreadPoolExecutor POOL = new ThreadPoolExecutor(
+        NUMERO_LAVORATORI, NUMERO_LAVORATORI, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(CAPACITA_CODA),
+        r -> new Lavoratore(r, NUMERO_THREAD.incrementAndGet()),
+        (lavoro, esecutore) -> {
+            RIFIUTATE.incrementAndGet();
+            throw new RejectedExecutionException("Troppe autenticazioni in corso, riprova tra poco");
+        });
+
+    static {
+        for (Operazione op : Operazione.values()) {
+            LATENZE.put(op, new Campioni());
+        }
+    }
+
+    private ServizioHash() {
+    }
+
+    private static int leggiCosto() {
+        int costo = Integer.getInteger("swapunina.bcrypt.costo", 12);
+        if (costo < 4 || costo > 31) {
+            System.err.println("⚠️ Costo BCrypt non valido: " + costo + ", uso 12");
+            return 12;
+        }
+        return costo;
+    }
+
+    // ========== API PRINCIPALE ==========
+
+    /**
+     * Esegue un intero flusso di autenticazione (query e BCrypt) su un lavoratore del pool
+     *
+     * @param op operazione, per le metriche di latenza
+     * @param lavoro flusso da eseguire
+     * @return future completato col risultato, o eccezionalmente con {@link RejectedExecutionException}
+     *         se pool e coda sono pieni
+     */
+    public static <T> CompletableFuture<T> invia(Operazione op, Supplier<T> lavoro) {
+        long inizio = System.nanoTime();
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return lavoro.get();
+                } finally {
+                    LATENZE.get(op).registra(System.nanoTime() - inizio);
+                }
+            }, POOL);
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<T> rifiutato = new CompletableFuture<>();
+            rifiutato.completeExceptionally(e);
+            return rifiutato;
+        }
+    }
+
+    /**
+     * Calcola l'hash BCrypt della password con il costo configurato
+     *
+     * @throws RejectedExecutionException se il pool è saturo
+     */
+    public static String hash(String password) {
+        return eseguiNelPool(() -> BCrypt.hashpw(password, BCrypt.gensalt(COSTO_BCRYPT)));
+    }
+
+    /**
+     * Verifica la password contro un hash BCrypt
+     *
+     * @throws RejectedExecutionException se il pool è saturo
+     */
+    public static boolean verifica(String password, String hash) {
+        if (password == null || hash == null) {
+            return false;
+        }
+        return eseguiNelPool(() -> BCrypt.checkpw(password, hash));
+    }
+
+    /**
+     * Indica se l'hash è stato calcolato con un costo diverso da quello configurato
+     * (formato {@code $2a$NN$...})
+     */
+    public static boolean richiedeRehash(String hash) {
+        if (hash == null || hash.length() < 7 || hash.charAt(0) != '$' || hash.charAt(6) != '$') {
+            return false;
+        }
+        try {
+            return Integer.parseInt(hash.substring(4, 6)) != COSTO_BCRYPT;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Conta un hash ricalcolato al login (per le metriche)
+     */
+    static void registraRehash() {
+        REHASH.incrementAndGet();
+    }
+
+    private static <T> T eseguiNelPool(Callable<T> lavoro) {
+        try {
+            if (Thread.currentThread() instanceof Lavoratore) {
+                return lavoro.call();
+            }
+            Future<T> risultato = POOL.submit(lavoro);
+            return risultato.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Hashing interrotto", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Errore durante l'hashing", e.getCause());
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("Errore durante l'hashing", e);
+        }
+    }
+
+    // ========== METRICHE ==========
+
+    /**
+     * Percentile della latenza (in ms) sugli ultimi campioni dell'operazione
+     */
+    public static double getPercentileMs(Operazione op, double percentile) {
+        return LATENZE.get(op).percentileMs(percentile);
+    }
+
+    public static long getRifiutate() {
+        return RIFIUTATE.get();
+    }
+
+    public static long getRehash() {
+        return REHASH.get();
+    }
+
+    /**
+     * Ottiene un report delle statistiche correnti
+     */
+    public static String getReportStatistiche() {
+        return String.format(
+            "🔐 Statistiche Hash - Lavoratori: %d, In coda: %d/%d, Rifiutate: %d, Rehash: %d, " +
+            "Login p50/p99: %.1f/%.1f ms, Registrazione p50/p99: %.1f/%.1f ms",
+            NUMERO_LAVORATORI, POOL.getQueue().size(), CAPACITA_CODA, RIFIUTATE.get(), REHASH.get(),
+            getPercentileMs(Operazione.LOGIN, 50), getPercentileMs(Operazione.LOGIN, 99),
+            getPercentileMs(Operazione.REGISTRAZIONE, 50), getPercentileMs(Operazione.REGISTRAZIONE, 99));
+    }
+}
@@ -12,12 +12,13 @@ public class SessionManager {
     
     /**
      * Imposta l'utente corrente della sessione
+     * La foto profilo viene letta dal database solo se l'utente non la contiene già
+     * (l'utente restituito da {@link UtentiDAO#autentica} è completo)
      * @param user l'utente da impostare come corrente
      */
     public static void setCurrentUser(utente user) {
         currentUser = user;
-        // Carica la foto profilo quando si imposta l'utente
-        if (user != null && user.getEmail() != null) {
+        if (user != null && user.getEmail() != null && user.getFotoProfilo() == null) {
             caricaFotoProfiloUtente(user.getEmail());
         }
     }
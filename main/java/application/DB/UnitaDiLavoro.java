@@ -0,0 +1,284 @@
+package application.DB;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Unità di lavoro: contesto transazionale legato al thread corrente e condiviso da tutti i DAO
+ *
+ * <p>Mentre un'unità è attiva, {@link ConnessioneDB#getConnessione()} restituisce sempre la stessa
+ * connessione fisica, così un'operazione che attraversa più DAO usa una sola connessione e un solo
+ * commit invece di aprirne una per ogni chiamata.</p>
+ *
+ * <p><b>Funzionamento:</b>
+ * <ul>
+ *   <li>La connessione condivisa è un proxy: {@code close()}, {@code commit()} e
+ *       {@code setAutoCommit()} dei DAO diventano no-op, il commit avviene solo alla fine dell'unità</li>
+ *   <li>Un {@code rollback()} di un DAO o un'istruzione SQL fallita fanno fallire l'unità con SQLException</li>
+ *   <li>{@link #segnaPerRollback()} annulla le scritture ma restituisce comunque il risultato del lavoro,
+ *       per i rifiuti di business (saldo insufficiente, articolo non disponibile...)</li>
+ *   <li>Le unità annidate si uniscono a quella esterna (propagazione "required"); un'eccezione di
+ *       un'unità annidata annulla quella esterna solo se ne esce, non se il chiamante la gestisce</li>
+ *   <li>Fuori da un'unità i DAO continuano a funzionare come prima, con connessioni proprie</li>
+ * </ul>
+ * </p>
+ *
+ * <pre>
+ * boolean ok = UnitaDiLavoro.esegui(() -&gt; {
+ *     contoDAO.trasferisciFondi(acquirenteId, venditoreId, importo);
+ *     return carrelloDAO.rimuoviDalCarrello(carrelloId, annuncioId);
+ * });
+ * </pre>
+ */
+public final class UnitaDiLavoro {
+
+    /**
+     * Corpo di un'unità di lavoro; può lanciare SQLException
+     */
+    @FunctionalInterface
+    public interface Lavoro<T> {
+        T esegui() throws SQLException;
+    }
+
+    /** Stato dell'unità attiva sul thread */
+    private static final class Contesto {
+        final Connection fisica;
+        final Connection condivisa;
+        boolean soloRollback;
+        boolean fallita;
+
+        Contesto(Connection fisica) {
+            this.fisica = fisica;
+            this.condivisa = (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(),
+                new Class<?>[] { Connection.class },
+                new ConnessioneCondivisa(this));
+        }
+    }
+
+    private static final ThreadLocal<Contesto> CORRENTE = new ThreadLocal<>();
+
+    /** Metriche */
+    private static final AtomicLong UNITA_CONFERMATE = new AtomicLong();
+    private static final AtomicLong UNITA_ANNULLATE = new AtomicLong();
+
+    private UnitaDiLavoro() {
+    }
+
+    // ========== API PRINCIPALE ==========
+
+    /**
+     * Esegue il lavoro dentro un'unità transazionale.
+     * Se un'unità è già attiva sul thread il lavoro vi si unisce, altrimenti ne apre una nuova
+     * che viene confermata al termine oppure annullata in caso di errore o rollback richiesto.
+     *
+     * @param lavoro operazioni da eseguire con la connessione condivisa
+     * @return il risultato del lavoro
+     * @throws SQLException se il lavoro o una sua istruzione SQL fallisce (le scritture vengono annullate)
+     */
+    public static <T> T esegui(Lavoro<T> lavoro) throws SQLException {
+        if (CORRENTE.get() != null) {
+            // Un'eccezione gestita dal chiamante non annulla l'unità esterna; la annulla solo se la
+            // attraversa tutta. Le istruzioni SQL fallite la marcano comunque (vedi invocaSuFisica).
+            return lavoro.esegui();
+        }
+
+        Connection fisica = ConnessioneDB.getConnessione();
+        Throwable errore = null;
+        try {
+            fisica.setAutoCommit(false);
+            Contesto contesto = new Contesto(fisica);
+            CORRENTE.set(contesto);
+            T risultato = lavoro.esegui();
+            if (contesto.fallita) {
+                throw new SQLException("Unità di lavoro annullata: un'operazione interna è fallita");
+            }
+            if (contesto.soloRollback) {
+                annulla(fisica);
+                return risultato;
+            }
+            fisica.commit();
+            UNITA_CONFERMATE.incrementAndGet();
+            return risultato;
+        } catch (SQLException | RuntimeException e) {
+            errore = e;
+            annulla(fisica);
+            throw e;
+        } finally {
+            CORRENTE.remove();
+            chiudi(fisica, errore);
+        }
+    }
+
+    /**
+     * Indica se il thread corrente sta eseguendo un'unità di lavoro
+     */
+    public static boolean isAttiva() {
+        return CORRENTE.get() != null;
+    }
+
+    /**
+     * Marca l'unità corrente in modo che venga annullata invece che confermata.
+     * Il risultato del lavoro viene comunque restituito al chiamante di {@link #esegui}.
+     *
+     * @throws IllegalStateException se non c'è un'unità attiva
+     */
+    public static void segnaPerRollback() {
+        Contesto contesto = CORRENTE.get();
+        if (contesto == null) {
+            throw new IllegalStateException("Nessuna unità di lavoro attiva");
+        }
+        contesto.soloRollback = true;
+    }
+
+    /**
+     * Connessione condivisa dell'unità attiva, o null se il thread non ne ha una.
+     * Usata da {@link ConnessioneDB#getConnessione()}.
+     */
+    static Connection connessioneCorrente() {
+        Contesto contesto = CORRENTE.get();
+        return contesto != null ? contesto.condivisa : null;
+    }
+
+    /**
+     * Verifica se la connessione è quella condivisa di un'unità di lavoro
+     */
+    static boolean isConnessioneCondivisa(Connection connessione) {
+        return connessione != null
+            && Proxy.isProxyClass(connessione.getClass())
+            && Proxy.getInvocationHandler(connessione) instanceof ConnessioneCondivisa;
+    }
+
+    /**
+     * Ripristina l'autocommit e chiude la connessione. Un errore in questa fase non deve sostituire
+     * l'eccezione del lavoro (vi viene aggiunto come soppresso) né un risultato già confermato.
+     */
+    private static void chiudi(Connection fisica, Throwable errore) {
+        try {
+            fisica.setAutoCommit(true);
+        } catch (SQLException e) {
+            segnalaErroreChiusura(errore, e);
+        }
+        try {
+            fisica.close();
+        } catch (SQLException e) {
+            segnalaErroreChiusura(errore, e);
+        }
+    }
+
+    private static void segnalaErroreChiusura(Throwable errore, SQLException e) {
+        if (errore != null) {
+            errore.addSuppressed(e);
+        } else {
+            System.err.println("⚠️ Errore durante la chiusura dell'unità di lavoro: " + e.getMessage());
+        }
+    }
+
+    private static void annulla(Connection fisica) {
+        try {
+            fisica.rollback();
+        } catch (SQLException e) {
+            System.err.println("⚠️ Errore durante il rollback dell'unità di lavoro: " + e.getMessage());
+        }
+        UNITA_ANNULLATE.incrementAndGet();
+    }
+
+    // ========== PROXY ==========
+
+    /**
+     * Gestore della connessione condivisa: neutralizza il controllo transazionale dei DAO
+     * e avvolge gli statement per intercettarne gli errori
+     */
+    private static final class ConnessioneCondivisa implements InvocationHandler {
+        private final Contesto contesto;
+
+        ConnessioneCondivisa(Contesto contesto) {
+            this.contesto = contesto;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method metodo, Object[] argomenti) throws Throwable {
+            switch (metodo.getName()) {
+                case "close":
+                case "commit":
+                case "setAutoCommit":
+                    return null;
+                case "getAutoCommit":
+                    return false;
+                case "isClosed":
+                    return contesto.fisica.isClosed();
+                case "rollback":
+                    if (argomenti == null || argomenti.length == 0) {
+                        contesto.fallita = true;
+                        return null;
+                    }
+                    break;
+                case "equals":
+                    return proxy == argomenti[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    break;
+            }
+
+            Object risultato = invocaSuFisica(contesto, contesto.fisica, metodo, argomenti);
+            if (risultato instanceof Statement) {
+                return avvolgiStatement((Statement) risultato, metodo.getReturnType());
+            }
+            return risultato;
+        }
+
+        private Object avvolgiStatement(Statement statement, Class<?> tipo) {
+            return Proxy.newProxyInstance(
+                Statement.class.getClassLoader(),
+                new Class<?>[] { tipo },
+                (proxy, metodo, argomenti) -> {
+                    if ("getConnection".equals(metodo.getName())) {
+                        return contesto.condivisa;
+                    }
+                    return invocaSuFisica(contesto, statement, metodo, argomenti);
+                });
+        }
+    }
+
+    /**
+     * Invoca il metodo sull'oggetto reale; un errore SQL marca l'unità per il rollback,
+     * perché PostgreSQL rifiuta comunque ogni istruzione successiva nella stessa transazione
+     */
+    private static Object invocaSuFisica(Contesto contesto, Object bersaglio, Method metodo, Object[] argomenti)
+            throws Throwable {
+        try {
+            return metodo.invoke(bersaglio, argomenti);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof SQLException) {
+                contesto.fallita = true;
+            }
+            throw e.getCause();
+        }
+    }
+
+    // ========== METRICHE ==========
+
+    public static long getUnitaConfermate() {
+        return UNITA_CONFERMATE.get();
+    }
+
+    public static long getUnitaAnnullate() {
+        return UNITA_ANNULLATE.get();
+    }
+
+    /**
+     * Ottiene un report delle statistiche correnti
+     */
+    public static String getReportStatistiche() {
+        return String.format(
+            "🧾 Statistiche Unità di Lavoro - Confermate: %d, Annullate: %d, Connessioni riusate: %d",
+            UNITA_CONFERMATE.get(), UNITA_ANNULLATE.get(), ConnessioneDB.getConnessioniRiusate());
+    }
+}
@@ -2,6 +2,10 @@ package application.DB;
 
 import application.Classe.utente;
 import java.sql.*;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Gestisce le operazioni di accesso ai dati per gli utenti
@@ -9,29 +13,53 @@ import java.sql.*;
  */
 public class UserDAO {
     
+    /** Letture per ID raccolte in lotti: le schede che chiedono il venditore nello stesso momento fanno una query */
+    private static final CaricatoreBatch<Integer, utente> CARICATORE_UTENTI =
+        new CaricatoreBatch<>("utenti", UserDAO::leggiUtentiPerId);
+    
     /**
      * Recupera un utente tramite ID
      * @param userId l'ID dell'utente da recuperare
      * @return l'oggetto utente, null se non trovato
      */
     public utente getUserById(int userId) {
-        String sql = "SELECT id, nome, cognome, email, matricola FROM utente WHERE id = ?";
+        return CARICATORE_UTENTI.caricaEAttendi(userId);
+    }
+    
+    /**
+     * Recupera più utenti con una sola query
+     * @param userIds gli ID degli utenti (i duplicati vengono ignorati)
+     * @return mappa ID → utente nell'ordine degli ID, senza gli ID non trovati
+     */
+    public Map<Integer, utente> getUsersByIds(Collection<Integer> userIds) {
+        return CARICATORE_UTENTI.caricaTutti(userIds);
+    }
+    
+    private static Map<Integer, utente> leggiUtentiPerId(List<Integer> userIds) throws SQLException {
+        String sql = "SELECT id, nome, cognome, email, matricola FROM utente WHERE id = ANY(?)";
+        Map<Integer, utente> utenti = new HashMap<>();
         
         try (Connection conn = ConnessioneDB.getConnessione();
              PreparedStatement stmt = conn.prepareStatement(sql)) {
             
-            stmt.setInt(1, userId);
+            stmt.setArray(1, conn.createArrayOf("integer", userIds.toArray()));
             
             try (ResultSet rs = stmt.executeQuery()) {
-                if (rs.next()) {
-                    return mapResultSetToUtente(rs);
+                while (rs.next()) {
+                    utente user = mapResultSetToUtente(rs);
+                    utenti.put(user.getId(), user);
                 }
             }
-        } catch (SQLException e) {
-            System.err.println("Errore recupero utente per ID " + userId + ": " + e.getMessage());
         }
         
-        return null;
+        return utenti;
+    }
+    
+    /**
+     * Statistiche del caricamento a lotti degli utenti
+     */
+    public static String getReportCaricatore() {
+        return CARICATORE_UTENTI.getReportStatistiche();
     }
     
     /**
@@ -128,7 +156,11 @@ public class UserDAO {
             stmt.setString(4, user.getPassword()); // Nota: in produzione usare hash
             stmt.setString(5, user.getMatricola());
             
-            return stmt.executeUpdate() > 0;
+            if (stmt.executeUpdate() > 0) {
+                UtentiDAO.registraInFiltriEsistenza(user.getEmail(), user.getMatricola());
+                return true;
+            }
+            return false;
         } catch (SQLException e) {
             System.err.println("Errore creazione utente: " + e.getMessage());
             return false;
@@ -152,7 +184,12 @@ public class UserDAO {
             stmt.setString(4, user.getMatricola());
             stmt.setInt(5, user.getId());
             
-            return stmt.executeUpdate() > 0;
+            if (stmt.executeUpdate() > 0) {
+                UtentiDAO.registraInFiltriEsistenza(user.getEmail(), user.getMatricola());
+                UtentiDAO.invalidaProfilo(user.getId());
+                return true;
+            }
+            return false;
         } catch (SQLException e) {
             System.err.println("Errore aggiornamento utente " + user.getId() + ": " + e.getMessage());
             return false;
@@ -209,7 +246,7 @@ public class UserDAO {
      * @return l'oggetto utente
      * @throws SQLException in caso di errore di accesso ai dati
      */
-    private utente mapResultSetToUtente(ResultSet rs) throws SQLException {
+    private static utente mapResultSetToUtente(ResultSet rs) throws SQLException {
         utente user = new utente(
             rs.getString("matricola"),
             rs.getString("nome"),
@@ -255,7 +292,11 @@ public class UserDAO {
              PreparedStatement stmt = conn.prepareStatement(sql)) {
             
             stmt.setInt(1, userId);
-            return stmt.executeUpdate() > 0;
+            if (stmt.executeUpdate() > 0) {
+                UtentiDAO.invalidaProfilo(userId);
+                return true;
+            }
+            return false;
         } catch (SQLException e) {
             System.err.println("Errore eliminazione utente " + userId + ": " + e.getMessage());
             return false;
@@ -3,12 +3,17 @@ package application.DB;
 import application.Classe.utente;
 import application.DB.CloudinaryService;
 import java.sql.*;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 import java.util.logging.Level;
-import org.mindrot.jbcrypt.BCrypt;
 
 /**
  * Data Access Object per la gestione degli utenti nel database
@@ -16,8 +21,8 @@ import org.mindrot.jbcrypt.BCrypt;
  * <p><b>Funzionalità principali:</b>
  * <ul>
  *   <li>Registrazione e autenticazione utenti</li>
- *   <li>Gestione password cifrate con BCrypt</li>
- *   <li>Cache per ottimizzare le performance</li>
+ *   <li>Gestione password cifrate con BCrypt tramite {@link ServizioHash}</li>
+ *   <li>Cache limitata dei profili utente ({@link CacheProfiliUtente})</li>
  *   <li>Validazione dati e sicurezza</li>
  *   <li>Gestione stato attivo/inattivo utenti</li>
  *   <li>Gestione foto profilo con Cloudinary</li>
@@ -30,24 +35,72 @@ public class UtentiDAO {
     
     // ========== CACHE PER PERFORMANCE ==========
     
-    /** Cache per mapping email -> ID utente */
-    private static final ConcurrentHashMap<String, Integer> CACHE_EMAIL_TO_ID = new ConcurrentHashMap<>();
+    private static final int DIMENSIONE_MAX_CACHE = 1000;
+    /** TTL lungo: le modifiche arrivano da {@link BusInvalidazioni}, il TTL è solo una rete di sicurezza */
+    private static final long TTL_PROFILI_MINUTI = 60;
+    
+    /**
+     * Profili utente (id, email, nome, foto) per id con indice per email, condivisi da tutte le istanze.
+     * Le risposte negative sull'esistenza delle email arrivano dal filtro di Bloom, non dalla cache.
+     */
+    private static final CacheProfiliUtente CACHE_PROFILI =
+        new CacheProfiliUtente(DIMENSIONE_MAX_CACHE, TTL_PROFILI_MINUTI, TimeUnit.MINUTES);
+    
+    /** Colonne lette per popolare un profilo in cache */
+    private static final String SQL_PROFILO =
+        "SELECT id, email, nome, foto_profilo FROM utente WHERE attivo = TRUE AND ";
+    
+    /** Profili mancanti in cache richiesti nello stesso momento vengono letti con una sola query */
+    private static final CaricatoreBatch<Integer, CacheProfiliUtente.Profilo> CARICATORE_PROFILI =
+        new CaricatoreBatch<>("profili", UtentiDAO::leggiProfiliPerId);
+    
+    static {
+        // Profili modificati da altri client (o da altri DAO) vengono scartati appena il commit è visibile
+        BusInvalidazioni.registra(BusInvalidazioni.Entita.UTENTE, (entita, id) -> {
+            if (id == BusInvalidazioni.TUTTI) {
+                CACHE_PROFILI.svuota();
+            } else {
+                CACHE_PROFILI.invalidaId(id);
+            }
+        });
+    }
+    
+    // ========== FILTRI DI ESISTENZA ==========
+    
+    /**
+     * Filtri di Bloom su email e matricole degli utenti attivi: una risposta negativa è definitiva
+     * e non richiede query, solo le possibili presenze vengono confermate sul database.
+     * Vengono ricostruiti periodicamente per includere utenti registrati da altri client
+     * (nel frattempo il vincolo di unicità del database resta l'ultima garanzia).
+     */
+    private static volatile FiltroBloom filtroEmail;
+    private static volatile FiltroBloom filtroMatricole;
     
-    /** Cache per mapping ID -> nome utente */
-    private static final ConcurrentHashMap<Integer, String> CACHE_ID_TO_NOME = new ConcurrentHashMap<>();
+    /** Valori aggiunti mentre una ricostruzione è in corso, da riapplicare ai nuovi filtri */
+    private static final Set<String> AGGIUNTE_DURANTE_RICOSTRUZIONE = ConcurrentHashMap.newKeySet();
+    private static final Object LOCK_FILTRI = new Object();
+    private static boolean ricostruzioneInCorso = false;
     
-    /** Cache per mapping ID -> email utente */
-    private static final ConcurrentHashMap<Integer, String> CACHE_ID_TO_EMAIL = new ConcurrentHashMap<>();
+    private static final long INTERVALLO_RICOSTRUZIONE_NANOS = TimeUnit.MINUTES.toNanos(10);
+    private static final AtomicLong PROSSIMA_RICOSTRUZIONE = new AtomicLong(Long.MAX_VALUE);
+    private static final double PROBABILITA_FALSI_POSITIVI = 0.01;
     
-    /** Cache per verifica esistenza email */
-    private static final ConcurrentHashMap<String, Boolean> CACHE_EMAIL_EXISTE = new ConcurrentHashMap<>();
+    private static final AtomicLong CONTROLLI_EVITATI = new AtomicLong();
+    private static final AtomicLong CONTROLLI_CONFERMATI = new AtomicLong();
+    private static final AtomicLong FALSI_POSITIVI = new AtomicLong();
     
     // ========== COSTANTI DI CONFIGURAZIONE ==========
     
-    /** Costanti per BCrypt */
-    private static final int BCRYPT_ROUNDS = 12;
     private static final int LUNGHEZZA_MINIMA_PASSWORD = 6;
-    private static final int DIMENSIONE_MAX_CACHE = 1000;
+    
+    /**
+     * Dati di sessione in una sola riga: profilo e foto.
+     * La ricerca per email usa l'indice univoco su utente.email.
+     */
+    private static final String SQL_UTENTE_SESSIONE =
+        "SELECT u.id, u.matricola, u.nome, u.cognome, u.email, u.password, u.foto_profilo " +
+        "FROM utente u " +
+        "WHERE u.email = ? AND u.attivo = TRUE";
     
     /** Nomi colonne database */
     private static final String COLONNA_ATTIVO = "attivo";
@@ -59,12 +112,6 @@ public class UtentiDAO {
     /** Servizio per la gestione delle immagini su Cloudinary */
     private final CloudinaryService cloudinaryService;
     
-    // ========== STATISTICHE E METRICHE ==========
-    
-    /** Statistiche cache per monitoring */
-    private final AtomicInteger contatoreCacheHit = new AtomicInteger(0);
-    private final AtomicInteger contatoreCacheMiss = new AtomicInteger(0);
-    
     // ========== COSTRUTTORE ==========
     
     /**
@@ -91,20 +138,20 @@ public class UtentiDAO {
         
         String emailNormalizzata = email.trim().toLowerCase();
         
-        // Controllo in cache
-        Boolean esistenteInCache = CACHE_EMAIL_EXISTE.get(emailNormalizzata);
-        if (esistenteInCache != null) {
-            contatoreCacheHit.incrementAndGet();
-            return esistenteInCache;
+        // Risposta negativa definitiva dal filtro di Bloom, senza query
+        FiltroBloom filtro = filtroPronto(true);
+        if (filtro != null && !filtro.potrebbeContenere(emailNormalizzata)) {
+            CONTROLLI_EVITATI.incrementAndGet();
+            return false;
         }
         
-        contatoreCacheMiss.incrementAndGet();
-        boolean esiste = verificaEsistenzaCampo(COLONNA_EMAIL, emailNormalizzata);
-        
-        // Aggiorna cache
-        CACHE_EMAIL_EXISTE.put(emailNormalizzata, esiste);
-        pulisciCacheSeNecessario();
+        // Un profilo in cache con questa email conferma la presenza senza query
+        if (CACHE_PROFILI.contieneEmail(emailNormalizzata)) {
+            return true;
+        }
         
+        boolean esiste = verificaEsistenzaCampo(COLONNA_EMAIL, emailNormalizzata);
+        registraConferma(filtro, esiste);
         return esiste;
     }
     
@@ -115,7 +162,159 @@ public class UtentiDAO {
      * @return true se la matricola esiste, false altrimenti
      */
     public boolean matricolaEsiste(String matricola) {
-        return verificaEsistenzaCampo(COLONNA_MATRICOLA, matricola);
+        if (matricola == null || matricola.trim().isEmpty()) {
+            return false;
+        }
+        
+        FiltroBloom filtro = filtroPronto(false);
+        if (filtro != null && !filtro.potrebbeContenere(matricola.trim())) {
+            CONTROLLI_EVITATI.incrementAndGet();
+            return false;
+        }
+        
+        boolean esiste = verificaEsistenzaCampo(COLONNA_MATRICOLA, matricola);
+        registraConferma(filtro, esiste);
+        return esiste;
+    }
+    
+    private static void registraConferma(FiltroBloom filtro, boolean esiste) {
+        if (filtro != null) {
+            CONTROLLI_CONFERMATI.incrementAndGet();
+            if (!esiste) {
+                FALSI_POSITIVI.incrementAndGet();
+            }
+        }
+    }
+    
+    /**
+     * Costruisce i filtri di esistenza (da chiamare all'avvio; altrimenti avviene al primo controllo)
+     */
+    public static void preparaFiltriEsistenza() {
+        if (PROSSIMA_RICOSTRUZIONE.get() == Long.MAX_VALUE) {
+            costruisciFiltri();
+        }
+    }
+    
+    /**
+     * Filtro corrente, costruito al primo uso e ricostruito in background quando è scaduto.
+     * Restituisce null se non è stato possibile costruirlo: i controlli ripiegano sulla query.
+     */
+    private static FiltroBloom filtroPronto(boolean perEmail) {
+        preparaFiltriEsistenza();
+        
+        long scadenza = PROSSIMA_RICOSTRUZIONE.get();
+        if (scadenza != Long.MAX_VALUE && System.nanoTime() - scadenza > 0
+                && PROSSIMA_RICOSTRUZIONE.compareAndSet(scadenza, System.nanoTime() + INTERVALLO_RICOSTRUZIONE_NANOS)) {
+            Thread ricostruzione = new Thread(UtentiDAO::costruisciFiltri, "filtro-bloom-ricostruzione");
+            ricostruzione.setDaemon(true);
+            ricostruzione.start();
+        }
+        return perEmail ? filtroEmail : filtroMatricole;
+    }
+    
+    /**
+     * Costruisce i filtri leggendo email e matricole in streaming (fetch a blocchi con autocommit
+     * disattivato, così il driver non carica l'intera tabella in memoria) e li sostituisce atomicamente
+     */
+    private static void costruisciFiltri() {
+        synchronized (LOCK_FILTRI) {
+            if (ricostruzioneInCorso) {
+                return;
+            }
+            ricostruzioneInCorso = true;
+        }
+        
+        FiltroBloom nuovoEmail = null;
+        FiltroBloom nuovoMatricole = null;
+        try (Connection connessione = ConnessioneDB.getConnessione()) {
+            int utenti = 0;
+            try (Statement statement = connessione.createStatement();
+                 ResultSet risultato = statement.executeQuery("SELECT count(*) FROM utente WHERE attivo = TRUE")) {
+                if (risultato.next()) {
+                    utenti = risultato.getInt(1);
+                }
+            }
+            // Margine per le registrazioni fino alla prossima ricostruzione
+            int attesi = Math.max(1024, utenti * 2);
+            nuovoEmail = new FiltroBloom(attesi, PROBABILITA_FALSI_POSITIVI);
+            nuovoMatricole = new FiltroBloom(attesi, PROBABILITA_FALSI_POSITIVI);
+            
+            boolean autoCommit = connessione.getAutoCommit();
+            connessione.setAutoCommit(false);
+            try (Statement statement = connessione.createStatement()) {
+                statement.setFetchSize(1000);
+                try (ResultSet risultato = statement.executeQuery(
+                        "SELECT email, matricola FROM utente WHERE attivo = TRUE")) {
+                    while (risultato.next()) {
+                        aggiungiAiFiltri(nuovoEmail, nuovoMatricole,
+                            risultato.getString("email"), risultato.getString("matricola"));
+                    }
+                }
+                connessione.commit();
+            } finally {
+                connessione.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            LOGGER.log(Level.WARNING, "⚠️ Impossibile costruire i filtri di esistenza, uso le query dirette", e);
+            nuovoEmail = null;
+        }
+        
+        synchronized (LOCK_FILTRI) {
+            if (nuovoEmail != null) {
+                for (String valore : AGGIUNTE_DURANTE_RICOSTRUZIONE) {
+                    (valore.startsWith("e:") ? nuovoEmail : nuovoMatricole).aggiungi(valore.substring(2));
+                }
+                filtroEmail = nuovoEmail;
+                filtroMatricole = nuovoMatricole;
+                LOGGER.log(Level.INFO, "🌸 Filtri di esistenza pronti: {0} utenti", nuovoEmail.getElementiAggiunti());
+            }
+            // Anche dopo un errore: il nuovo tentativo avviene in background alla prossima scadenza
+            PROSSIMA_RICOSTRUZIONE.set(System.nanoTime() + INTERVALLO_RICOSTRUZIONE_NANOS);
+            AGGIUNTE_DURANTE_RICOSTRUZIONE.clear();
+            ricostruzioneInCorso = false;
+        }
+    }
+    
+    private static void aggiungiAiFiltri(FiltroBloom email, FiltroBloom matricole, String valoreEmail, String valoreMatricola) {
+        if (valoreEmail != null) {
+            email.aggiungi(valoreEmail.trim().toLowerCase());
+        }
+        if (valoreMatricola != null) {
+            matricole.aggiungi(valoreMatricola.trim());
+        }
+    }
+    
+    /**
+     * Aggiunge ai filtri un utente appena inserito o modificato.
+     * Va chiamato da ogni scrittura che crea un'email o una matricola, altrimenti il filtro
+     * darebbe un falso negativo fino alla ricostruzione successiva.
+     */
+    static void registraInFiltriEsistenza(String email, String matricola) {
+        synchronized (LOCK_FILTRI) {
+            if (filtroEmail != null) {
+                aggiungiAiFiltri(filtroEmail, filtroMatricole, email, matricola);
+            }
+            if (ricostruzioneInCorso) {
+                if (email != null) {
+                    AGGIUNTE_DURANTE_RICOSTRUZIONE.add("e:" + email.trim().toLowerCase());
+                }
+                if (matricola != null) {
+                    AGGIUNTE_DURANTE_RICOSTRUZIONE.add("m:" + matricola.trim());
+                }
+            }
+        }
+    }
+    
+    /**
+     * Statistiche dei filtri di esistenza
+     */
+    public static String getStatisticheFiltri() {
+        FiltroBloom filtro = filtroEmail;
+        return String.format(
+            "🌸 Filtri esistenza - Utenti: %d, Controlli senza query: %d, Confermati: %d, Falsi positivi: %d (stima %.2f%%)",
+            filtro != null ? filtro.getElementiAggiunti() : 0,
+            CONTROLLI_EVITATI.get(), CONTROLLI_CONFERMATI.get(), FALSI_POSITIVI.get(),
+            filtro != null ? filtro.getProbabilitaFalsiPositiviStimata() * 100 : 0.0);
     }
     
     /**
@@ -175,7 +374,7 @@ public class UtentiDAO {
              PreparedStatement statement = connessione.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
             
             // Hash sicuro della password
-            String passwordHash = BCrypt.hashpw(utente.getPassword(), BCrypt.gensalt(BCRYPT_ROUNDS));
+            String passwordHash = ServizioHash.hash(utente.getPassword());
             
             statement.setString(1, utente.getMatricola().trim());
             statement.setString(2, utente.getNome().trim());
@@ -196,18 +395,51 @@ public class UtentiDAO {
                         aggiornaCacheDopoRegistrazione(utente);
                     }
                 }
+                registraInFiltriEsistenza(utente.getEmail(), utente.getMatricola());
                 
                 LOGGER.log(Level.INFO, "✅ Utente registrato con successo: " + utente.getEmail());
                 return true;
             }
             
         } catch (SQLException e) {
+            // Violazione di unicità: l'utente è stato registrato da un altro client dopo l'ultima ricostruzione
+            if ("23505".equals(e.getSQLState())) {
+                registraInFiltriEsistenza(utente.getEmail(), utente.getMatricola());
+            }
+            LOGGER.log(Level.SEVERE, "❌ Errore nella registrazione dell'utente: " + utente.getEmail(), e);
+        } catch (RejectedExecutionException e) {
             LOGGER.log(Level.SEVERE, "❌ Errore nella registrazione dell'utente: " + utente.getEmail(), e);
         }
         
         return false;
     }
     
+    /**
+     * Esito di un'autenticazione con l'utente di sessione già completo
+     */
+    public static final class EsitoAutenticazione {
+        
+        public enum Stato {
+            SUCCESSO, EMAIL_NON_REGISTRATA, PASSWORD_ERRATA, BLOCCATO, ERRORE
+        }
+        
+        private final Stato stato;
+        private final utente utente;
+        
+        private EsitoAutenticazione(Stato stato, utente utente) {
+            this.stato = stato;
+            this.utente = utente;
+        }
+        
+        public Stato getStato() { return stato; }
+        public boolean isSuccesso() { return stato == Stato.SUCCESSO; }
+        
+        /**
+         * Utente autenticato con foto profilo, null se non riuscita
+         */
+        public utente getUtente() { return utente; }
+    }
+    
     /**
      * Verifica le credenziali di accesso di un utente
      * 
@@ -216,28 +448,112 @@ public class UtentiDAO {
      * @return true se le credenziali sono corrette, false altrimenti
      */
     public boolean verificaCredenziali(String email, String password) {
+        return autentica(email, password).isSuccesso();
+    }
+    
+    /**
+     * Autentica l'utente e restituisce tutti i dati di sessione con una sola query:
+     * hash della password, profilo e foto profilo.
+     * 
+     * <p>Le email con troppi tentativi errati vengono rifiutate senza query né BCrypt
+     * (vedi {@link #isLoginBloccato}). Se l'hash memorizzato usa un costo diverso da quello
+     * configurato, dopo una verifica riuscita viene ricalcolato in modo trasparente.</p>
+     * 
+     * @param email L'email dell'utente
+     * @param password La password da verificare
+     * @return esito con l'utente pronto per {@link SessionManager#setCurrentUser}
+     */
+    public EsitoAutenticazione autentica(String email, String password) {
         if (email == null || password == null || password.trim().isEmpty()) {
-            return false;
+            return new EsitoAutenticazione(EsitoAutenticazione.Stato.PASSWORD_ERRATA, null);
         }
         
-        String sql = "SELECT password FROM utente WHERE email = ? AND attivo = TRUE";
+        String emailNormalizzata = email.trim().toLowerCase();
+        if (isLoginBloccato(emailNormalizzata)) {
+            LOGGER.log(Level.WARNING, "🚦 Troppi tentativi di accesso per: {0}", emailNormalizzata);
+            return new EsitoAutenticazione(EsitoAutenticazione.Stato.BLOCCATO, null);
+        }
         
         try (Connection connessione = ConnessioneDB.getConnessione();
-             PreparedStatement statement = connessione.prepareStatement(sql)) {
+             PreparedStatement statement = connessione.prepareStatement(SQL_UTENTE_SESSIONE)) {
             
-            statement.setString(1, email.trim().toLowerCase());
+            statement.setString(1, emailNormalizzata);
             
             try (ResultSet risultato = statement.executeQuery()) {
-                if (risultato.next()) {
-                    String passwordHash = risultato.getString("password");
-                    return BCrypt.checkpw(password, passwordHash);
+                if (!risultato.next()) {
+                    return new EsitoAutenticazione(EsitoAutenticazione.Stato.EMAIL_NON_REGISTRATA, null);
+                }
+                String passwordHash = risultato.getString("password");
+                if (ServizioHash.verifica(password, passwordHash)) {
+                    utente autenticato = leggiUtenteSessione(risultato);
+                    if (ServizioHash.richiedeRehash(passwordHash)) {
+                        aggiornaHashPassword(emailNormalizzata, passwordHash, password);
+                    }
+                    return new EsitoAutenticazione(EsitoAutenticazione.Stato.SUCCESSO, autenticato);
                 }
             }
-        } catch (SQLException e) {
+        } catch (SQLException | RejectedExecutionException e) {
             LOGGER.log(Level.SEVERE, "❌ Errore nella verifica delle credenziali per: " + email, e);
+            return new EsitoAutenticazione(EsitoAutenticazione.Stato.ERRORE, null);
         }
         
-        return false;
+        // Solo i tentativi falliti consumano il limite: chi accede correttamente non viene mai frenato
+        RateLimiter.consenti(RateLimiter.Operazione.TENTATIVO_LOGIN, emailNormalizzata);
+        return new EsitoAutenticazione(EsitoAutenticazione.Stato.PASSWORD_ERRATA, null);
+    }
+    
+    /**
+     * Costruisce l'utente di sessione da una riga di {@link #SQL_UTENTE_SESSIONE}
+     * (senza password; avatar generato se manca la foto)
+     */
+    private utente leggiUtenteSessione(ResultSet risultato) throws SQLException {
+        utente utenteTrovato = new utente(
+            risultato.getString("matricola"),
+            risultato.getString("nome"),
+            risultato.getString("cognome"),
+            risultato.getString("email"),
+            ""  // Password non viene restituita per sicurezza
+        );
+        utenteTrovato.setId(risultato.getInt("id"));
+        
+        String fotoProfilo = risultato.getString("foto_profilo");
+        utenteTrovato.setFotoProfilo(fotoProfilo != null ? fotoProfilo : generaAvatarUnivoco(utenteTrovato.getEmail()));
+        
+        aggiornaCacheUtente(utenteTrovato, fotoProfilo);
+        return utenteTrovato;
+    }
+    
+    /**
+     * Indica se l'email ha esaurito i tentativi di accesso errati consentiti
+     * 
+     * @param email L'email dell'utente
+     * @return true se il prossimo tentativo verrebbe rifiutato
+     */
+    public boolean isLoginBloccato(String email) {
+        return email != null
+            && RateLimiter.isLimitato(RateLimiter.Operazione.TENTATIVO_LOGIN, email.trim().toLowerCase());
+    }
+    
+    /**
+     * Ricalcola l'hash della password con il costo corrente.
+     * L'aggiornamento è condizionato all'hash letto: se nel frattempo la password è cambiata non fa nulla.
+     */
+    private void aggiornaHashPassword(String email, String hashPrecedente, String password) {
+        String sql = "UPDATE utente SET password = ? WHERE email = ? AND password = ?";
+        
+        try (Connection connessione = ConnessioneDB.getConnessione();
+             PreparedStatement statement = connessione.prepareStatement(sql)) {
+            
+            statement.setString(1, ServizioHash.hash(password));
+            statement.setString(2, email);
+            statement.setString(3, hashPrecedente);
+            
+            if (statement.executeUpdate() > 0) {
+                ServizioHash.registraRehash();
+            }
+        } catch (SQLException | RejectedExecutionException e) {
+            LOGGER.log(Level.WARNING, "⚠️ Rehash della password non riuscito per: " + email, e);
+        }
     }
     
     /**
@@ -251,7 +567,7 @@ public class UtentiDAO {
             return Optional.empty();
         }
         
-        String sql = "SELECT id, matricola, nome, cognome, email FROM utente WHERE email = ? AND attivo = TRUE";
+        String sql = "SELECT id, matricola, nome, cognome, email, foto_profilo FROM utente WHERE email = ? AND attivo = TRUE";
         
         try (Connection connessione = ConnessioneDB.getConnessione();
              PreparedStatement statement = connessione.prepareStatement(sql)) {
@@ -270,7 +586,7 @@ public class UtentiDAO {
                     utenteTrovato.setId(risultato.getInt("id"));
                     
                     // Aggiorna cache
-                    aggiornaCacheUtente(utenteTrovato);
+                    aggiornaCacheUtente(utenteTrovato, risultato.getString("foto_profilo"));
                     
                     return Optional.of(utenteTrovato);
                 }
@@ -326,38 +642,8 @@ public class UtentiDAO {
         
         String emailNormalizzata = email.trim().toLowerCase();
         
-        // Controllo in cache
-        Integer idInCache = CACHE_EMAIL_TO_ID.get(emailNormalizzata);
-        if (idInCache != null) {
-            contatoreCacheHit.incrementAndGet();
-            return idInCache;
-        }
-        
-        contatoreCacheMiss.incrementAndGet();
-        
-        String sql = "SELECT id FROM utente WHERE email = ? AND attivo = TRUE";
-        
-        try (Connection connessione = ConnessioneDB.getConnessione();
-             PreparedStatement statement = connessione.prepareStatement(sql)) {
-            
-            statement.setString(1, emailNormalizzata);
-            
-            try (ResultSet risultato = statement.executeQuery()) {
-                if (risultato.next()) {
-                    int idUtente = risultato.getInt("id");
-                    
-                    // Aggiorna cache
-                    CACHE_EMAIL_TO_ID.put(emailNormalizzata, idUtente);
-                    pulisciCacheSeNecessario();
-                    
-                    return idUtente;
-                }
-            }
-        } catch (SQLException e) {
-            LOGGER.log(Level.SEVERE, "❌ Errore nel recupero ID per email: " + email, e);
-        }
-        
-        return -1;
+        CacheProfiliUtente.Profilo profilo = getProfiloByEmail(emailNormalizzata);
+        return profilo != null ? profilo.id : -1;
     }
     
     /**
@@ -372,39 +658,8 @@ public class UtentiDAO {
             return null;
         }
         
-        // Controllo in cache
-        String emailInCache = CACHE_ID_TO_EMAIL.get(userId);
-        if (emailInCache != null) {
-            contatoreCacheHit.incrementAndGet();
-            return emailInCache;
-        }
-        
-        contatoreCacheMiss.incrementAndGet();
-        
-        String sql = "SELECT email FROM utente WHERE id = ? AND attivo = TRUE";
-        
-        try (Connection connessione = ConnessioneDB.getConnessione();
-             PreparedStatement statement = connessione.prepareStatement(sql)) {
-            
-            statement.setInt(1, userId);
-            
-            try (ResultSet risultato = statement.executeQuery()) {
-                if (risultato.next()) {
-                    String email = risultato.getString("email");
-                    
-                    // Aggiorna cache
-                    CACHE_ID_TO_EMAIL.put(userId, email);
-                    CACHE_EMAIL_TO_ID.put(email.toLowerCase(), userId);
-                    pulisciCacheSeNecessario();
-                    
-                    return email;
-                }
-            }
-        } catch (SQLException e) {
-            LOGGER.log(Level.SEVERE, "❌ Errore nel recupero email per ID: " + userId, e);
-        }
-        
-        return null;
+        CacheProfiliUtente.Profilo profilo = getProfiloById(userId);
+        return profilo != null ? profilo.email : null;
     }
     
     /**
@@ -442,7 +697,7 @@ public class UtentiDAO {
              PreparedStatement statement = connessione.prepareStatement(sql)) {
 
             // Hash della nuova password
-            String nuovaPasswordHash = BCrypt.hashpw(nuovaPassword, BCrypt.gensalt(BCRYPT_ROUNDS));
+            String nuovaPasswordHash = ServizioHash.hash(nuovaPassword);
             
             statement.setString(1, nuovaPasswordHash);
             statement.setString(2, emailNormalizzata);
@@ -460,7 +715,7 @@ public class UtentiDAO {
             
             return successo;
 
-        } catch (SQLException e) {
+        } catch (SQLException | RejectedExecutionException e) {
             LOGGER.log(Level.SEVERE, "❌ Errore SQL durante aggiornamento password per: " + emailNormalizzata, e);
             return false;
         }
@@ -478,38 +733,8 @@ public class UtentiDAO {
             return "Utente Sconosciuto";
         }
         
-        // Controllo in cache
-        String nomeInCache = CACHE_ID_TO_NOME.get(id);
-        if (nomeInCache != null) {
-            contatoreCacheHit.incrementAndGet();
-            return nomeInCache;
-        }
-        
-        contatoreCacheMiss.incrementAndGet();
-        
-        String sql = "SELECT nome FROM utente WHERE id = ? AND attivo = TRUE";
-        
-        try (Connection connessione = ConnessioneDB.getConnessione();
-             PreparedStatement statement = connessione.prepareStatement(sql)) {
-            
-            statement.setInt(1, id);
-            
-            try (ResultSet risultato = statement.executeQuery()) {
-                if (risultato.next()) {
-                    String nome = risultato.getString("nome");
-                    
-                    // Aggiorna cache
-                    CACHE_ID_TO_NOME.put(id, nome);
-                    pulisciCacheSeNecessario();
-                    
-                    return nome;
-                }
-            }
-        } catch (SQLException e) {
-            LOGGER.log(Level.SEVERE, "❌ Errore nel recupero nome utente per ID: " + id, e);
-        }
-        
-        return "Utente Sconosciuto";
+        CacheProfiliUtente.Profilo profilo = getProfiloById(id);
+        return profilo != null && profilo.nome != null ? profilo.nome : "Utente Sconosciuto";
     }
     
     // ========== GESTIONE FOTO PROFILO CON CLOUDINARY ==========
@@ -523,61 +748,30 @@ public class UtentiDAO {
             return generaAvatarUnivoco("default");
         }
         
-        String sql = "SELECT foto_profilo FROM utente WHERE email = ? AND attivo = TRUE";
-        
-        try (Connection connessione = ConnessioneDB.getConnessione();
-             PreparedStatement statement = connessione.prepareStatement(sql)) {
-            
-            statement.setString(1, email.trim().toLowerCase());
-            
-            try (ResultSet risultato = statement.executeQuery()) {
-                if (risultato.next()) {
-                    String fotoProfilo = risultato.getString("foto_profilo");
-                    // Se non c'è foto profilo, genera un avatar univoco
-                    if (fotoProfilo == null) {
-                        return generaAvatarUnivoco(email);
-                    }
-                    return fotoProfilo;
-                }
-            }
-        } catch (SQLException e) {
-            LOGGER.log(Level.SEVERE, "❌ Errore nel recupero foto profilo per: " + email, e);
+        CacheProfiliUtente.Profilo profilo = getProfiloByEmail(email.trim().toLowerCase());
+        // Se non c'è foto profilo, genera un avatar univoco
+        if (profilo == null || profilo.fotoProfilo == null) {
+            return generaAvatarUnivoco(email);
         }
-        
-        return generaAvatarUnivoco(email);
+        return profilo.fotoProfilo;
     }
 
     /**
-     * Recupera un utente completo con foto profilo
+     * Recupera un utente completo con foto profilo, con la stessa query del login
      */
     public Optional<utente> getUtenteCompletoByEmail(String email) {
         if (email == null || email.trim().isEmpty()) {
             return Optional.empty();
         }
         
-        String sql = "SELECT id, matricola, nome, cognome, email, foto_profilo FROM utente WHERE email = ? AND attivo = TRUE";
-        
         try (Connection connessione = ConnessioneDB.getConnessione();
-             PreparedStatement statement = connessione.prepareStatement(sql)) {
+             PreparedStatement statement = connessione.prepareStatement(SQL_UTENTE_SESSIONE)) {
             
             statement.setString(1, email.trim().toLowerCase());
             
             try (ResultSet risultato = statement.executeQuery()) {
                 if (risultato.next()) {
-                    utente utenteTrovato = new utente(
-                        risultato.getString("matricola"),
-                        risultato.getString("nome"),
-                        risultato.getString("cognome"),
-                        risultato.getString("email"),
-                        ""  // Password non viene restituita per sicurezza
-                    );
-                    utenteTrovato.setId(risultato.getInt("id"));
-                    utenteTrovato.setFotoProfilo(risultato.getString("foto_profilo"));
-                    
-                    // Aggiorna cache
-                    aggiornaCacheUtente(utenteTrovato);
-                    
-                    return Optional.of(utenteTrovato);
+                    return Optional.of(leggiUtenteSessione(risultato));
                 }
             }
         } catch (SQLException e) {
@@ -829,6 +1023,9 @@ public class UtentiDAO {
              PreparedStatement statement = connessione.prepareStatement(sql)) {
             
             int righeAggiornate = statement.executeUpdate();
+            if (righeAggiornate > 0) {
+                CACHE_PROFILI.svuota();
+            }
             LOGGER.log(Level.INFO, "🧹 Foto profilo duplicate rimosse: {0} righe aggiornate", righeAggiornate);
             
         } catch (SQLException e) {
@@ -901,55 +1098,101 @@ public class UtentiDAO {
     // ========== GESTIONE CACHE ==========
     
     /**
-     * Aggiorna le cache dopo una registrazione
+     * Profilo dell'utente per ID: dalla cache, altrimenti dal database (e messo in cache)
+     * 
+     * @return il profilo, o null se l'utente non esiste, non è attivo o la query fallisce
      */
-    private void aggiornaCacheDopoRegistrazione(utente utente) {
-        String email = utente.getEmail().toLowerCase();
-        CACHE_EMAIL_TO_ID.put(email, utente.getId());
-        CACHE_ID_TO_NOME.put(utente.getId(), utente.getNome());
-        CACHE_ID_TO_EMAIL.put(utente.getId(), email);
-        CACHE_EMAIL_EXISTE.put(email, true);
-        pulisciCacheSeNecessario();
+    private CacheProfiliUtente.Profilo getProfiloById(int id) {
+        CacheProfiliUtente.Profilo profilo = CACHE_PROFILI.perId(id);
+        if (profilo != null) {
+            return profilo;
+        }
+        return CARICATORE_PROFILI.caricaEAttendi(id);
     }
     
     /**
-     * Aggiorna les cache con i dati di un utente
+     * Lettura a lotti dei profili per {@link #CARICATORE_PROFILI}; i profili letti entrano in cache
      */
-    private void aggiornaCacheUtente(utente utente) {
-        String email = utente.getEmail().toLowerCase();
-        CACHE_EMAIL_TO_ID.put(email, utente.getId());
-        CACHE_ID_TO_NOME.put(utente.getId(), utente.getNome());
-        CACHE_ID_TO_EMAIL.put(utente.getId(), email);
-        pulisciCacheSeNecessario();
+    private static Map<Integer, CacheProfiliUtente.Profilo> leggiProfiliPerId(List<Integer> ids) throws SQLException {
+        Map<Integer, CacheProfiliUtente.Profilo> profili = new HashMap<>();
+        
+        try (Connection connessione = ConnessioneDB.getConnessione();
+             PreparedStatement statement = connessione.prepareStatement(SQL_PROFILO + "id = ANY(?)")) {
+            
+            statement.setArray(1, connessione.createArrayOf("integer", ids.toArray()));
+            
+            try (ResultSet risultato = statement.executeQuery()) {
+                while (risultato.next()) {
+                    CacheProfiliUtente.Profilo profilo = CACHE_PROFILI.metti(risultato.getInt("id"),
+                        risultato.getString("email").toLowerCase(), risultato.getString("nome"),
+                        risultato.getString("foto_profilo"));
+                    profili.put(profilo.id, profilo);
+                }
+            }
+        }
+        return profili;
     }
     
     /**
-     * Invalida le cache relative a un utente
+     * Profilo dell'utente per email già normalizzata: dalla cache, altrimenti dal database
+     * 
+     * @return il profilo, o null se l'utente non esiste, non è attivo o la query fallisce
      */
-    private void invalidaCacheUtente(String email) {
-        String emailNormalizzata = email.toLowerCase();
-        Integer idUtente = CACHE_EMAIL_TO_ID.get(emailNormalizzata);
-        
-        CACHE_EMAIL_TO_ID.remove(emailNormalizzata);
-        CACHE_EMAIL_EXISTE.remove(emailNormalizzata);
+    private CacheProfiliUtente.Profilo getProfiloByEmail(String emailNormalizzata) {
+        CacheProfiliUtente.Profilo profilo = CACHE_PROFILI.perEmail(emailNormalizzata);
+        if (profilo != null) {
+            return profilo;
+        }
         
-        if (idUtente != null) {
-            CACHE_ID_TO_NOME.remove(idUtente);
-            CACHE_ID_TO_EMAIL.remove(idUtente);
+        try (Connection connessione = ConnessioneDB.getConnessione();
+             PreparedStatement statement = connessione.prepareStatement(SQL_PROFILO + "email = ?")) {
+            
+            statement.setString(1, emailNormalizzata);
+            return caricaProfilo(statement);
+        } catch (SQLException e) {
+            LOGGER.log(Level.SEVERE, "❌ Errore nel recupero profilo per email: " + emailNormalizzata, e);
+            return null;
+        }
+    }
+    
+    private CacheProfiliUtente.Profilo caricaProfilo(PreparedStatement statement) throws SQLException {
+        try (ResultSet risultato = statement.executeQuery()) {
+            if (!risultato.next()) {
+                return null;
+            }
+            return CACHE_PROFILI.metti(risultato.getInt("id"), risultato.getString("email").toLowerCase(),
+                risultato.getString("nome"), risultato.getString("foto_profilo"));
         }
     }
     
     /**
-     * Pulizia periodica delle cache per prevenire memory leak
+     * Aggiorna la cache dopo una registrazione (il nuovo utente non ha ancora una foto)
      */
-    private void pulisciCacheSeNecessario() {
-        if (CACHE_EMAIL_TO_ID.size() > DIMENSIONE_MAX_CACHE) {
-            CACHE_EMAIL_TO_ID.clear();
-            CACHE_ID_TO_NOME.clear();
-            CACHE_ID_TO_EMAIL.clear();
-            CACHE_EMAIL_EXISTE.clear();
-            LOGGER.log(Level.INFO, "Cache pulita per prevenire memory leak");
-        }
+    private void aggiornaCacheDopoRegistrazione(utente utente) {
+        CACHE_PROFILI.metti(utente.getId(), utente.getEmail().trim().toLowerCase(), utente.getNome().trim(), null);
+    }
+    
+    /**
+     * Aggiorna la cache con i dati di un utente appena letto
+     * 
+     * @param fotoProfilo foto come salvata nel database (null se assente, non l'avatar generato)
+     */
+    private void aggiornaCacheUtente(utente utente, String fotoProfilo) {
+        CACHE_PROFILI.metti(utente.getId(), utente.getEmail().toLowerCase(), utente.getNome(), fotoProfilo);
+    }
+    
+    /**
+     * Invalida il profilo in cache di un utente
+     */
+    private void invalidaCacheUtente(String email) {
+        CACHE_PROFILI.invalidaEmail(email.trim().toLowerCase());
+    }
+    
+    /**
+     * Invalida il profilo in cache di un utente modificato o eliminato fuori da questo DAO
+     */
+    static void invalidaProfilo(int idUtente) {
+        CACHE_PROFILI.invalidaId(idUtente);
     }
     
     // ========== METODI DI UTILITÀ E STATISTICHE ==========
@@ -960,34 +1203,21 @@ public class UtentiDAO {
      * @return Stringa formattata con le statistiche
      */
     public String getStatisticheCache() {
-        int totale = contatoreCacheHit.get() + contatoreCacheMiss.get();
-        double percentualeHit = totale > 0 ? (contatoreCacheHit.get() * 100.0) / totale : 0;
-        
-        return String.format(
-            "📊 Statistiche Cache - Hit: %d, Miss: %d, Percentuale Hit: %.1f%%, Dimensione: %d",
-            contatoreCacheHit.get(), 
-            contatoreCacheMiss.get(), 
-            percentualeHit, 
-            CACHE_EMAIL_TO_ID.size()
-        );
+        return CACHE_PROFILI.getReportStatistiche() + "\n" + CARICATORE_PROFILI.getReportStatistiche();
     }
     
     /**
      * Resetta le statistiche della cache
      */
     public void resettaStatisticheCache() {
-        contatoreCacheHit.set(0);
-        contatoreCacheMiss.set(0);
+        CACHE_PROFILI.resettaStatistiche();
     }
     
     /**
      * Pulisce completamente tutte le cache
      */
     public void pulisciCacheCompleta() {
-        CACHE_EMAIL_TO_ID.clear();
-        CACHE_ID_TO_NOME.clear();
-        CACHE_ID_TO_EMAIL.clear();
-        CACHE_EMAIL_EXISTE.clear();
+        CACHE_PROFILI.svuota();
         resettaStatisticheCache();
         LOGGER.log(Level.INFO, "Cache completamente pulita");
     }
@@ -1001,9 +1231,8 @@ public class UtentiDAO {
         return String.format(
             "📈 Report UtentiDAO - %s\nCache Size: %d, Hit Rate: %.1f%%",
             getStatisticheCache(),
-            CACHE_EMAIL_TO_ID.size(),
-            (contatoreCacheHit.get() + contatoreCacheMiss.get() > 0 ? 
-             (contatoreCacheHit.get() * 100.0) / (contatoreCacheHit.get() + contatoreCacheMiss.get()) : 0)
+            CACHE_PROFILI.getDimensione(),
+            CACHE_PROFILI.getPercentualeHit()
         );
     }
     
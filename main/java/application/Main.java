@@ -16,12 +16,10 @@ import schermata.SchermataPrincipale;
 import schermata.TopBar;
 import schermata.button.AccountDialog;
 import schermata.button.CarrelloDialog;
+import schermata.button.CarrelloManager;
 import application.messagistica.ChatListDialog;
 
 import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -86,6 +84,12 @@ public class Main extends Application {
             System.out.println("🎨 Test avatar univoci per tutti gli utenti...");
             utentiDAO.testAvatarPerTuttiUtenti();
             
+            // Filtri di esistenza email/matricola per i controlli della registrazione
+            UtentiDAO.preparaFiltriEsistenza();
+            
+            // Invalidazioni delle cache pubblicate dal database alle scritture di altri client
+            BusInvalidazioni.avvia();
+            
             // Registra tutti i trigger per la gestione automatica degli annunci
             AnnuncioTrigger.registraTuttiITrigger();
             System.out.println("✅ Trigger annunci registrati");
@@ -142,6 +146,19 @@ public class Main extends Application {
             AnnuncioTrigger.resettaStatistiche();
             System.out.println("✅ Statistiche trigger pulite");
             
+            // Scrive le quantità del carrello modificate e non ancora salvate
+            CarrelloManager.salvaModificheInSospeso();
+            
+            // Riepilogo delle richieste limitate durante la sessione
+            System.out.println(RateLimiter.getReportStatistiche());
+            System.out.println(ServizioHash.getReportStatistiche());
+            System.out.println(UtentiDAO.getStatisticheFiltri());
+            System.out.println(UserDAO.getReportCaricatore());
+            System.out.println(AnnuncioDAO.getReportCaricatore());
+            System.out.println(FilterManager.getReportTrigger());
+            System.out.println(BusInvalidazioni.getReportStatistiche());
+            BusInvalidazioni.ferma();
+            
             // Chiude la connessione al database
             ConnessioneDB.chiudiConnessione();
             System.out.println("✅ Connessione database chiusa");
@@ -243,9 +260,6 @@ scena.getStylesheets().add(getClass().getResource("/style/principali.css").toExt
             if (SessionManager.getCurrentUser() != null) {
                 utente utenteAutenticato = SessionManager.getCurrentUser();
                 
-                // Recupera l'URL dell'immagine profilo dal database
-                String profileImageUrl = utentiDAO.getFotoProfilo(utenteAutenticato.getEmail());
-                
                 // Crea il dialogo account con i dati utente
                 AccountDialog dialogoAccount = new AccountDialog(
                     utenteAutenticato.getNome(), 
@@ -255,8 +269,9 @@ scena.getStylesheets().add(getClass().getResource("/style/principali.css").toExt
                 
                 // Collega l'aggiornamento dell'immagine profilo
                 dialogoAccount.setOnProfileImageUpdate(() -> {
-                    // Ricarica l'immagine profilo dal database e aggiorna la TopBar
+                    // Ricarica l'immagine profilo dal database, la salva in sessione e aggiorna la TopBar
                     String newProfileImageUrl = utentiDAO.getFotoProfilo(utenteAutenticato.getEmail());
+                    utenteAutenticato.setFotoProfilo(newProfileImageUrl);
                     barraSuperiore.updateProfileImage(newProfileImageUrl);
                 });
                 
@@ -360,8 +375,8 @@ scena.getStylesheets().add(getClass().getResource("/style/principali.css").toExt
     private void gestisciLoginSuccesso() {
         utente utenteAutenticato = SessionManager.getCurrentUser();
         if (utenteAutenticato != null) {
-            // Recupera l'URL dell'immagine profilo dal database
-            String profileImageUrl = utentiDAO.getFotoProfilo(utenteAutenticato.getEmail());
+            // Immagine profilo già caricata dalla query di login
+            String profileImageUrl = utenteAutenticato.getFotoProfilo();
             
             // Aggiorna la barra superiore con i dati utente e immagine profilo
             barraSuperiore.setDatiUtente(
@@ -398,8 +413,8 @@ scena.getStylesheets().add(getClass().getResource("/style/principali.css").toExt
     private void gestisciRegistrazioneSuccesso() {
         utente utenteRegistrato = SessionManager.getCurrentUser();
         if (utenteRegistrato != null) {
-            // Recupera l'URL dell'immagine profilo (potrebbe essere null per un nuovo utente)
-            String profileImageUrl = utentiDAO.getFotoProfilo(utenteRegistrato.getEmail());
+            // Immagine profilo caricata da SessionManager alla registrazione
+            String profileImageUrl = utenteRegistrato.getFotoProfilo();
             
             // Aggiorna la barra superiore e mostra schermata principale
             barraSuperiore.setDatiUtente(
@@ -481,8 +496,8 @@ scena.getStylesheets().add(getClass().getResource("/style/principali.css").toExt
     private void aggiornaDatiUtente() {
         utente utenteCorrente = SessionManager.getCurrentUser();
         if (utenteCorrente != null) {
-            // Recupera l'URL dell'immagine profilo
-            String profileImageUrl = utentiDAO.getFotoProfilo(utenteCorrente.getEmail());
+            // Immagine profilo mantenuta in sessione
+            String profileImageUrl = utenteCorrente.getFotoProfilo();
             
             barraSuperiore.setDatiUtente(
                 utenteCorrente.getNome(), 
@@ -513,24 +528,13 @@ scena.getStylesheets().add(getClass().getResource("/style/principali.css").toExt
      * @return true se ci sono chat, false altrimenti
      */
     private boolean haChatDisponibili() {
-        try (Connection connection = ConnessioneDB.getConnessione()) {
-            String query = "SELECT COUNT(*) FROM messaggio WHERE mittente_id = ? OR destinatario_id = ?";
-            PreparedStatement statement = connection.prepareStatement(query);
-            
-            utente utenteCorrente = SessionManager.getCurrentUser();
-            if (utenteCorrente == null) {
-                return false;
-            }
-            
-            statement.setInt(1, utenteCorrente.getId());
-            statement.setInt(2, utenteCorrente.getId());
-            ResultSet risultato = statement.executeQuery();
-            
-            return risultato.next() && risultato.getInt(1) > 0;
-        } catch (SQLException e) {
-            System.err.println("❌ Errore SQL nel controllo chat: " + e.getMessage());
+        utente utenteCorrente = SessionManager.getCurrentUser();
+        if (utenteCorrente == null) {
             return false;
         }
+        
+        // Basta una riga di conversazione: non serve contare tutti i messaggi dell'utente
+        return new MessaggioDAO().haConversazioni(utenteCorrente.getId());
     }
 
     // ========== GESTIONE CARRELLO ==========
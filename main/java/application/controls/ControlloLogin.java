@@ -1,10 +1,9 @@
 package application.controls;
 
+import application.DB.ServizioHash;
 import application.DB.SessionManager;
 import application.DB.UtentiDAO;
 
-import java.util.Optional;
-
 import application.Classe.utente;
 import javafx.application.Platform;
 import javafx.geometry.Insets;
@@ -184,50 +183,41 @@ public class ControlloLogin extends BorderPane {
     }
 
     /**
-     * Esegue il login in un thread separato per non bloccare l'UI
+     * Esegue il login sul pool limitato di {@link ServizioHash} per non bloccare l'UI
      */
     private void eseguiLoginAsync(String email, String password) {
         disableForm(true);
         
-        new Thread(() -> {
+        ServizioHash.invia(ServizioHash.Operazione.LOGIN, () -> {
             try {
                 UtentiDAO gestore = new UtentiDAO();
                 
-                // Verifica esistenza email
-                if (!gestore.emailEsiste(email)) {
-                    Platform.runLater(() -> {
-                        mostraErroreEmail("Email non registrata");
-                    });
-                    return;
-                }
-                
-                // Verifica credenziali
-                if (!gestore.verificaCredenziali(email, password)) {
-                    Platform.runLater(() -> {
-                        mostraErrorePassword("Password errata");
-                    });
-                    return;
-                }
-                
-                // Login riuscito - recupera utente
-                Optional<utente> utenteOpt = gestore.getUtenteByEmail(email);
+                // Credenziali, profilo e foto in un'unica query
+                UtentiDAO.EsitoAutenticazione esito = gestore.autentica(email, password);
                 
-                if (utenteOpt.isPresent()) {
-                    utenteAutenticato = utenteOpt.get();
-                    SessionManager.setCurrentUser(utenteAutenticato);
-                    System.out.println("[DEBUG] Utente loggato: " + 
-                                      utenteAutenticato.getEmail() + " (ID: " + utenteAutenticato.getId() + ")");
-                    
-                    Platform.runLater(() -> {
-                        if (onLoginSuccess != null) {
-                            onLoginSuccess.run();
-                        }
-                    });
-                } else {
-                    // Caso inaspettato: credenziali valide ma utente non trovato
-                    Platform.runLater(() -> {
-                        mostraErroreGenerico("Errore interno: utente non trovato dopo login riuscito.");
-                    });
+                switch (esito.getStato()) {
+                    case SUCCESSO:
+                        utenteAutenticato = esito.getUtente();
+                        SessionManager.setCurrentUser(utenteAutenticato);
+                        
+                        Platform.runLater(() -> {
+                            if (onLoginSuccess != null) {
+                                onLoginSuccess.run();
+                            }
+                        });
+                        break;
+                    case EMAIL_NON_REGISTRATA:
+                        Platform.runLater(() -> mostraErroreEmail("Email non registrata"));
+                        break;
+                    case PASSWORD_ERRATA:
+                        Platform.runLater(() -> mostraErrorePassword("Password errata"));
+                        break;
+                    case BLOCCATO:
+                        Platform.runLater(() -> mostraErrorePassword("Troppi tentativi errati, riprova tra qualche minuto"));
+                        break;
+                    default:
+                        Platform.runLater(() -> mostraErroreGenerico("Si è verificato un errore durante l'accesso. Riprova."));
+                        break;
                 }
                 
             } catch (Exception ex) {
@@ -238,7 +228,15 @@ public class ControlloLogin extends BorderPane {
             } finally {
                 Platform.runLater(() -> disableForm(false));
             }
-        }).start();
+            return null;
+        }).exceptionally(errore -> {
+            // Pool e coda pieni: il lavoro non è mai partito
+            Platform.runLater(() -> {
+                disableForm(false);
+                mostraErroreGenerico("Troppi accessi in corso, riprova tra qualche secondo.");
+            });
+            return null;
+        });
     }
 
     /**
@@ -1,6 +1,7 @@
 package application.controls;
 
 import application.Classe.utente;
+import application.DB.ServizioHash;
 import application.DB.SessionManager;
 import application.DB.UtentiDAO;
 import javafx.application.Platform;
@@ -118,12 +119,12 @@ public class ControlloRegistrazione extends BorderPane {
     }
 
     /**
-     * Esegue la registrazione in un thread separato
+     * Esegue la registrazione sul pool limitato di {@link ServizioHash}
      */
     private void eseguiRegistrazioneAsync(utente nuovoUtente) {
         disabilitaForm(true);
         
-        new Thread(() -> {
+        ServizioHash.invia(ServizioHash.Operazione.REGISTRAZIONE, () -> {
             try {
                 UtentiDAO gestore = new UtentiDAO();
                 
@@ -133,7 +134,7 @@ public class ControlloRegistrazione extends BorderPane {
                         erroreMatricola.setText("Matricola già registrata");
                         applicaStileErrore(campoMatricola);
                     });
-                    return;
+                    return null;
                 }
                 
                 // Verifica preventiva email esistente
@@ -142,7 +143,7 @@ public class ControlloRegistrazione extends BorderPane {
                         erroreEmail.setText("Email già registrata");
                         applicaStileErrore(campoEmail);
                     });
-                    return;
+                    return null;
                 }
                 
                 // Effettua la registrazione
@@ -150,7 +151,7 @@ public class ControlloRegistrazione extends BorderPane {
                 
                 if (registrato) {
                     // Ottieni l'utente completo dal database (con ID) - gestione Optional
-                    Optional<utente> utenteOpt = gestore.getUtenteByEmail(nuovoUtente.getEmail());
+                    Optional<utente> utenteOpt = gestore.getUtenteCompletoByEmail(nuovoUtente.getEmail());
                     
                     if (utenteOpt.isPresent()) {
                         utente utenteRegistrato = utenteOpt.get();
@@ -180,7 +181,15 @@ public class ControlloRegistrazione extends BorderPane {
             } finally {
                 Platform.runLater(() -> disabilitaForm(false));
             }
-        }).start();
+            return null;
+        }).exceptionally(errore -> {
+            // Pool e coda pieni: il lavoro non è mai partito
+            Platform.runLater(() -> {
+                disabilitaForm(false);
+                mostraErroreRegistrazione("Troppe richieste in corso, riprova tra qualche secondo.");
+            });
+            return null;
+        });
     }
 
     private void mostraConfermaRegistrazione() {
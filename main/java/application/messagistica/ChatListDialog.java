@@ -25,12 +25,21 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class ChatListDialog {
+    private static final int RISULTATI_PER_PAGINA = 20;
+
     private Stage stage;
+    private BorderPane root;
     private ListView<utente> chatListView;
+    private ListView<MessaggioDAO.RisultatoRicerca> risultatiListView;
+    private TextField ricercaField;
+    private Button altriRisultatiButton;
     private MessaggioDAO messaggioDAO;
+    private Map<Integer, Integer> nonLettiPerInterlocutore = new HashMap<>();
 
     public ChatListDialog() {
         stage = new Stage();
@@ -43,13 +52,41 @@ public class ChatListDialog {
     }
 
     private void initializeUI() {
-        BorderPane root = new BorderPane();
+        root = new BorderPane();
         
         // Titolo
         Label titleLabel = new Label("Le tue conversazioni");
         titleLabel.setFont(Font.font("Arial", FontWeight.BOLD, 18));
         titleLabel.setPadding(new Insets(10));
         
+        // Ricerca nei messaggi di tutte le conversazioni
+        ricercaField = new TextField();
+        ricercaField.setPromptText("Cerca nei messaggi...");
+        ricercaField.setOnAction(e -> avviaRicerca());
+        ricercaField.textProperty().addListener((obs, oldVal, newVal) -> {
+            if (newVal.isBlank()) {
+                mostraConversazioni();
+            }
+        });
+        VBox header = new VBox(5, titleLabel, ricercaField);
+        header.setPadding(new Insets(0, 10, 10, 10));
+        
+        risultatiListView = new ListView<>();
+        risultatiListView.setCellFactory(param -> new RisultatoRicercaCell());
+        risultatiListView.setPlaceholder(new Label("Nessun messaggio trovato"));
+        risultatiListView.setOnMouseClicked(event -> {
+            if (event.getClickCount() == 2) {
+                MessaggioDAO.RisultatoRicerca risultato = risultatiListView.getSelectionModel().getSelectedItem();
+                if (risultato != null) {
+                    apriRisultato(risultato);
+                }
+            }
+        });
+        
+        altriRisultatiButton = new Button("Altri risultati");
+        altriRisultatiButton.setMaxWidth(Double.MAX_VALUE);
+        altriRisultatiButton.setOnAction(e -> caricaPaginaRisultati());
+        
         // Lista chat con immagini profilo
         chatListView = new ListView<>();
         chatListView.setCellFactory(param -> new ChatListCell());
@@ -64,7 +101,7 @@ public class ChatListDialog {
             }
         });
         
-        root.setTop(titleLabel);
+        root.setTop(header);
         root.setCenter(chatListView);
         
         Scene scene = new Scene(root);
@@ -83,6 +120,7 @@ public class ChatListDialog {
             }
             
             List<utente> interlocutori = messaggioDAO.getInterlocutoriUtenti(currentUserId);
+            nonLettiPerInterlocutore = messaggioDAO.getNonLettiPerInterlocutore(currentUserId);
             chatListView.getItems().setAll(interlocutori);
             
             if (interlocutori.isEmpty()) {
@@ -104,6 +142,59 @@ public class ChatListDialog {
             // Apri FinestraMessaggi con chat semplice
             FinestraMessaggi finestra = new FinestraMessaggi(currentUserId, otherUserId, otherUserName);
             
+            // La finestra ha segnato la chat come letta: aggiorna il contatore della cella
+            nonLettiPerInterlocutore.remove(otherUserId);
+            chatListView.refresh();
+            
+        } catch (Exception e) {
+            e.printStackTrace();
+            showAlert("Errore", "Impossibile aprire la chat: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Avvia una nuova ricerca nei messaggi sostituendo la lista delle chat con i risultati
+     */
+    private void avviaRicerca() {
+        if (ricercaField.getText().isBlank()) {
+            mostraConversazioni();
+            return;
+        }
+        risultatiListView.getItems().clear();
+        root.setCenter(risultatiListView);
+        caricaPaginaRisultati();
+    }
+
+    /**
+     * Carica la pagina successiva di risultati usando come cursore l'ultimo messaggio mostrato
+     */
+    private void caricaPaginaRisultati() {
+        List<MessaggioDAO.RisultatoRicerca> risultatiCorrenti = risultatiListView.getItems();
+        int cursore = risultatiCorrenti.isEmpty() ? 0 :
+            risultatiCorrenti.get(risultatiCorrenti.size() - 1).getMessaggio().getId();
+        
+        List<MessaggioDAO.RisultatoRicerca> pagina = messaggioDAO.cercaMessaggi(
+            SessionManager.getCurrentUserId(), ricercaField.getText(), cursore, RISULTATI_PER_PAGINA);
+        risultatiCorrenti.addAll(pagina);
+        
+        root.setBottom(pagina.size() == RISULTATI_PER_PAGINA ? altriRisultatiButton : null);
+    }
+
+    /**
+     * Ripristina la lista delle conversazioni
+     */
+    private void mostraConversazioni() {
+        root.setCenter(chatListView);
+        root.setBottom(null);
+    }
+
+    /**
+     * Apre la chat del risultato posizionandosi sul messaggio trovato
+     */
+    private void apriRisultato(MessaggioDAO.RisultatoRicerca risultato) {
+        try {
+            new FinestraMessaggi(SessionManager.getCurrentUserId(), risultato.getInterlocutoreId(),
+                risultato.getNomeInterlocutore(), risultato.getMessaggio().getId());
         } catch (Exception e) {
             e.printStackTrace();
             showAlert("Errore", "Impossibile aprire la chat: " + e.getMessage());
@@ -210,6 +301,43 @@ public class ChatListDialog {
         stage.toFront();
     }
 
+    // Classe interna per le celle dei risultati di ricerca
+    private class RisultatoRicercaCell extends ListCell<MessaggioDAO.RisultatoRicerca> {
+        private final Label contestoLabel = new Label();
+        private final Label estrattoLabel = new Label();
+        private final Label dataLabel = new Label();
+        private final VBox box = new VBox(3, contestoLabel, estrattoLabel, dataLabel);
+
+        public RisultatoRicercaCell() {
+            contestoLabel.setFont(Font.font("Arial", FontWeight.BOLD, 13));
+            estrattoLabel.setFont(Font.font("Arial", 12));
+            estrattoLabel.setWrapText(true);
+            estrattoLabel.setMaxWidth(380);
+            dataLabel.setFont(Font.font("Arial", 10));
+            dataLabel.setStyle("-fx-text-fill: #999999;");
+            box.setPadding(new Insets(6));
+        }
+
+        @Override
+        protected void updateItem(MessaggioDAO.RisultatoRicerca risultato, boolean empty) {
+            super.updateItem(risultato, empty);
+            
+            if (empty || risultato == null) {
+                setText(null);
+                setGraphic(null);
+            } else {
+                String contesto = risultato.getNomeInterlocutore();
+                if (risultato.getTitoloAnnuncio() != null) {
+                    contesto += " · " + risultato.getTitoloAnnuncio();
+                }
+                contestoLabel.setText(contesto);
+                estrattoLabel.setText(risultato.getEstratto());
+                dataLabel.setText(formatTimestamp(java.sql.Timestamp.valueOf(risultato.getMessaggio().getDataInvio())));
+                setGraphic(box);
+            }
+        }
+    }
+
     // Classe interna per le celle della lista con immagini profilo
     private class ChatListCell extends ListCell<utente> {
         private final ImageView imageView = new ImageView();
@@ -264,7 +392,8 @@ public class ChatListDialog {
                 setText(null);
                 setGraphic(null);
             } else {
-                nameLabel.setText(user.getNome() + " " + user.getCognome());
+                int nonLetti = nonLettiPerInterlocutore.getOrDefault(user.getId(), 0);
+                nameLabel.setText(user.getNome() + " " + user.getCognome() + (nonLetti > 0 ? " (" + nonLetti + ")" : ""));
                 
                 String preview = getUltimoMessaggioPreview(SessionManager.getCurrentUserId(), user.getId());
                 previewLabel.setText(preview);
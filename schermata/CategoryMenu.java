@@ -203,6 +203,20 @@ public class CategoryMenu {
         return selectedCategory;
     }
     
+    /**
+     * Mostra accanto a ogni categoria il numero di annunci che troverebbe selezionandola
+     * @param conteggi numero di annunci per categoria (con gli altri filtri correnti)
+     */
+    public void aggiornaConteggi(Map<Categoria, Integer> conteggi) {
+        int totale = 0;
+        for (Map.Entry<Categoria, Button> voce : categoryButtons.entrySet()) {
+            int numero = conteggi.getOrDefault(voce.getKey(), 0);
+            totale += numero;
+            voce.getValue().setText(voce.getKey().getDisplayName() + " (" + numero + ")");
+        }
+        allProductsButton.setText("Tutti i prodotti (" + totale + ")");
+    }
+    
     /**
      * Seleziona programmaticamente una categoria
      * @param category categoria da selezionare (null per "Tutti i prodotti")
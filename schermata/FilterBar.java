@@ -193,8 +193,18 @@ public class FilterBar {
      * @param count numero di prodotti da visualizzare
      */
     public void updateCount(int count) {
+        updateCount(count, false);
+    }
+    
+    /**
+     * Aggiorna il contatore indicando se i prodotti sono risultati simili alla ricerca (errori di battitura)
+     * @param count Numero di prodotti
+     * @param simili true se nessun prodotto conteneva il testo cercato e sono mostrati i più simili
+     */
+    public void updateCount(int count, boolean simili) {
         // Utilizzo di operatore ternario per gestire singolare/plurale
-        countText.setText(count + (count == 1 ? " prodotto" : " prodotti"));
+        String testo = count + (count == 1 ? " prodotto" : " prodotti");
+        countText.setText(simili && count > 0 ? testo + (count == 1 ? " simile" : " simili") : testo);
     }
     
     /**
@@ -44,6 +44,12 @@ public class FinestraMessaggi {
     // Immagine profilo dell'interlocutore
     private String otherUserProfileImageUrl;
     
+    // Ultimo mio messaggio letto dall'interlocutore (conferma di lettura)
+    private int ultimoLettoDaInterlocutore;
+    
+    // Messaggio da mostrare all'apertura (es. da un risultato di ricerca), 0 = ultimo messaggio
+    private int messaggioDaMostrare;
+    
     // Costanti per configurazione
     private static final int WINDOW_WIDTH = 500;
     private static final int WINDOW_HEIGHT = 600;
@@ -63,7 +69,19 @@ public class FinestraMessaggi {
      * @param otherUserName Nome dell'altro utente
      */
     public FinestraMessaggi(int currentUserId, int otherUserId, String otherUserName) {
+        this(currentUserId, otherUserId, otherUserName, 0);
+    }
+
+    /**
+     * Costruttore che apre la chat posizionandosi su un messaggio specifico
+     * @param currentUserId ID dell'utente corrente
+     * @param otherUserId ID dell'altro utente nella conversazione
+     * @param otherUserName Nome dell'altro utente
+     * @param messaggioDaMostrare ID del messaggio da evidenziare, 0 per l'ultimo
+     */
+    public FinestraMessaggi(int currentUserId, int otherUserId, String otherUserName, int messaggioDaMostrare) {
         this.currentUserId = currentUserId;
+        this.messaggioDaMostrare = messaggioDaMostrare;
         this.otherUserId = otherUserId;
         this.otherUserName = otherUserName;
         this.messaggioDAO = new MessaggioDAO();
@@ -427,7 +445,11 @@ public class FinestraMessaggi {
          * Crea la label del timestamp
          */
         private Label createTimeLabel(Messaggio message, boolean isMyMessage) {
-            Label timeLabel = new Label(formatTime(message.getDataInvio()));
+            String testoOrario = formatTime(message.getDataInvio());
+            if (isMyMessage && message.getId() > 0 && message.getId() <= ultimoLettoDaInterlocutore) {
+                testoOrario += " ✓✓";
+            }
+            Label timeLabel = new Label(testoOrario);
             timeLabel.setStyle("-fx-text-fill: gray; -fx-font-size: " + TIMESTAMP_FONT_SIZE + "px;");
             timeLabel.setAlignment(isMyMessage ? Pos.CENTER_RIGHT : Pos.CENTER_LEFT);
             return timeLabel;
@@ -440,9 +462,19 @@ public class FinestraMessaggi {
     private void loadMessages() {
         try {
             List<Messaggio> messages = messaggioDAO.getConversazione(currentUserId, otherUserId);
+            
+            // Aprire la chat equivale a leggerla; la conferma dell'altro lato marca i miei messaggi
+            messaggioDAO.segnaConversazioneLetta(currentUserId, otherUserId);
+            ultimoLettoDaInterlocutore = messaggioDAO.getUltimoMessaggioLetto(otherUserId, currentUserId);
+            
             messagesListView.getItems().setAll(messages);
             
-            scrollToLatestMessage();
+            if (messaggioDaMostrare > 0) {
+                mostraMessaggio(messaggioDaMostrare);
+                messaggioDaMostrare = 0;
+            } else {
+                scrollToLatestMessage();
+            }
         } catch (Exception e) {
             handleLoadMessagesError(e);
         }
@@ -457,6 +489,22 @@ public class FinestraMessaggi {
         }
     }
 
+    /**
+     * Scorre fino al messaggio indicato e lo seleziona; se non è nella conversazione
+     * si posiziona sull'ultimo messaggio
+     */
+    public void mostraMessaggio(int messaggioId) {
+        List<Messaggio> items = messagesListView.getItems();
+        for (int i = 0; i < items.size(); i++) {
+            if (items.get(i).getId() == messaggioId) {
+                messagesListView.scrollTo(i);
+                messagesListView.getSelectionModel().select(i);
+                return;
+            }
+        }
+        scrollToLatestMessage();
+    }
+
     /**
      * Gestisce gli errori nel caricamento dei messaggi
      */
@@ -3,6 +3,7 @@ package schermata;
 import application.Classe.Annuncio;
 import javafx.application.Platform;
 import javafx.geometry.Insets;
+import javafx.scene.control.Button;
 import javafx.scene.control.Label;
 import javafx.scene.control.ProgressIndicator;
 import javafx.scene.layout.TilePane;
@@ -23,12 +24,14 @@ public class ProductGrid {
     private TilePane productGrid;         // Griglia di card prodotti
     private VBox loadingContainer;        // Container per stato di caricamento
     private VBox emptyContainer;          // Container per stato vuoto
+    private Button mostraAltriButton;     // Pulsante per la pagina successiva
 
     // Callback per azioni utente
     private Consumer<Annuncio> onDetailsAction;
     private Consumer<Annuncio> onOfferAction;
     private Consumer<Annuncio> onFavoriteAction;
     private Consumer<Annuncio> onAnnuncioModificato;
+    private Runnable onMostraAltri;
 
     // Costanti per configurazione
     private static final int GRID_PADDING = 20;
@@ -58,6 +61,15 @@ public class ProductGrid {
 
         loadingContainer = creaLoadingContainer();
         emptyContainer = creaEmptyContainer();
+
+        mostraAltriButton = new Button();
+        mostraAltriButton.getStyleClass().add("load-more-button");
+        mostraAltriButton.setMaxWidth(Double.MAX_VALUE);
+        mostraAltriButton.setOnAction(e -> {
+            if (onMostraAltri != null) {
+                onMostraAltri.run();
+            }
+        });
     }
 
     /**
@@ -142,6 +154,30 @@ public class ProductGrid {
         });
     }
 
+    /**
+     * Aggiorna la griglia con una pagina di risultati, mostrando il pulsante per caricarne altri
+     * se il totale supera gli annunci ricevuti
+     * @param annunci Annunci da visualizzare (i primi dei risultati ordinati)
+     * @param totale Numero totale di risultati
+     */
+    public void aggiornaAnnunci(List<Annuncio> annunci, int totale) {
+        Platform.runLater(() -> {
+            if (annunci == null || annunci.isEmpty()) {
+                mostraStatoVuoto();
+                return;
+            }
+
+            clearAndPopulateGrid(annunci);
+            int rimanenti = totale - annunci.size();
+            if (rimanenti > 0) {
+                mostraAltriButton.setText("Mostra altri (" + rimanenti + ")");
+                container.getChildren().setAll(productGrid, mostraAltriButton);
+            } else {
+                container.getChildren().setAll(productGrid);
+            }
+        });
+    }
+
     /**
      * Pulisce e popola la griglia con gli annunci
      */
@@ -283,6 +319,14 @@ public class ProductGrid {
         this.onDetailsAction = onDetailsAction;
     }
 
+    /**
+     * Imposta il callback per il caricamento della pagina successiva
+     * @param onMostraAltri azione eseguita dal pulsante "Mostra altri"
+     */
+    public void setOnMostraAltri(Runnable onMostraAltri) {
+        this.onMostraAltri = onMostraAltri;
+    }
+
     /**
      * Imposta il callback per l'azione offerta
      * @param onOfferAction Consumer che gestisce l'invio offerte
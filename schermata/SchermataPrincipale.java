@@ -24,6 +24,10 @@ import java.sql.SQLException;
 import java.util.List;
 
 import application.DB.FilterManager;
+import application.DB.IndiceAttributi;
+import application.DB.IndiceSuggerimenti;
+import application.DB.MotoreFiltri;
+import application.DB.RicercaIncrementale;
 import application.DB.OggettoDAO;
 import application.DB.SessionManager;
 
@@ -41,6 +45,9 @@ public class SchermataPrincipale extends BorderPane {
 
     // Gestori dati
     private final AnnuncioDAO annuncioDAO = new AnnuncioDAO();
+    private final IndiceAttributi indiceAttributi = new IndiceAttributi();
+    private final RicercaIncrementale ricercaIncrementale = new RicercaIncrementale(indiceAttributi, Platform::runLater);
+    private final IndiceSuggerimenti indiceSuggerimenti = new IndiceSuggerimenti();
     private List<Annuncio> tuttiGliAnnunci;
     private List<Annuncio> annunciFiltrati;
 
@@ -50,6 +57,11 @@ public class SchermataPrincipale extends BorderPane {
     private Tipologia tipologiaSelezionata;
     private String ordinamento = "recent";
     private String queryRicerca = "";
+    private int annunciDaMostrare = ANNUNCI_PER_PAGINA;
+    private int totaleRisultati;
+    
+    // Numero di annunci mostrati per pagina nella griglia
+    private static final int ANNUNCI_PER_PAGINA = 60;
     private static SchermataPrincipale instance;
 
     /**
@@ -95,6 +107,8 @@ public class SchermataPrincipale extends BorderPane {
     private void setupEventHandlers() {
         // Search handler
         topBar.setOnSearch(this::handleSearch);
+        topBar.setOnSearchConfermata(this::handleSearchConfermata);
+        topBar.setSuggeritore(prefisso -> indiceSuggerimenti.suggerisci(prefisso, IndiceSuggerimenti.MASSIMO_SUGGERIMENTI));
         topBar.setOnMessages(this::handleMessages);
         
         // Category filter
@@ -121,6 +135,7 @@ public class SchermataPrincipale extends BorderPane {
         
         // Callback per l'aggiornamento degli annunci modificati
         productGrid.setOnAnnuncioModificato(this::handleAnnuncioModificato);
+        productGrid.setOnMostraAltri(this::mostraAltriAnnunci);
 
         // Insert ad handler
         topBar.setOnInserisciAnnuncio(this::handleInsertAd);
@@ -132,6 +147,17 @@ public class SchermataPrincipale extends BorderPane {
      */
     private void handleAnnuncioModificato(Annuncio annuncioModificato) {
         System.out.println("🔄 Annuncio modificato ricevuto, aggiorno la card...");
+        int annuncioId = annuncioModificato.getId();
+        // Catalogo e indici vanno aggiornati insieme alla card: altrimenti filtri, conteggi e
+        // suggerimenti continuano a usare i vecchi dati (e la cache dei risultati non viene invalidata)
+        if (tuttiGliAnnunci != null) {
+            tuttiGliAnnunci.replaceAll(annuncio -> annuncio.getId() == annuncioId ? annuncioModificato : annuncio);
+        }
+        if (annunciFiltrati != null) {
+            annunciFiltrati.replaceAll(annuncio -> annuncio.getId() == annuncioId ? annuncioModificato : annuncio);
+        }
+        indiceAttributi.aggiorna(annuncioModificato);
+        indiceSuggerimenti.aggiorna(annuncioModificato);
         productGrid.aggiornaCardAnnuncio(annuncioModificato);
     }
 
@@ -205,7 +231,11 @@ public class SchermataPrincipale extends BorderPane {
             protected List<Annuncio> call() {
                 try {
                     AnnuncioDAO dao = new AnnuncioDAO();
-                    return dao.getAnnunciAttivi();
+                    List<Annuncio> annunci = dao.getAnnunciAttivi();
+                    // Indici (bitmap, trigrammi) e trie dei suggerimenti si costruiscono qui, fuori dal thread FX
+                    indiceAttributi.sincronizza(annunci);
+                    indiceSuggerimenti.sincronizza(annunci);
+                    return annunci;
                 } catch (Exception e) {
                     e.printStackTrace();
                     throw new RuntimeException("Errore nel caricamento degli annunci: " + e.getMessage(), e);
@@ -238,13 +268,31 @@ public class SchermataPrincipale extends BorderPane {
     }
 
     /**
-     * Applica i filtri correnti alla lista degli annunci
+     * Applica i filtri correnti alla lista degli annunci, ripartendo dalla prima pagina
      */
     private void applyFilters() {
+        annunciDaMostrare = ANNUNCI_PER_PAGINA;
+        aggiornaRisultati();
+    }
+
+    /**
+     * Mostra la pagina successiva dei risultati correnti
+     */
+    private void mostraAltriAnnunci() {
+        annunciDaMostrare += ANNUNCI_PER_PAGINA;
+        aggiornaRisultati();
+    }
+
+    /**
+     * Filtra e mostra i primi {@code annunciDaMostrare} annunci secondo i filtri correnti
+     */
+    private void aggiornaRisultati() {
         if (tuttiGliAnnunci == null) {
             System.out.println("[DEBUG] tuttiGliAnnunci è null");
             return;
         }
+        // Un risultato della digitazione ancora in arrivo non deve sovrascrivere questo
+        ricercaIncrementale.annulla();
 
         System.out.println("[DEBUG] Annunci da filtrare: " + tuttiGliAnnunci.size());
         System.out.println("[DEBUG] Filtri applicati: " 
@@ -253,14 +301,25 @@ public class SchermataPrincipale extends BorderPane {
             + ", Query=" + queryRicerca
             + ", Ordinamento=" + ordinamento);
 
-        // Utilizza il FilterManager per applicare i filtri
-        annunciFiltrati = FilterManager.applicaFiltri(
+        // Utilizza il FilterManager per applicare i filtri (con l'indice per categoria e tipologia)
+        MotoreFiltri.Risultato risultato = FilterManager.applicaFiltriConConteggi(
             tuttiGliAnnunci, 
+            indiceAttributi,
             categoriaSelezionata, 
             tipologiaSelezionata, 
             queryRicerca, 
-            ordinamento
+            ordinamento,
+            annunciDaMostrare
         );
+        mostraRisultato(risultato);
+    }
+
+    /**
+     * Mostra un risultato di filtraggio nella griglia, nel contatore e nel menu categorie
+     */
+    private void mostraRisultato(MotoreFiltri.Risultato risultato) {
+        annunciFiltrati = risultato.getAnnunci();
+        totaleRisultati = risultato.getTotale();
 
         System.out.println("[DEBUG] Annunci filtrati: " + annunciFiltrati.size());
         
@@ -268,41 +327,42 @@ public class SchermataPrincipale extends BorderPane {
             System.out.println("[DEBUG] Nessun annuncio supera i filtri");
             productGrid.mostraStatoVuoto();
         } else {
-            productGrid.aggiornaAnnunci(annunciFiltrati);
+            productGrid.aggiornaAnnunci(annunciFiltrati, risultato.getTotale());
         }
         
-        // CORREZIONE: Gestione corretta del tipo long
-        long countLong = FilterManager.contaAnnunciFiltrati(
-            tuttiGliAnnunci, 
-            categoriaSelezionata, 
-            tipologiaSelezionata, 
-            queryRicerca
-        );
-        
-        // Conversione sicura da long a int
-        int count = convertLongToIntSafely(countLong);
-        filterBar.updateCount(count);
+        // Totale e conteggi per categoria arrivano dallo stesso passaggio del filtraggio
+        // Nessun annuncio contiene il testo cercato: sono mostrati i più simili
+        filterBar.updateCount(risultato.getTotale(), risultato.isApprossimato());
+        categoryMenu.aggiornaConteggi(risultato.getConteggiCategorie());
     }
 
     /**
-     * Converte in modo sicuro un long in int, gestendo eventuali overflow
+     * Gestisce la ricerca degli annunci
+     * @param query Testo da cercare negli annunci
      */
-    private int convertLongToIntSafely(long value) {
-        if (value > Integer.MAX_VALUE) {
-            System.err.println("Warning: valore long " + value + " eccede Integer.MAX_VALUE, usando valore massimo int");
-            return Integer.MAX_VALUE;
-        } else if (value < Integer.MIN_VALUE) {
-            System.err.println("Warning: valore long " + value + " inferiore a Integer.MIN_VALUE, usando valore minimo int");
-            return Integer.MIN_VALUE;
+    private void handleSearch(String query) {
+        if (query.equals(queryRicerca)) {
+            return;
         }
-        return (int) value;
+        this.queryRicerca = query;
+        if (query.isEmpty() || tuttiGliAnnunci == null) {
+            applyFilters();
+            return;
+        }
+        
+        // Durante la digitazione: richieste accorpate, raffinamento del risultato precedente,
+        // consegna sul thread FX solo per l'ultima query
+        annunciDaMostrare = ANNUNCI_PER_PAGINA;
+        ricercaIncrementale.cerca(query, categoriaSelezionata, tipologiaSelezionata, ordinamento,
+                                  annunciDaMostrare, this::mostraRisultato);
     }
 
     /**
-     * Gestisce la ricerca degli annunci
+     * Gestisce la ricerca confermata con Invio o con il pulsante: a differenza dell'anteprima durante
+     * la digitazione passa dal FilterManager, quindi esegue trigger e statistiche
      * @param query Testo da cercare negli annunci
      */
-    private void handleSearch(String query) {
+    private void handleSearchConfermata(String query) {
         this.queryRicerca = query;
         applyFilters();
     }
@@ -448,13 +508,14 @@ public class SchermataPrincipale extends BorderPane {
      * Ottiene il numero di annunci filtrati
      */
     public int getAnnunciFiltrati() {
-        return annunciFiltrati != null ? annunciFiltrati.size() : 0;
+        return totaleRisultati;
     }
 
     /**
      * Pulisce le risorse quando la schermata viene chiusa
      */
     public void cleanup() {
+        ricercaIncrementale.chiudi();
         // CORREZIONE: Rimossa chiamata a metodo inesistente
         // Non chiamiamo productGrid.cleanup() perché non esiste
         System.out.println("Pulizia risorse SchermataPrincipale completata");
@@ -484,15 +545,16 @@ private void rimuoviAnnuncioDalleListe(int annuncioId) {
     if (tuttiGliAnnunci != null) {
         tuttiGliAnnunci.removeIf(annuncio -> annuncio.getId() == annuncioId);
     }
+    indiceAttributi.rimuovi(annuncioId);
+    indiceSuggerimenti.rimuovi(annuncioId);
     
     // Rimuovi da annunciFiltrati
-    if (annunciFiltrati != null) {
-        annunciFiltrati.removeIf(annuncio -> annuncio.getId() == annuncioId);
+    if (annunciFiltrati != null && annunciFiltrati.removeIf(annuncio -> annuncio.getId() == annuncioId)) {
+        totaleRisultati--;
     }
     
     // Aggiorna il contatore
-    int count = annunciFiltrati != null ? annunciFiltrati.size() : 0;
-    filterBar.updateCount(count);
+    filterBar.updateCount(Math.max(totaleRisultati, 0));
 }
 
 /**
@@ -1,11 +1,17 @@
 package schermata;
 
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
 import javafx.application.Platform;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
+import javafx.geometry.Side;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Button;
+import javafx.scene.control.ContextMenu;
 import javafx.scene.control.DialogPane;
+import javafx.scene.control.Label;
+import javafx.scene.control.MenuItem;
 import javafx.scene.control.TextField;
 import javafx.scene.control.Tooltip;
 import javafx.scene.image.Image;
@@ -17,18 +23,18 @@ import javafx.scene.layout.StackPane;
 import javafx.scene.text.Font;
 import javafx.scene.text.Text;
 
+import java.util.List;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
-import application.DB.ConnessioneDB;
+import application.DB.MessaggioDAO;
 import application.DB.SessionManager;
 import application.messagistica.ChatListDialog;
 
 import java.io.File;
 import java.io.InputStream;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * TopBar - Barra superiore dell'applicazione con funzionalità principali
@@ -44,10 +50,27 @@ public class TopBar {
     private final Button messagesButton = new Button();
     private final Button inserisciAnnuncioButton = new Button("Inserisci Annuncio");
     private final ImageView accountImageView = new ImageView();
+    private final Label messagesBadge = new Label();
     private String profileImageUrl;
     
+    // Badge messaggi non letti: una lookup per chiave primaria a ogni refresh, fuori dal thread FX
+    private final MessaggioDAO messaggioDAO = new MessaggioDAO();
+    private final ExecutorService badgeExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "topbar-badge");
+        t.setDaemon(true);
+        return t;
+    });
+    private Timeline badgeTimeline;
+    
+    // Suggerimenti di completamento: la ricerca nel trie è sincrona, quindi il menu
+    // si aggiorna nello stesso frame del tasto premuto
+    private final ContextMenu suggerimentiMenu = new ContextMenu();
+    private Function<String, List<String>> suggeritore;
+    private boolean applicandoSuggerimento;
+    
     // Handler per le azioni
     private Consumer<String> searchHandler;
+    private Consumer<String> searchConfermataHandler;
     private Runnable accountHandler;
     private Runnable cartHandler;
     private Runnable messagesHandler;
@@ -64,6 +87,7 @@ public class TopBar {
     private static final int SEARCH_FIELD_HEIGHT = 44;
     private static final int BUTTON_ICON_SIZE = 24;
     private static final int LOGO_SIZE = 36;
+    private static final int BADGE_REFRESH_SECONDS = 15;
     private static final String LOGO_PATH = "/application/icons/logo.png";
     private static final String DEFAULT_SEARCH_PROMPT = "Cerca prodotti...";
     private static final String DEFAULT_ACCOUNT_ICON_URL = "https://cdn-icons-png.flaticon.com/512/1077/1077063.png";
@@ -220,12 +244,64 @@ public class TopBar {
         searchField.setPrefHeight(SEARCH_FIELD_HEIGHT);
         searchField.setPrefWidth(400);
         
-        // Listener per ricerca in tempo reale
+        // Listener per ricerca in tempo reale: ogni modifica viene inoltrata,
+        // accorpamento e annullamento delle richieste sono a carico del gestore
         searchField.textProperty().addListener((obs, oldVal, newVal) -> {
-            if (newVal.isEmpty() && searchHandler != null) {
-                searchHandler.accept("");
+            if (!applicandoSuggerimento) {
+                aggiornaSuggerimenti(newVal);
+            }
+            if (searchHandler != null) {
+                searchHandler.accept(newVal.trim());
+            }
+        });
+        searchField.focusedProperty().addListener((obs, oldVal, focused) -> {
+            if (!focused) {
+                suggerimentiMenu.hide();
             }
         });
+        suggerimentiMenu.getStyleClass().add("search-suggestions");
+    }
+    
+    /**
+     * Mostra sotto il campo i completamenti del testo digitato
+     */
+    private void aggiornaSuggerimenti(String testo) {
+        if (suggeritore == null || testo == null || testo.isBlank()) {
+            suggerimentiMenu.hide();
+            return;
+        }
+        
+        List<String> suggerimenti = suggeritore.apply(testo);
+        // Nessun menu se l'unico suggerimento è già quello scritto
+        if (suggerimenti.isEmpty() ||
+            (suggerimenti.size() == 1 && suggerimenti.get(0).equalsIgnoreCase(testo.trim()))) {
+            suggerimentiMenu.hide();
+            return;
+        }
+        
+        suggerimentiMenu.getItems().clear();
+        for (String suggerimento : suggerimenti) {
+            MenuItem voce = new MenuItem(suggerimento);
+            voce.setOnAction(e -> applicaSuggerimento(suggerimento));
+            suggerimentiMenu.getItems().add(voce);
+        }
+        if (!suggerimentiMenu.isShowing() && searchField.getScene() != null) {
+            suggerimentiMenu.show(searchField, Side.BOTTOM, 0, 0);
+        }
+    }
+    
+    /**
+     * Inserisce il suggerimento scelto nel campo e avvia la ricerca
+     */
+    private void applicaSuggerimento(String suggerimento) {
+        suggerimentiMenu.hide();
+        applicandoSuggerimento = true;
+        try {
+            searchField.setText(suggerimento);
+        } finally {
+            applicandoSuggerimento = false;
+        }
+        searchField.positionCaret(suggerimento.length());
     }
     
     /**
@@ -246,11 +322,26 @@ public class TopBar {
         container.setSpacing(12);
         container.setAlignment(Pos.CENTER_RIGHT);
         
-        container.getChildren().addAll(inserisciAnnuncioButton, messagesButton, cartButton, accountButton);
+        container.getChildren().addAll(inserisciAnnuncioButton, createMessagesButtonWithBadge(), cartButton, accountButton);
         
         return container;
     }
     
+    /**
+     * Sovrappone al pulsante messaggi il badge con il numero di non letti
+     */
+    private StackPane createMessagesButtonWithBadge() {
+        messagesBadge.setVisible(false);
+        messagesBadge.setMouseTransparent(true);
+        messagesBadge.setStyle("-fx-background-color: #ef4444; -fx-text-fill: white; -fx-font-size: 10px; " +
+                               "-fx-font-weight: bold; -fx-padding: 1 5 1 5; -fx-background-radius: 8px;");
+        
+        StackPane container = new StackPane(messagesButton, messagesBadge);
+        StackPane.setAlignment(messagesBadge, Pos.TOP_RIGHT);
+        StackPane.setMargin(messagesBadge, new Insets(-4, -4, 0, 0));
+        return container;
+    }
+    
     /**
      * Configura tutti i pulsanti di azione
      */
@@ -432,8 +523,12 @@ public class TopBar {
      * Gestisce l'azione di ricerca
      */
     private void handleSearch() {
-        if (searchHandler != null) {
-            String searchText = searchField.getText().trim();
+        suggerimentiMenu.hide();
+        String searchText = searchField.getText().trim();
+        // Invio o pulsante confermano la ricerca, anche se il testo è lo stesso già in anteprima
+        if (searchConfermataHandler != null) {
+            searchConfermataHandler.accept(searchText);
+        } else if (searchHandler != null) {
             searchHandler.accept(searchText);
         }
     }
@@ -509,20 +604,7 @@ public class TopBar {
      * Verifica se ci sono chat disponibili per l'utente
      */
     private boolean haChatDisponibili() {
-        try (Connection connection = ConnessioneDB.getConnessione()) {
-            String query = "SELECT COUNT(*) FROM messaggio WHERE mittente_id = ? OR destinatario_id = ?";
-            PreparedStatement stmt = connection.prepareStatement(query);
-            int userId = SessionManager.getCurrentUserId();
-            stmt.setInt(1, userId);
-            stmt.setInt(2, userId);
-            
-            ResultSet rs = stmt.executeQuery();
-            return rs.next() && rs.getInt(1) > 0;
-            
-        } catch (SQLException e) {
-            System.err.println("Errore nel verificare le chat: " + e.getMessage());
-            return false;
-        }
+        return messaggioDAO.haConversazioni(SessionManager.getCurrentUserId());
     }
 
     /**
@@ -561,6 +643,20 @@ public class TopBar {
         this.searchHandler = handler;
     }
     
+    /**
+     * Imposta l'handler per la ricerca confermata (Invio o pulsante di ricerca)
+     */
+    public void setOnSearchConfermata(Consumer<String> handler) {
+        this.searchConfermataHandler = handler;
+    }
+    
+    /**
+     * Imposta la sorgente dei suggerimenti di completamento (testo digitato → completamenti)
+     */
+    public void setSuggeritore(Function<String, List<String>> suggeritore) {
+        this.suggeritore = suggeritore;
+    }
+    
     /**
      * Imposta l'handler per l'account
      */
@@ -612,6 +708,9 @@ public class TopBar {
     private void updateUIWithUserData() {
         if (nomeUtente != null && !nomeUtente.isEmpty()) {
             accountButton.setTooltip(new Tooltip("Account: " + nomeUtente));
+            avviaAggiornamentoBadge();
+        } else {
+            fermaAggiornamentoBadge();
         }
         
         // Carica l'immagine profilo se disponibile
@@ -634,6 +733,54 @@ public class TopBar {
         return emailUtente;
     }
 
+    // ==================== BADGE MESSAGGI ====================
+
+    /**
+     * Avvia il refresh periodico del badge dei messaggi non letti
+     */
+    private void avviaAggiornamentoBadge() {
+        if (badgeTimeline == null) {
+            badgeTimeline = new Timeline(new KeyFrame(
+                javafx.util.Duration.seconds(BADGE_REFRESH_SECONDS), e -> aggiornaBadgeMessaggi()));
+            badgeTimeline.setCycleCount(Timeline.INDEFINITE);
+        }
+        badgeTimeline.play();
+        aggiornaBadgeMessaggi();
+    }
+    
+    /**
+     * Ferma il refresh del badge e lo nasconde (logout)
+     */
+    private void fermaAggiornamentoBadge() {
+        if (badgeTimeline != null) {
+            badgeTimeline.stop();
+        }
+        mostraBadgeMessaggi(0);
+    }
+    
+    /**
+     * Rilegge il contatore dei non letti in background e aggiorna il badge sul thread FX
+     */
+    public void aggiornaBadgeMessaggi() {
+        int userId = SessionManager.getCurrentUserId();
+        if (userId == -1) {
+            mostraBadgeMessaggi(0);
+            return;
+        }
+        badgeExecutor.execute(() -> {
+            int nonLetti = messaggioDAO.getConteggioNonLetti(userId);
+            Platform.runLater(() -> mostraBadgeMessaggi(nonLetti));
+        });
+    }
+    
+    /**
+     * Mostra il numero di non letti nel badge, nascondendolo quando è zero
+     */
+    private void mostraBadgeMessaggi(int nonLetti) {
+        messagesBadge.setText(nonLetti > 99 ? "99+" : String.valueOf(nonLetti));
+        messagesBadge.setVisible(nonLetti > 0);
+    }
+
     // ==================== UTILITY METHODS ====================
 
     /**
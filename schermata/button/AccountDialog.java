@@ -547,14 +547,12 @@ private List<Annuncio> getAnnunciConCodiciPendenti(int venditoreId) {
             stmt.setInt(1, venditoreId);
             ResultSet rs = stmt.executeQuery();
             
-            AnnuncioDAO annuncioDAO = new AnnuncioDAO();
+            List<Integer> annuncioIds = new java.util.ArrayList<>();
             while (rs.next()) {
-                int annuncioId = rs.getInt("id");
-                Annuncio annuncio = annuncioDAO.getAnnuncioById(annuncioId);
-                if (annuncio != null) {
-                    annunciConCodici.add(annuncio);
-                }
+                annuncioIds.add(rs.getInt("id"));
             }
+            // Un'unica query per tutti gli annunci invece di una per riga
+            annunciConCodici.addAll(new AnnuncioDAO().getAnnunciByIds(annuncioIds).values());
         }
     } catch (SQLException e) {
         System.err.println("Errore nel recupero annunci con codici pendenti: " + e.getMessage());
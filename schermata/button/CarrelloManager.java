@@ -8,21 +8,39 @@ import javafx.scene.control.Alert;
 import application.Classe.Conto;
 import application.DB.ContoDAO;
 import application.DB.AnnuncioDAO;
+import application.DB.CheckoutDAO;
 import java.math.BigDecimal;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 
 /**
  * Gestore centrale del carrello acquisti che coordina operazioni tra
  * interfaccia utente, database e sistema di pagamento
  */
 public class CarrelloManager {
+    /** Movimenti mostrati nello storico del conto */
+    private static final int MOVIMENTI_PER_PAGINA = 50;
+
     private static CarrelloManager instance;
     private CarrelloDAO carrelloDAO;
     private ContoDAO contoDAO;
+    private CheckoutDAO checkoutDAO;
+    
+    /** Carrello dell'utente in sessione, letto una volta e aggiornato localmente */
+    private ModelloCarrello modello;
+    
+    /**
+     * Chiave di idempotenza dell'ultimo checkout fallito per errore tecnico e relativa selezione:
+     * se l'utente ritenta con gli stessi articoli viene riusata, così un checkout già confermato
+     * (ma la cui risposta è andata persa) non addebita una seconda volta
+     */
+    private String chiaveCheckoutInSospeso;
+    private List<Integer> selezioneCheckoutInSospeso;
     
     /**
      * Mappa per mantenere lo stato di selezione degli articoli tra diverse sessioni UI
@@ -100,6 +118,8 @@ public class CarrelloManager {
     private CarrelloManager() {
         this.carrelloDAO = new CarrelloDAO();
         this.contoDAO = new ContoDAO();
+        this.checkoutDAO = new CheckoutDAO();
+        this.modello = new ModelloCarrello(carrelloDAO);
     }
     
     /**
@@ -183,11 +203,23 @@ public class CarrelloManager {
     
     // ==================== METODI GESTIONE CARRELLO ====================
     
+    /**
+     * Restituisce l'ID dell'utente corrente dopo essersi assicurato che il suo carrello sia in memoria
+     * 
+     * @return ID utente, oppure -1 se nessun utente è loggato
+     */
+    private int utenteConCarrelloCaricato() {
+        int utenteId = getCurrentUserId();
+        if (utenteId <= 0) return -1;
+        modello.assicuraCaricato(utenteId);
+        return utenteId;
+    }
+    
     /**
      * Aggiunge un annuncio al carrello dell'utente corrente
      */
     public void aggiungiAlCarrello(Annuncio annuncio) {
-        int utenteId = getCurrentUserId();
+        int utenteId = utenteConCarrelloCaricato();
         if (utenteId <= 0) {
             mostraAlert("Accesso richiesto", "Devi effettuare il login per aggiungere articoli al carrello");
             return;
@@ -196,6 +228,7 @@ public class CarrelloManager {
         try {
             boolean success = carrelloDAO.aggiungiAlCarrello(utenteId, annuncio.getId());
             if (success) {
+                modello.registraAggiunta(annuncio.getId());
                 mostraAlert("Successo", "Articolo aggiunto al carrello!");
             } else {
                 mostraAlert("Errore", "Impossibile aggiungere l'articolo al carrello");
@@ -209,9 +242,11 @@ public class CarrelloManager {
      * Rimuove un articolo dal carrello tramite ID annuncio
      */
     public void rimuoviDalCarrello(int annuncioId) {
-        int utenteId = getCurrentUserId();
+        int utenteId = utenteConCarrelloCaricato();
         if (utenteId <= 0) return;
-        carrelloDAO.rimuoviDalCarrello(utenteId, annuncioId);
+        if (carrelloDAO.rimuoviDalCarrello(utenteId, annuncioId)) {
+            modello.registraRimozione(annuncioId);
+        }
     }
     
     /**
@@ -222,18 +257,17 @@ public class CarrelloManager {
     }
     
     /**
-     * Modifica la quantità di un articolo nel carrello
+     * Modifica la quantità di un articolo nel carrello.
+     * La modifica è immediata nel modello e viene scritta sul database in differita, insieme alle altre.
      */
     public void modificaQuantita(Annuncio annuncio, int nuovaQuantita) {
-        int utenteId = getCurrentUserId();
+        int utenteId = utenteConCarrelloCaricato();
         if (utenteId <= 0) return;
         
-        List<application.Classe.CarrelloItem> items = getCarrelloConQuantita();
-        for (application.Classe.CarrelloItem item : items) {
-            if (item.getAnnuncio().getId() == annuncio.getId()) {
-                carrelloDAO.aggiornaQuantita(item.getId(), nuovaQuantita);
-                break;
-            }
+        if (nuovaQuantita <= 0) {
+            rimuoviDalCarrello(annuncio.getId());
+        } else {
+            modello.aggiornaQuantita(annuncio.getId(), nuovaQuantita);
         }
     }
     
@@ -242,11 +276,9 @@ public class CarrelloManager {
      */
     public List<Annuncio> getCarrello() {
         List<Annuncio> result = new ArrayList<>();
-        int utenteId = getCurrentUserId();
-        if (utenteId <= 0) return result;
+        if (utenteConCarrelloCaricato() <= 0) return result;
         
-        List<application.Classe.CarrelloItem> items = carrelloDAO.getCarrelloPerUtente(utenteId);
-        for (application.Classe.CarrelloItem item : items) {
+        for (application.Classe.CarrelloItem item : modello.getArticoli()) {
             for (int i = 0; i < item.getQuantita(); i++) {
                 result.add(item.getAnnuncio());
             }
@@ -258,30 +290,25 @@ public class CarrelloManager {
      * Restituisce il carrello con informazioni sulla quantità
      */
     public List<application.Classe.CarrelloItem> getCarrelloConQuantita() {
-        int utenteId = getCurrentUserId();
-        if (utenteId <= 0) return new ArrayList<>();
-        return carrelloDAO.getCarrelloPerUtente(utenteId);
+        if (utenteConCarrelloCaricato() <= 0) return new ArrayList<>();
+        return modello.getArticoli();
     }
     
     /**
      * Restituisce gli item del carrello per l'interfaccia utente
      */
     public List<CarrelloItem> getCarrelloItems() {
-        List<CarrelloItem> result = new ArrayList<>();
-        int utenteId = getCurrentUserId();
-        if (utenteId <= 0) return result;
-        
-        List<application.Classe.CarrelloItem> itemsDB = carrelloDAO.getCarrelloPerUtente(utenteId);
         List<CarrelloItem> nuoviItems = new ArrayList<>();
+        if (utenteConCarrelloCaricato() <= 0) return nuoviItems;
         
-        for (application.Classe.CarrelloItem itemDB : itemsDB) {
+        for (application.Classe.CarrelloItem itemModello : modello.getArticoli()) {
             CarrelloItem uiItem = new CarrelloItem(
-                itemDB.getAnnuncio().getId(),
-                itemDB.getAnnuncio().getTitolo(),
-                itemDB.getAnnuncio().getPrezzo(),
-                itemDB.getQuantita()
+                itemModello.getAnnuncio().getId(),
+                itemModello.getAnnuncio().getTitolo(),
+                itemModello.getAnnuncio().getPrezzo(),
+                itemModello.getQuantita()
             );
-            uiItem.setAnnuncio(itemDB.getAnnuncio());
+            uiItem.setAnnuncio(itemModello.getAnnuncio());
             nuoviItems.add(uiItem);
         }
         
@@ -295,7 +322,9 @@ public class CarrelloManager {
     public void svuotaCarrello() {
         int utenteId = getCurrentUserId();
         if (utenteId <= 0) return;
-        carrelloDAO.svuotaCarrello(utenteId);
+        if (carrelloDAO.svuotaCarrello(utenteId)) {
+            modello.registraSvuotamento();
+        }
         statiSelezione.clear();
     }
     
@@ -303,66 +332,62 @@ public class CarrelloManager {
      * Calcola il totale complessivo del carrello
      */
     public double getTotale() {
-        int utenteId = getCurrentUserId();
-        if (utenteId <= 0) return 0.0;
-        return carrelloDAO.getPrezzoTotaleCarrello(utenteId);
+        if (utenteConCarrelloCaricato() <= 0) return 0.0;
+        return modello.getTotale();
     }
     
     /**
      * Restituisce il numero totale di articoli nel carrello
      */
     public int getNumeroArticoli() {
-        int utenteId = getCurrentUserId();
-        if (utenteId <= 0) return 0;
-        return carrelloDAO.contaElementiCarrello(utenteId);
+        if (utenteConCarrelloCaricato() <= 0) return 0;
+        return modello.getNumeroArticoli();
     }
     
     /**
      * Verifica se un articolo è presente nel carrello
      */
     public boolean contieneArticolo(Annuncio annuncio) {
-        int utenteId = getCurrentUserId();
-        if (utenteId <= 0) return false;
-        return carrelloDAO.isNelCarrello(utenteId, annuncio.getId());
+        if (utenteConCarrelloCaricato() <= 0) return false;
+        return modello.contiene(annuncio.getId());
     }
     
     /**
      * Restituisce un articolo dal carrello tramite ID
      */
     public Annuncio getArticoloById(int id) {
-        int utenteId = getCurrentUserId();
-        if (utenteId <= 0) return null;
+        if (utenteConCarrelloCaricato() <= 0) return null;
         
-        List<application.Classe.CarrelloItem> items = carrelloDAO.getCarrelloPerUtente(utenteId);
-        for (application.Classe.CarrelloItem item : items) {
-            if (item.getAnnuncio().getId() == id) {
-                return item.getAnnuncio();
-            }
-        }
-        return null;
+        application.Classe.CarrelloItem item = modello.getArticolo(id);
+        return item != null ? item.getAnnuncio() : null;
     }
     
     /**
      * Restituisce la quantità di un articolo specifico nel carrello
      */
     public int getQuantitaArticolo(Annuncio annuncio) {
-        int utenteId = getCurrentUserId();
-        if (utenteId <= 0) return 0;
+        if (utenteConCarrelloCaricato() <= 0) return 0;
         
-        List<application.Classe.CarrelloItem> items = carrelloDAO.getCarrelloPerUtente(utenteId);
-        for (application.Classe.CarrelloItem item : items) {
-            if (item.getAnnuncio().getId() == annuncio.getId()) {
-                return item.getQuantita();
-            }
-        }
-        return 0;
+        application.Classe.CarrelloItem item = modello.getArticolo(annuncio.getId());
+        return item != null ? item.getQuantita() : 0;
     }
     
     /**
-     * Forza il ricaricamento del carrello dal database
+     * Forza il ricaricamento del carrello dal database, dopo aver scritto le modifiche in sospeso
      */
     public void ricaricaCarrello() {
-        // Il DAO ricarica sempre dal database
+        int utenteId = getCurrentUserId();
+        if (utenteId <= 0) return;
+        modello.ricarica(utenteId);
+    }
+    
+    /**
+     * Scrive sul database le modifiche di quantità ancora in sospeso (es. alla chiusura dell'applicazione)
+     */
+    public static void salvaModificheInSospeso() {
+        if (instance != null) {
+            instance.modello.scriviInSospeso();
+        }
     }
     
     // ==================== METODI SELEZIONE ARTICOLI ====================
@@ -489,6 +514,7 @@ public class CarrelloManager {
             boolean success = carrelloDAO.rimuoviDalCarrello(utenteId, item.getAnnuncioId());
             if (success) {
                 countRimossi++;
+                modello.registraRimozione(item.getAnnuncioId());
                 statiSelezione.remove(item.getAnnuncioId());
             }
         }
@@ -511,6 +537,7 @@ public class CarrelloManager {
         
         boolean success = carrelloDAO.rimuoviDalCarrello(utenteId, annuncioId);
         if (success) {
+            modello.registraRimozione(annuncioId);
             statiSelezione.remove(annuncioId);
         }
         return success;
@@ -555,101 +582,60 @@ public boolean checkoutSelezionati() {
         return false;
     }
     
-    try {
-        boolean successoCompleto = true;
-        List<String> articoliProcessati = new ArrayList<>();
-        List<String> articoliNonProcessati = new ArrayList<>();
-        
-        // Importa CodiceDAO per generare i codici
-        application.DB.CodiceDAO codiceDAO = new application.DB.CodiceDAO();
-        
-        for (CarrelloItem item : selezionati) {
-            Annuncio annuncio = item.getAnnuncio();
-            
-            if (annuncio.getVenditoreId() <= 0) {
-                articoliNonProcessati.add(annuncio.getTitolo() + " (venditore non valido)");
-                successoCompleto = false;
-                continue;
-            }
-            
-            BigDecimal importoArticolo = BigDecimal.valueOf(annuncio.getPrezzo() * item.getQuantita());
-            String descrizione = "Acquisto: " + annuncio.getTitolo() + " (x" + item.getQuantita() + ")";
-            
-            // Trasferisci fondi dall'acquirente al venditore
-            boolean successTrasferimento = contoDAO.trasferisciFondi(
-                utenteId, 
-                annuncio.getVenditoreId(), 
-                importoArticolo, 
-                descrizione
-            );
-            
-            if (successTrasferimento) {
-                // MODIFICA: Genera il codice di sicurezza invece di marcare come VENDUTO
-                String codiceGenerato = codiceDAO.generaCodiceConferma(utenteId, annuncio.getId());
-                
-                if (codiceGenerato != null) {
-                    // Aggiorna lo stato dell'annuncio a "IN_CONSEGNA" o mantieni "ATTIVO" 
-                    // ma con un flag che indica che è stato acquistato
-                    try {
-                        AnnuncioDAO annuncioDAO = new AnnuncioDAO();
-                        // MODIFICA: Non cambiamo lo stato a VENDUTO, rimane ATTIVO fino alla verifica codice
-                        // boolean successAggiornamento = annuncioDAO.aggiornaStatoAnnuncio(annuncio.getId(), "IN_CONSEGNA");
-                        
-                        // Invece di cambiare stato, aggiungiamo una relazione di acquisto
-                        boolean successAggiornamento = true;                        
-                        if (successAggiornamento) {
-                            articoliProcessati.add(annuncio.getTitolo() + " - Codice: " + codiceGenerato);
-                            // Rimuovi l'articolo processato dal carrello
-                            rimuoviArticoloSelezionato(annuncio.getId());
-                        } else {
-                            articoliNonProcessati.add(annuncio.getTitolo() + " (errore registrazione acquisto)");
-                            successoCompleto = false;
-                        }
-                    } catch (Exception e) {
-                        articoliNonProcessati.add(annuncio.getTitolo() + " (errore database: " + e.getMessage() + ")");
-                        successoCompleto = false;
-                    }
-                } else {
-                    articoliNonProcessati.add(annuncio.getTitolo() + " (errore generazione codice)");
-                    successoCompleto = false;
-                }
-            } else {
-                articoliNonProcessati.add(annuncio.getTitolo() + " (errore trasferimento)");
-                successoCompleto = false;
-            }
-        }
-        
-        if (successoCompleto || !articoliProcessati.isEmpty()) {
-            String messaggio = "Acquisto completato con successo!\n" +
-                "Totale speso: €" + String.format("%.2f", totaleSelezionati) + "\n" +
-                "Nuovo saldo: €" + String.format("%.2f", getSaldoUtente());
-            
-            if (!articoliProcessati.isEmpty()) {
-                messaggio += "\n\nArticoli acquistati:\n• " + String.join("\n• ", articoliProcessati);
-                messaggio += "\n\n📦 I codici di sicurezza sono disponibili nella sezione 'Il Mio Account' -> 'Codici di Sicurezza'";
-                messaggio += "\n🔒 Mostra il codice al venditore quando ritiri il prodotto";
-                messaggio += "\n⏰ I codici sono validi per 2 settimane";
-            }
-            
-            if (!articoliNonProcessati.isEmpty()) {
-                messaggio += "\n\nArticoli non processati:\n• " + String.join("\n• ", articoliNonProcessati);
-            }
-            
-            mostraAlert("Checkout Completato", messaggio);
-            return successoCompleto;
-        } else {
-            mostraAlertErrore("Errore Checkout", 
-                "Nessun articolo è stato processato correttamente:\n" +
-                String.join("\n", articoliNonProcessati) + "\n\n" +
-                "Controlla il saldo e riprova.");
-            return false;
-        }
-        
-    } catch (Exception e) {
-        mostraAlertErrore("Errore", "Si è verificato un errore durante il checkout: " + e.getMessage());
-        e.printStackTrace();
+    List<Integer> annunciSelezionati = new ArrayList<>();
+    for (CarrelloItem item : selezionati) {
+        annunciSelezionati.add(item.getAnnuncioId());
+    }
+    Collections.sort(annunciSelezionati);
+    
+    String chiave = annunciSelezionati.equals(selezioneCheckoutInSospeso)
+        ? chiaveCheckoutInSospeso
+        : UUID.randomUUID().toString();
+    
+    // Il checkout legge quantità e prezzi dal database: prima vanno scritte le modifiche in sospeso
+    modello.scriviInSospeso();
+    
+    // Un'unica transazione per tutti gli articoli: o vengono acquistati tutti o nessuno
+    CheckoutDAO.EsitoCheckout esito = checkoutDAO.eseguiCheckout(utenteId, annunciSelezionati, chiave);
+    
+    // Riallinea il modello con il database, qualunque sia l'esito
+    modello.ricarica(utenteId);
+    
+    if (esito.isErroreTecnico()) {
+        chiaveCheckoutInSospeso = chiave;
+        selezioneCheckoutInSospeso = annunciSelezionati;
+        mostraAlertErrore("Errore Checkout", esito.getMessaggio());
         return false;
     }
+    chiaveCheckoutInSospeso = null;
+    selezioneCheckoutInSospeso = null;
+    
+    if (!esito.isSuccesso()) {
+        mostraAlertErrore("Errore Checkout",
+            "Nessun articolo è stato acquistato:\n" + esito.getMessaggio() + "\n\n" +
+            "Controlla il carrello e il saldo e riprova.");
+        return false;
+    }
+    
+    List<String> articoliAcquistati = new ArrayList<>();
+    for (Map.Entry<Integer, String> codice : esito.getCodiciPerAnnuncio().entrySet()) {
+        articoliAcquistati.add(esito.getTitoliPerAnnuncio().get(codice.getKey()) + " - Codice: " + codice.getValue());
+        statiSelezione.remove(codice.getKey());
+    }
+    
+    String messaggio = "Acquisto completato con successo!\n" +
+        "Totale speso: €" + String.format("%.2f", esito.getTotale()) + "\n" +
+        "Nuovo saldo: €" + String.format("%.2f", getSaldoUtente());
+    
+    if (!articoliAcquistati.isEmpty()) {
+        messaggio += "\n\nArticoli acquistati:\n• " + String.join("\n• ", articoliAcquistati);
+        messaggio += "\n\n📦 I codici di sicurezza sono disponibili nella sezione 'Il Mio Account' -> 'Codici di Sicurezza'";
+        messaggio += "\n🔒 Mostra il codice al venditore quando ritiri il prodotto";
+        messaggio += "\n⏰ I codici sono validi per 2 settimane";
+    }
+    
+    mostraAlert("Checkout Completato", messaggio);
+    return true;
 }
     
     /**
@@ -724,14 +710,13 @@ public boolean checkoutSelezionati() {
     }
     
     /**
-     * Restituisce la lista dei movimenti del conto dell'utente
+     * Restituisce gli ultimi movimenti del conto dell'utente, dal più recente
      */
     public List<Conto.Movimento> getMovimentiConto() {
         int utenteId = getCurrentUserId();
         if (utenteId <= 0) return new ArrayList<>();
         
-        Conto conto = contoDAO.getContoByUtenteId(utenteId);
-        return conto != null ? conto.getMovimenti() : new ArrayList<>();
+        return contoDAO.getStoricoMovimenti(utenteId, MOVIMENTI_PER_PAGINA);
     }
     
     /**
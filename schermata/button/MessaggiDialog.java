@@ -234,6 +234,7 @@ public class MessaggiDialog extends Dialog<Void> {
         messaggiList.getItems().clear();
         
         List<Messaggio> messaggi = getFilteredMessages();
+        messaggioDAO.segnaConversazioneLetta(currentUserId, interlocutoreId);
         
         for (Messaggio msg : messaggi) {
             String formattedMessage = formatMessage(msg);
@@ -0,0 +1,207 @@
+package schermata.button;
+
+import application.Classe.CarrelloItem;
+import application.DB.CarrelloDAO;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Modello in memoria del carrello dell'utente in sessione
+ *
+ * <p>Il carrello viene letto dal database una sola volta e poi mantenuto localmente:
+ * <ul>
+ *   <li>conteggio, totale e presenza di un articolo sono risposti in O(1) senza query</li>
+ *   <li>le modifiche di quantità vengono accumulate (vince l'ultima per riga) e scritte in differita
+ *       con un unico {@link CarrelloDAO#aggiornaQuantitaBatch}</li>
+ *   <li>aggiunte e rimozioni restano sincrone, perché il database assegna gli id e applica il rate limit</li>
+ * </ul>
+ * Prima del checkout le modifiche in sospeso vengono scritte e dopo il modello viene ricaricato.
+ * </p>
+ */
+final class ModelloCarrello {
+    /** Attesa dopo l'ultima modifica di quantità prima della scrittura in differita */
+    private static final long RITARDO_SCRITTURA_MS = 2000;
+
+    private final CarrelloDAO carrelloDAO;
+
+    /** Articoli per id annuncio, nell'ordine restituito dal database (più recenti prima) */
+    private final Map<Integer, CarrelloItem> articoli = new LinkedHashMap<>();
+
+    /** Quantità da scrivere per id riga carrello: {carrelloId, quantita, utenteId} */
+    private final Map<Integer, int[]> quantitaInSospeso = new LinkedHashMap<>();
+
+    private final ScheduledExecutorService scrittore = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "carrello-scrittura-differita");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** Serializza le scritture: un batch più vecchio non deve sovrascrivere uno più recente */
+    private final Object scritturaInCorso = new Object();
+
+    private ScheduledFuture<?> scritturaProgrammata;
+    private int utenteId = -1;
+    private boolean caricato = false;
+    private double totale = 0.0;
+
+    ModelloCarrello(CarrelloDAO carrelloDAO) {
+        this.carrelloDAO = carrelloDAO;
+    }
+
+    // ========== CARICAMENTO ==========
+
+    /**
+     * Carica il carrello dell'utente se non è già in memoria (o se l'utente è cambiato)
+     */
+    void assicuraCaricato(int utenteId) {
+        synchronized (this) {
+            if (caricato && this.utenteId == utenteId) {
+                return;
+            }
+        }
+        ricarica(utenteId);
+    }
+
+    /**
+     * Scrive le modifiche in sospeso e rilegge il carrello dal database
+     */
+    void ricarica(int utenteId) {
+        scriviInSospeso();
+        List<CarrelloItem> dalDatabase = carrelloDAO.getCarrelloPerUtente(utenteId);
+
+        synchronized (this) {
+            articoli.clear();
+            totale = 0.0;
+            for (CarrelloItem item : dalDatabase) {
+                articoli.put(item.getAnnuncio().getId(), item);
+                totale += item.getSubtotale();
+            }
+            this.utenteId = utenteId;
+            caricato = true;
+        }
+    }
+
+    // ========== LETTURE O(1) ==========
+
+    synchronized int getNumeroArticoli() {
+        return articoli.size();
+    }
+
+    synchronized double getTotale() {
+        return totale;
+    }
+
+    synchronized boolean contiene(int annuncioId) {
+        return articoli.containsKey(annuncioId);
+    }
+
+    synchronized CarrelloItem getArticolo(int annuncioId) {
+        return articoli.get(annuncioId);
+    }
+
+    /**
+     * Copia degli articoli, sicura da iterare anche se il modello cambia
+     */
+    synchronized List<CarrelloItem> getArticoli() {
+        return new ArrayList<>(articoli.values());
+    }
+
+    // ========== MODIFICHE ==========
+
+    /**
+     * Registra nel modello un'aggiunta già scritta dal DAO (che incrementa la quantità di 1).
+     * Un annuncio nuovo richiede la rilettura, perché solo il database conosce l'id della riga.
+     */
+    synchronized void registraAggiunta(int annuncioId) {
+        CarrelloItem item = articoli.get(annuncioId);
+        if (item == null) {
+            caricato = false;
+            return;
+        }
+        item.setQuantita(item.getQuantita() + 1);
+        totale += item.getAnnuncio().getPrezzo();
+
+        // Una scrittura in sospeso o in corso riporterebbe il database al valore vecchio:
+        // si accoda il valore assoluto aggiornato, che viene scritto per ultimo
+        accodaScrittura(item);
+    }
+
+    /**
+     * Modifica la quantità nel modello e programma la scrittura in differita
+     *
+     * @return false se l'annuncio non è nel carrello
+     */
+    synchronized boolean aggiornaQuantita(int annuncioId, int nuovaQuantita) {
+        CarrelloItem item = articoli.get(annuncioId);
+        if (item == null || nuovaQuantita <= 0) {
+            return false;
+        }
+        totale += item.getAnnuncio().getPrezzo() * (nuovaQuantita - item.getQuantita());
+        item.setQuantita(nuovaQuantita);
+        accodaScrittura(item);
+        return true;
+    }
+
+    private void accodaScrittura(CarrelloItem item) {
+        quantitaInSospeso.put(item.getId(), new int[] { item.getId(), item.getQuantita(), utenteId });
+
+        if (scritturaProgrammata == null || scritturaProgrammata.isDone()) {
+            scritturaProgrammata = scrittore.schedule(this::scriviInSospeso, RITARDO_SCRITTURA_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Rimuove l'articolo dal modello dopo che il DAO l'ha eliminato
+     */
+    synchronized void registraRimozione(int annuncioId) {
+        CarrelloItem item = articoli.remove(annuncioId);
+        if (item != null) {
+            totale -= item.getSubtotale();
+            quantitaInSospeso.remove(item.getId());
+        }
+        if (articoli.isEmpty()) {
+            totale = 0.0;
+        }
+    }
+
+    synchronized void registraSvuotamento() {
+        articoli.clear();
+        quantitaInSospeso.clear();
+        totale = 0.0;
+    }
+
+    // ========== SCRITTURA IN DIFFERITA ==========
+
+    /**
+     * Scrive in un solo batch tutte le quantità accumulate.
+     * La query avviene fuori dal lock, così l'interfaccia non attende il database;
+     * in caso di errore le righe non modificate nel frattempo tornano in coda.
+     */
+    void scriviInSospeso() {
+        synchronized (scritturaInCorso) {
+            List<int[]> daScrivere;
+            synchronized (this) {
+                if (quantitaInSospeso.isEmpty()) {
+                    return;
+                }
+                daScrivere = new ArrayList<>(quantitaInSospeso.values());
+                quantitaInSospeso.clear();
+            }
+
+            if (!carrelloDAO.aggiornaQuantitaBatch(daScrivere)) {
+                System.err.println("⚠️ Scrittura quantità carrello fallita, nuovo tentativo al prossimo salvataggio");
+                synchronized (this) {
+                    for (int[] aggiornamento : daScrivere) {
+                        quantitaInSospeso.putIfAbsent(aggiornamento[0], aggiornamento);
+                    }
+                }
+            }
+        }
+    }
+}